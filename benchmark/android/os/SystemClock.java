@@ -0,0 +1,40 @@
+package android.os;
+
+/**
+ * Desktop replacement of the native clock of the framework, which is put
+ * before the framework on the class path of the benchmarks.
+ */
+public final class SystemClock {
+
+    private static final long BOOT = System.nanoTime();
+
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime() - BOOT;
+    }
+
+    public static long elapsedRealtime() {
+        return elapsedRealtimeNanos() / 1000000L;
+    }
+
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+
+    public static void sleep(long ms) {
+        long deadline = elapsedRealtime() + ms;
+        while (true) {
+            long remaining = deadline - elapsedRealtime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(remaining);
+            } catch (InterruptedException e) {
+                // ignore, as the framework does
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package ape.benchmark;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.utils.Utils;
+
+/**
+ * A corpus is a directory of cases, and each case is a directory of the
+ * step-N.xml files written by StatefulAgent.saveGUI. Steps of a case are
+ * ordered by N, so a real output directory of ape can be used as a case too.
+ *
+ * The checked-in corpus is produced by {@link #main(String[])}. Every case has
+ * three steps: step-2 only changes texts of step-1, so both belong to the same
+ * state under the base naming, and step-3 changes the structure.
+ */
+public class Corpus {
+
+    private static final Pattern STEP_FILE = Pattern.compile("step-(\\d+)\\.xml");
+
+    public static class Case {
+        public final String name;
+        public final List<Document> steps;
+
+        Case(String name, List<Document> steps) {
+            this.name = name;
+            this.steps = steps;
+        }
+
+        public String toString() {
+            return name + "[" + steps.size() + "]";
+        }
+    }
+
+    public static List<Case> load(File corpusDir) throws Exception {
+        File[] caseDirs = corpusDir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        if (caseDirs == null) {
+            throw new IllegalArgumentException("Not a corpus directory: " + corpusDir);
+        }
+        Arrays.sort(caseDirs);
+        List<Case> cases = new ArrayList<>(caseDirs.length);
+        for (File caseDir : caseDirs) {
+            List<Document> steps = loadSteps(caseDir);
+            if (!steps.isEmpty()) {
+                cases.add(new Case(caseDir.getName(), steps));
+            }
+        }
+        return cases;
+    }
+
+    static List<Document> loadSteps(File caseDir) throws Exception {
+        File[] files = caseDir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return STEP_FILE.matcher(file.getName()).matches();
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return Integer.compare(stepOf(f1), stepOf(f2));
+            }
+        });
+        List<Document> steps = new ArrayList<>(files.length);
+        for (File file : files) {
+            steps.add(Utils.readXml(file.getAbsolutePath()));
+        }
+        return steps;
+    }
+
+    static int stepOf(File file) {
+        Matcher m = STEP_FILE.matcher(file.getName());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Not a step file: " + file);
+        }
+        return Integer.parseInt(m.group(1));
+    }
+
+    /**
+     * Generates the synthetic corpus.
+     */
+    public static void main(String[] args) throws Exception {
+        File corpusDir = new File(args.length > 0 ? args[0] : "benchmark/corpus");
+        for (int step = 1; step <= 3; step++) {
+            generate(corpusDir, "shallow-small", step, new ShallowLayout(12, 1));
+            generate(corpusDir, "shallow-large", step, new ShallowLayout(30, 2));
+            generate(corpusDir, "deep-small", step, new DeepLayout(16, 1));
+            generate(corpusDir, "deep-large", step, new DeepLayout(12, 6));
+        }
+    }
+
+    static void generate(File corpusDir, String name, int step, Layout layout) throws Exception {
+        File caseDir = new File(corpusDir, name);
+        if (!caseDir.isDirectory() && !caseDir.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + caseDir);
+        }
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Generator g = new Generator(document, step);
+        document.appendChild(layout.build(g));
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        try (FileOutputStream fos = new FileOutputStream(new File(caseDir, String.format("step-%d.xml", step)))) {
+            transformer.transform(new DOMSource(document), new StreamResult(fos));
+        }
+    }
+
+    static final String PACKAGE = "com.example.bench";
+
+    static class Generator {
+        final Document document;
+        final int step;
+
+        Generator(Document document, int step) {
+            this.document = document;
+            this.step = step;
+        }
+
+        Element node(Element parent, String cls, String id, String text, boolean clickable, int l, int t, int r,
+                int b) {
+            Element e = document.createElement(GUITreeBuilder.GUI_TREE_NODE_TAG_NAME);
+            int index = 0;
+            if (parent != null) {
+                for (org.w3c.dom.Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+                    index++;
+                }
+                parent.appendChild(e);
+            }
+            e.setAttribute("index", String.valueOf(index));
+            e.setAttribute("text", text);
+            e.setAttribute("resource-id", id.isEmpty() ? "" : PACKAGE + ":id/" + id);
+            e.setAttribute("class", cls);
+            e.setAttribute("content-desc", "");
+            e.setAttribute("package", PACKAGE);
+            e.setAttribute("checkable", "false");
+            e.setAttribute("checked", "false");
+            e.setAttribute("clickable", Boolean.toString(clickable));
+            e.setAttribute("enabled", "true");
+            e.setAttribute("focusable", Boolean.toString(clickable));
+            e.setAttribute("focused", "false");
+            e.setAttribute("scrollable", "false");
+            e.setAttribute("long-clickable", "false");
+            e.setAttribute("password", "false");
+            e.setAttribute("bounds", String.format("[%d,%d][%d,%d]", l, t, r, b));
+            return e;
+        }
+
+        /**
+         * Texts change from step to step, ids do not.
+         */
+        String text(String base, int i) {
+            return step == 1 ? base + " " + i : base + " " + (i * 7 + step);
+        }
+    }
+
+    interface Layout {
+        Element build(Generator g);
+    }
+
+    static final int WIDTH = 1080;
+    static final int HEIGHT = 1920;
+
+    /**
+     * A toolbar and a list of rows, each row is an icon and two lines of
+     * text.
+     */
+    static class ShallowLayout implements Layout {
+        final int rows;
+        final int buttonsPerRow;
+
+        ShallowLayout(int rows, int buttonsPerRow) {
+            this.rows = rows;
+            this.buttonsPerRow = buttonsPerRow;
+        }
+
+        public Element build(Generator g) {
+            Element decor = g.node(null, "android.widget.FrameLayout", "", "", false, 0, 0, WIDTH, HEIGHT);
+            Element content = g.node(decor, "android.widget.LinearLayout", "content", "", false, 0, 0, WIDTH, HEIGHT);
+            Element toolbar = g.node(content, "android.view.ViewGroup", "toolbar", "", false, 0, 0, WIDTH, 160);
+            g.node(toolbar, "android.widget.ImageButton", "navigate", "", true, 0, 0, 160, 160);
+            g.node(toolbar, "android.widget.TextView", "title", g.text("Inbox", 0), false, 160, 0, 800, 160);
+            Element list = g.node(content, "android.widget.ListView", "list", "", false, 0, 160, WIDTH, HEIGHT);
+            // the third step drops the last row
+            int count = g.step == 3 ? rows - 1 : rows;
+            int rowHeight = (HEIGHT - 160) / rows;
+            for (int i = 0; i < count; i++) {
+                int top = 160 + i * rowHeight;
+                Element row = g.node(list, "android.widget.LinearLayout", "row", "", true, 0, top, WIDTH,
+                        top + rowHeight);
+                g.node(row, "android.widget.ImageView", "icon", "", false, 0, top, rowHeight, top + rowHeight);
+                g.node(row, "android.widget.TextView", "subject", g.text("Subject", i), false, rowHeight, top, 800,
+                        top + rowHeight / 2);
+                g.node(row, "android.widget.TextView", "summary", g.text("Summary", i), false, rowHeight,
+                        top + rowHeight / 2, 800, top + rowHeight);
+                int buttonWidth = (WIDTH - 800) / buttonsPerRow;
+                for (int j = 0; j < buttonsPerRow; j++) {
+                    g.node(row, "android.widget.Button", "action" + j, "Action " + j, true, 800 + j * buttonWidth,
+                            top, 800 + (j + 1) * buttonWidth, top + rowHeight);
+                }
+            }
+            return decor;
+        }
+    }
+
+    /**
+     * Nested containers wrapping a complete binary tree of containers, whose
+     * leaves are buttons.
+     */
+    static class DeepLayout implements Layout {
+        final int wrappers;
+        final int levels;
+
+        DeepLayout(int wrappers, int levels) {
+            this.wrappers = wrappers;
+            this.levels = levels;
+        }
+
+        public Element build(Generator g) {
+            Element root = g.node(null, "android.widget.FrameLayout", "", "", false, 0, 0, WIDTH, HEIGHT);
+            Element parent = root;
+            for (int i = 0; i < wrappers; i++) {
+                String cls = i % 2 == 0 ? "android.widget.LinearLayout" : "android.widget.FrameLayout";
+                parent = g.node(parent, cls, "wrapper" + i, "", false, 0, i * 8, WIDTH, HEIGHT);
+            }
+            // the third step adds a header into the innermost wrapper
+            if (g.step == 3) {
+                g.node(parent, "android.widget.TextView", "header", g.text("Header", 0), false, 0, wrappers * 8, WIDTH,
+                        wrappers * 8 + 40);
+            }
+            int[] counter = new int[1];
+            buildLevel(g, parent, levels, 0, wrappers * 8, WIDTH, HEIGHT, counter);
+            return root;
+        }
+
+        private void buildLevel(Generator g, Element parent, int level, int l, int t, int r, int b, int[] counter) {
+            if (level == 0) {
+                int i = counter[0]++;
+                g.node(parent, "android.widget.Button", "button" + i, g.text("Button", i), true, l, t, r, b);
+                return;
+            }
+            Element group = g.node(parent, "android.widget.LinearLayout", "group" + level, "", false, l, t, r, b);
+            if (level % 2 == 0) {
+                int m = (l + r) / 2;
+                buildLevel(g, group, level - 1, l, t, m, b, counter);
+                buildLevel(g, group, level - 1, m, t, r, b, counter);
+            } else {
+                int m = (t + b) / 2;
+                buildLevel(g, group, level - 1, l, t, r, m, counter);
+                buildLevel(g, group, level - 1, l, m, r, b, counter);
+            }
+        }
+    }
+}
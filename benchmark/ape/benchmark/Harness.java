@@ -0,0 +1,174 @@
+package ape.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * A tiny JMH-style harness. Each benchmark runs for a number of timed warmup
+ * and measurement iterations on the calling thread. Throughput is reported in
+ * ops/s and allocation in bytes/op, using the per-thread allocation counter of
+ * HotSpot when it is available.
+ *
+ * Ape logs to System.out, so the output is muted while a benchmark runs.
+ * Logging itself is part of the measurement, so pass -Dape.logLevel=warn to
+ * measure the pipeline alone.
+ *
+ * <pre>
+ * -Dbench.warmup=5 -Dbench.iterations=5 -Dbench.time=1000 -Dbench.filter=naming
+ * </pre>
+ */
+public class Harness {
+
+    public interface Benchmark {
+        /**
+         * @return a value derived from the work, which is consumed to keep the
+         *         JIT from eliminating it
+         */
+        Object run();
+    }
+
+    public static class Result {
+        public final String name;
+        public final double[] opsPerSecond;
+        public final double bytesPerOp;
+
+        Result(String name, double[] opsPerSecond, double bytesPerOp) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public double getMean() {
+            double sum = 0;
+            for (double v : opsPerSecond) {
+                sum += v;
+            }
+            return sum / opsPerSecond.length;
+        }
+
+        public double getStdDev() {
+            if (opsPerSecond.length < 2) {
+                return 0;
+            }
+            double mean = getMean();
+            double sum = 0;
+            for (double v : opsPerSecond) {
+                sum += (v - mean) * (v - mean);
+            }
+            return Math.sqrt(sum / (opsPerSecond.length - 1));
+        }
+    }
+
+    private static final PrintStream NULL_STREAM = new PrintStream(new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private final int warmupIterations = Integer.getInteger("bench.warmup", 5);
+    private final int measurementIterations = Integer.getInteger("bench.iterations", 5);
+    private final long iterationNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.time", 1000L));
+    private final String filter = System.getProperty("bench.filter");
+
+    private final PrintStream out;
+    private final List<Result> results = new ArrayList<>();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private volatile Object sink;
+
+    public Harness() {
+        this.out = System.out;
+    }
+
+    public boolean accept(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    public Result run(String name, Benchmark benchmark) {
+        if (!accept(name)) {
+            return null;
+        }
+        out.format("# Benchmark: %s\n", name);
+        System.setOut(NULL_STREAM);
+        double[] scores = new double[measurementIterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                long[] r = iteration(benchmark);
+                printIteration("Warmup", i, r);
+            }
+            for (int i = 0; i < measurementIterations; i++) {
+                long[] r = iteration(benchmark);
+                printIteration("Iteration", i, r);
+                scores[i] = opsPerSecond(r);
+                totalOps += r[0];
+                totalBytes = totalBytes < 0 || r[2] < 0 ? -1 : totalBytes + r[2];
+            }
+        } finally {
+            Logger.flush();
+            System.setOut(out);
+        }
+        double bytesPerOp = totalBytes < 0 || totalOps == 0 ? Double.NaN : (double) totalBytes / totalOps;
+        Result result = new Result(name, scores, bytesPerOp);
+        results.add(result);
+        return result;
+    }
+
+    private void printIteration(String kind, int index, long[] r) {
+        out.format("%-9s %2d: %14.3f ops/s\n", kind, index + 1, opsPerSecond(r));
+    }
+
+    private static double opsPerSecond(long[] r) {
+        return r[0] * (double) TimeUnit.SECONDS.toNanos(1) / r[1];
+    }
+
+    /**
+     * @return ops, elapsed nanos, and allocated bytes (-1 if unsupported)
+     */
+    private long[] iteration(Benchmark benchmark) {
+        long bytesBefore = allocatedBytes();
+        long begin = System.nanoTime();
+        long deadline = begin + iterationNanos;
+        long ops = 0;
+        long now;
+        do {
+            sink = benchmark.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long bytesAfter = allocatedBytes();
+        long bytes = bytesBefore < 0 || bytesAfter < 0 ? -1 : bytesAfter - bytesBefore;
+        return new long[] { ops, now - begin, bytes };
+    }
+
+    private long allocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public void printSummary() {
+        out.println();
+        out.format("%-48s %5s %3s %16s   %12s %12s\n", "Benchmark", "Mode", "Cnt", "Score", "Error", "Alloc(B/op)");
+        for (Result r : results) {
+            out.format("%-48s %5s %3d %16.3f +- %12.3f %12.1f\n", r.name, "thrpt", r.opsPerSecond.length, r.getMean(),
+                    r.getStdDev(), r.bytesPerOp);
+        }
+        out.println();
+        out.println("Error is one standard deviation of the measurement iterations.");
+    }
+}
@@ -0,0 +1,209 @@
+package com.android.commands.monkey.ape.naming;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Document;
+
+import com.android.commands.monkey.ape.model.Model;
+import com.android.commands.monkey.ape.model.ModelAction;
+import com.android.commands.monkey.ape.model.State;
+import com.android.commands.monkey.ape.model.StateTransition;
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.tree.GUITreeAction;
+import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+
+import android.content.ComponentName;
+import ape.benchmark.Corpus;
+import ape.benchmark.Harness;
+
+/**
+ * Benchmarks of the state abstraction pipeline on a corpus of step-N.xml
+ * files. It lives in the naming package because refinement is package
+ * private. For each case of the corpus,
+ *
+ * <ul>
+ * <li>build: copies the documents of all steps and rebuilds them through
+ * the XML path of GUITreeBuilder, including the initial naming.</li>
+ * <li>naming: Naming.naming on every step, with the cached result released
+ * first.</li>
+ * <li>stateKey: GUITreeBuilder.getStateKey on every step, with the cached key
+ * released first.</li>
+ * <li>getNaming: StateNamingManager.getNaming on every step.</li>
+ * <li>refine: NamingFactory.refine on a non-deterministic transition, where
+ * step-1 and step-2 are in the same state and lead to two different
+ * activities. Candidate namings are kept by the naming tree, so this measures
+ * the evaluation of candidates rather than their first construction.</li>
+ * </ul>
+ *
+ * <pre>
+ * java -cp ... com.android.commands.monkey.ape.naming.StateAbstractionBenchmark benchmark/corpus
+ * </pre>
+ */
+public class StateAbstractionBenchmark {
+
+    final Corpus.Case corpusCase;
+    final ComponentName activity;
+    final NamingFactory nf = new NamingFactory();
+    final StateNamingManager nm = new StateNamingManager(nf);
+    final GUITree[] trees;
+
+    StateAbstractionBenchmark(Corpus.Case corpusCase) {
+        this.corpusCase = corpusCase;
+        this.activity = activityOf(corpusCase.name);
+        this.trees = buildTrees(nm, activity, corpusCase.steps);
+    }
+
+    static ComponentName activityOf(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : name.split("[^A-Za-z0-9]+")) {
+            if (!part.isEmpty()) {
+                sb.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+            }
+        }
+        return new ComponentName("com.example.bench", "com.example.bench." + sb + "Activity");
+    }
+
+    /**
+     * A tree owns its document and links its nodes to the elements, so every
+     * tree is built from a deep copy of the loaded document.
+     */
+    static GUITree[] buildTrees(NamingManager nm, ComponentName activity, List<Document> steps) {
+        GUITree[] trees = new GUITree[steps.size()];
+        for (int i = 0; i < trees.length; i++) {
+            Document document = (Document) steps.get(i).cloneNode(true);
+            trees[i] = new GUITreeBuilder(nm, activity, document).getGUITree();
+        }
+        return trees;
+    }
+
+    /**
+     * Released trees are dropped from all caches, as if they were removed
+     * from the model, so this does not grow the heap.
+     */
+    Object build() {
+        GUITree[] built = buildTrees(nm, activity, corpusCase.steps);
+        for (GUITree tree : built) {
+            GUITreeBuilder.release(tree);
+            nm.release(tree);
+        }
+        GUITree.releaseLoadedData();
+        return built;
+    }
+
+    Object naming() {
+        int size = 0;
+        for (GUITree tree : trees) {
+            Naming naming = tree.getCurrentNaming();
+            NamingCache.release(tree);
+            size += naming.naming(tree, false).getNameSize();
+        }
+        return size;
+    }
+
+    Object stateKey() {
+        int hash = 0;
+        for (GUITree tree : trees) {
+            GUITreeBuilder.release(tree);
+            hash += GUITreeBuilder.getStateKey(tree.getCurrentNaming(), tree).hashCode();
+        }
+        return hash;
+    }
+
+    Object getNaming() {
+        int hash = 0;
+        for (GUITree tree : trees) {
+            hash += nm.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument()).hashCode();
+        }
+        return hash;
+    }
+
+    class Refinement {
+        final Model model = new Model(nm);
+        final StateTransition st1;
+        final StateTransition st2;
+
+        Refinement() {
+            if (trees.length < 2) {
+                throw new IllegalStateException("Refinement needs two steps of " + corpusCase);
+            }
+            List<Document> steps = corpusCase.steps;
+            GUITree source1 = buildTrees(nm, activity, steps.subList(0, 1))[0];
+            GUITree source2 = buildTrees(nm, activity, steps.subList(1, 2))[0];
+            GUITree target1 = buildTrees(nm, activityOf(corpusCase.name + "-a"), steps.subList(0, 1))[0];
+            GUITree target2 = buildTrees(nm, activityOf(corpusCase.name + "-b"), steps.subList(0, 1))[0];
+            State state1 = model.getState(source1);
+            State state2 = model.getState(source2);
+            if (state1 != state2) {
+                throw new IllegalStateException("The first two steps of " + corpusCase + " are in different states.");
+            }
+            List<ModelAction> actions = state1.targetedActions();
+            if (actions.isEmpty()) {
+                throw new IllegalStateException("No targeted action in " + state1);
+            }
+            ModelAction action = actions.get(actions.size() / 2);
+            st1 = addTransition(state1, action, source1, target1);
+            st2 = addTransition(state2, action, source2, target2);
+        }
+
+        private StateTransition addTransition(State source, ModelAction action, GUITree sourceTree,
+                GUITree targetTree) {
+            GUITreeNode node = sourceTree.getFirstNode(action.getTarget());
+            return model.addTransition(source, action, model.getState(targetTree), sourceTree,
+                    new GUITreeAction(sourceTree, node, action), targetTree);
+        }
+
+        Object refine() {
+            return nf.refine(model, st1, st2, model.getGUITreeTransitions(st1), model.getGUITreeTransitions(st2))
+                    .size();
+        }
+    }
+
+    void run(Harness harness) {
+        String prefix = corpusCase.name + ".";
+        harness.run(prefix + "build", new Harness.Benchmark() {
+            public Object run() {
+                return build();
+            }
+        });
+        harness.run(prefix + "naming", new Harness.Benchmark() {
+            public Object run() {
+                return naming();
+            }
+        });
+        harness.run(prefix + "stateKey", new Harness.Benchmark() {
+            public Object run() {
+                return stateKey();
+            }
+        });
+        harness.run(prefix + "getNaming", new Harness.Benchmark() {
+            public Object run() {
+                return getNaming();
+            }
+        });
+        if (harness.accept(prefix + "refine")) {
+            final Refinement refinement = new Refinement();
+            harness.run(prefix + "refine", new Harness.Benchmark() {
+                public Object run() {
+                    return refinement.refine();
+                }
+            });
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File corpusDir = new File(args.length > 0 ? args[0] : "benchmark/corpus");
+        List<Corpus.Case> cases = Corpus.load(corpusDir);
+        Harness harness = new Harness();
+        List<StateAbstractionBenchmark> benchmarks = new ArrayList<>(cases.size());
+        for (Corpus.Case c : cases) {
+            benchmarks.add(new StateAbstractionBenchmark(c));
+        }
+        for (StateAbstractionBenchmark benchmark : benchmarks) {
+            benchmark.run(harness);
+        }
+        harness.printSummary();
+    }
+}
@@ -0,0 +1,81 @@
+package com.android.commands.monkey.ape.tree;
+
+import java.util.Random;
+
+import ape.benchmark.Harness;
+
+/**
+ * Benchmarks of image texts on a synthetic screenshot with a grid of icons,
+ * as GUITreeBuilder computes them for a capture: quantizing the screenshot
+ * once, and hashing every icon through a fresh ImagePixels. The icons are
+ * hashed twice, as image buttons often share their bounds with a parent.
+ *
+ * <pre>
+ * java -cp ... com.android.commands.monkey.ape.tree.ImageHashBenchmark [width height icons]
+ * </pre>
+ */
+public class ImageHashBenchmark {
+
+    final int width;
+    final int height;
+    final int[] screenshot;
+    final int[] pixels;
+    final int[][] icons; // left, top, width, height
+
+    ImageHashBenchmark(int width, int height, int iconCount) {
+        this.width = width;
+        this.height = height;
+        Random random = new Random(42);
+        screenshot = new int[width * height];
+        for (int i = 0; i < screenshot.length; i++) {
+            screenshot[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        pixels = new int[screenshot.length];
+        int columns = (int) Math.ceil(Math.sqrt(iconCount));
+        int cellWidth = width / columns;
+        int cellHeight = height / columns;
+        icons = new int[iconCount][];
+        for (int i = 0; i < iconCount; i++) {
+            int left = i % columns * cellWidth;
+            int top = i / columns * cellHeight;
+            icons[i] = new int[] { left, top, Math.min(cellWidth, 144), Math.min(cellHeight, 144) };
+        }
+    }
+
+    Object capture(ImageHasher hasher) {
+        System.arraycopy(screenshot, 0, pixels, 0, pixels.length);
+        ImagePixels.quantizeRGB565(pixels, pixels.length);
+        ImagePixels image = new ImagePixels(pixels, width, height, hasher);
+        int hash = 0;
+        for (int round = 0; round < 2; round++) {
+            for (int[] icon : icons) {
+                hash += image.getImageText(icon[0], icon[1], icon[2], icon[3]).hashCode();
+            }
+        }
+        return hash;
+    }
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1080;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1920;
+        int iconCount = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        final ImageHashBenchmark benchmark = new ImageHashBenchmark(width, height, iconCount);
+        Harness harness = new Harness();
+        String prefix = String.format("imageText.%dx%d.%d.", width, height, iconCount);
+        harness.run(prefix + "exact", new Harness.Benchmark() {
+            final ImageHasher hasher = new ImageHasher.Exact();
+
+            public Object run() {
+                return benchmark.capture(hasher);
+            }
+        });
+        harness.run(prefix + "perceptual", new Harness.Benchmark() {
+            final ImageHasher hasher = new ImageHasher.Perceptual();
+
+            public Object run() {
+                return benchmark.capture(hasher);
+            }
+        });
+        harness.printSummary();
+    }
+}
@@ -0,0 +1,162 @@
+package com.android.commands.monkey.ape.tree;
+
+import java.util.Random;
+
+/**
+ * Pins the image texts of {@link ImageHasher.Exact}, so names of image buttons
+ * do not change across versions. The expected values come from the hash
+ * before ImagePixels: the screenshot copied to RGB 565, the region without
+ * its last column and last row read into a zeroed buffer, and all of it
+ * hashed by 31 * h + color. Throws on the first mismatch.
+ *
+ * <pre>
+ * java -cp ... com.android.commands.monkey.ape.tree.ImageHasherCheck
+ * </pre>
+ */
+public class ImageHasherCheck {
+
+    static final int WIDTH = 64;
+    static final int HEIGHT = 48;
+
+    static int[] screenshot() {
+        Random random = new Random(42);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    /**
+     * RGB 565 expanded back to ARGB 8888, as Bitmap.getPixels does.
+     */
+    static int expand565(int color) {
+        int r = (color >> 19) & 0x1F;
+        int g = (color >> 10) & 0x3F;
+        int b = (color >> 3) & 0x1F;
+        return 0xFF000000 | ((r << 3 | r >> 2) << 16) | ((g << 2 | g >> 4) << 8) | (b << 3 | b >> 2);
+    }
+
+    /**
+     * The loop of GUITreeNode.computeAndSetImageText before ImagePixels.
+     */
+    static int oldHash(int[] screenshot, int imageWidth, int x, int y, int width, int height) {
+        int[] pixels = new int[height * imageWidth];
+        for (int row = 0; row < height - 1; row++) {
+            for (int col = 0; col < width - 1; col++) {
+                pixels[row * imageWidth + col] = expand565(screenshot[(y + row) * imageWidth + x + col]);
+            }
+        }
+        int hash = 0;
+        int begin = 0;
+        for (int row = 0; row < height; row++) {
+            for (int i = begin; i < begin + width; i++) {
+                hash = hash * 31 + pixels[i];
+            }
+            begin = begin + imageWidth;
+        }
+        return hash;
+    }
+
+    static void check(boolean condition, String format, Object... args) {
+        if (!condition) {
+            throw new IllegalStateException(String.format(format, args));
+        }
+    }
+
+    static void checkExpansion() {
+        int[] colors = { 0xFFFFFFFF, 0x00000000, 0xFF123456, 0x80FF0000, 0xFF070307 };
+        int[] expected = { 0xFFFFFFFF, 0xFF000000, 0xFF103452, 0xFFFF0000, 0xFF000000 };
+        int[] pixels = colors.clone();
+        ImagePixels.quantizeRGB565(pixels, pixels.length);
+        for (int i = 0; i < colors.length; i++) {
+            check(pixels[i] == expected[i], "RGB 565 of %08x is %08x, expected %08x", colors[i], pixels[i],
+                    expected[i]);
+            check(expand565(colors[i]) == expected[i], "Reference RGB 565 of %08x is wrong", colors[i]);
+        }
+    }
+
+    static void checkPinned() {
+        int[] pixels = screenshot();
+        ImagePixels.quantizeRGB565(pixels, pixels.length);
+        ImagePixels image = new ImagePixels(pixels, WIDTH, HEIGHT, new ImageHasher.Exact());
+        String[][] pinned = {
+                // left, top, width, height, text
+                { "0", "0", "16", "16", "#debfafe9" },
+                { "5", "7", "20", "11", "#2c191206" },
+                { "48", "32", "16", "16", "#c0927ce9" },
+                { "3", "3", "1", "1", "#0" },
+                { "3", "3", "2", "2", "#ce35aa7e" },
+        };
+        for (String[] entry : pinned) {
+            String text = image.getImageText(Integer.parseInt(entry[0]), Integer.parseInt(entry[1]),
+                    Integer.parseInt(entry[2]), Integer.parseInt(entry[3]));
+            check(text.equals(entry[4]), "Image text of [%s,%s %sx%s] is %s, expected %s", entry[0], entry[1],
+                    entry[2], entry[3], text, entry[4]);
+        }
+    }
+
+    static void checkOldHash() {
+        int[] screenshot = screenshot();
+        int[] pixels = screenshot.clone();
+        ImagePixels.quantizeRGB565(pixels, pixels.length);
+        ImageHasher hasher = new ImageHasher.Exact();
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            int width = 1 + random.nextInt(WIDTH);
+            int height = 1 + random.nextInt(HEIGHT);
+            // The last column and row may be one pixel out of the screenshot.
+            int left = random.nextInt(WIDTH - width + 2);
+            int top = random.nextInt(HEIGHT - height + 2);
+            if (left >= WIDTH || top >= HEIGHT) {
+                continue;
+            }
+            long hash = hasher.hash(pixels, WIDTH, left, top, width, height);
+            int expected = oldHash(screenshot, WIDTH, left, top, width, height);
+            check(hash == (expected & 0xFFFFFFFFL), "Hash of [%d,%d %dx%d] is %x, expected %x", left, top, width,
+                    height, hash, expected);
+        }
+    }
+
+    static void checkLastRowAndColumn() {
+        int[] pixels = screenshot();
+        ImageHasher hasher = new ImageHasher.Exact();
+        int left = 10, top = 5, width = 12, height = 9;
+        long hash = hasher.hash(pixels, WIDTH, left, top, width, height);
+        int[] changed = pixels.clone();
+        for (int row = top; row < top + height; row++) {
+            changed[row * WIDTH + left + width - 1] ^= 0x00FFFFFF;
+        }
+        for (int col = left; col < left + width; col++) {
+            changed[(top + height - 1) * WIDTH + col] ^= 0x00FFFFFF;
+        }
+        check(hasher.hash(changed, WIDTH, left, top, width, height) == hash,
+                "The last column or row changes the hash");
+        changed[(top + height - 2) * WIDTH + left + width - 2] ^= 0x00FFFFFF;
+        check(hasher.hash(changed, WIDTH, left, top, width, height) != hash,
+                "The last hashed pixel does not change the hash");
+        // Hashed as zeros: the same as hashing a region with zeroed edges.
+        int[] zeroed = pixels.clone();
+        for (int row = top; row < top + height; row++) {
+            zeroed[row * WIDTH + left + width - 1] = 0;
+        }
+        for (int col = left; col < left + width; col++) {
+            zeroed[(top + height - 1) * WIDTH + col] = 0;
+        }
+        int expected = 0;
+        for (int row = top; row < top + height; row++) {
+            for (int col = left; col < left + width; col++) {
+                expected = expected * 31 + zeroed[row * WIDTH + col];
+            }
+        }
+        check(hash == (expected & 0xFFFFFFFFL), "The last column and row are not hashed as zeros");
+    }
+
+    public static void main(String[] args) {
+        checkExpansion();
+        checkPinned();
+        checkOldHash();
+        checkLastRowAndColumn();
+        System.out.println("[ImageHasherCheck] OK");
+    }
+}
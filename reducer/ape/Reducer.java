@@ -1,91 +1,80 @@
 package ape;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
-import com.android.commands.monkey.ApeRRFormatter;
-import com.android.commands.monkey.ape.Subsequence;
-import com.android.commands.monkey.ape.model.Action;
-import com.android.commands.monkey.ape.model.CrashAction;
-import com.android.commands.monkey.ape.model.Model;
-import com.android.commands.monkey.ape.model.Model.ActionRecord;
-import com.android.commands.monkey.ape.model.ModelAction;
-import com.android.commands.monkey.ape.model.State;
-import com.android.commands.monkey.ape.model.StateTransition;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.android.commands.monkey.ape.model.ActionType;
+import com.android.commands.monkey.ape.model.Crash;
+import com.android.commands.monkey.ape.model.ModelSnapshot;
+import com.android.commands.monkey.ape.model.ModelSnapshot.ActionRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.HistoryRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.StateRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.TransitionRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshotConverter;
+import com.android.commands.monkey.ape.model.ModelSnapshotReader;
 import com.android.commands.monkey.ape.utils.Logger;
-import com.android.commands.monkey.ape.utils.Utils;
 
 /**
  * A trivial action sequence reducer, which works really bad.
  * This tiny reducer should be compatible with J2SE and can be invoked in your development environment.
+ * It only decodes the history, states, actions, and transitions of the model snapshot.
  * @author txgu
  *
  */
 public class Reducer {
 
-    static void reduce(Model model, List<ActionRecord> crashLog) {
+    static void reduce(ModelSnapshotReader reader, List<HistoryRecord> crashLog) throws IOException {
         if (crashLog.size() <= 2) {
             Logger.wprintln("Trivial crash log: fewer than two states.");
             return;
         }
-        Action firstAction = crashLog.get(0).modelAction;
-        if (!firstAction.canStartApp()) {
+        HistoryRecord firstAction = crashLog.get(0);
+        if (!firstAction.getType().canStartApp()) {
             Logger.wformat("The first action is expected to be START, but we get %s.", firstAction);
             return;
         }
-        Action lastAction = crashLog.get(crashLog.size() - 1).modelAction;
-        if (!lastAction.isCrash()) {
+        HistoryRecord lastAction = crashLog.get(crashLog.size() - 1);
+        if (lastAction.getType() != ActionType.PHANTOM_CRASH) {
             Logger.wformat("The first action is expected to be CRASH, but we get %s.", lastAction);
             return;
         }
-        Set<State> states = new HashSet<State>();
-        Set<Action> actions = new HashSet<Action>();
-        Map<State, List<ActionRecord>> stateToRecords = new HashMap<>();
-        Map<Action, List<ActionRecord>> actionToRecords = new HashMap<>();
-        State firstState = null;
-        State lastState = null;
-        Action lastStart = null;
-        Action lastNonCrash = null;
-        for (ActionRecord ar : crashLog) {
-            actions.add(ar.modelAction);
-            if (ar.modelAction.isModelAction()) {
-                ar.resolveModelAction();
-                ModelAction ma = (ModelAction) ar.modelAction;
-                lastState = ma.getState();
-                states.add(lastState);
-                Utils.addToMapList(stateToRecords, lastState, ar);
-                Utils.addToMapList(actionToRecords, ar.modelAction, ar);
-                if (firstState == null) {
+        int firstState = -1;
+        int lastState = -1;
+        HistoryRecord lastStart = null;
+        HistoryRecord lastNonCrash = null;
+        for (HistoryRecord ar : crashLog) {
+            if (ar.state != -1) {
+                lastState = ar.state;
+                if (firstState == -1) {
                     firstState = lastState;
                 }
             }
-            if (ar.modelAction.canStartApp()) {
-                lastStart = ar.modelAction;
-                firstState = null;
+            if (ar.getType().canStartApp()) {
+                lastStart = ar;
+                firstState = -1;
             }
         }
-        if (firstState == null || lastState == null) {
+        if (firstState == -1 || lastState == -1) {
             throw new IllegalArgumentException("Invalid ");
         }
+        StateRecord[] states = reader.getStates();
         if (firstState == lastState) {
-            Logger.iformat("It seems to be a trivial crash on startup.", lastState, firstState);
+            Logger.iformat("It seems to be a trivial crash on startup.", states[lastState], states[firstState]);
             return;
         }
         for (int i = crashLog.size() - 2; i >= 0; i--) {
-            ActionRecord ar = crashLog.get(i);
-            if (!ar.modelAction.isCrash()) {
-                lastNonCrash = ar.modelAction;
-                if (lastNonCrash.isModelAction()) {
-                    ar.resolveModelAction();
-                }
+            HistoryRecord ar = crashLog.get(i);
+            if (ar.getType() != ActionType.PHANTOM_CRASH) {
+                lastNonCrash = ar;
                 break;
             }
         }
@@ -93,54 +82,126 @@ public class Reducer {
             Logger.iprintln("No last non-crash action.");
             return;
         }
-        List<Subsequence> subsequences = model.getGraph().moveToState(firstState, lastState, false);
-        if (subsequences.isEmpty()) {
+        List<TransitionRecord> path = findShortestPath(reader, firstState, lastState);
+        if (path == null) {
             // when trace is unconnected due to fuzzing, clean restart. etc.
-            Logger.iformat("%s is not reachable from %s.", lastState, firstState);
+            Logger.iformat("%s is not reachable from %s.", states[lastState], states[firstState]);
         } else {
-            Subsequence sub = subsequences.get(0);
-            for (StateTransition edge : sub.getEdges()) {
-                Logger.println("Source: " + edge.getSource());
-                Logger.println("Action: " + edge.getAction());
-                Logger.println("Target: " + edge.getTarget());
+            ActionRecord[] actions = reader.getActions();
+            for (TransitionRecord edge : path) {
+                Logger.println("Source: " + states[edge.source]);
+                Logger.println("Action: " + actions[edge.action]);
+                Logger.println("Target: " + states[edge.target]);
             }
             PrintWriter pw = new PrintWriter(System.out);
-            ApeRRFormatter.startLogAction(pw, lastStart, 0, 0); // clock time and timestamp is not necessary during replaying.
-            for (StateTransition edge : sub.getEdges()) {
-                ApeRRFormatter.startLogAction(pw, edge.action, 0, 0);
+            logAction(pw, lastStart.json); // clock time and timestamp is not necessary during replaying.
+            for (TransitionRecord edge : path) {
+                logAction(pw, actions[edge.action].json);
+            }
+            logAction(pw, lastNonCrash.json);
+        }
+    }
+
+    /**
+     * Breadth-first search over strong transitions of enabled and valid
+     * actions, excluding back, as Graph.moveToState does.
+     * @return null if the target is not reachable
+     */
+    static List<TransitionRecord> findShortestPath(ModelSnapshotReader reader, int from, int to) throws IOException {
+        StateRecord[] states = reader.getStates();
+        ActionRecord[] actions = reader.getActions();
+        List<List<TransitionRecord>> outEdges = new ArrayList<>(states.length);
+        for (int i = 0; i < states.length; i++) {
+            outEdges.add(new ArrayList<TransitionRecord>());
+        }
+        for (TransitionRecord edge : reader.getTransitions()) {
+            ActionRecord action = actions[edge.action];
+            if (!action.enabled || !action.valid || action.getType() == ActionType.MODEL_BACK) {
+                continue;
+            }
+            if (edge.isStrong()) {
+                outEdges.get(edge.source).add(edge);
+            }
+        }
+        TransitionRecord[] via = new TransitionRecord[states.length];
+        boolean[] visited = new boolean[states.length];
+        LinkedList<Integer> queue = new LinkedList<>();
+        visited[from] = true;
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            for (TransitionRecord edge : outEdges.get(state)) {
+                if (visited[edge.target]) {
+                    continue;
+                }
+                visited[edge.target] = true;
+                via[edge.target] = edge;
+                if (edge.target == to) {
+                    LinkedList<TransitionRecord> path = new LinkedList<>();
+                    for (int s = to; s != from; s = via[s].source) {
+                        path.addFirst(via[s]);
+                    }
+                    return path;
+                }
+                queue.addLast(edge.target);
             }
-            ApeRRFormatter.startLogAction(pw, lastNonCrash, 0, 0);
+        }
+        return null;
+    }
+
+    static void logAction(PrintWriter pw, String json) {
+        try {
+            JSONObject jAction = new JSONObject(json);
+            jAction.put("timestamp", 0);
+            pw.format("%d %s\n", 0, jAction);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        pw.flush();
+    }
+
+    static void printCrash(HistoryRecord record) {
+        try {
+            JSONObject jCrash = new JSONObject(record.json).getJSONObject("crash");
+            new Crash(jCrash.optString("processName"), jCrash.optInt("pid", 0), jCrash.optString("shortMsg"),
+                    jCrash.optString("longMsg"), jCrash.optLong("timeMillis", 0L), jCrash.optString("stackTrace"))
+                            .print();
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
     }
 
     public static void main(String[] args) {
         String outputDir = args[0];
-        File modelFile = new File(outputDir, "sataModel.obj");
-        if (!modelFile.isFile()) {
-            throw new IllegalArgumentException(String.format("File %s does not exist.", modelFile));
-        }
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(modelFile))) {
-            Model model = (Model) ois.readObject();
-            List<ActionRecord> actionRecords = model.getActionHistory();
-            int begin = 0;
-            for (int i = 0; i < actionRecords.size(); i++) {
-                ActionRecord record = actionRecords.get(i);
-                Action action = record.modelAction;
-                if (action.isCrash()) {
-                    CrashAction crashAction = (CrashAction) action;
-                    crashAction.crash.print();
-                    List<ActionRecord> crashLog = actionRecords.subList(begin, i + 1);
-                    int index = 0;
-                    for (ActionRecord ar : crashLog) {
-                        String stateId = "";
-                        if (ar.modelAction.isModelAction()) {
-                            ar.resolveModelAction();
-                            ModelAction ma = (ModelAction) ar.modelAction;
-                            stateId = ma.getState().getGraphId() + " ";
+        File snapshotFile = new File(outputDir, ModelSnapshot.FILE_NAME);
+        try {
+            if (!snapshotFile.isFile()) {
+                File modelFile = new File(outputDir, "sataModel.obj");
+                if (!modelFile.isFile()) {
+                    throw new IllegalArgumentException(String.format("File %s does not exist.", snapshotFile));
+                }
+                Logger.iformat("Converting %s to %s.", modelFile, snapshotFile);
+                ModelSnapshotConverter.convert(modelFile, snapshotFile);
+            }
+            try (ModelSnapshotReader reader = new ModelSnapshotReader(snapshotFile)) {
+                List<HistoryRecord> actionRecords = Collections.unmodifiableList(Arrays.asList(reader.getHistory()));
+                int begin = 0;
+                for (int i = 0; i < actionRecords.size(); i++) {
+                    HistoryRecord record = actionRecords.get(i);
+                    if (record.getType() == ActionType.PHANTOM_CRASH) {
+                        printCrash(record);
+                        StateRecord[] states = reader.getStates();
+                        List<HistoryRecord> crashLog = actionRecords.subList(begin, i + 1);
+                        int index = 0;
+                        for (HistoryRecord ar : crashLog) {
+                            String stateId = "";
+                            if (ar.state != -1) {
+                                stateId = states[ar.state].graphId + " ";
+                            }
+                            Logger.iformat("%4d %s%s", index++, stateId, ar);
                         }
-                        Logger.iformat("%4d %s%s", index++, stateId, ar.modelAction);
+                        reduce(reader, crashLog);
                     }
-                    reduce(model, crashLog);
                 }
             }
         } catch (IOException e) {
@@ -16,6 +16,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.android.commands.monkey.ape.model.Action;
+import com.android.commands.monkey.ape.model.Model.ActionRecord;
 import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.Utils;
 
@@ -146,6 +147,11 @@ public class ApeRRFormatter {
         pw.flush();
     }
 
+    public static void startLogAction(PrintWriter pw, ActionRecord record) {
+        pw.format("%d %s\n", record.clockTimestamp, recordAction(record));
+        pw.flush();
+    }
+
     private static final Pattern decimalNumber = Pattern.compile("[0-9]+");
 
     /**
@@ -175,6 +181,17 @@ public class ApeRRFormatter {
         return null;
     }
 
+    public static JSONObject recordAction(ActionRecord record) {
+        try {
+            JSONObject jAction = record.toJSONObject();
+            jAction.put("timestamp", record.agentTimestamp);
+            return jAction;
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     public static List<JSONObject> readActions(String logfile) {
         List<JSONObject> actions = new ArrayList<JSONObject>(); 
         try (BufferedReader br = new BufferedReader(new FileReader(logfile))) {
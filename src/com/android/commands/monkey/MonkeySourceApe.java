@@ -18,6 +18,7 @@ package com.android.commands.monkey;
 
 import static com.android.commands.monkey.ape.utils.Config.defaultGUIThrottle;
 import static com.android.commands.monkey.ape.utils.Config.doFuzzing;
+import static com.android.commands.monkey.ape.utils.Config.flushImagesThreshold;
 import static com.android.commands.monkey.ape.utils.Config.fuzzingRate;
 import static com.android.commands.monkey.ape.utils.Config.imageWriterCount;
 import static com.android.commands.monkey.ape.utils.Config.refectchInfoCount;
@@ -118,7 +119,7 @@ public class MonkeySourceApe implements MonkeyEventSource {
     private PrintWriter mEventConsumeLogger;
     private File mEventProduceLoggerFile;
     private File mEventConsumeLoggerFile;
-    private ImageWriterQueue[] mImageWriters;
+    private ImageWriterQueue mImageWriter;
     private MonkeyServer mMonkeyServer;
 
     // Counter
@@ -180,12 +181,7 @@ public class MonkeySourceApe implements MonkeyEventSource {
 
         mUiAutomation.setServiceInfo(info);
 
-        mImageWriters = new ImageWriterQueue[imageWriterCount];
-        for (int i = 0; i < 3; i++) {
-            mImageWriters[i] = new ImageWriterQueue();
-            Thread imageThread = new Thread(mImageWriters[i]);
-            imageThread.start();
-        }
+        mImageWriter = new ImageWriterQueue(imageWriterCount, flushImagesThreshold);
     }
 
     public int getEventCount() {
@@ -206,9 +202,7 @@ public class MonkeySourceApe implements MonkeyEventSource {
     public void tearDown() {
         this.disconnect();
         this.mAgent.tearDown();
-        for (ImageWriterQueue writer : mImageWriters) {
-            writer.tearDown();
-        }
+        mImageWriter.tearDown();
         this.mEventProduceLogger.close();
         this.mEventConsumeLogger.close();
         File visOutput = new File(getOutputDirectory(), "sataTimeline.vis.js");
@@ -1417,13 +1411,9 @@ public class MonkeySourceApe implements MonkeyEventSource {
         return mRandom;
     }
 
-    private ImageWriterQueue nextImageWriter() {
-        return mImageWriters[mRandom.nextInt(mImageWriters.length)];
-    }
-
     public boolean takeScreenshot(File screenshotFile) {
         Bitmap map = mUiAutomation.takeScreenshot();
-        nextImageWriter().add(map, screenshotFile);
+        mImageWriter.add(map, screenshotFile);
         return true;
     }
 
@@ -2,86 +2,307 @@ package com.android.commands.monkey.ape;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.android.commands.monkey.ape.utils.Config;
 import com.android.commands.monkey.ape.utils.Logger;
 
 import android.graphics.Bitmap;
 
-public class ImageWriterQueue implements Runnable {
+/**
+ * Encodes screenshots to PNG files on a pool of low priority writers, so
+ * saving screenshots does not delay the injection of actions. The number of
+ * screenshots waiting to be encoded is bounded. When the queue is full, a new
+ * screenshot is handled by the {@link Policy} of ape.imageQueuePolicy.
+ *
+ * A writer compares its screenshot with the previous one, pixel by pixel. An
+ * identical screenshot is not encoded again once the previous one has been
+ * written, even if that was still queued when the screenshot was added.
+ * Instead, a line "dst src" is appended to {@link #REFERENCE_FILE} in the
+ * directory of the screenshot. Writers take screenshots in the order they are
+ * added, so the previous one is always taken first.
+ */
+public class ImageWriterQueue {
 
+    public static final String REFERENCE_FILE = "screenshot-refs.txt";
 
-    static class Req {
-        final Bitmap map;
+    public enum Policy {
+        /**
+         * Drop the screenshot.
+         */
+        SKIP,
+        /**
+         * Halve the width and the height of the screenshot, which may exceed
+         * the capacity up to twice. Beyond that, drop it.
+         */
+        DOWNSCALE,
+        /**
+         * Wait at most ape.imageQueueBlockMillis for a free slot. Drop it
+         * on timeout.
+         */
+        BLOCK,
+    }
+
+    /**
+     * A screenshot to be written. Its bitmap is shared by its writer and the
+     * writer of the next screenshot, and recycled when both are done.
+     */
+    static class Frame {
+        final Bitmap bitmap;
         final File dst;
+        final Frame previous; // to compare with, or null
+        private final CountDownLatch done = new CountDownLatch(1);
+        private File file; // the file holding the pixels, null if not written
+        private int refs;
 
-        public Req(Bitmap map, File dst) {
-            this.map = map;
+        Frame(Bitmap bitmap, File dst, Frame previous, int refs) {
+            this.bitmap = bitmap;
             this.dst = dst;
+            this.previous = previous;
+            this.refs = refs;
         }
-    }
 
-    private LinkedList<Req> requestQueue = new LinkedList<Req>();
+        void finish(File file) {
+            this.file = file;
+            done.countDown();
+        }
 
-    @Override
-    public void run() {
-        while (!Thread.currentThread().isInterrupted()) {
-            Req req = null;
-            try {
-                req = read();
-            } catch (InterruptedException e) {
-                continue;
+        /**
+         * @return the file holding the pixels once the frame is finished, or
+         *         null if it was not written
+         */
+        File awaitFile() throws InterruptedException {
+            done.await();
+            return file;
+        }
+
+        void release() {
+            boolean recycle;
+            synchronized (this) {
+                recycle = --refs == 0;
             }
-            if (req != null) {
-                writePNG(req);
+            if (recycle) {
+                bitmap.recycle();
             }
         }
     }
 
-    private void writePNG(Req req) {
-        Bitmap map = req.map;
-        File dst = req.dst;
+    private final ThreadPoolExecutor pool;
+    private final int capacity;
+    private final Policy policy;
+    private final long blockMillis;
+
+    private int pending;
+    private int maxPending;
+    private int written;
+    private int referenced;
+    private int downscaled;
+    private int skipped;
+
+    private Frame lastFrame; // of the monkey thread, with a reference for the next frame
+
+    public ImageWriterQueue(int writerCount, int capacity) {
+        int threads = Math.max(1, writerCount);
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int count;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "APE-ImageWriter-" + (count++));
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        this.capacity = Math.max(1, capacity);
+        this.policy = parsePolicy(Config.imageQueuePolicy);
+        this.blockMillis = Config.imageQueueBlockMillis;
+    }
+
+    private static Policy parsePolicy(String name) {
+        try {
+            return Policy.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Logger.wformat("Unknown image queue policy %s, use %s.", name, Policy.SKIP);
+            return Policy.SKIP;
+        }
+    }
+
+    public void add(Bitmap map, File dst) {
         if (map == null) {
             Logger.format("No screen shot for %s", dst.getAbsolutePath());
             return;
         }
+        Boolean downscale = reserve();
+        if (downscale == null) {
+            map.recycle();
+            Logger.format("ImageQueue is full (%d)! Skip the screen shot %s.", capacity, dst.getAbsolutePath());
+            return;
+        }
+        final Frame frame;
+        if (downscale) {
+            Bitmap scaled = Bitmap.createScaledBitmap(map, Math.max(1, map.getWidth() >> 1),
+                    Math.max(1, map.getHeight() >> 1), true);
+            map.recycle();
+            if (scaled == null) {
+                release();
+                return;
+            }
+            // Not compared, as its pixels differ from the screen.
+            frame = new Frame(scaled, dst, null, 1);
+            if (lastFrame != null) {
+                lastFrame.release();
+                lastFrame = null;
+            }
+        } else {
+            // The reference of lastFrame passes to the new frame.
+            frame = new Frame(map, dst, lastFrame, 2);
+            lastFrame = frame;
+        }
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    write(frame);
+                } finally {
+                    frame.release();
+                    release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a slot for a screenshot, following the policy when the queue is
+     * full. Only BLOCK waits, and no longer than ape.imageQueueBlockMillis.
+     *
+     * @return whether to downscale the screenshot, or null to drop it
+     */
+    private synchronized Boolean reserve() {
+        if (pending >= capacity && policy == Policy.BLOCK) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockMillis);
+            long remaining;
+            while (pending >= capacity && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        boolean downscale = false;
+        if (pending >= capacity) {
+            if (policy == Policy.DOWNSCALE && pending < capacity << 1) {
+                downscale = true;
+                downscaled++;
+            } else {
+                skipped++;
+                return null;
+            }
+        }
+        pending++;
+        maxPending = Math.max(maxPending, pending);
+        return downscale;
+    }
+
+    private synchronized void release() {
+        pending--;
+        notifyAll();
+    }
+
+    private void write(Frame frame) {
+        File file = null;
+        try {
+            Frame previous = frame.previous;
+            if (previous != null) {
+                try {
+                    if (frame.bitmap.sameAs(previous.bitmap)) {
+                        file = previous.awaitFile();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    previous.release();
+                }
+            }
+            if (file != null) {
+                writeReference(frame.dst, file);
+                synchronized (this) {
+                    referenced++;
+                }
+            } else if (writePNG(frame.bitmap, frame.dst)) {
+                file = frame.dst;
+                synchronized (this) {
+                    written++;
+                }
+            }
+        } finally {
+            frame.finish(file);
+        }
+    }
+
+    private static boolean writePNG(Bitmap map, File dst) {
         try (FileOutputStream fos = new FileOutputStream(dst)) {
-            map.compress(Bitmap.CompressFormat.PNG, 85, fos);
+            if (!map.compress(Bitmap.CompressFormat.PNG, 85, fos)) {
+                Logger.format("Fail to encode screen shot to %s", dst.getAbsolutePath());
+                return false;
+            }
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
             Logger.format("Fail to save screen shot to %s", dst.getAbsolutePath());
-        } finally {
-            map.recycle();
+            return false;
         }
     }
 
-    public synchronized void add(Bitmap map, File dst) {
-        requestQueue.add(new Req(map, dst));
-        if (requestQueue.size() > Config.flushImagesThreshold) {
-            Logger.format("ImageQueue is too full (%d)! Try to flush it.", requestQueue.size());
-            flush();
+    private synchronized void writeReference(File dst, File src) {
+        File refs = new File(dst.getParentFile(), REFERENCE_FILE);
+        try (PrintWriter pw = new PrintWriter(new FileWriter(refs, true))) {
+            pw.format("%s %s\n", dst.getName(), src.getName());
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.format("Fail to save screen shot reference to %s", refs.getAbsolutePath());
         }
-        notifyAll();
     }
 
-    public synchronized void flush() {
-        while (!requestQueue.isEmpty()) {
-            Req req = requestQueue.removeFirst();
-            writePNG(req);
-        }
+    /**
+     * @return the number of screenshots waiting or being encoded
+     */
+    public synchronized int getDepth() {
+        return pending;
     }
 
-    private synchronized Req read() throws InterruptedException {
-        while (requestQueue.isEmpty()) {
-            wait();
+    /**
+     * Waits until all screenshots added before are written.
+     */
+    public synchronized void flush() {
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
-        Req req = requestQueue.removeFirst();
-        return req;
     }
 
-    public synchronized void tearDown() {
+    public void tearDown() {
         flush();
+        if (lastFrame != null) {
+            lastFrame.release();
+            lastFrame = null;
+        }
+        pool.shutdown();
+        synchronized (this) {
+            Logger.format("ImageQueue: %d written, %d referenced, %d downscaled, %d skipped, max depth %d of %d (%s).",
+                    written, referenced, downscaled, skipped, maxPending, capacity, policy);
+        }
     }
 }
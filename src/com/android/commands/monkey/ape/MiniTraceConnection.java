@@ -0,0 +1,142 @@
+package com.android.commands.monkey.ape;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.android.commands.monkey.ape.utils.FrameDecoder;
+
+/**
+ * Server side of the MiniTrace protocol over a connected stream pair. All
+ * little-endian; after the handshake the client sends a stream of frames:
+ *
+ * <pre>
+ * kTargetEntered | kTargetExited | kTargetUnwind : int32 tid, int32 method_id, int64 timestamp
+ * kIdle                                          : int64 timestamp
+ * </pre>
+ *
+ * Target frames go to a {@link TargetEventRing}. This class does not depend on
+ * Android, so {@link MiniTraceLoopback} can drive it on a plain JVM.
+ */
+public class MiniTraceConnection {
+
+    public static final int kHandShake         = 0x0abeabe0;
+    public static final int kTargetEntered     = 0xabeabe01; // 4byte
+    public static final int kTargetExited      = 0xabeabe02; // 4byte
+    public static final int kTargetUnwind      = 0xabeabe03; // 4byte
+    public static final int kIdle              = 0xabe0de04; // 8byte
+
+    private final FrameDecoder in;
+    private final OutputStream os;
+
+    private int mainTid = -1;
+    private String directory;
+    private int methodCount;
+    private long lastIdleTime;
+
+    public MiniTraceConnection(InputStream is, OutputStream os) {
+        this.in = new FrameDecoder(is);
+        this.os = os;
+    }
+
+    /**
+     * Exchange the handshake, then receive the main tid and the trace
+     * directory, and send the encoded target methods.
+     */
+    public void handshake(List<byte[]> targetMethods) throws IOException {
+        int hsval = in.readInt32();
+        if (hsval != kHandShake) {
+            throw new IllegalStateException("Handshake failed " + Integer.toHexString(hsval));
+        }
+        writeInt32(os, kHandShake);
+        os.flush();
+        mainTid = in.readInt32();
+        directory = in.readString(in.readInt32());
+        methodCount = targetMethods.size();
+        OutputStream out = new BufferedOutputStream(os);
+        writeInt32(out, methodCount); // size could be zero
+        for (byte[] method : targetMethods) {
+            out.write(method);
+        }
+        out.flush();
+    }
+
+    /**
+     * Decode one frame. Target events are appended to the ring; the time of an
+     * idle frame is available from {@link #getLastIdleTime()}.
+     *
+     * @return the frame id
+     */
+    public int readFrame(TargetEventRing ring) throws IOException {
+        int id = in.readInt32();
+        int kind;
+        switch (id) {
+        case kTargetEntered:
+            kind = TargetEventRing.KIND_ENTERED;
+            break;
+        case kTargetExited:
+            kind = TargetEventRing.KIND_EXITED;
+            break;
+        case kTargetUnwind:
+            kind = TargetEventRing.KIND_UNWIND;
+            break;
+        case kIdle:
+            lastIdleTime = in.readLong();
+            return id;
+        default:
+            throw new IllegalStateException("Unknown id received " + Integer.toHexString(id));
+        }
+        int tid = in.readInt32();
+        int methodId = in.readInt32();
+        if (methodId < 0 || methodId >= methodCount) {
+            throw new IllegalStateException("Unknown method id " + methodId);
+        }
+        long timestamp = in.readLong();
+        ring.add(tid, methodId, kind, tid == mainTid, timestamp);
+        return id;
+    }
+
+    public int getMainTid() {
+        return mainTid;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public long getLastIdleTime() {
+        return lastIdleTime;
+    }
+
+    /**
+     * Encode a target method as sent in the handshake. String lengths are in
+     * chars, as MiniTrace expects.
+     */
+    public static byte[] encodeTargetMethod(String clsname, String mtdname, String signature, int mtdFlag)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt32(out, clsname.length());
+        out.write(clsname.getBytes("UTF-8"));
+        writeInt32(out, mtdname.length());
+        out.write(mtdname.getBytes("UTF-8"));
+        writeInt32(out, signature.length());
+        out.write(signature.getBytes("UTF-8"));
+        writeInt32(out, mtdFlag);
+        return out.toByteArray();
+    }
+
+    public static void writeInt32(OutputStream os, int n) throws IOException {
+        os.write(n & 0xff);
+        os.write((n >> 8) & 0xff);
+        os.write((n >> 16) & 0xff);
+        os.write((n >> 24) & 0xff);
+    }
+
+    public static void writeLong(OutputStream os, long n) throws IOException {
+        writeInt32(os, (int) n);
+        writeInt32(os, (int) (n >>> 32));
+    }
+}
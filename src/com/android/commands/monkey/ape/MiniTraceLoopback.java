@@ -0,0 +1,182 @@
+package com.android.commands.monkey.ape;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.android.commands.monkey.ape.utils.FrameDecoder;
+
+/**
+ * Load test of the MonkeyServer event path on a plain JVM. A client thread
+ * plays the MiniTrace side of the protocol over a loopback TCP socket and
+ * streams bursts of target events interleaved with idle frames; the server
+ * side decodes them with {@link MiniTraceConnection} into a
+ * {@link TargetEventRing} while a consumer thread keeps draining it.
+ *
+ * <pre>
+ * java com.android.commands.monkey.ape.MiniTraceLoopback [events] [burst] [capacity]
+ * </pre>
+ */
+public class MiniTraceLoopback {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static class Client implements Runnable {
+        final int port;
+        final int events;
+        final int burst;
+        final int methodCount;
+        volatile Throwable error;
+
+        Client(int port, int events, int burst, int methodCount) {
+            this.port = port;
+            this.events = events;
+            this.burst = burst;
+            this.methodCount = methodCount;
+        }
+
+        public void run() {
+            try {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                try {
+                    play(socket.getInputStream(), socket.getOutputStream());
+                } finally {
+                    socket.close();
+                }
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+
+        void play(InputStream is, OutputStream os) throws IOException {
+            FrameDecoder in = new FrameDecoder(is);
+            OutputStream out = new BufferedOutputStream(os, 65536);
+            int mainTid = 1000;
+            MiniTraceConnection.writeInt32(out, MiniTraceConnection.kHandShake);
+            out.flush();
+            if (in.readInt32() != MiniTraceConnection.kHandShake) {
+                throw new IllegalStateException("Handshake echo mismatch");
+            }
+            byte[] directory = "/data/data/loopback/mt_data/0/".getBytes(UTF8);
+            MiniTraceConnection.writeInt32(out, mainTid);
+            MiniTraceConnection.writeInt32(out, directory.length);
+            out.write(directory);
+            out.flush();
+            int count = in.readInt32();
+            if (count != methodCount) {
+                throw new IllegalStateException("Expect " + methodCount + " methods but get " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                in.readString(in.readInt32()); // class
+                in.readString(in.readInt32()); // method
+                in.readString(in.readInt32()); // signature
+                in.readInt32(); // flag
+            }
+            int[] ids = { MiniTraceConnection.kTargetEntered, MiniTraceConnection.kTargetExited,
+                    MiniTraceConnection.kTargetUnwind };
+            for (int i = 0; i < events; i++) {
+                MiniTraceConnection.writeInt32(out, ids[i % ids.length]);
+                MiniTraceConnection.writeInt32(out, (i & 1) == 0 ? mainTid : mainTid + 1 + (i & 7));
+                MiniTraceConnection.writeInt32(out, i % methodCount);
+                MiniTraceConnection.writeLong(out, System.currentTimeMillis());
+                if ((i + 1) % burst == 0) {
+                    MiniTraceConnection.writeInt32(out, MiniTraceConnection.kIdle);
+                    MiniTraceConnection.writeLong(out, System.currentTimeMillis());
+                    out.flush();
+                }
+            }
+            out.flush();
+        }
+    }
+
+    static class Consumer implements Runnable {
+        final TargetEventRing ring;
+        final AtomicBoolean done = new AtomicBoolean();
+        long received;
+        long drains;
+
+        Consumer(TargetEventRing ring) {
+            this.ring = ring;
+        }
+
+        public void run() {
+            long from = Long.MIN_VALUE;
+            while (true) {
+                boolean last = done.get();
+                List<TargetEventRing.Event> events = ring.drain(from, Long.MAX_VALUE);
+                received += events.size();
+                drains++;
+                if (last) {
+                    return;
+                }
+                if (events.isEmpty()) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int burst = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+        int methodCount = 16;
+
+        List<byte[]> methods = new ArrayList<byte[]>(methodCount);
+        for (int i = 0; i < methodCount; i++) {
+            methods.add(MiniTraceConnection.encodeTargetMethod("Lcom/example/Target;", "method" + i, "()V", 7));
+        }
+
+        TargetEventRing ring = new TargetEventRing(capacity);
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Client client = new Client(server.getLocalPort(), events, burst, methodCount);
+        Thread clientThread = new Thread(client, "minitrace-loopback");
+        clientThread.start();
+        Socket socket = server.accept();
+        server.close();
+
+        Consumer consumer = new Consumer(ring);
+        Thread consumerThread = new Thread(consumer, "event-consumer");
+        consumerThread.start();
+
+        long begin = System.nanoTime();
+        MiniTraceConnection connection = new MiniTraceConnection(socket.getInputStream(), socket.getOutputStream());
+        connection.handshake(methods);
+        int frames = 0;
+        int idles = 0;
+        try {
+            while (true) {
+                if (connection.readFrame(ring) == MiniTraceConnection.kIdle) {
+                    idles++;
+                }
+                frames++;
+            }
+        } catch (java.io.EOFException e) {
+            // client finished
+        }
+        long elapsed = System.nanoTime() - begin;
+        socket.close();
+        clientThread.join();
+        consumer.done.set(true);
+        consumerThread.join();
+        if (client.error != null) {
+            throw new RuntimeException(client.error);
+        }
+
+        System.out.println(String.format("[MiniTraceLoopback] %d frames (%d idle) in %d ms, %.0f frames/s",
+                frames, idles, elapsed / 1000000, frames * 1.0e9 / elapsed));
+        System.out.println(String.format("[MiniTraceLoopback] %d events written, %d drained in %d drains, %d dropped",
+                ring.getTotalCount(), consumer.received, consumer.drains, ring.getDroppedCount()));
+        if (consumer.received + ring.getDroppedCount() != events) {
+            throw new IllegalStateException("Lost events: " + (events - consumer.received - ring.getDroppedCount()));
+        }
+    }
+}
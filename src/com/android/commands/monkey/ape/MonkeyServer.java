@@ -6,7 +6,6 @@ import android.net.LocalServerSocket;
 import java.net.SocketOptions;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.InputStream;
@@ -47,35 +46,21 @@ public class MonkeyServer implements Runnable {
                 throw new RuntimeException("flag should be masked with 7");
 
             // fill buffer
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            MonkeyServer.writeInt32(out, clsname.length());
-            out.write(clsname.getBytes("UTF-8"));
-            MonkeyServer.writeInt32(out, mtdname.length());
-            out.write(mtdname.getBytes("UTF-8"));
-            MonkeyServer.writeInt32(out, signature.length());
-            out.write(signature.getBytes("UTF-8"));
-            MonkeyServer.writeInt32(out, mtdFlag);
-            buffer = out.toByteArray();
+            buffer = MiniTraceConnection.encodeTargetMethod(clsname, mtdname, signature, mtdFlag);
         }
 
         public int getSize() {
             return size;
         }
 
-        public void writeTo(OutputStream os) throws IOException {
-            os.write(buffer);
+        public byte[] getBuffer() {
+            return buffer;
         }
     }
 
     private static final String SOCK_ADDRESS = "/dev/mt/ape";
     private static MonkeyServer instance = null;
 
-    private static final int kHandShake         = 0x0abeabe0;
-    private static final int kTargetEntered     = 0xabeabe01; // 4byte
-    private static final int kTargetExited      = 0xabeabe02; // 4byte
-    private static final int kTargetUnwind      = 0xabeabe03; // 4byte
-    private static final int kIdle              = 0xabe0de04; // 8byte
-
     private static final int kMtdFlagEntered    = 0x00000001;
     private static final int kMtdFlagExited     = 0x00000002;
     private static final int kMtdFlagUnroll     = 0x00000004;
@@ -87,22 +72,17 @@ public class MonkeyServer implements Runnable {
     private LocalSocket socket;
     private InputStream is;
     private OutputStream os;
-
-    // buffer to read 8~12 bytes
-    private byte[] buffer;
-
-    private byte[] headerbuffer;
+    private MiniTraceConnection connection;
 
     // Store method targets
     private List<TargetMethod> target_methods;
-    private boolean target_taken;
+    private List<byte[]> target_method_buffers;
 
     // Store time for last idle time
     private long last_idle_time; // must be protected with lock
 
-    // Store time for last targeting method met
-    private long last_target_time; // must be protected with lock
-    private int last_method_id; // must be protected with lock
+    // Store every targeting method event, written by the server thread only
+    private final TargetEventRing target_events;
 
     private volatile int connection_cnt;
     private int mainTid;
@@ -137,12 +117,10 @@ public class MonkeyServer implements Runnable {
         }
 
         last_idle_time = 0;
-        last_target_time = 0;
         connection_cnt = 0;
-        last_method_id = -1;
         mainTid = -1;
         is_running = true;
-        buffer = new byte[128];
+        target_events = new TargetEventRing(Config.getInteger("ape.mt.eventBufferSize", 4096));
         parseTargetMtds();
         thread = new Thread(this);
         thread.setDaemon(true);
@@ -173,6 +151,7 @@ public class MonkeyServer implements Runnable {
 
     public void parseTargetMtds() throws IOException {
         target_methods = new ArrayList<TargetMethod>();
+        target_method_buffers = new ArrayList<byte[]>();
 
         String targetmtdfile = Config.get("ape.mt.targetmtdfile");
         if (targetmtdfile == null)
@@ -195,6 +174,10 @@ public class MonkeyServer implements Runnable {
                 throw new RuntimeException("Parsing targeting methods " + e.getMessage());
             }
         }
+        target_method_buffers = new ArrayList<byte[]>(target_methods.size());
+        for (TargetMethod target : target_methods) {
+            target_method_buffers.add(target.getBuffer());
+        }
         System.out.println("[MonkeyServer] Total " + target_methods.size() + " methods are targeted");
     }
 
@@ -226,6 +209,8 @@ public class MonkeyServer implements Runnable {
             Thread.currentThread().interrupt();
         }
         System.out.println("[MonkeyServer] Thread terminated");
+        System.out.println(String.format("[MonkeyServer] %d target events received, %d dropped (buffer of %d)",
+                target_events.getTotalCount(), target_events.getDroppedCount(), target_events.getCapacity()));
 
         // move mt data
         synchronized(this) {
@@ -260,78 +245,32 @@ public class MonkeyServer implements Runnable {
         return last_time_fetched;
     }
 
-    public void writeInt32(int n) throws IOException {
-        os.write(n & 0xff);
-        os.write((n >> 8) & 0xff);
-        os.write((n >> 16) & 0xff);
-        os.write((n >> 24) & 0xff);
-    }
-
-    public static void writeInt32(OutputStream os, int n) throws IOException {
-        os.write(n & 0xff);
-        os.write((n >> 8) & 0xff);
-        os.write((n >> 16) & 0xff);
-        os.write((n >> 24) & 0xff);
-    }
-
-    public int readInt32() throws IOException {
-        // Read idle time!
-        int byte_written = 0;
-        int cur_written;
-        while (byte_written < 4) {
-            cur_written = is.read(buffer, byte_written, 4-byte_written);
-            if (cur_written == -1) {
-                throw new IOException("readInt32");
-            }
-
-            byte_written += cur_written;
+    // called from thread with MonkeySourceApe
+    public boolean metTargetMethods(long timestamp) {
+        TargetEventRing.Event last = null;
+        for (TargetEventRing.Event event : drainTargetEvents(timestamp, Long.MAX_VALUE)) {
+            last = event;
         }
-
-        int ret = ((buffer[0] & 0xFF)  | ((buffer[1] & 0xFF) << 8) | ((buffer[2] & 0xFF) << 16) | ((buffer[3] & 0xFF) << 24));
-        return ret;
+        if (last != null)
+            System.out.println("[MonkeyServer] method_id " + last.methodId + " timestamp " + last.timestamp);
+        return last != null;
     }
 
-    public long readLong() throws IOException {
-        // Read idle time!
-        int byte_written = 0;
-        int cur_written;
-        while (byte_written < 8) {
-            cur_written = is.read(buffer, byte_written, 8-byte_written);
-            if (cur_written == -1) {
-                throw new IOException("readInt32");
-            }
-
-            byte_written += cur_written;
+    /**
+     * Drain targeting method events with timestamp in (from, to], in arrival order.
+     * Events from other threads are skipped if only the main thread is targeted.
+     */
+    public List<TargetEventRing.Event> drainTargetEvents(long from, long to) {
+        List<TargetEventRing.Event> events = target_events.drain(from, to);
+        if (!mainThreadOnly) {
+            return events;
         }
-
-        long ret = (((long)buffer[0] & 0xFF)  | (((long)buffer[1] & 0xFF) << 8) | (((long)buffer[2] & 0xFF) << 16) | (((long)buffer[3] & 0xFF) << 24)
-            | (((long)buffer[4] & 0xFF) << 32) | (((long)buffer[5] & 0xFF) << 40) | (((long)buffer[6] & 0xFF) << 48) | (((long)buffer[7] & 0xFF) << 56));
-        return ret;
-    }
-
-    public String readMTDirectory() throws IOException {
-        int length = readInt32();
-        int byte_written = 0;
-        int cur_written;
-        while (byte_written < length) {
-            cur_written = is.read(buffer, byte_written, length-byte_written);
-            if (cur_written == -1) {
-                throw new IOException("readInt32");
+        List<TargetEventRing.Event> ret = new ArrayList<>(events.size());
+        for (TargetEventRing.Event event : events) {
+            if (event.mainThread) {
+                ret.add(event);
             }
-
-            byte_written += cur_written;
         }
-
-        buffer[length] = 0;
-        String ret = new String(buffer, 0, length, "UTF-8");
-        return ret;
-    }
-
-    // called from thread with MonkeySourceApe
-    public synchronized boolean metTargetMethods(long timestamp) {
-        boolean ret = last_target_time > timestamp;
-        if (ret)
-            System.out.println("[MonkeyServer] method_id " + last_method_id + " timestamp " + last_target_time);
         return ret;
     }
 
@@ -397,20 +336,17 @@ public class MonkeyServer implements Runnable {
             }
             try {
                 // send target methods
-                int hsval = readInt32();
-                if (hsval != kHandShake) {
-                    serverlog_pw.println(String.format("%d Handshake failed %d", System.currentTimeMillis(), Integer.toHexString(hsval)));
+                connection = new MiniTraceConnection(is, os);
+                try {
+                    connection.handshake(target_method_buffers);
+                } catch (IllegalStateException e) {
+                    serverlog_pw.println(String.format("%d %s", System.currentTimeMillis(), e.getMessage()));
                     serverlog_pw.close();
                     throw new RuntimeException("handshake");
                 }
                 serverlog_pw.println(String.format("%d Handshake success", System.currentTimeMillis()));
-                writeInt32(kHandShake);
-                mainTid = readInt32();
-                directory = readMTDirectory();
-                writeInt32(target_methods.size()); // size could be zero
-                for (TargetMethod target : target_methods) {
-                    target.writeTo(os);
-                }
+                mainTid = connection.getMainTid();
+                directory = connection.getDirectory();
             } catch (IOException e) {
                 serverlog_pw.println(String.format("Sending target methods failed, currentTimeMillis  = %d", System.currentTimeMillis()));
                 e.printStackTrace(serverlog_pw);
@@ -426,9 +362,13 @@ public class MonkeyServer implements Runnable {
             while (is_running) {
                 int id;
                 try {
-                    id = readInt32();
+                    id = connection.readFrame(target_events);
+                } catch (IllegalStateException e) {
+                    serverlog_pw.println(String.format("%d %s", System.currentTimeMillis(), e.getMessage()));
+                    serverlog_pw.close();
+                    throw new RuntimeException(e.getMessage());
                 } catch (IOException e) {
-                    serverlog_pw.println(String.format("%d IOException on read id %s", System.currentTimeMillis(), e.getMessage()));
+                    serverlog_pw.println(String.format("%d IOException on read frame %s", System.currentTimeMillis(), e.getMessage()));
                     try {
                         socket.close();
                     } catch (IOException e2) {}
@@ -439,65 +379,12 @@ public class MonkeyServer implements Runnable {
                     }
                     break;
                 }
-
-                try {
-                    long tmp;
-                    switch (id) {
-                        case kTargetEntered:
-                        case kTargetExited:
-                        case kTargetUnwind:
-                            // mask last action specialty...
-                            int tid = readInt32(); // unused now
-                            int method_id = readInt32();
-                            if (method_id < 0 || method_id >= target_methods.size()) {
-                                serverlog_pw.println(String.format("%d Wrong method id received: %x", System.currentTimeMillis(), method_id));
-                                serverlog_pw.close();
-                                throw new RuntimeException("Unknown method id " + method_id);
-                            }
-                            // read timestamp
-                            tmp = readLong();
-                            if (!mainThreadOnly || tid == mainTid) {
-                                synchronized (this) {
-                                    last_target_time = tmp;
-                                    last_method_id = method_id;
-                                }
-                            }
-                            // TargetMethod method = target_methods.get(method_id);
-                            // if (id == kTargetEntered) {
-                            //     serverlog_pw.println(String.format("Timestamp %d (tid=%d): method %s:%s[%s] entered", tmp, tid,
-                            //         method.clsname, method.mtdname, method.signature, tid));
-                            // } else if (id == kTargetExited) {
-                            //     serverlog_pw.println(String.format("Timestamp %d (tid=%d): method %s:%s[%s] exited", tmp, tid,
-                            //         method.clsname, method.mtdname, method.signature, tid));
-                            // } else {
-                            //     serverlog_pw.println(String.format("Timestamp %d (tid=%d): method %s:%s[%s] unwind", tmp, tid,
-                            //         method.clsname, method.mtdname, method.signature, tid));
-                            // }
-                            break;
-                        case kIdle:
-                            // store idle time
-                            tmp = readLong();
-                            synchronized (this) {
-                                last_idle_time = tmp;
-                                notifyAll();
-                            }
-                            break;
-                        default:
-                            serverlog_pw.println(String.format("%d Unknown id received %x", System.currentTimeMillis(), id));
-                            serverlog_pw.close();
-                            throw new RuntimeException("Unknown id");
-                    }
-                } catch (IOException e) {
-                    serverlog_pw.println(String.format("%d IOException %s on read id %d", System.currentTimeMillis(), e.getMessage(), id));
-                    try {
-                        socket.close();
-                    } catch (IOException e2) {}
+                if (id == MiniTraceConnection.kIdle) {
+                    // store idle time
                     synchronized (this) {
-                        last_idle_time = -1;
-                        connection_cnt -= 1;
-                        mainTid = -1;
+                        last_idle_time = connection.getLastIdleTime();
+                        notifyAll();
                     }
-                    break;
                 }
             }
 
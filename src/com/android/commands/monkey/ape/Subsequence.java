@@ -11,7 +11,12 @@ import com.android.commands.monkey.ape.utils.Logger;
 
 public class Subsequence implements Cloneable {
 
+    // A path extended by path search keeps its prefix and last edge instead
+    // of a copy of the edges, and materializes the edges on demand.
     private StateTransition[] edges;
+    private Subsequence prefix;
+    private final StateTransition lastEdge;
+    private final int size;
     private int hash;
     private State start;
 
@@ -30,7 +35,7 @@ public class Subsequence implements Cloneable {
         final int prime = 31;
         if (hash == 0) {
             int result = 1;
-            result = prime * result + Arrays.hashCode(edges);
+            result = prime * result + Arrays.hashCode(getEdges());
             result = prime * result + ((start == null) ? 0 : start.hashCode());
             hash = result;
             return result;
@@ -39,7 +44,20 @@ public class Subsequence implements Cloneable {
     }
 
     public StateTransition[] getEdges() {
-        return edges;
+        StateTransition[] result = edges;
+        if (result == null) {
+            result = new StateTransition[size];
+            int i = size;
+            Subsequence seq = this;
+            while (seq.edges == null) {
+                result[--i] = seq.lastEdge;
+                seq = seq.prefix;
+            }
+            System.arraycopy(seq.edges, 0, result, 0, i);
+            edges = result;
+            prefix = null;
+        }
+        return result;
     }
 
     @Override
@@ -51,7 +69,9 @@ public class Subsequence implements Cloneable {
         if (getClass() != obj.getClass())
             return false;
         Subsequence other = (Subsequence) obj;
-        if (!Arrays.equals(edges, other.edges))
+        if (size != other.size)
+            return false;
+        if (!Arrays.equals(getEdges(), other.getEdges()))
             return false;
         if (start == null) {
             if (other.start != null)
@@ -66,20 +86,22 @@ public class Subsequence implements Cloneable {
     public Subsequence(State start) {
         this.start = start;
         this.edges = EMPTY;
+        this.lastEdge = null;
+        this.size = 0;
     }
 
     public Subsequence(Subsequence seq, StateTransition edge) {
         this.start = seq.start;
-        int size = seq.size();
-        StateTransition[] newStateTransitions = new StateTransition[size + 1];
-        this.edges = newStateTransitions;
-        System.arraycopy(seq.edges, 0, this.edges, 0, size);
-        newStateTransitions[size] = edge;
+        this.prefix = seq;
+        this.lastEdge = edge;
+        this.size = seq.size + 1;
     }
 
     public Subsequence(StateTransition edge) {
         this.start = edge.source;
         this.edges = new StateTransition[] { edge };
+        this.lastEdge = edge;
+        this.size = 1;
     }
 
     public Subsequence(List<StateTransition> edges) {
@@ -87,27 +109,26 @@ public class Subsequence implements Cloneable {
         int size = edges.size();
         this.edges = new StateTransition[size];
         this.edges = edges.toArray(this.edges);
+        this.lastEdge = this.edges[size - 1];
+        this.size = size;
     }
 
     public Subsequence(Subsequence seq, StateTransition edge1, StateTransition edge2) {
         this.start = seq.start;
-        int size = seq.size();
-        StateTransition[] newStateTransitions = new StateTransition[size + 2];
-        this.edges = newStateTransitions;
-        System.arraycopy(seq.edges, 0, this.edges, 0, size);
-        newStateTransitions[size++] = edge1;
-        newStateTransitions[size] = edge2;
+        this.prefix = new Subsequence(seq, edge1);
+        this.lastEdge = edge2;
+        this.size = seq.size + 2;
     }
 
     public State getLastState() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return edges[edges.length - 1].target;
+        return lastEdge.target;
     }
 
     public int size() {
-        return edges.length;
+        return size;
     }
 
     public State getStartState() {
@@ -116,6 +137,7 @@ public class Subsequence implements Cloneable {
 
     public void fillBuffer(LinkedList<StateTransition> actionBuffer) {
         Logger.iprintln("Fill buffer..");
+        StateTransition[] edges = getEdges();
         for (int i = 0; i < edges.length; i++) {
             Logger.iformat(" %3d %s", i, edges[i]);
             actionBuffer.add(edges[i]);
@@ -123,32 +145,32 @@ public class Subsequence implements Cloneable {
     }
 
     public ModelAction getFirstAction() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return edges[0].action;
+        return getEdges()[0].action;
     }
 
     public boolean isEmpty() {
-        return edges.length == 0;
+        return size == 0;
     }
 
     public StateTransition getLastStateTransition() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return (edges)[edges.length - 1];
+        return lastEdge;
     }
 
     public ModelAction getLastAction() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        return (edges)[edges.length - 1].action;
+        return lastEdge.action;
     }
 
     public boolean contains(State target) {
-        for (StateTransition edge : edges) {
+        for (StateTransition edge : getEdges()) {
             if (edge.target.equals(target)) {
                 return true;
             }
@@ -157,17 +179,20 @@ public class Subsequence implements Cloneable {
     }
 
     public State getLastLastState() {
-        if (edges.length == 0) {
+        if (size == 0) {
             throw new IllegalStateException("Empty subsequence");
         }
-        if (edges.length == 1) {
+        if (size == 1) {
             return start;
         }
-        return edges[edges.length - 2].target;
+        if (edges != null) {
+            return edges[size - 2].target;
+        }
+        return prefix.getLastState();
     }
 
     public boolean contains(ModelAction target) {
-        for (StateTransition edge : edges) {
+        for (StateTransition edge : getEdges()) {
             if (edge.action.equals(target)) {
                 return true;
             }
@@ -176,6 +201,7 @@ public class Subsequence implements Cloneable {
     }
 
     public void print() {
+        StateTransition[] edges = getEdges();
         for (int i = 0, k = 1; i < edges.length; i++, k++) {
             StateTransition edge = edges[i];
             Logger.format("%3d %s", k, edge.toShortString());
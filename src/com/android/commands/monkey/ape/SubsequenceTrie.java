@@ -1,5 +1,6 @@
 package com.android.commands.monkey.ape;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
@@ -10,6 +11,7 @@ import com.android.commands.monkey.ape.agent.TargetAgent;
 import com.android.commands.monkey.ape.model.State;
 import com.android.commands.monkey.ape.model.StateTransition;
 import com.android.commands.monkey.ape.utils.Config;
+import com.android.commands.monkey.ape.utils.Logger;
 
 public class SubsequenceTrie {
     static class Pair<L,R> {
@@ -25,6 +27,8 @@ public class SubsequenceTrie {
         private State state;
         private HashMap<StateTransition, SubsequenceTrieNode> children;
         private int count;
+        private SubsequenceTrieNode parent;
+        private int occurrences; // positions of the history at this node
 
         public SubsequenceTrieNode(StateTransition tr) {
             transition = tr;
@@ -66,18 +70,17 @@ public class SubsequenceTrie {
 
         // debug
         public void print(int curDepth, int maxDepth, SubsequenceTrieNode curNode) {
+            StringBuilder indent = new StringBuilder();
             for (int i=0; i<curDepth; i++)
-                System.out.print("  ");
+                indent.append("  ");
             if (curNode == this)
-                System.out.println(String.format("- %s[cnt=%d][#children=%d] <- CURRENT", transition.toShortString(), count, children.size()));
+                Logger.TRIE.format("%s- %s[cnt=%d][#children=%d] <- CURRENT", indent, transition.toShortString(), count, children.size());
             else if (transition == null)
-                System.out.println(String.format("- null[cnt=%d][#children=%d]", count, children.size()));
+                Logger.TRIE.format("%s- null[cnt=%d][#children=%d]", indent, count, children.size());
             else
-                System.out.println(String.format("- %s[cnt=%d][#children=%d]", transition.toShortString(), count, children.size()));
+                Logger.TRIE.format("%s- %s[cnt=%d][#children=%d]", indent, transition.toShortString(), count, children.size());
             if (curDepth >= maxDepth) {
-                for (int i=0; i<curDepth; i++)
-                    System.out.print("  ");
-                System.out.println("  ...");
+                Logger.TRIE.format("%s  ...", indent);
                 return;
             }
             for (SubsequenceTrieNode node: children.values()) {
@@ -93,12 +96,15 @@ public class SubsequenceTrie {
     private SubsequenceTrieNode curNode;
     private int curLength;
 
+    // the node of each position of the history
+    private List<SubsequenceTrieNode> positionNodes;
+    // positions that start a subsequence
+    private BitSet segmentStarts;
+    // positions that end a subsequence by meeting the target
+    private BitSet metPositions;
+
     public SubsequenceTrie() {
-        root = new SubsequenceTrieNode(null);
-        curNode = root;
-        curLength = 0;
-        totalSize = 0;
-        splitCount = 0;
+        clear();
     }
 
     public void clear() {
@@ -107,23 +113,96 @@ public class SubsequenceTrie {
         curLength = 0;
         totalSize = 0;
         splitCount = 0;
+        positionNodes = new ArrayList<>();
+        segmentStarts = new BitSet();
+        metPositions = new BitSet();
     }
 
     public void moveForward(StateTransition transition) {
         if (curNode != root && curNode.getState() != transition.getSource()) {
             throw new RuntimeException("State does not match!");
         }
-        HashMap<StateTransition, SubsequenceTrieNode> children = curNode.getChildren();
-        if (children.containsKey(transition)) {
-            curNode = children.get(transition);
-        } else {
-            curNode = new SubsequenceTrieNode(transition);
-            children.put(transition, curNode);
+        if (curNode == root) {
+            segmentStarts.set(totalSize);
         }
+        curNode = child(curNode, transition);
+        curNode.occurrences++;
+        positionNodes.add(curNode);
         totalSize++;
         curLength++;
     }
 
+    private static SubsequenceTrieNode child(SubsequenceTrieNode parent, StateTransition transition) {
+        HashMap<StateTransition, SubsequenceTrieNode> children = parent.getChildren();
+        SubsequenceTrieNode node = children.get(transition);
+        if (node == null) {
+            node = new SubsequenceTrieNode(transition);
+            node.parent = parent;
+            children.put(transition, node);
+        }
+        return node;
+    }
+
+    /**
+     * Moves the given positions of the history to the nodes of their current
+     * state transitions, after the transitions at these positions have been
+     * replaced by a model rebuild. The rest of the subsequence after each
+     * position moves along, since its path in the trie changes, while the
+     * other nodes are left untouched. Nodes without any position are dropped.
+     * 
+     * @param affected
+     *            positions of the history whose transitions are replaced
+     * @param history
+     *            the state transition at each position of the history
+     * @return the number of moved positions
+     */
+    public int remap(BitSet affected, List<StateTransition> history) {
+        if (history.size() != totalSize) {
+            throw new IllegalStateException(
+                    String.format("Size does not match history %d count %d", history.size(), totalSize));
+        }
+        BitSet moved = new BitSet(totalSize);
+        for (int p = affected.nextSetBit(0); p >= 0; p = affected.nextSetBit(p + 1)) {
+            if (moved.get(p)) {
+                continue;
+            }
+            int q = p;
+            do {
+                moved.set(q);
+                q++;
+            } while (q < totalSize && !segmentStarts.get(q));
+        }
+        // detach
+        for (int q = moved.nextSetBit(0); q >= 0; q = moved.nextSetBit(q + 1)) {
+            SubsequenceTrieNode node = positionNodes.get(q);
+            node.occurrences--;
+            if (metPositions.get(q)) {
+                node.count--;
+            }
+            if (node.occurrences == 0 && node.parent.children.get(node.transition) == node) {
+                node.parent.children.remove(node.transition);
+            }
+        }
+        // reattach in the order of the history, so the previous position is
+        // always at its final node
+        for (int q = moved.nextSetBit(0); q >= 0; q = moved.nextSetBit(q + 1)) {
+            SubsequenceTrieNode parent = segmentStarts.get(q) ? root : positionNodes.get(q - 1);
+            StateTransition transition = history.get(q);
+            if (parent != root && parent.getState() != transition.getSource()) {
+                throw new IllegalStateException("State does not match at " + q);
+            }
+            SubsequenceTrieNode node = child(parent, transition);
+            node.occurrences++;
+            if (metPositions.get(q)) {
+                node.count++;
+            }
+            positionNodes.set(q, node);
+        }
+        if (curNode != root) {
+            curNode = positionNodes.get(totalSize - 1);
+        }
+        return moved.cardinality();
+    }
 
     // evaluate map: transitions to be rejected -> probability to be executed
     public Map<StateTransition, Double> getTransitionsToRejectRatio(TargetAgent agent, State newState, long countLimit) {
@@ -150,7 +229,7 @@ public class SubsequenceTrie {
         }
 
         if (curNode != root && newState != curNode.getState()) {
-            System.out.println("[APE_MT_WARNING] State " + newState + " curNode state " + curNode.getState());
+            Logger.TRIE.wformat("[APE_MT] State %s curNode state %s", newState, curNode.getState());
             stateSplit(false);
             return null;
         }
@@ -160,7 +239,7 @@ public class SubsequenceTrie {
 
         Map<StateTransition, Double> ret = new HashMap<>();
         State curState = curNode.getState();
-        System.out.println("[APE_MT_DEBUG] curState "+ curState);
+        Logger.TRIE.dformat("[APE_MT] curState %s", curState);
         for (Map.Entry<StateTransition, SubsequenceTrieNode> elem: children.entrySet()) {
             if (curNode == root) {
                 if (elem.getKey().getSource() != newState) {
@@ -183,7 +262,7 @@ public class SubsequenceTrie {
             for (Pair<List<StateTransition>, Integer> entry: subsequencesAndCount) {
                 probability += agent.evaluateSubsequenceProbability(entry.left) * agent.dupCountToRejectRatio(entry.right);
             }
-            System.out.println(String.format("[APE_MT_DEBUG] reject transition prob %.3f transition %s", probability, elem.getKey()));
+            Logger.TRIE.dformat("[APE_MT] reject transition prob %.3f transition %s", probability, elem.getKey());
             ret.put(elem.getKey(), probability);
         }
         // if (curNode != root)
@@ -207,6 +286,7 @@ public class SubsequenceTrie {
                 throw new RuntimeException();
             }
             curNode.incCount();
+            metPositions.set(totalSize - 1);
         }
         curNode = root;
         curLength = 0;
@@ -0,0 +1,129 @@
+package com.android.commands.monkey.ape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer ring buffer of target method
+ * events. The writer (the MonkeyServer reader thread) never blocks, takes no
+ * lock and never throws: when the ring is full the new event is dropped and
+ * counted, see {@link #getDroppedCount()}. Events in the ring are never
+ * overwritten, so the reader always sees complete events.
+ */
+public class TargetEventRing {
+
+    public static final int KIND_ENTERED = 0;
+    public static final int KIND_EXITED = 1;
+    public static final int KIND_UNWIND = 2;
+
+    public static class Event {
+        public final int tid;
+        public final int methodId;
+        public final int kind;
+        public final boolean mainThread;
+        public final long timestamp;
+
+        Event(int tid, int methodId, int kind, boolean mainThread, long timestamp) {
+            this.tid = tid;
+            this.methodId = methodId;
+            this.kind = kind;
+            this.mainThread = mainThread;
+            this.timestamp = timestamp;
+        }
+
+        public String toString() {
+            return String.format("Event[tid=%d,method=%d,kind=%d,ts=%d]", tid, methodId, kind, timestamp);
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int[] tids;
+    private final int[] infos; // methodId << 3 | mainThread << 2 | kind
+    private final long[] timestamps;
+
+    // Slots are published by the release store of head and freed by the
+    // release store of tail.
+    private final AtomicLong head = new AtomicLong(); // next sequence to write
+    private final AtomicLong tail = new AtomicLong(); // next sequence to drain
+    private final AtomicLong dropped = new AtomicLong();
+    private long cachedTail; // of the writer
+
+    public TargetEventRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity should be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.tids = new int[capacity];
+        this.infos = new int[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    /**
+     * Must be called from a single thread.
+     *
+     * @return false if the ring is full and the event is dropped
+     */
+    public boolean add(int tid, int methodId, int kind, boolean mainThread, long timestamp) {
+        long seq = head.get();
+        if (seq - cachedTail == capacity) {
+            cachedTail = tail.get();
+            if (seq - cachedTail == capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        int slot = (int) (seq & mask);
+        tids[slot] = tid;
+        infos[slot] = (methodId << 3) | (mainThread ? 4 : 0) | kind;
+        timestamps[slot] = timestamp;
+        head.lazySet(seq + 1);
+        return true;
+    }
+
+    /**
+     * Drain events in time order of arrival whose timestamp is in (from, to].
+     * Older events are discarded; draining stops at the first event later than
+     * {@code to}, which is kept for a later call. Drains are serialized among
+     * themselves but never wait for the writer.
+     */
+    public synchronized List<Event> drain(long from, long to) {
+        List<Event> events = new ArrayList<>();
+        long seq = tail.get();
+        long end = head.get();
+        while (seq < end) {
+            int slot = (int) (seq & mask);
+            long timestamp = timestamps[slot];
+            if (timestamp > to) {
+                break;
+            }
+            if (timestamp > from) {
+                int info = infos[slot];
+                events.add(new Event(tids[slot], info >>> 3, info & 3, (info & 4) != 0, timestamp));
+            }
+            seq++;
+        }
+        tail.lazySet(seq);
+        return events;
+    }
+
+    /**
+     * @return the number of events added, including the dropped ones
+     */
+    public long getTotalCount() {
+        return head.get() + dropped.get();
+    }
+
+    /**
+     * @return the number of events dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
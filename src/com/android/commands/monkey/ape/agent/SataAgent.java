@@ -743,7 +743,7 @@ public class SataAgent extends StatefulAgent {
             }
 
         };
-        {
+        if (mayReachGreedyState(newState)) {
             List<Subsequence> selectedPaths = getGraph().findShortestPaths(newState, filter, pathLength);
             if (!selectedPaths.isEmpty()) {
                 Subsequence path = RandomHelper.randomPick(selectedPaths);
@@ -825,6 +825,9 @@ public class SataAgent extends StatefulAgent {
             return true;
         }
         // 2). Greedy action in the neighbor hood.
+        if (!mayReachGreedyState(state)) {
+            return false;
+        }
         List<Subsequence> selectedPaths = getGraph().findShortestPaths(state, greedySubsequenceFilter, Integer.MAX_VALUE);
         if (!selectedPaths.isEmpty()) {
             return true;
@@ -869,6 +872,9 @@ public class SataAgent extends StatefulAgent {
             }
         }
         // 2). Greedy action in the neighbor hood.
+        if (!mayReachGreedyState(next)) {
+            return null;
+        }
         List<Subsequence> selectedPaths = getGraph().findShortestPaths(next, greedySubsequenceFilter, Integer.MAX_VALUE);
         if (!selectedPaths.isEmpty()) {
             Subsequence path = randomPickShortest(selectedPaths);
@@ -2,6 +2,7 @@ package com.android.commands.monkey.ape.agent;
 
 import static com.android.commands.monkey.ape.utils.Config.activityStableRestartThreshold;
 import static com.android.commands.monkey.ape.utils.Config.baseThrottle;
+import static com.android.commands.monkey.ape.utils.Config.embedGraphInSnapshot;
 import static com.android.commands.monkey.ape.utils.Config.enableXPathAction;
 import static com.android.commands.monkey.ape.utils.Config.evolveModel;
 import static com.android.commands.monkey.ape.utils.Config.fuzzingActivityVisitThreshold;
@@ -9,16 +10,21 @@ import static com.android.commands.monkey.ape.utils.Config.graphStableRestartThr
 import static com.android.commands.monkey.ape.utils.Config.maxExtraPriorityAliasedActions;
 import static com.android.commands.monkey.ape.utils.Config.maxThrottle;
 import static com.android.commands.monkey.ape.utils.Config.saveDotGraph;
+import static com.android.commands.monkey.ape.utils.Config.guiTreeLogCheckpointInterval;
+import static com.android.commands.monkey.ape.utils.Config.saveGUITreeToLog;
 import static com.android.commands.monkey.ape.utils.Config.saveGUITreeToXmlEveryStep;
+import static com.android.commands.monkey.ape.utils.Config.saveModelSnapshot;
 import static com.android.commands.monkey.ape.utils.Config.saveObjModel;
 import static com.android.commands.monkey.ape.utils.Config.saveStates;
 import static com.android.commands.monkey.ape.utils.Config.saveVisGraph;
+import static com.android.commands.monkey.ape.utils.Config.spillActionHistory;
 import static com.android.commands.monkey.ape.utils.Config.stateStableRestartThreshold;
 import static com.android.commands.monkey.ape.utils.Config.takeScreenshot;
 import static com.android.commands.monkey.ape.utils.Config.takeScreenshotForEveryStep;
 import static com.android.commands.monkey.ape.utils.Config.takeScreenshotForNewState;
 import static com.android.commands.monkey.ape.utils.Config.throttleForActivityTransition;
 import static com.android.commands.monkey.ape.utils.Config.throttleForUnvisitedAction;
+import static com.android.commands.monkey.ape.utils.Config.trapRestartThreshold;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -43,24 +49,31 @@ import com.android.commands.monkey.ape.model.Action;
 import com.android.commands.monkey.ape.model.ActionCounters;
 import com.android.commands.monkey.ape.model.ActionType;
 import com.android.commands.monkey.ape.model.ActivityNode;
+import com.android.commands.monkey.ape.model.ComponentIndex;
 import com.android.commands.monkey.ape.model.Graph;
 import com.android.commands.monkey.ape.model.GraphListener;
 import com.android.commands.monkey.ape.model.Model;
 import com.android.commands.monkey.ape.model.Model.ActionRecord;
 import com.android.commands.monkey.ape.model.xpathaction.XPathActionController;
 import com.android.commands.monkey.ape.model.ModelAction;
+import com.android.commands.monkey.ape.model.ModelSnapshot;
+import com.android.commands.monkey.ape.model.ModelSnapshotWriter;
 import com.android.commands.monkey.ape.model.State;
 import com.android.commands.monkey.ape.model.StateKey;
 import com.android.commands.monkey.ape.model.StateTransition;
 import com.android.commands.monkey.ape.naming.Name;
 import com.android.commands.monkey.ape.naming.Naming;
+import com.android.commands.monkey.ape.naming.NamingCache;
 import com.android.commands.monkey.ape.tree.GUITree;
 import com.android.commands.monkey.ape.tree.GUITreeAction;
 import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.tree.GUITreeLogWriter;
 import com.android.commands.monkey.ape.tree.GUITreeNode;
 import com.android.commands.monkey.ape.tree.GUITreeWidgetDiffer;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.StringCache;
 import com.android.commands.monkey.ape.utils.Utils;
+import com.android.commands.monkey.ape.utils.XPathBuilder;
 
 import android.content.ComponentName;
 import android.content.Intent;
@@ -114,11 +127,15 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
     private Set<State> refreshStatesCheckingBlacklist = new HashSet<>();
     private boolean currentStateRecovered;
     private boolean appActivityJustStartedFromClean;
+    private GUITreeLogWriter guiTreeLog;
 
     public StatefulAgent(MonkeySourceApe ape, Graph graph) {
         super(ape);
         graph.addListener(this);
         this.model = new Model(graph);
+        if (spillActionHistory) {
+            this.model.setActionHistoryDirectory(checkOutputDir());
+        }
         this.timestamp = graph.getTimestamp();
     }
 
@@ -153,21 +170,7 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
             }
             actionBuffer = newBuffer;
         }
-        List<ActionRecord> actionHistory = getActionHistory();
-        final int size = actionHistory.size();
-        for (int i = 0; i < size; i++) {
-            ActionRecord actionPair = actionHistory.get(i);
-            Action action = actionPair.modelAction;
-            GUITreeAction guiAction = actionPair.guiAction;
-            if (action.isModelAction() && action.requireTarget()) {
-                if (guiAction == null) {
-                    throw new RuntimeException("Sanity check failed!");
-                }
-                action = newModel.update((ModelAction)action, guiAction);
-                actionHistory.set(i, new ActionRecord(actionPair.clockTimestamp,
-                        actionPair.agentTimestamp, action, guiAction));
-            }
-        }
+        newModel.updateActionHistory();
     }
 
     public State getLastState() {
@@ -762,7 +765,9 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
     }
 
     protected void saveGUI() {
-        if (saveGUITreeToXmlEveryStep) {
+        if (saveGUITreeToXmlEveryStep && saveGUITreeToLog) {
+            appendGUITreeLog();
+        } else if (saveGUITreeToXmlEveryStep) {
             checkOutputDir();
             File xmlFile = new File(checkOutputDir(), String.format("step-%d.xml", getTimestamp()));
             Logger.iformat("Saving GUI tree to %s at step %d", xmlFile, getTimestamp());
@@ -781,6 +786,30 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         }
     }
 
+    private void appendGUITreeLog() {
+        try {
+            if (guiTreeLog == null) {
+                guiTreeLog = new GUITreeLogWriter(checkOutputDir(), guiTreeLogCheckpointInterval);
+            }
+            guiTreeLog.append(getTimestamp(), newGUITree);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to append GUI tree to the log at step %d", getTimestamp());
+        }
+    }
+
+    private void closeGUITreeLog() {
+        if (guiTreeLog == null) {
+            return;
+        }
+        try {
+            guiTreeLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        guiTreeLog = null;
+    }
+
     protected State buildState(ComponentName topComp, AccessibilityNodeInfo rootInfo, Bitmap bitmap) {
         return model.getState(topComp, rootInfo, bitmap);
     }
@@ -817,6 +846,9 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         }
         ModelAction modelAction = (ModelAction) record.modelAction;
         GUITreeAction guiAction = record.guiAction;
+        if (guiAction == null) {
+            return; // spilled
+        }
         currentState = modelAction.getState();
         currentAction = modelAction;
         currentGUITree = guiAction.getGUITree();
@@ -862,6 +894,31 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
                 activityStableCounter = 0;
             }
         }
+        if (graphStableCounter > trapRestartThreshold) {
+            if (onTrapped(graphStableCounter)) {
+                graphStableCounter = 0;
+            }
+        }
+    }
+
+    /**
+     * Restarts right away if no strong transition leads from the new state
+     * to an unvisited action, while some state elsewhere still has one. Only
+     * unvisited actions and strong transitions are considered, so a state
+     * whose actions are visited but unsaturated, or reached through weak
+     * transitions, may be restarted from; enabled by ape.trapRestartThreshold.
+     */
+    protected boolean onTrapped(int counter) {
+        if (newState == null) {
+            return false;
+        }
+        ComponentIndex components = getGraph().getComponents();
+        if (components.getTotalUnvisited() == 0 || components.canReachUnvisited(newState)) {
+            return false;
+        }
+        Logger.format("State %s reaches no unvisited action after %d steps", newState, counter);
+        requestRestart();
+        return true;
     }
 
     public boolean onActivityStable(int counter) {
@@ -975,6 +1032,25 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         }
     }
 
+    // Actions of transitions taken by forward searches for greedy states.
+    static final ActionFilter FORWARD_ACTIONS = new BaseActionFilter() {
+
+        @Override
+        public boolean include(ModelAction action) {
+            return !action.isBack() && ActionFilter.ENABLED_VALID.include(action);
+        }
+    };
+
+    /**
+     * Greedy states have unsaturated actions, so a forward search for greedy
+     * states from a state that reaches no unsaturated action by strong
+     * forward transitions finds nothing, and can be skipped.
+     */
+    protected boolean mayReachGreedyState(State state) {
+        return getGraph().getDistanceField(ActionFilter.ENABLED_VALID_UNSATURATED, FORWARD_ACTIONS)
+                .canReachFrontier(state);
+    }
+
     protected ModelAction validateNewAction(ModelAction action) {
         if (action == null) {
             return null;
@@ -982,10 +1058,12 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         action = newState.resolveAction(this, action, getThrottleForNewAction(newState, action));
         if (ape.validateResolvedAction(action)) {
             action.setValid(true);
+            getGraph().markActionsChanged(newState);
             return action;
         }
         Logger.wformat("Mark an action (%s) invalid", action);
         action.setValid(false);
+        getGraph().markActionsChanged(newState);
         return null;
     }
 
@@ -999,6 +1077,7 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
     protected Action resolveNewAction() {
         Utils.assertNotNull(newState);
         adjustActionsByGUITree();
+        getGraph().markActionsChanged(newState);
         Action action = selectNewActionNonnull();
         Utils.assertNotNull(action);
         if (action.isModelAction()) {
@@ -1181,10 +1260,16 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
         super.tearDown();
         saveGraph();
         saveActionHistory();
+        model.closeActionHistory();
+        closeGUITreeLog();
         actionCounters.print();
         getGraph().printActivityNodes();
         model.getNamingManager().dump();
         model.printCounters();
+        XPathBuilder.printStatistics();
+        StringCache.printStatistics();
+        NamingCache.printStatistics();
+        getGraph().printIndexStatistics();
     }
 
     public List<ActionRecord> getActionHistory() {
@@ -1211,13 +1296,27 @@ public abstract class StatefulAgent extends ApeAgent implements GraphListener {
     }
 
     protected void saveGraph() {
-        if (!(saveDotGraph || saveObjModel || saveVisGraph)) {
+        if (!(saveDotGraph || saveObjModel || saveModelSnapshot || saveVisGraph)) {
             return;
         }
         Graph graph = getGraph();
         File graphOutputDir = checkOutputDir();
         Logger.println("Save graph data to " + graphOutputDir);
         File file = null;
+        if (saveModelSnapshot) {
+            file = new File(graphOutputDir, ModelSnapshot.FILE_NAME);
+            long begin = SystemClock.elapsedRealtimeNanos();
+            try (ModelSnapshotWriter writer = new ModelSnapshotWriter(new FileOutputStream(file))) {
+                writer.write(model, embedGraphInSnapshot);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                Logger.println("Fail to write model snapshot into " + file);
+                file.delete(); // not a partial snapshot
+            }
+            long end = SystemClock.elapsedRealtimeNanos();
+            Logger.iformat("Writing model snapshot (%d bytes) takes %d ms.", file.length(),
+                    TimeUnit.NANOSECONDS.toMillis(end - begin));
+        }
         if (saveObjModel) {
             file = new File(graphOutputDir, "sataModel.obj");
             try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
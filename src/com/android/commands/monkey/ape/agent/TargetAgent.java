@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.android.commands.monkey.MonkeySourceApe;
 import com.android.commands.monkey.ape.ActionFilter;
@@ -40,11 +41,13 @@ import com.android.commands.monkey.ape.model.ModelAction;
 import com.android.commands.monkey.ape.model.State;
 import com.android.commands.monkey.ape.model.StateActionDiffer;
 import com.android.commands.monkey.ape.model.StateTransition;
+import com.android.commands.monkey.ape.tree.GUITreeTransition;
 import com.android.commands.monkey.ape.utils.Config;
 import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.RandomHelper;
 
 import android.content.ComponentName;
+import android.os.SystemClock;
 
 public class TargetAgent extends StatefulAgent {
 
@@ -183,7 +186,7 @@ public class TargetAgent extends StatefulAgent {
     private ActivityNode backToActivity;
     private boolean strategyChangeReady = false;
     private boolean strategyChanged = false;
-    private final Map<State, Double> stateToScore = new HashMap<>();
+    private final TargetScorePropagator stateScores = new TargetScorePropagator();
     private int earlyStageBuffer;
     private long countLimit;
     private int metTargetCounter;
@@ -228,7 +231,7 @@ public class TargetAgent extends StatefulAgent {
         if (!isTargetMode()) {
             super.checkStable();
         } else {
-            Logger.format("Graph Stable Counter: metTargetCounter (%d), strategyFailedCounter (%d), metNoTargetCounter (%d)",
+            Logger.AGENT.format("Graph Stable Counter: metTargetCounter (%d), strategyFailedCounter (%d), metNoTargetCounter (%d)",
                     metTargetCounter, strategyFailedCounter, metNoTargetCounter);
             if (metTargetCounter >= 5) {
                 requestRestart();
@@ -258,6 +261,10 @@ public class TargetAgent extends StatefulAgent {
     }
 
     public void metTarget() {
+        List<GUITreeTransition> treeHistory = getGraph().getTreeHistory();
+        if (!treeHistory.isEmpty()) {
+            stateScores.markDirty(treeHistory.get(treeHistory.size() - 1).getSource().getCurrentState());
+        }
         metTargetCounter++;
         metNoTargetCounter--;
         currentScoreReducRatio /= stateScoreReducRatio;
@@ -267,8 +274,9 @@ public class TargetAgent extends StatefulAgent {
 
     @Override
     public void onVisitStateTransition(StateTransition edge) {
-        System.out.println(String.format("[APE_MT_DEBUG] metNonTarget counter %d ratio %.9f", metNoTargetCounter, currentScoreReducRatio));
+        Logger.AGENT.dformat("[APE_MT] metNonTarget counter %d ratio %.9f", metNoTargetCounter, currentScoreReducRatio);
         super.onVisitStateTransition(edge);
+        stateScores.markDirty(edge.getSource());
         // metNoTargetCounter++;
         // currentScoreReducRatio *= stateScoreReducRatio;
         // ModelAction action = edge.getAction();
@@ -297,7 +305,7 @@ public class TargetAgent extends StatefulAgent {
     }
 
     protected void logActionSelected(Action action, TargetEventType type) {
-        Logger.iformat("Select action %s by strategy %s", action, type);
+        Logger.AGENT.iformat("Select action %s by strategy %s", action, type);
         logEvent(type);
     }
 
@@ -314,13 +322,13 @@ public class TargetAgent extends StatefulAgent {
     protected void printCounters() {
         TargetEventType[] types = TargetEventType.values();
         for (TargetEventType type : types) {
-            Logger.format("%6d  %s", actionCounters[type.ordinal()], type);
+            Logger.AGENT.format("%6d  %s", actionCounters[type.ordinal()], type);
         }
     }
 
     protected ModelAction checkBackTrack() {
         if (newState.isSaturated()) { // no forward unsaturated actions selected by EARLY_STAGE
-            Logger.iprintln("State is saturated: try to back track.");
+            Logger.AGENT.iprintln("State is saturated: try to back track.");
             boolean doBackTrack = false;
             LinkedList<State> queue = new LinkedList<State>();
             Set<State> visited = new HashSet<>();
@@ -352,11 +360,11 @@ public class TargetAgent extends StatefulAgent {
             if (doBackTrack && newState != state) {
                 ModelAction action = moveToState(newState, state, true);
                 if (action != null) {
-                    Logger.iprintln("Backtrack to an unsaturated state: " + state);
+                    Logger.AGENT.iformat("Backtrack to an unsaturated state: %s", state);
                     logActionSelected(action, TargetEventType.SATURATED_STATE);
                     return action;
                 } else {
-                    Logger.iformat("Cannot backtrack to %s", state);
+                    Logger.AGENT.iformat("Cannot backtrack to %s", state);
                 }
             }
         }
@@ -376,23 +384,23 @@ public class TargetAgent extends StatefulAgent {
         {
             // Logging
             printStrategy();
-            Logger.iprintln("Check global actions.");
+            Logger.AGENT.iprintln("Check global actions.");
             for (ModelAction action : newState.targetedActions()) {
                 if (action.isVisited()) {
                     continue;
                 }
                 if (getGraph().isNameGlobalAction(action)) {
-                    Logger.iformat("- %s", action);
+                    Logger.AGENT.iformat("- %s", action);
                 }
             }
             if (strategyChangeReady) {
                 if (!getGraph().hasMetTargetMethod()) {
-                    System.out.println("[APE_MT_WARNING] Changing strategy requested but target method is not invoked");
+                    Logger.AGENT.wprintln("[APE_MT] Changing strategy requested but target method is not invoked");
                     earlyStageBuffer = 10;
                 } else if (!strategyChanged) {
                     strategyChanged = true;
                     earlyStageBuffer = 30;
-                    System.out.println("[APE_MT] TargetAgent: strategy changed");
+                    Logger.AGENT.println("[APE_MT] TargetAgent: strategy changed");
                 }
             }
         }
@@ -486,7 +494,7 @@ public class TargetAgent extends StatefulAgent {
                 if (transition.getAction() == action) {
                     transitionToAction.put(transition, action);
                     State target = transition.getTarget();
-                    Double score = stateToScore.get(target);
+                    Double score = stateScores.getScore(target);
                     if (score != null) {
                         transitionToScore.put(transition, score);
                         totalScore += score;
@@ -545,70 +553,29 @@ public class TargetAgent extends StatefulAgent {
         if (actions.size() == 0)
             return null;
 
-        LinkedList<State> stateQueue = new LinkedList<>();
         Set<State> targetStates = graph.getMetTargetMethodStates();
         if (targetStates == null || targetStates.isEmpty()) {
-            System.out.println("[APE_MT] targetStates.size = 0");
+            Logger.AGENT.println("[APE_MT] targetStates.size = 0");
             return null;
         }
         stateToTransitionToScore.clear();
-        stateToScore.clear();
-        System.out.println("[APE_MT] targetStates.size = " + targetStates.size());
-
-        // fill scores for target states
-        for (State state: targetStates) {
-            Set<StateTransition> transitions = graph.getOutStateTransitions(state);
-            double score = 0.0;
-            for (StateTransition transition: transitions) {
-                double new_score = transition.metTargetRatio();
-                if (new_score > score)
-                    score = new_score;
-            }
-            if (score == 0.0) { throw new RuntimeException("[APE_MT] score should not be 0"); }
-            stateToScore.put(state, score);
-            System.out.println(String.format("[APE_MT] targetState %s score %.2f", state, score));
-            stateQueue.addLast(state);
-        }
+        Logger.AGENT.format("[APE_MT] targetStates.size = %d", targetStates.size());
 
         // fill scores all states
-        Comparator<State> reversedStateComparator = new Comparator<State>() {
-            @Override
-            public int compare(State s1, State s2) {
-                double diff = stateToScore.get(s1) - stateToScore.get(s2);
-                if (diff > 0.0) return -1;
-                else if (diff < 0.0) return 1;
-                return 0;
-            }
-        };
-        Collections.sort(stateQueue, reversedStateComparator);
-        double currentScore = -1.0;
-        boolean thisFound = false;
-        while (!stateQueue.isEmpty()) {
-            State state = stateQueue.removeFirst();
-            if (state == newState) {
-                currentScore = stateToScore.get(state);
-                thisFound = true;
-            }
-            double score;
-            score = stateToScore.get(state) * currentScoreReducRatio;
-            Set<StateTransition> transitions = graph.getInStateTransitions(state);
-            int insertion_idx = -1;
-            for (StateTransition transition: transitions) {
-                State source = transition.getSource();
-                if (source == null || stateToScore.containsKey(source))
-                    continue;
-                stateToScore.put(source, score);
-                if (insertion_idx == -1) {
-                    insertion_idx = Collections.binarySearch(stateQueue, source, reversedStateComparator);
-                    if (insertion_idx < 0)
-                        insertion_idx = ~insertion_idx;
-                }
-                stateQueue.add(insertion_idx, source);
+        long begin = SystemClock.elapsedRealtimeNanos();
+        boolean full = stateScores.update(graph, targetStates, currentScoreReducRatio);
+        long end = SystemClock.elapsedRealtimeNanos();
+        Logger.AGENT.iformat("Propagate target scores %s: %d states, %d updated in %d ms.", full ? "fully" : "incrementally",
+                stateScores.size(), stateScores.getUpdatedCount(), TimeUnit.NANOSECONDS.toMillis(end - begin));
+        if (Logger.AGENT.isInfoEnabled()) {
+            for (State state : targetStates) {
+                Logger.AGENT.format("[APE_MT] targetState %s score %.2f", state, stateScores.getScore(state));
             }
         }
+        boolean thisFound = stateScores.getScore(newState) != null;
         // unreachable to target
         if (thisFound == false) {
-            System.out.println("[APE_MT_WARNING] There is no way to go to target.");
+            Logger.AGENT.wprintln("[APE_MT] There is no way to go to target.");
             earlyStageBuffer += 5;
             strategyFailedCounter ++;
             return null;
@@ -620,7 +587,7 @@ public class TargetAgent extends StatefulAgent {
         fillProbabilityMap(newState, transitionToAction, transitionToScore);
 
         if (transitionToAction.isEmpty()) {
-            System.out.println("[APE_MT_WARNING] Transition is not found");
+            Logger.AGENT.wprintln("[APE_MT] Transition is not found");
             earlyStageBuffer += 5;
             strategyFailedCounter ++;
             return null;
@@ -648,7 +615,7 @@ public class TargetAgent extends StatefulAgent {
             }
 
             if (sum == 0.0) {
-                System.out.println("[APE_MT_WARNING] Reject all transitions with probability 1.0");
+                Logger.AGENT.wprintln("[APE_MT] Reject all transitions with probability 1.0");
                 earlyStageBuffer += 5;
                 return null;
             }
@@ -677,7 +644,7 @@ public class TargetAgent extends StatefulAgent {
         if (chosenTransition == null) {
             chosenTransition = lastTransition;
         }
-        System.out.println(String.format("[APE_MT_DEBUG] candidate transition = %s with prob %.3f", chosenTransition, transitionToScore.get(chosenTransition)));
+        Logger.AGENT.dformat("[APE_MT] candidate transition = %s with prob %.3f", chosenTransition, transitionToScore.get(chosenTransition));
         lastChosenStateTransition = chosenTransition;
         return transitionToAction.get(chosenTransition);
     }
@@ -685,15 +652,15 @@ public class TargetAgent extends StatefulAgent {
         ModelAction back = newState.getBackAction();
         if (back.isValid()) {
             if (back.isUnvisited()) {
-                Logger.iprintln("Select Back because Back action is unvisited.");
+                Logger.AGENT.iprintln("Select Back because Back action is unvisited.");
                 return back;
             }
         }
         if (egreedy()) { // TODO: this is different from Sarsa.
-            Logger.iformat("Try to select the least visited action.");
+            Logger.AGENT.iformat("Try to select the least visited action.");
             return newState.greedyPickLeastVisited(ActionFilter.ENABLED_VALID);
         }
-        Logger.iformat("Try to randomly select a visited action.");
+        Logger.AGENT.iformat("Try to randomly select a visited action.");
         return newState.randomlyPickAction(getRandom(), ActionFilter.ENABLED_VALID);
     }
 
@@ -711,7 +678,7 @@ public class TargetAgent extends StatefulAgent {
             if (path != null) {
                 return refillBuffer(path);
             }
-            Logger.println("Fill transitions by history failed!");
+            Logger.AGENT.println("Fill transitions by history failed!");
             if (!fallback) {
                 return null;
             }
@@ -748,14 +715,14 @@ public class TargetAgent extends StatefulAgent {
     protected boolean doABA(State fromA, State toB, boolean verbose) {
         if (isDialogState(toB)) {
             if (verbose) {
-                Logger.iformat("Never move to a saturated dialog state (%s) in ABA.", toB);
+                Logger.AGENT.iformat("Never move to a saturated dialog state (%s) in ABA.", toB);
             }
             return false;
         }
         if (fromA.getActivity().equals(toB.getActivity())) {
             if (toB.getVisitedCount() >= fromA.getVisitedCount()) {
                 if (verbose) {
-                    Logger.iformat("Never move from a cold state (%s) to a hot state (%s) in ABA.", fromA, toB);
+                    Logger.AGENT.iformat("Never move from a cold state (%s) to a hot state (%s) in ABA.", fromA, toB);
                 }
                 return false;
             }
@@ -764,13 +731,13 @@ public class TargetAgent extends StatefulAgent {
             ActivityNode BA = getGraph().getActivityNode(toB.getActivity());
             if (BA.getVisitedCount() >= AA.getVisitedCount()) {
                 if (verbose) {
-                    Logger.iformat("Never move from a cold activity (%s)(%s) to a hot activity (%s)(%s) in ABA.",
+                    Logger.AGENT.iformat("Never move from a cold activity (%s)(%s) to a hot activity (%s)(%s) in ABA.",
                             fromA, AA, toB, BA);
                 }
                 return false;
             }
         }
-        Logger.iformat("Move from A (%s) to B (%s).", fromA, toB);
+        Logger.AGENT.iformat("Move from A (%s) to B (%s).", fromA, toB);
         return true;
     }
 
@@ -823,24 +790,24 @@ public class TargetAgent extends StatefulAgent {
         }
         State A = newState;
         State B = currentState;
-        Logger.iprintln("Check A*BA->B, try to move from A to B.");
-        Logger.iformat("> - A: %s", A);
-        Logger.iformat("> - B: %s", B);
+        Logger.AGENT.iprintln("Check A*BA->B, try to move from A to B.");
+        Logger.AGENT.iformat("> - A: %s", A);
+        Logger.AGENT.iformat("> - B: %s", B);
         if (!doABA(A, B, true)) {
             return null;
         }
         List<Subsequence> forwardPaths = getGraph().moveToState(A, B, false);
         if (forwardPaths.isEmpty()) {
-            Logger.iprintln("A cannot reach B.");
+            Logger.AGENT.iprintln("A cannot reach B.");
             return null;
         }
         List<Subsequence> backwardPaths = getGraph().moveToState(B, A, true);
         if (backwardPaths.isEmpty()) {
-            Logger.iprintln("B cannot reach A.");
+            Logger.AGENT.iprintln("B cannot reach A.");
             return null;
         }
         Subsequence path = randomPickShortest(forwardPaths);
-        Logger.iformat("Try to find a path (1/%d) to a greedy state that we want to greedily visit in ABA.", forwardPaths.size());
+        Logger.AGENT.iformat("Try to find a path (1/%d) to a greedy state that we want to greedily visit in ABA.", forwardPaths.size());
         path.print();
         StateTransition[] edges = path.getEdges();
         int lastIndex = -1;
@@ -873,7 +840,7 @@ public class TargetAgent extends StatefulAgent {
             }
         }
         if (lastIndex < 0) {
-            Logger.iprintln("No state or path that we want to greedily visit in ABA.");
+            Logger.AGENT.iprintln("No state or path that we want to greedily visit in ABA.");
             return null;
         }
         if (lastIndex != edges.length - 1) {
@@ -882,12 +849,12 @@ public class TargetAgent extends StatefulAgent {
                 newEdges.add(edges[i]);
             }
             path = new Subsequence(newEdges);
-            Logger.iformat("Update B from %s to %s", B, path.getLastState());
+            Logger.AGENT.iformat("Update B from %s to %s", B, path.getLastState());
             B = path.getLastState();
         }
         ModelAction action = refillBuffer(path);
         if (action != null) {
-            Logger.iformat("Move from A (%s) to B (%s) for ABA within %d steps that start from action %s",
+            Logger.AGENT.iformat("Move from A (%s) to B (%s) for ABA within %d steps that start from action %s",
                     A, B, path.size(), action);
         }
         return action;
@@ -924,11 +891,11 @@ public class TargetAgent extends StatefulAgent {
         if (totalActivities > 1) { // not the topmost
             if (onStackIndex != 0) {
                 if (newState.isBackEnabled()) {
-                    Logger.iformat("Backtrack to %s, total=%d", backToActivity.activity, totalActivities);
+                    Logger.AGENT.iformat("Backtrack to %s, total=%d", backToActivity.activity, totalActivities);
                     return newState.getBackAction();
                 }
             } else { // top most trivial activity
-                Logger.iformat("Backtrack stopped at %s, total=%d", backToActivity.activity, totalActivities);
+                Logger.AGENT.iformat("Backtrack stopped at %s, total=%d", backToActivity.activity, totalActivities);
                 this.backToActivity = null;
                 return null;
             }
@@ -960,7 +927,7 @@ public class TargetAgent extends StatefulAgent {
 
     protected boolean egreedy() {
         double v = ape.getRandom().nextDouble();
-        Logger.iformat("EGreedy value=%f, epsilon=%f.", v, epsilon);
+        Logger.AGENT.iformat("EGreedy value=%f, epsilon=%f.", v, epsilon);
         if (v < epsilon) {
             return false;
         }
@@ -1050,9 +1017,9 @@ public class TargetAgent extends StatefulAgent {
         if (trivialActivities.contains(an)) {
             return null;
         }
-        Logger.iprintln("List trivial activities.");
+        Logger.AGENT.iprintln("List trivial activities.");
         for (ActivityNode a : trivialActivities) {
-            Logger.iformat("- %s", a);
+            Logger.AGENT.iformat("- %s", a);
         }
         int pathLength = Integer.MAX_VALUE;
         SubsequenceFilter filter = new SubsequenceFilter() {
@@ -1085,11 +1052,11 @@ public class TargetAgent extends StatefulAgent {
             }
 
         };
-        {
+        if (mayReachGreedyState(newState)) {
             List<Subsequence> selectedPaths = getGraph().findShortestPaths(newState, filter, pathLength);
             if (!selectedPaths.isEmpty()) {
                 Subsequence path = RandomHelper.randomPick(selectedPaths);
-                Logger.iformat("Find a path (1/%d) to a trivial activity %s.", selectedPaths.size(),
+                Logger.AGENT.iformat("Find a path (1/%d) to a trivial activity %s.", selectedPaths.size(),
                         getGraph().getActivityNode(path.getLastState().getActivity()));
                 return refillBuffer(path);
             }
@@ -1106,7 +1073,7 @@ public class TargetAgent extends StatefulAgent {
         ActivityNode topActivity = null;
         for (Task task : taskStack.getTasks()) {
             for (Activity a : task.getActivities()) {
-                Logger.iformat("Checking activity %s", a.activity.getClassName());
+                Logger.AGENT.iformat("Checking activity %s", a.activity.getClassName());
                 ActivityNode taskAN = getGraph().getActivityNode(a.activity.getClassName());
                 if (taskAN != null && trivialActivities.contains(taskAN)) {
                     topActivity = taskAN;
@@ -1117,7 +1084,7 @@ public class TargetAgent extends StatefulAgent {
             return null;
         }
         if (newState.isBackEnabled()) {
-            Logger.iformat("Try to backtrack to trivial activity %s", topActivity.activity);
+            Logger.AGENT.iformat("Try to backtrack to trivial activity %s", topActivity.activity);
             backToActivity = topActivity;
             return newState.getBackAction();
         }
@@ -1145,11 +1112,11 @@ public class TargetAgent extends StatefulAgent {
     }
 
     public void alertHalf() {
-        System.out.println("[APE_MT] Half time/counter consumed");
+        Logger.AGENT.println("[APE_MT] Half time/counter consumed");
         strategyChangeReady = true;
         if (getGraph().hasMetTargetMethod()) {
             strategyChanged = true;
-            System.out.println("[APE_MT] TargetAgent: strategy changed");
+            Logger.AGENT.println("[APE_MT] TargetAgent: strategy changed");
         }
     }
 
@@ -1180,6 +1147,9 @@ public class TargetAgent extends StatefulAgent {
             return true;
         }
         // 2). Greedy action in the neighbor hood.
+        if (!mayReachGreedyState(state)) {
+            return false;
+        }
         List<Subsequence> selectedPaths = getGraph().findShortestPaths(state, greedySubsequenceFilter, Integer.MAX_VALUE);
         if (!selectedPaths.isEmpty()) {
             return true;
@@ -1207,7 +1177,7 @@ public class TargetAgent extends StatefulAgent {
         if (!actions.isEmpty()) {
             action = RandomHelper.randomPickWithPriority(actions);
             if (action != null) {
-                Logger.iprintln("Find a greedy action in 0-step");
+                Logger.AGENT.iprintln("Find a greedy action in 0-step");
                 // super.disableRestart();
                 checkDisableRestart(action);
                 return action;
@@ -1219,15 +1189,18 @@ public class TargetAgent extends StatefulAgent {
             }
             State t = getGraph().getNameGlobalTarget(a);
             if (t != null && isGreedyState(next, t)) {
-                Logger.iformat("Find a greedy state %s via a global action %s.", t, a);
+                Logger.AGENT.iformat("Find a greedy state %s via a global action %s.", t, a);
                 return a;
             }
         }
         // 2). Greedy action in the neighbor hood.
+        if (!mayReachGreedyState(next)) {
+            return null;
+        }
         List<Subsequence> selectedPaths = getGraph().findShortestPaths(next, greedySubsequenceFilter, Integer.MAX_VALUE);
         if (!selectedPaths.isEmpty()) {
             Subsequence path = randomPickShortest(selectedPaths);
-            Logger.iformat("Find a path (1/%d) to a greedy state %s.", selectedPaths.size(), path.getLastState());
+            Logger.AGENT.iformat("Find a path (1/%d) to a greedy state %s.", selectedPaths.size(), path.getLastState());
             if (path.size() <= 1) {
                 ModelAction firstAction = path.getFirstAction();
                 checkDisableRestart(firstAction);
@@ -1246,14 +1219,14 @@ public class TargetAgent extends StatefulAgent {
     protected ModelAction findGreedyActionBackward(State prev, State next) {
         // 3). Back
         if (ActionFilter.ENABLED_VALID_UNVISITED.include(next.getBackAction())) {
-            Logger.iprintln("Find a greedy (unvisited) back action.");
+            Logger.AGENT.iprintln("Find a greedy (unvisited) back action.");
             return next.getBackAction();
         }
         // 4). Backtrack to parent.
         List<Subsequence> selectedPaths = getGraph().findShortestPaths(next, backtrackSubsequenceFilter, Integer.MAX_VALUE);
         if (!selectedPaths.isEmpty()) {
             Subsequence path = randomPickShortest(selectedPaths);
-            Logger.iformat("Find a path (1/%d) to state %s for backtrack.", selectedPaths.size(), path.getLastState());
+            Logger.AGENT.iformat("Find a path (1/%d) to state %s for backtrack.", selectedPaths.size(), path.getLastState());
             if (path.size() <= 1) {
                 checkDisableRestart(path.getFirstAction());
             }
@@ -1263,7 +1236,7 @@ public class TargetAgent extends StatefulAgent {
     }
 
     protected void printStrategy() {
-        Logger.format("Target Strategy: buffer size (%d)", actionBufferSize());
+        Logger.AGENT.format("Target Strategy: buffer size (%d)", actionBufferSize());
         printCounters();
         newState.printActions();
     }
@@ -0,0 +1,362 @@
+package com.android.commands.monkey.ape.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.android.commands.monkey.ape.model.Graph;
+import com.android.commands.monkey.ape.model.State;
+import com.android.commands.monkey.ape.model.StateTransition;
+
+/**
+ * Maintains the score of every state with respect to the states that have met
+ * the target method. A target state scores the best metTargetRatio of its out
+ * transitions; any other state scores ratio times the best score of its
+ * successors. Scores are propagated backwards with a max-heap over int-indexed
+ * states, and kept between steps so that only states whose transitions or
+ * target status changed are propagated again.
+ */
+class TargetScorePropagator {
+
+    private static final double UNREACHED = -1.0D;
+
+    private final Map<State, Integer> stateToIndex = new HashMap<>();
+    private final List<State> states = new ArrayList<>();
+
+    private double[] score = new double[0];
+    private double[] base = new double[0];
+    private int[] parent = new int[0]; // successor giving the score, -1 for target states
+    private boolean[] target = new boolean[0];
+    private int[] mark = new int[0];
+    private int markStamp;
+
+    private int[] heap = new int[0];
+    private int[] heapPos = new int[0];
+    private int heapSize;
+
+    private Graph graph;
+    private int removeCount;
+    private double ratio = Double.NaN;
+    private Set<State> targetStates = new HashSet<>();
+    private final Set<State> dirtyStates = new LinkedHashSet<>();
+
+    private int updatedCount;
+
+    public void markDirty(State state) {
+        if (state != null) {
+            dirtyStates.add(state);
+        }
+    }
+
+    public void invalidateAll() {
+        this.graph = null;
+    }
+
+    /**
+     * @return the score of the state, or null if no target state is reachable from it.
+     */
+    public Double getScore(State state) {
+        Integer index = stateToIndex.get(state);
+        if (index == null || score[index] < 0) {
+            return null;
+        }
+        return score[index];
+    }
+
+    /**
+     * @return true if all scores were recomputed from scratch.
+     */
+    public boolean update(Graph graph, Set<State> newTargetStates, double ratio) {
+        updatedCount = 0;
+        boolean full = this.graph != graph || this.removeCount != graph.getRemoveCount() || this.ratio != ratio
+                || ratio > 1.0D;
+        Set<State> changed = dirtyStates;
+        if (!full) {
+            for (State state : newTargetStates) {
+                if (!targetStates.contains(state)) {
+                    changed.add(state);
+                }
+            }
+            for (State state : targetStates) {
+                if (!newTargetStates.contains(state)) {
+                    changed.add(state);
+                }
+            }
+        }
+        this.graph = graph;
+        this.removeCount = graph.getRemoveCount();
+        this.ratio = ratio;
+        this.targetStates = new HashSet<>(newTargetStates);
+        if (full) {
+            reset();
+            for (State state : newTargetStates) {
+                int i = indexOf(state);
+                target[i] = true;
+                base[i] = computeBase(state);
+                score[i] = base[i];
+                push(i);
+            }
+        } else {
+            for (State state : changed) {
+                if (graph.contains(state)) {
+                    updateState(indexOf(state), newTargetStates.contains(state));
+                }
+            }
+        }
+        dirtyStates.clear();
+        propagate(ratio > 1.0D);
+        return full;
+    }
+
+    public int getUpdatedCount() {
+        return updatedCount;
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    private void reset() {
+        stateToIndex.clear();
+        states.clear();
+        heapSize = 0;
+        Arrays.fill(heapPos, -1);
+    }
+
+    private double computeBase(State state) {
+        double value = 0.0;
+        for (StateTransition transition : graph.getOutStateTransitions(state)) {
+            double ratio = transition.metTargetRatio();
+            if (ratio > value) {
+                value = ratio;
+            }
+        }
+        if (value == 0.0) {
+            throw new RuntimeException("[APE_MT] score should not be 0");
+        }
+        return value;
+    }
+
+    private void updateState(int i, boolean isTarget) {
+        State state = states.get(i);
+        if (isTarget) {
+            double value = computeBase(state);
+            boolean wasTarget = target[i];
+            target[i] = true;
+            base[i] = value;
+            if (value < score[i]) {
+                invalidate(i); // states scored through this one may drop
+            } else if (value > score[i] || !wasTarget) {
+                setScore(i, value, -1);
+                push(i);
+            }
+        } else if (target[i]) {
+            target[i] = false;
+            invalidate(i);
+        } else if (relax(i)) {
+            push(i);
+        }
+    }
+
+    /**
+     * Recompute the score of a non-target state from its successors.
+     */
+    private boolean relax(int i) {
+        boolean improved = false;
+        for (StateTransition transition : graph.getOutStateTransitions(states.get(i))) {
+            Integer u = stateToIndex.get(transition.getTarget());
+            if (u == null || u == i || score[u] < 0 || isMarked(u)) {
+                continue;
+            }
+            double candidate = score[u] * ratio;
+            if (candidate > score[i]) {
+                setScore(i, candidate, u);
+                improved = true;
+            }
+        }
+        return improved;
+    }
+
+    /**
+     * The score of state i may have decreased. Reset every state whose score
+     * was derived through it and reseed them from their unaffected successors.
+     */
+    private void invalidate(int i) {
+        markStamp++;
+        List<Integer> affected = new ArrayList<>();
+        affected.add(i);
+        mark[i] = markStamp;
+        for (int k = 0; k < affected.size(); k++) {
+            int x = affected.get(k);
+            for (StateTransition transition : graph.getInStateTransitions(states.get(x))) {
+                Integer p = stateToIndex.get(transition.getSource());
+                if (p == null || isMarked(p) || parent[p] != x) {
+                    continue;
+                }
+                mark[p] = markStamp;
+                affected.add(p);
+            }
+        }
+        for (int a : affected) {
+            removeFromHeap(a);
+            if (target[a]) {
+                setScore(a, base[a], -1);
+            } else {
+                setScore(a, UNREACHED, -1);
+            }
+        }
+        for (int a : affected) {
+            if (!target[a]) {
+                relax(a);
+            }
+            if (score[a] >= 0) {
+                push(a);
+            }
+        }
+        markStamp++; // clear marks
+    }
+
+    private boolean isMarked(int i) {
+        return mark[i] == markStamp;
+    }
+
+    private void propagate(boolean assignOnce) {
+        markStamp++; // marks settled states
+        while (heapSize > 0) {
+            int i = pop();
+            mark[i] = markStamp;
+            double candidate = score[i] * ratio;
+            for (StateTransition transition : graph.getInStateTransitions(states.get(i))) {
+                State source = transition.getSource();
+                if (source == null) {
+                    continue;
+                }
+                int p = indexOf(source);
+                if (target[p] || isMarked(p)) {
+                    continue;
+                }
+                if (assignOnce ? score[p] < 0 : candidate > score[p]) {
+                    setScore(p, candidate, i);
+                    push(p);
+                }
+            }
+        }
+        markStamp++;
+    }
+
+    private void setScore(int i, double value, int from) {
+        if (score[i] != value) {
+            updatedCount++;
+        }
+        score[i] = value;
+        parent[i] = from;
+    }
+
+    private int indexOf(State state) {
+        Integer index = stateToIndex.get(state);
+        if (index != null) {
+            return index;
+        }
+        int i = states.size();
+        states.add(state);
+        stateToIndex.put(state, i);
+        if (i >= score.length) {
+            int capacity = Math.max(16, score.length * 2);
+            score = Arrays.copyOf(score, capacity);
+            base = Arrays.copyOf(base, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            target = Arrays.copyOf(target, capacity);
+            mark = Arrays.copyOf(mark, capacity);
+            heap = Arrays.copyOf(heap, capacity);
+            int oldLength = heapPos.length;
+            heapPos = Arrays.copyOf(heapPos, capacity);
+            Arrays.fill(heapPos, oldLength, capacity, -1);
+        }
+        score[i] = UNREACHED;
+        base[i] = 0.0D;
+        parent[i] = -1;
+        target[i] = false;
+        mark[i] = 0;
+        heapPos[i] = -1;
+        return i;
+    }
+
+    // Indexed binary max-heap keyed by score.
+
+    private void push(int i) {
+        if (heapPos[i] == -1) {
+            heap[heapSize] = i;
+            heapPos[i] = heapSize;
+            heapSize++;
+        }
+        siftUp(heapPos[i]);
+    }
+
+    private int pop() {
+        int top = heap[0];
+        removeAt(0);
+        return top;
+    }
+
+    private void removeFromHeap(int i) {
+        if (heapPos[i] != -1) {
+            removeAt(heapPos[i]);
+        }
+    }
+
+    private void removeAt(int pos) {
+        int removed = heap[pos];
+        heapSize--;
+        heapPos[removed] = -1;
+        if (pos == heapSize) {
+            return;
+        }
+        int last = heap[heapSize];
+        heap[pos] = last;
+        heapPos[last] = pos;
+        siftDown(pos);
+        siftUp(heapPos[last]);
+    }
+
+    private void siftUp(int pos) {
+        int i = heap[pos];
+        while (pos > 0) {
+            int up = (pos - 1) >>> 1;
+            int j = heap[up];
+            if (score[j] >= score[i]) {
+                break;
+            }
+            heap[pos] = j;
+            heapPos[j] = pos;
+            pos = up;
+        }
+        heap[pos] = i;
+        heapPos[i] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int i = heap[pos];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && score[heap[right]] > score[heap[child]]) {
+                child = right;
+            }
+            int j = heap[child];
+            if (score[i] >= score[j]) {
+                break;
+            }
+            heap[pos] = j;
+            heapPos[j] = pos;
+            pos = child;
+        }
+        heap[pos] = i;
+        heapPos[i] = pos;
+    }
+}
@@ -0,0 +1,333 @@
+package com.android.commands.monkey.ape.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.android.commands.monkey.ape.model.Model.ActionRecord;
+import com.android.commands.monkey.ape.tree.GUITreeAction;
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * The action history of a model, split into segments of the same size. The
+ * latest one or two segments are kept in memory, and older segments are
+ * appended to a file with an offset per segment, so the memory does not grow
+ * with the length of testing.
+ *
+ * A spilled record keeps no GUI tree. Its throttle and resolved node are
+ * stored as JSON, and its action is stored as an index into a table of
+ * actions with the GUI actions they were taken at. After a model rebuild, the
+ * entries of the table are updated rather than every spilled record, each by
+ * its own GUI action, as the record would be.
+ */
+public class ActionHistory extends AbstractList<ActionRecord> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * An action and the GUI action it was taken at, by identity.
+     */
+    static class ActionKey {
+        final Action action;
+        final GUITreeAction guiAction;
+
+        ActionKey(Action action, GUITreeAction guiAction) {
+            this.action = action;
+            this.guiAction = guiAction;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(action) * 31 + System.identityHashCode(guiAction);
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ActionKey)) {
+                return false;
+            }
+            ActionKey that = (ActionKey) obj;
+            return action == that.action && guiAction == that.guiAction;
+        }
+    }
+
+    public static final String FILE_NAME = "action-history.seg";
+
+    private final int segmentSize;
+
+    private transient List<ActionRecord> recent;
+    private transient int spilledCount; // a multiple of segmentSize
+
+    private transient File file;
+    private transient RandomAccessFile spill;
+    private transient long[] segmentOffsets; // the end of segment i is at i + 1
+
+    // the remapping table of spilled records
+    private transient List<Action> actions;
+    private transient Map<ActionKey, Integer> actionIndex;
+    private transient List<GUITreeAction> guiActions; // null if the action is not remapped
+
+    private transient int cachedSegment;
+    private transient long[] cachedClocks;
+    private transient int[] cachedTimestamps;
+    private transient int[] cachedActions;
+    private transient String[] cachedResolved;
+
+    public ActionHistory(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size should be positive: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        init();
+    }
+
+    private void init() {
+        recent = new ArrayList<>();
+        spilledCount = 0;
+        segmentOffsets = new long[] { 0 };
+        actions = new ArrayList<>();
+        actionIndex = new HashMap<>();
+        guiActions = new ArrayList<>();
+        cachedSegment = -1;
+    }
+
+    /**
+     * Enables spilling into a file of the directory. Without a directory, all
+     * records are kept in memory.
+     */
+    public void setDirectory(File dir) {
+        if (spill != null) {
+            throw new IllegalStateException("Action history has been spilled into " + file);
+        }
+        this.file = dir == null ? null : new File(dir, FILE_NAME);
+    }
+
+    public int getSpilledCount() {
+        return spilledCount;
+    }
+
+    @Override
+    public int size() {
+        return spilledCount + recent.size();
+    }
+
+    @Override
+    public ActionRecord get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
+        if (index >= spilledCount) {
+            return recent.get(index - spilledCount);
+        }
+        int segment = index / segmentSize;
+        if (segment != cachedSegment) {
+            loadSegment(segment);
+        }
+        int i = index % segmentSize;
+        return new ActionRecord(cachedClocks[i], cachedTimestamps[i], actions.get(cachedActions[i]), null,
+                cachedResolved[i]);
+    }
+
+    @Override
+    public ActionRecord set(int index, ActionRecord record) {
+        if (index < spilledCount) {
+            throw new UnsupportedOperationException("Record " + index + " has been spilled.");
+        }
+        return recent.set(index - spilledCount, record);
+    }
+
+    @Override
+    public boolean add(ActionRecord record) {
+        recent.add(record);
+        modCount++;
+        if (file != null && recent.size() >= segmentSize << 1) {
+            spillSegment();
+        }
+        return true;
+    }
+
+    /**
+     * Updates the model actions after the model is rebuilt. Records in memory
+     * are updated one by one, and spilled records through the table.
+     */
+    public void remap(Model model) {
+        for (int i = 0; i < recent.size(); i++) {
+            ActionRecord record = recent.get(i);
+            Action action = record.modelAction;
+            GUITreeAction guiAction = record.guiAction;
+            if (action.isModelAction() && action.requireTarget()) {
+                if (guiAction == null) {
+                    throw new RuntimeException("Sanity check failed!");
+                }
+                action = model.update((ModelAction) action, guiAction);
+                recent.set(i, new ActionRecord(record.clockTimestamp, record.agentTimestamp, action, guiAction));
+            }
+        }
+        for (int i = 0; i < actions.size(); i++) {
+            GUITreeAction guiAction = guiActions.get(i);
+            if (guiAction == null) {
+                continue;
+            }
+            Action action = actions.get(i);
+            Action updated = model.update((ModelAction) action, guiAction);
+            if (updated != action) {
+                actions.set(i, updated);
+                ActionKey key = new ActionKey(action, guiAction);
+                Integer index = actionIndex.get(key);
+                if (index != null && index == i) {
+                    actionIndex.remove(key);
+                }
+                key = new ActionKey(updated, guiAction);
+                if (!actionIndex.containsKey(key)) {
+                    actionIndex.put(key, i);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        if (spill == null) {
+            return;
+        }
+        try {
+            spill.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spill = null;
+        file.delete();
+        file = null;
+    }
+
+    private void spillSegment() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(segmentSize * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int i = 0; i < segmentSize; i++) {
+                ActionRecord record = recent.get(i);
+                out.writeLong(record.clockTimestamp);
+                out.writeInt(record.agentTimestamp);
+                out.writeInt(indexAction(record));
+                String resolved = resolve(record);
+                out.writeBoolean(resolved != null);
+                if (resolved != null) {
+                    out.writeUTF(resolved);
+                }
+            }
+            out.close();
+            if (spill == null) {
+                spill = new RandomAccessFile(file, "rw");
+                spill.setLength(0);
+            }
+            long offset = segmentOffsets[segmentOffsets.length - 1];
+            spill.seek(offset);
+            spill.write(bytes.toByteArray());
+            segmentOffsets = Arrays.copyOf(segmentOffsets, segmentOffsets.length + 1);
+            segmentOffsets[segmentOffsets.length - 1] = offset + bytes.size();
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            Logger.wformat("Fail to spill action history into %s, keep it in memory.", file);
+            file = null;
+            return;
+        }
+        recent.subList(0, segmentSize).clear();
+        spilledCount += segmentSize;
+    }
+
+    private int indexAction(ActionRecord record) {
+        Action action = record.modelAction;
+        GUITreeAction guiAction = action.isModelAction() && action.requireTarget() ? record.guiAction : null;
+        ActionKey key = new ActionKey(action, guiAction);
+        Integer index = actionIndex.get(key);
+        if (index == null) {
+            index = actions.size();
+            actions.add(action);
+            guiActions.add(guiAction);
+            actionIndex.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * What {@link ModelAction#resolveAt} would add to the JSON of the action,
+     * computed without resolving the action, which may be in use.
+     */
+    private static String resolve(ActionRecord record) throws JSONException {
+        Action action = record.modelAction;
+        if (!action.isModelAction()) {
+            return null;
+        }
+        if (record.resolvedJSON != null) {
+            return record.resolvedJSON;
+        }
+        GUITreeAction guiAction = record.guiAction;
+        if (guiAction == null) {
+            throw new IllegalStateException("GUI action should not be null.");
+        }
+        JSONObject resolved = new JSONObject();
+        resolved.put("throttle", guiAction.getThrotlle());
+        GUITreeNode node = guiAction.getGUITreeNode();
+        if (action.requireTarget() && node != null) {
+            ModelAction.putResolvedNode(resolved, node);
+        }
+        return resolved.toString();
+    }
+
+    private void loadSegment(int segment) {
+        long begin = segmentOffsets[segment];
+        byte[] buffer = new byte[(int) (segmentOffsets[segment + 1] - begin)];
+        if (cachedClocks == null) {
+            cachedClocks = new long[segmentSize];
+            cachedTimestamps = new int[segmentSize];
+            cachedActions = new int[segmentSize];
+            cachedResolved = new String[segmentSize];
+        }
+        try {
+            spill.seek(begin);
+            spill.readFully(buffer);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+            for (int i = 0; i < segmentSize; i++) {
+                cachedClocks[i] = in.readLong();
+                cachedTimestamps[i] = in.readInt();
+                cachedActions[i] = in.readInt();
+                cachedResolved[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+        } catch (IOException e) {
+            cachedSegment = -1;
+            throw new IllegalStateException("Fail to read action history from " + file, e);
+        }
+        cachedSegment = segment;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size());
+        for (ActionRecord record : this) {
+            out.writeObject(record);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            recent.add((ActionRecord) in.readObject());
+        }
+    }
+}
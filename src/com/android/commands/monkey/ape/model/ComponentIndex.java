@@ -0,0 +1,536 @@
+package com.android.commands.monkey.ape.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+import com.android.commands.monkey.ape.ActionFilter;
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * Strongly connected components of states by strong transitions, with a
+ * topological order of the components kept over the {@link GraphIndex} of
+ * the graph.
+ *
+ * A new strong transition against the order reorders only the components
+ * between its ends, and merges those on a cycle through it, as in the
+ * online topological ordering of Pearce and Kelly. A lost strong transition
+ * or a dropped index recomputes the components by Tarjan's algorithm on the
+ * next query.
+ *
+ * Components also count the enabled, valid, unvisited actions of their
+ * states.
+ */
+public class ComponentIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final Graph graph;
+
+    private GraphIndex index; // the index the components are kept over
+    private boolean invalid; // a strong transition is lost
+    private int stateCount;
+    private int transitionCount;
+    private final BitSet strong = new BitSet(); // by transition id
+
+    // By state: the union-find parent, whose roots represent components, and
+    // the next state in the circular list of the component.
+    private int[] parents = EMPTY;
+    private int[] members = EMPTY;
+    private int[] unvisited = EMPTY;
+    // By representative: the topological order, and the count of unvisited
+    // actions of the component.
+    private int[] orders = EMPTY;
+    private int[] componentUnvisited = EMPTY;
+    private int componentCount;
+    private int totalUnvisited;
+    private int nextOrder;
+
+    private int[] stack = EMPTY;
+    private int[] forward = EMPTY;
+    private int[] backward = EMPTY;
+    private final BitSet inForward = new BitSet();
+    private final BitSet inBackward = new BitSet();
+
+    private int reorderCount;
+    private int mergeCount;
+    private int rebuildCount;
+
+    ComponentIndex(Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * O(1) if both states are in the same component, or if the order of the
+     * components rules a path out. Otherwise the components between them are
+     * searched.
+     */
+    public boolean isReachable(State from, State to) {
+        if (from.equals(to)) {
+            return true;
+        }
+        sync();
+        int source = index.getId(from);
+        int target = index.getId(to);
+        if (source == -1 || target == -1) {
+            return false;
+        }
+        int s = find(source), t = find(target);
+        if (s == t) {
+            return true;
+        }
+        if (orders[s] > orders[t]) {
+            return false;
+        }
+        stack[0] = s;
+        return searchForward(1, t);
+    }
+
+    public boolean isReachable(Collection<State> from, State to) {
+        if (from.contains(to)) {
+            return true;
+        }
+        sync();
+        int target = index.getId(to);
+        if (target == -1) {
+            return false;
+        }
+        int t = find(target);
+        int top = 0;
+        boolean found = false;
+        for (State state : from) {
+            int source = index.getId(state);
+            if (source == -1) {
+                continue;
+            }
+            int s = find(source);
+            if (s == t) {
+                found = true;
+                break;
+            }
+            if (orders[s] < orders[t] && !inForward.get(s)) {
+                inForward.set(s);
+                stack[top++] = s;
+            }
+        }
+        for (int i = 0; i < top; i++) {
+            inForward.clear(stack[i]);
+        }
+        return found || (top > 0 && searchForward(top, t));
+    }
+
+    /**
+     * @return whether a state with enabled, valid, unvisited actions is
+     *         reachable from the state by strong transitions, the state
+     *         included
+     */
+    public boolean canReachUnvisited(State state) {
+        sync();
+        int id = index.getId(state);
+        if (id == -1) {
+            return countUnvisited(state) > 0;
+        }
+        int c = find(id);
+        if (componentUnvisited[c] > 0) {
+            return true;
+        }
+        if (totalUnvisited == 0) {
+            return false;
+        }
+        stack[0] = c;
+        return searchForward(1, -1);
+    }
+
+    /**
+     * @return the number of enabled, valid, unvisited actions of all states
+     *         with transitions
+     */
+    public int getTotalUnvisited() {
+        sync();
+        return totalUnvisited;
+    }
+
+    public void printStatistics() {
+        sync();
+        Logger.format("Components: %d of %d states, reorders=%d, merges=%d, rebuilds=%d, unvisited=%d",
+                componentCount, stateCount, reorderCount, mergeCount, rebuildCount, totalUnvisited);
+    }
+
+    /**
+     * Searches components from those on the stack, in the order up to the
+     * target, or for one with unvisited actions if the target is -1.
+     */
+    private boolean searchForward(int top, int target) {
+        int bound = target == -1 ? Integer.MAX_VALUE : orders[target];
+        int count = 0;
+        for (int i = 0; i < top; i++) {
+            inForward.set(stack[i]);
+            forward[count++] = stack[i];
+        }
+        boolean found = false;
+        search: while (top > 0) {
+            int c = stack[--top];
+            int m = c;
+            do {
+                int[] row = index.getOutRow(m);
+                for (int i = 0, outCount = index.getOutCount(m); i < outCount; i++) {
+                    int edge = row[i];
+                    if (!strong.get(edge)) {
+                        continue;
+                    }
+                    int next = find(index.getTarget(edge));
+                    if (next == c || inForward.get(next) || orders[next] > bound) {
+                        continue;
+                    }
+                    if (next == target || (target == -1 && componentUnvisited[next] > 0)) {
+                        found = true;
+                        break search;
+                    }
+                    inForward.set(next);
+                    forward[count++] = next;
+                    stack[top++] = next;
+                }
+                m = members[m];
+            } while (m != c);
+        }
+        for (int i = 0; i < count; i++) {
+            inForward.clear(forward[i]);
+        }
+        return found;
+    }
+
+    void update(State state) {
+        if (!isCurrent()) {
+            return;
+        }
+        catchUp();
+        int id = index.getId(state);
+        if (id == -1) {
+            return;
+        }
+        int count = countUnvisited(state);
+        int delta = count - unvisited[id];
+        if (delta != 0) {
+            unvisited[id] = count;
+            componentUnvisited[find(id)] += delta;
+            totalUnvisited += delta;
+        }
+    }
+
+    void update(StateTransition edge) {
+        if (!isCurrent()) {
+            return;
+        }
+        catchUp();
+        int id = index.getId(edge);
+        if (id != -1) {
+            updateStrong(id);
+        }
+    }
+
+    private boolean isCurrent() {
+        GraphIndex current = graph.getBuiltIndex();
+        return !invalid && current != null && current == index;
+    }
+
+    private void sync() {
+        GraphIndex current = graph.getIndex();
+        if (invalid || current != index) {
+            rebuild(current);
+        } else {
+            catchUp();
+        }
+    }
+
+    private static int countUnvisited(State state) {
+        int count = 0;
+        for (ModelAction action : state.getActions()) {
+            if (ActionFilter.ENABLED_VALID_UNVISITED.include(action)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int find(int state) {
+        while (parents[state] != state) {
+            parents[state] = parents[parents[state]];
+            state = parents[state];
+        }
+        return state;
+    }
+
+    private void ensureCapacity(int count) {
+        if (parents.length < count) {
+            int capacity = Math.max(count, parents.length << 1);
+            parents = Arrays.copyOf(parents, capacity);
+            members = Arrays.copyOf(members, capacity);
+            unvisited = Arrays.copyOf(unvisited, capacity);
+            orders = Arrays.copyOf(orders, capacity);
+            componentUnvisited = Arrays.copyOf(componentUnvisited, capacity);
+            stack = new int[capacity];
+            forward = new int[capacity];
+            backward = new int[capacity];
+        }
+    }
+
+    private void catchUp() {
+        int count = index.getStateCount();
+        if (count > stateCount) {
+            ensureCapacity(count);
+            for (int id = stateCount; id < count; id++) {
+                parents[id] = id;
+                members[id] = id;
+                orders[id] = nextOrder++;
+                unvisited[id] = countUnvisited(index.getState(id));
+                componentUnvisited[id] = unvisited[id];
+                totalUnvisited += unvisited[id];
+                componentCount++;
+            }
+            stateCount = count;
+        }
+        int edges = index.getTransitionCount();
+        while (transitionCount < edges) {
+            updateStrong(transitionCount++);
+        }
+    }
+
+    private void updateStrong(int edge) {
+        boolean now = index.getTransition(edge).isStrong();
+        if (now == strong.get(edge)) {
+            return;
+        }
+        if (now) {
+            strong.set(edge);
+            insert(find(index.getSource(edge)), find(index.getTarget(edge)));
+        } else {
+            strong.clear(edge);
+            invalid = true;
+        }
+    }
+
+    /**
+     * Restores the order after a strong transition from component x to y.
+     */
+    private void insert(int x, int y) {
+        if (x == y || orders[x] < orders[y]) {
+            return;
+        }
+        reorderCount++;
+        int lower = orders[y], upper = orders[x];
+        // Components reachable from y up to x.
+        int forwardCount = 0, top = 0;
+        inForward.set(y);
+        forward[forwardCount++] = y;
+        stack[top++] = y;
+        while (top > 0) {
+            int c = stack[--top];
+            int m = c;
+            do {
+                int[] row = index.getOutRow(m);
+                for (int i = 0, count = index.getOutCount(m); i < count; i++) {
+                    int edge = row[i];
+                    if (!strong.get(edge)) {
+                        continue;
+                    }
+                    int next = find(index.getTarget(edge));
+                    if (next != c && !inForward.get(next) && orders[next] <= upper) {
+                        inForward.set(next);
+                        forward[forwardCount++] = next;
+                        stack[top++] = next;
+                    }
+                }
+                m = members[m];
+            } while (m != c);
+        }
+        // Components reaching x down to y.
+        int backwardCount = 0;
+        inBackward.set(x);
+        backward[backwardCount++] = x;
+        stack[top++] = x;
+        while (top > 0) {
+            int c = stack[--top];
+            int m = c;
+            do {
+                int[] row = index.getInRow(m);
+                for (int i = 0, count = index.getInCount(m); i < count; i++) {
+                    int edge = row[i];
+                    if (!strong.get(edge)) {
+                        continue;
+                    }
+                    int next = find(index.getSource(edge));
+                    if (next != c && !inBackward.get(next) && orders[next] >= lower) {
+                        inBackward.set(next);
+                        backward[backwardCount++] = next;
+                        stack[top++] = next;
+                    }
+                }
+                m = members[m];
+            } while (m != c);
+        }
+        // The pool of orders of the affected components, smallest to B and
+        // largest to F, with merged components on a cycle in between.
+        int[] pool = new int[forwardCount + backwardCount];
+        int poolSize = 0;
+        for (int i = 0; i < backwardCount; i++) {
+            pool[poolSize++] = orders[backward[i]];
+        }
+        for (int i = 0; i < forwardCount; i++) {
+            if (!inBackward.get(forward[i])) {
+                pool[poolSize++] = orders[forward[i]];
+            }
+        }
+        Arrays.sort(pool, 0, poolSize);
+        boolean cycle = inForward.get(x);
+        int merged = -1;
+        if (cycle) {
+            mergeCount++;
+            merged = x;
+            for (int i = 0; i < forwardCount; i++) {
+                int c = forward[i];
+                if (c != merged && inBackward.get(c)) {
+                    merge(merged, c);
+                }
+            }
+        }
+        int k = 0;
+        sortByOrder(backward, backwardCount);
+        for (int i = 0; i < backwardCount; i++) {
+            int c = backward[i];
+            if (!inForward.get(c)) {
+                orders[c] = pool[k++];
+            }
+        }
+        if (cycle) {
+            orders[merged] = pool[k++];
+        }
+        sortByOrder(forward, forwardCount);
+        int remaining = 0;
+        for (int i = 0; i < forwardCount; i++) {
+            if (!inBackward.get(forward[i])) {
+                remaining++;
+            }
+        }
+        k = poolSize - remaining;
+        for (int i = 0; i < forwardCount; i++) {
+            int c = forward[i];
+            if (!inBackward.get(c)) {
+                orders[c] = pool[k++];
+            }
+        }
+        for (int i = 0; i < forwardCount; i++) {
+            inForward.clear(forward[i]);
+        }
+        for (int i = 0; i < backwardCount; i++) {
+            inBackward.clear(backward[i]);
+        }
+    }
+
+    private void sortByOrder(int[] components, int count) {
+        for (int i = 1; i < count; i++) {
+            int c = components[i];
+            int j = i;
+            while (j > 0 && orders[components[j - 1]] > orders[c]) {
+                components[j] = components[j - 1];
+                j--;
+            }
+            components[j] = c;
+        }
+    }
+
+    private void merge(int into, int component) {
+        parents[component] = into;
+        int next = members[into];
+        members[into] = members[component];
+        members[component] = next;
+        componentUnvisited[into] += componentUnvisited[component];
+        componentCount--;
+    }
+
+    /**
+     * Tarjan's algorithm without recursion. Components are completed sinks
+     * first, so they are ordered from the last one.
+     */
+    private void rebuild(GraphIndex current) {
+        rebuildCount++;
+        index = current;
+        invalid = false;
+        stateCount = current.getStateCount();
+        transitionCount = current.getTransitionCount();
+        ensureCapacity(stateCount);
+        strong.clear();
+        for (int edge = 0; edge < transitionCount; edge++) {
+            if (current.getTransition(edge).isStrong()) {
+                strong.set(edge);
+            }
+        }
+        int n = stateCount;
+        int[] numbers = new int[n];
+        int[] lows = new int[n];
+        int[] positions = new int[n];
+        int[] calls = forward;
+        int[] tarjan = backward;
+        BitSet onStack = inBackward;
+        Arrays.fill(numbers, -1);
+        int counter = 0, sp = 0, cs = 0, completed = 0;
+        totalUnvisited = 0;
+        for (int root = 0; root < n; root++) {
+            if (numbers[root] != -1) {
+                continue;
+            }
+            numbers[root] = lows[root] = counter++;
+            tarjan[sp++] = root;
+            onStack.set(root);
+            calls[cs++] = root;
+            while (cs > 0) {
+                int v = calls[cs - 1];
+                if (positions[v] < current.getOutCount(v)) {
+                    int edge = current.getOutRow(v)[positions[v]++];
+                    if (!strong.get(edge)) {
+                        continue;
+                    }
+                    int w = current.getTarget(edge);
+                    if (numbers[w] == -1) {
+                        numbers[w] = lows[w] = counter++;
+                        tarjan[sp++] = w;
+                        onStack.set(w);
+                        calls[cs++] = w;
+                    } else if (onStack.get(w)) {
+                        lows[v] = Math.min(lows[v], numbers[w]);
+                    }
+                    continue;
+                }
+                cs--;
+                if (cs > 0) {
+                    int u = calls[cs - 1];
+                    lows[u] = Math.min(lows[u], lows[v]);
+                }
+                if (lows[v] == numbers[v]) {
+                    members[v] = v;
+                    componentUnvisited[v] = 0;
+                    int w;
+                    do {
+                        w = tarjan[--sp];
+                        onStack.clear(w);
+                        parents[w] = v;
+                        if (w != v) {
+                            members[w] = members[v];
+                            members[v] = w;
+                        }
+                        unvisited[w] = countUnvisited(current.getState(w));
+                        componentUnvisited[v] += unvisited[w];
+                    } while (w != v);
+                    totalUnvisited += componentUnvisited[v];
+                    orders[v] = completed++;
+                }
+            }
+        }
+        componentCount = completed;
+        for (int id = 0; id < n; id++) {
+            if (parents[id] == id) {
+                orders[id] = completed - 1 - orders[id];
+            }
+        }
+        nextOrder = completed;
+    }
+}
@@ -0,0 +1,407 @@
+package com.android.commands.monkey.ape.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.android.commands.monkey.ape.ActionFilter;
+import com.android.commands.monkey.ape.Subsequence;
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * Distances of states to the nearest frontier state, with a next-hop
+ * transition per state along a shortest path. A state is on the frontier if
+ * one of its actions is included by the frontier filter, and a path uses
+ * strong transitions whose actions are included by the edge filter.
+ *
+ * The field is kept over the {@link GraphIndex} of the graph. A new or
+ * strengthened transition only shortens distances, which is propagated
+ * backwards from its source. A lost transition or frontier state repairs the
+ * states whose next hops lead through it, and leaves the others alone.
+ * Dropping the index, as removing states does, rebuilds the field on the
+ * next query.
+ *
+ * A field to a single target state keeps a shortest-path tree toward it.
+ *
+ * The graph reports visits and transitions. Changes of actions made outside
+ * the graph, such as resolving or validating actions, must be reported by
+ * {@link Graph#markActionsChanged(State)}.
+ */
+public class DistanceField {
+
+    public static final int UNREACHABLE = -1;
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+    private static final int[] EMPTY = new int[0];
+
+    private final Graph graph;
+    final ActionFilter frontierFilter;
+    final State target;
+    final ActionFilter edgeFilter;
+
+    private GraphIndex index; // the index the field is kept over
+    private int stateCount; // states of the index known to the field
+    private int transitionCount; // transitions of the index known to the field
+    private int[] distances = EMPTY;
+    private int[] nextHops = EMPTY; // transition ids, -1 on the frontier
+    private final BitSet frontier = new BitSet();
+    private final BitSet usable = new BitSet(); // by transition id
+
+    private int[] queue = EMPTY;
+    private int[] buffer = EMPTY;
+    private long[] seeds = new long[16];
+    private final BitSet affected = new BitSet();
+
+    private int repairCount;
+    private int rebuildCount;
+    private long rebuildTime; // in nanoseconds
+
+    DistanceField(Graph graph, ActionFilter frontierFilter, ActionFilter edgeFilter) {
+        this.graph = graph;
+        this.frontierFilter = frontierFilter;
+        this.target = null;
+        this.edgeFilter = edgeFilter;
+    }
+
+    DistanceField(Graph graph, State target, ActionFilter edgeFilter) {
+        this.graph = graph;
+        this.frontierFilter = null;
+        this.target = target;
+        this.edgeFilter = edgeFilter;
+    }
+
+    int getRepairCount() {
+        return repairCount;
+    }
+
+    int getRebuildCount() {
+        return rebuildCount;
+    }
+
+    long getRebuildTime() {
+        return rebuildTime;
+    }
+
+    /**
+     * @return the number of transitions to the nearest frontier state, or
+     *         {@link #UNREACHABLE}
+     */
+    public int getDistance(State state) {
+        sync();
+        int id = index.getId(state);
+        if (id == -1) {
+            return isFrontier(state) ? 0 : UNREACHABLE;
+        }
+        int distance = distances[id];
+        return distance == INFINITY ? UNREACHABLE : distance;
+    }
+
+    public boolean canReachFrontier(State state) {
+        return getDistance(state) != UNREACHABLE;
+    }
+
+    /**
+     * Follows next hops from the state.
+     *
+     * @return a shortest path to the nearest frontier state, an empty path if
+     *         the state is on the frontier, or null if none is reachable
+     */
+    public Subsequence findPath(State state) {
+        sync();
+        int id = index.getId(state);
+        if (id == -1) {
+            return isFrontier(state) ? new Subsequence(state) : null;
+        }
+        if (distances[id] == INFINITY) {
+            return null;
+        }
+        Subsequence path = new Subsequence(state);
+        for (int edge = nextHops[id]; edge != -1; edge = nextHops[id]) {
+            path = new Subsequence(path, index.getTransition(edge));
+            id = index.getTarget(edge);
+        }
+        return path;
+    }
+
+    public void printStatistics() {
+        sync();
+        int reachable = 0;
+        for (int id = 0; id < stateCount; id++) {
+            if (distances[id] != INFINITY) {
+                reachable++;
+            }
+        }
+        Logger.format("DistanceField: %d states, %d on the frontier, %d reaching it, %d repairs, %d rebuilds",
+                stateCount, frontier.cardinality(), reachable, repairCount, rebuildCount);
+    }
+
+    /**
+     * Re-evaluates the frontier membership of the state and the usability of
+     * its out-transitions.
+     */
+    void update(State state) {
+        if (!isCurrent()) {
+            return;
+        }
+        catchUp();
+        int id = index.getId(state);
+        if (id == -1) {
+            return;
+        }
+        int[] row = index.getOutRow(id);
+        for (int i = 0, count = index.getOutCount(id); i < count; i++) {
+            updateUsable(row[i]);
+        }
+        updateFrontier(id);
+    }
+
+    void update(StateTransition edge) {
+        if (!isCurrent()) {
+            return;
+        }
+        catchUp();
+        int id = index.getId(edge);
+        if (id != -1) {
+            updateUsable(id);
+        }
+    }
+
+    private boolean isCurrent() {
+        GraphIndex current = graph.getBuiltIndex();
+        return current != null && current == index;
+    }
+
+    private void sync() {
+        GraphIndex current = graph.getIndex();
+        if (current != index) {
+            rebuild(current);
+        } else {
+            catchUp();
+        }
+    }
+
+    private boolean isFrontier(State state) {
+        if (target != null) {
+            return target.equals(state);
+        }
+        return state.firstAction(frontierFilter) != null;
+    }
+
+    private boolean isUsable(StateTransition edge) {
+        return edge.isStrong() && edgeFilter.include(edge.action);
+    }
+
+    private void ensureCapacity(int count) {
+        if (distances.length < count) {
+            int capacity = Math.max(count, distances.length << 1);
+            distances = Arrays.copyOf(distances, capacity);
+            nextHops = Arrays.copyOf(nextHops, capacity);
+            queue = new int[capacity];
+            buffer = new int[capacity];
+        }
+    }
+
+    private void rebuild(GraphIndex current) {
+        long begin = System.nanoTime();
+        rebuildCount++;
+        index = current;
+        stateCount = current.getStateCount();
+        transitionCount = current.getTransitionCount();
+        ensureCapacity(stateCount);
+        frontier.clear();
+        usable.clear();
+        for (int edge = 0; edge < transitionCount; edge++) {
+            if (isUsable(current.getTransition(edge))) {
+                usable.set(edge);
+            }
+        }
+        int tail = 0;
+        for (int id = 0; id < stateCount; id++) {
+            nextHops[id] = -1;
+            if (isFrontier(current.getState(id))) {
+                frontier.set(id);
+                distances[id] = 0;
+                queue[tail++] = id;
+            } else {
+                distances[id] = INFINITY;
+            }
+        }
+        propagate(tail);
+        rebuildTime += System.nanoTime() - begin;
+    }
+
+    /**
+     * Takes in the states and transitions added to the index since the
+     * field last saw it.
+     */
+    private void catchUp() {
+        int count = index.getStateCount();
+        if (count > stateCount) {
+            ensureCapacity(count);
+            int first = stateCount;
+            for (int id = first; id < count; id++) {
+                distances[id] = INFINITY;
+                nextHops[id] = -1;
+            }
+            stateCount = count;
+            for (int id = first; id < count; id++) {
+                updateFrontier(id);
+            }
+        }
+        int edges = index.getTransitionCount();
+        while (transitionCount < edges) {
+            updateUsable(transitionCount++);
+        }
+    }
+
+    private void updateFrontier(int id) {
+        boolean now = isFrontier(index.getState(id));
+        if (now == frontier.get(id)) {
+            return;
+        }
+        if (now) {
+            frontier.set(id);
+            distances[id] = 0;
+            nextHops[id] = -1;
+            queue[0] = id;
+            propagate(1);
+        } else {
+            frontier.clear(id);
+            repair(id);
+        }
+    }
+
+    private void updateUsable(int edge) {
+        boolean now = isUsable(index.getTransition(edge));
+        if (now == usable.get(edge)) {
+            return;
+        }
+        int source = index.getSource(edge);
+        if (now) {
+            usable.set(edge);
+            int target = index.getTarget(edge);
+            if (distances[target] != INFINITY && distances[target] + 1 < distances[source]) {
+                distances[source] = distances[target] + 1;
+                nextHops[source] = edge;
+                queue[0] = source;
+                propagate(1);
+            }
+        } else {
+            usable.clear(edge);
+            if (nextHops[source] == edge) {
+                repair(source);
+            }
+        }
+    }
+
+    /**
+     * Shortens distances backwards from the queued states, in BFS order.
+     */
+    private void propagate(int tail) {
+        int head = 0;
+        while (head < tail) {
+            int state = queue[head++];
+            int distance = distances[state] + 1;
+            int[] row = index.getInRow(state);
+            for (int i = 0, count = index.getInCount(state); i < count; i++) {
+                int edge = row[i];
+                if (!usable.get(edge)) {
+                    continue;
+                }
+                int source = index.getSource(edge);
+                if (distance < distances[source]) {
+                    distances[source] = distance;
+                    nextHops[source] = edge;
+                    queue[tail++] = source;
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes the states whose next hops lead to the root, which lost its
+     * own distance. They are reset, seeded from their out-neighbours outside
+     * of them, and then settled in the order of distance by merging the
+     * sorted seeds with a BFS queue.
+     */
+    private void repair(int root) {
+        repairCount++;
+        int count = 0;
+        queue[count++] = root;
+        affected.set(root);
+        for (int i = 0; i < count; i++) {
+            int state = queue[i];
+            int[] row = index.getInRow(state);
+            for (int j = 0, inCount = index.getInCount(state); j < inCount; j++) {
+                int edge = row[j];
+                int source = index.getSource(edge);
+                if (nextHops[source] == edge && !affected.get(source)) {
+                    affected.set(source);
+                    queue[count++] = source;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            distances[queue[i]] = INFINITY;
+            nextHops[queue[i]] = -1;
+        }
+        if (seeds.length < count) {
+            seeds = new long[Math.max(count, seeds.length << 1)];
+        }
+        int seedCount = 0;
+        for (int i = 0; i < count; i++) {
+            int state = queue[i];
+            int best = INFINITY, bestEdge = -1;
+            int[] row = index.getOutRow(state);
+            for (int j = 0, outCount = index.getOutCount(state); j < outCount; j++) {
+                int edge = row[j];
+                if (!usable.get(edge)) {
+                    continue;
+                }
+                int target = index.getTarget(edge);
+                if (affected.get(target) || distances[target] == INFINITY) {
+                    continue;
+                }
+                if (distances[target] + 1 < best) {
+                    best = distances[target] + 1;
+                    bestEdge = edge;
+                }
+            }
+            if (bestEdge != -1) {
+                distances[state] = best;
+                nextHops[state] = bestEdge;
+                seeds[seedCount++] = ((long) best << 32) | state;
+            }
+        }
+        Arrays.sort(seeds, 0, seedCount);
+        int head = 0, tail = 0, next = 0;
+        while (next < seedCount || head < tail) {
+            int state;
+            if (head < tail && (next == seedCount || distances[buffer[head]] <= (int) (seeds[next] >>> 32))) {
+                state = buffer[head++];
+            } else {
+                long seed = seeds[next++];
+                state = (int) seed;
+                if (distances[state] != (int) (seed >>> 32)) {
+                    continue; // settled shorter from the queue
+                }
+            }
+            int distance = distances[state] + 1;
+            int[] row = index.getInRow(state);
+            for (int j = 0, inCount = index.getInCount(state); j < inCount; j++) {
+                int edge = row[j];
+                if (!usable.get(edge)) {
+                    continue;
+                }
+                int source = index.getSource(edge);
+                if (affected.get(source) && distance < distances[source]) {
+                    distances[source] = distance;
+                    nextHops[source] = edge;
+                    buffer[tail++] = source;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            affected.clear(queue[i]);
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.android.commands.monkey.ape.model;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -106,9 +108,19 @@ public class Graph implements Serializable {
     // To achieve diversity of sequences splitted with target state
     private transient SubsequenceTrie subsequenceTrie;
 
+    // positions of the history re-added by a model rebuild
+    private transient BitSet rebuiltPositions;
+    private transient boolean historyInvalid;
+
+    private transient GraphIndex index; // rebuilt on demand
+    private transient List<DistanceField> distanceFields;
+    private transient PathCache pathCache;
+    private transient ComponentIndex components;
+
     private boolean fireEvents;
     private transient List<GraphListener> listeners;
     private int timestamp;
+    private int removeCount; // number of removed states
 
     private ActionCounters actionCounters = new ActionCounters();
 
@@ -221,11 +233,11 @@ public class Graph implements Serializable {
     }
 
     public void printStatistics() {
-        Logger.format(
+        Logger.GRAPH.format(
                 "GSTG(%s): activities (%d), states (%d), edges (%d), unvisited actions (%d), visited actions (%d)",
                 graphId, activities.size(), size(), edges.size(), unvisitedActions.size(), visitedActions.size());
         for (ActivityNode an : this.activities.values()) {
-            Logger.iformat("- %5.2f %3d %s", an.getVisitedRate(), an.getStates().size(), an);
+            Logger.GRAPH.iformat("- %5.2f %3d %s", an.getVisitedRate(), an.getStates().size(), an);
         }
     }
 
@@ -311,6 +323,14 @@ public class Graph implements Serializable {
         return timestamp;
     }
 
+    /**
+     * @return the number of states removed so far; a change means cached
+     *         derived data may refer to stale states or transitions.
+     */
+    public int getRemoveCount() {
+        return removeCount;
+    }
+
     public Iterator<GUITree> getGUITrees() {
         return new Iterator<GUITree>() {
             Iterator<GUITree> treeIterator;
@@ -372,11 +392,13 @@ public class Graph implements Serializable {
         GUITreeTransition treeTransition = new GUITreeTransition(sourceTree, treeAction, targetTree);
         treeTransition.setThrottle(action.getThrottle());
         edge.updateThrottle(treeTransition.getThrottle());
+        treeTransition.setHistoryIndex(treeTransitionHistory.size());
         stateTransitionHistory.add(edge);
         treeTransitionHistory.add(treeTransition);
         edge.append(treeTransition);
 
         edge.strengthen();
+        markTransitionChanged(edge);
         markVisited(edge, timestamp);
         fireStateTransitionEvents(edge);
         if (this.entryGUITrees.contains(sourceTree)) {
@@ -401,7 +423,8 @@ public class Graph implements Serializable {
             this.cleanEntryStates.add(source);
         }
         edge.strengthen();
-        stateTransitionHistory.add(edge);
+        markTransitionChanged(edge);
+        patchHistory(edge, treeTransition);
         edge.updateThrottle(treeTransition.getThrottle());
         edge.append(treeTransition);
         int timestamp = treeTransition.getTimestamp();
@@ -423,12 +446,12 @@ public class Graph implements Serializable {
         if (source != null) {
             edge = new StateTransition(source, action, target);
             added = Utils.addToMapMapIfAbsent(actionToOutStateTransitions, action, edge, edge);
-            if (verbose) {
-                Logger.println("=== Adding edge...");
-                Logger.println("    Source: " + source);
-                Logger.println("    Action: " + action);
-                Logger.println("    Target: " + target);
-                Logger.println("    Add target result: " + added);
+            if (verbose && Logger.GRAPH.isInfoEnabled()) {
+                Logger.GRAPH.println("=== Adding edge...");
+                Logger.GRAPH.format("    Source: %s", source);
+                Logger.GRAPH.format("    Action: %s", action);
+                Logger.GRAPH.format("    Target: %s", target);
+                Logger.GRAPH.format("    Add target result: %s", added);
             }
             if (added != Utils.addToMapMapIfAbsent(stateToOutStateTransitions, source, edge, edge)) {
                 throw new IllegalStateException("Sanity check failed");
@@ -439,6 +462,9 @@ public class Graph implements Serializable {
             if (added) {
                 edge.setGraphId(graphId + "e" + edges.size());
                 Utils.putIfAbsent(edges, edge, edge);
+                if (index != null) {
+                    index.add(edge);
+                }
                 if (actionToOutStateTransitions.get(action).size() == 1) {
                     edge.setType(StateTransitionVisitType.NEW_ACTION);
                 } else {
@@ -454,10 +480,10 @@ public class Graph implements Serializable {
             }
         }
         timestamp++;
-        if (verbose) {
+        if (verbose && Logger.GRAPH.isInfoEnabled()) {
             printStatistics();
-            Logger.format("GSTG is %supdated.", (added ? "" : "NOT "));
-            Logger.format("GSTG state is %schanged.", (target.equals(source) ? "NOT " : ""));
+            Logger.GRAPH.format("GSTG is %supdated.", (added ? "" : "NOT "));
+            Logger.GRAPH.format("GSTG state is %schanged.", (target.equals(source) ? "NOT " : ""));
         }
         return edge;
     }
@@ -468,6 +494,7 @@ public class Graph implements Serializable {
             throw new IllegalArgumentException("Cannot update a non-existing edge");
         }
         edge.weaken();
+        markTransitionChanged(edge);
     }
 
     public Set<StateTransition> getOutStateTransitions(State state) {
@@ -494,55 +521,93 @@ public class Graph implements Serializable {
         return ret.keySet();
     }
 
-    public Subsequence findShortestPath(SubsequenceFilter filter, State current) {
-        Set<StateTransition> edges = getOutStateTransitions(current);
-        if (edges.isEmpty()) {
-            return null;
+    GraphIndex getIndex() {
+        GraphIndex index = this.index;
+        if (index == null) {
+            index = new GraphIndex();
+            for (StateTransition edge : edges.keySet()) {
+                index.add(edge);
+            }
+            this.index = index;
         }
-        Set<State> visited = new HashSet<State>();
-        visited.add(current);
-        LinkedList<Subsequence> pathQueue = new LinkedList<>();
-        // n-step search
-        // Do a BFS to find the shortest path
-        // avoid unnecessary leading recursion
-        {
-            Subsequence path = new Subsequence(current);
-            for (StateTransition edge : edges) {
-                if (visited.contains(edge.target)) {
-                    continue;
-                }
-                if (filter.extend(path, edge)) {
-                    Subsequence newPath = new Subsequence(path, edge);
-                    visited.add(edge.target);
-                    if (filter.include(newPath)) {
-                        return newPath;
-                    }
-                    pathQueue.addLast(newPath);
-                }
+        return index;
+    }
+
+    GraphIndex getBuiltIndex() {
+        return index;
+    }
+
+    /**
+     * Fields are shared by the same pair of filters.
+     */
+    public DistanceField getDistanceField(ActionFilter frontierFilter, ActionFilter edgeFilter) {
+        if (distanceFields == null) {
+            distanceFields = new ArrayList<>(2);
+        }
+        for (DistanceField field : distanceFields) {
+            if (field.frontierFilter == frontierFilter && field.edgeFilter == edgeFilter) {
+                return field;
             }
         }
-        while (!pathQueue.isEmpty()) {
-            Subsequence path = pathQueue.removeFirst();
-            Set<StateTransition> outStateTransitions = getOutStateTransitions(path.getLastState());
-            if (outStateTransitions.isEmpty()) {
-                continue;
+        DistanceField field = new DistanceField(this, frontierFilter, edgeFilter);
+        distanceFields.add(field);
+        return field;
+    }
+
+    public ComponentIndex getComponents() {
+        if (components == null) {
+            components = new ComponentIndex(this);
+        }
+        return components;
+    }
+
+    /**
+     * Tells distance fields and components that the actions of the state
+     * have changed.
+     */
+    public void markActionsChanged(State state) {
+        if (components != null) {
+            components.update(state);
+        }
+        if (distanceFields != null) {
+            for (DistanceField field : distanceFields) {
+                field.update(state);
             }
-            for (StateTransition edge : outStateTransitions) {
-                if (visited.contains(edge.target)) {
-                    continue;
-                }
-                if (filter.extend(path, edge)) {
-                    Subsequence newPath = new Subsequence(path, edge);
-                    visited.add(edge.target);
-                    if (filter.include(newPath)) {
-                        return newPath;
-                    }
-                    pathQueue.addLast(newPath);
-                }
+        }
+        if (pathCache != null) {
+            for (DistanceField field : pathCache.getFields()) {
+                field.update(state);
             }
         }
-        return null;
+    }
+
+    private void markTransitionChanged(StateTransition edge) {
+        if (components != null) {
+            components.update(edge);
+        }
+        if (distanceFields != null) {
+            for (DistanceField field : distanceFields) {
+                field.update(edge);
+            }
+        }
+        if (pathCache != null) {
+            for (DistanceField field : pathCache.getFields()) {
+                field.update(edge);
+            }
+        }
+    }
 
+    public void printIndexStatistics() {
+        if (pathCache != null) {
+            pathCache.printStatistics();
+        }
+        if (components != null) {
+            components.printStatistics();
+        }
+    }
+
+    public Subsequence findShortestPath(SubsequenceFilter filter, State current) {
+        return getIndex().findShortestPath(filter, current);
     }
 
     public void markVisited(ModelAction action, int timestamp) {
@@ -555,11 +620,13 @@ public class Graph implements Serializable {
             }
             action.visitedAt(timestamp);
             this.visitedActions.add(action);
+            markActionsChanged(action.getState());
         } else if (visitedActions.contains(action)) {
             action.visitedAt(timestamp);
+            markActionsChanged(action.getState());
         } else {
-            Logger.println("Untracked action: " + action);
-            Logger.println("State is " + action.getState());
+            Logger.GRAPH.format("Untracked action: %s", action);
+            Logger.GRAPH.format("State is %s", action.getState());
             if (this.unvisitedActions.contains(action)) {
                 throw new RuntimeException("Unvisited actions should not be marked visited.");
             }
@@ -577,6 +644,9 @@ public class Graph implements Serializable {
             throw new RuntimeException("Sanity check failed!");
         }
         edge.visitedAt(timestamp);
+        if (index != null) {
+            index.updateOrder(edge);
+        }
     }
 
     private void markVisited(String activity, int timestamp) {
@@ -783,12 +853,8 @@ public class Graph implements Serializable {
         return this.keyToState.values();
     }
 
-    // TODO: Use TreeSet
-    public Collection<StateTransition> sortStateTransitionsByLastVisitedCount(Set<StateTransition> edges) {
-        StateTransition[] results = new StateTransition[edges.size()];
-        results = edges.toArray(results);
-        Arrays.sort(results, LAST_VISIT_COUNT_COMPARATOR);
-        return Arrays.asList(results);
+    public Collection<StateTransition> getStateTransitions() {
+        return Collections.unmodifiableSet(this.edges.keySet());
     }
 
     public List<Subsequence> findShortestPaths(State current, SubsequenceFilter filter, int pathLength) {
@@ -799,117 +865,34 @@ public class Graph implements Serializable {
 
     public void findShortestPaths(List<Subsequence> selectedPaths, State current, SubsequenceFilter filter,
             int pathLength) {
-        Set<StateTransition> edges = getOutStateTransitions(current);
-        if (edges.isEmpty()) {
-            return;
-        }
-
-        Set<State> visited = new HashSet<State>();
-        visited.add(current);
-        LinkedList<Subsequence> pathQueue = new LinkedList<>();
-        // n-step search
-        // Do a BFS to find the shortest path
-        // avoid unnecessary leading recursion
-        {
-            Subsequence path = new Subsequence(current);
-            for (StateTransition edge : sortStateTransitionsByLastVisitedCount(edges)) {
-                if (visited.contains(edge.target)) {
-                    continue;
-                }
-                if (filter.extend(path, edge)) {
-                    Subsequence newPath = new Subsequence(path, edge);
-                    visited.add(edge.target);
-                    if (filter.include(newPath)) {
-                        selectedPaths.add(newPath);
-                        newPath.close();
-                        continue;
-                    }
-                    pathQueue.addLast(newPath);
-                }
-            }
-        }
-        while (!pathQueue.isEmpty()) {
-            Subsequence path = pathQueue.removeFirst();
-            if (path.size() == pathLength) {
-                path.close();
-                continue;
-            }
-            Set<StateTransition> outStateTransitions = getOutStateTransitions(path.getLastState());
-            if (outStateTransitions.isEmpty()) {
-                continue;
-            }
-            for (StateTransition edge : sortStateTransitionsByLastVisitedCount(outStateTransitions)) {
-                if (visited.contains(edge.target)) {
-                    continue;
-                }
-                if (filter.extend(path, edge)) {
-                    Subsequence newPath = new Subsequence(path, edge);
-                    visited.add(edge.target);
-                    if (filter.include(newPath)) {
-                        selectedPaths.add(newPath);
-                        newPath.close();
-                        continue;
-                    }
-                    pathQueue.addLast(newPath);
-                }
-            }
-        }
+        getIndex().findShortestPaths(selectedPaths, current, filter, pathLength);
     }
 
-
     public boolean isReachable(Collection<State> from, State to) {
         if (from.contains(to)) {
             return true;
         }
-        Set<State> visited = new HashSet<State>();
-        visited.addAll(from);
-        LinkedList<State> queue = new LinkedList<>();
-        queue.addAll(from);
-        while (!queue.isEmpty()) {
-            State current = queue.removeFirst();
-            Set<StateTransition> outStateTransitions = getOutStateTransitions(current);
-            if (outStateTransitions.isEmpty()) {
-                continue;
-            }
-            for (StateTransition edge : outStateTransitions) {
-                if (visited.contains(edge.target)) {
-                    continue;
-                }
-                if (edge.isStrong()) {
-                    if (edge.target == to) {
-                        return true;
-                    }
-                    queue.add(edge.target);
-                    visited.add(edge.target);
-                }
-            }
-        }
-        return false;
+        return getComponents().isReachable(from, to);
     }
 
+    /**
+     * Follows the cached shortest-path tree toward the end state. Like a
+     * search from the current state, it finds no path to the current state
+     * itself, and none longer than the path length.
+     */
     public void moveToState(List<Subsequence> selectedPaths, State current, final State end, final boolean includeBack, int pathLength) {
-        SubsequenceFilter strongFilter = new SubsequenceFilter() {
-            @Override
-            public boolean include(Subsequence path) {
-                if (path.isEmpty()) {
-                    return false;
-                }
-                return end.equals(path.getLastState());
-            }
-
-            @Override
-            public boolean extend(Subsequence path, StateTransition edge) {
-                if (!ActionFilter.ENABLED_VALID.include(edge.action)) {
-                    return false;
-                }
-                if (!includeBack && edge.action.isBack()) {
-                    return false;
-                }
-                return edge.isStrong();
-            }
-        };
-
-        findShortestPaths(selectedPaths, current, strongFilter, pathLength);
+        if (current.equals(end)) {
+            return;
+        }
+        if (pathCache == null) {
+            pathCache = new PathCache(this);
+        }
+        Subsequence path = pathCache.get(end, includeBack).findPath(current);
+        if (path == null || path.isEmpty() || path.size() > Math.max(pathLength, 1)) {
+            return;
+        }
+        path.close();
+        selectedPaths.add(path);
     }
 
     /**
@@ -942,30 +925,30 @@ public class Graph implements Serializable {
                             // order
                             if (previous.target.equals(edge.target)) {
                                 if (circleCount > maxCircleSize) {
-                                    Logger.dformat("Too many circle edges, skip a valid non-trival circle edge %s",
+                                    Logger.GRAPH.dformat("Too many circle edges, skip a valid non-trival circle edge %s",
                                             edge);
                                     continue;
                                 }
                                 edges.addFirst(edge); // valid transitions
                                 circleCount++;
-                                Logger.dformat("Include a valid non-trival circle edge %s", edge);
+                                Logger.GRAPH.dformat("Include a valid non-trival circle edge %s", edge);
                                 continue;
                             } else { // skip invalid transitions
-                                Logger.dformat("Skip an invalid non-trival circle edge %s", edge);
+                                Logger.GRAPH.dformat("Skip an invalid non-trival circle edge %s", edge);
                                 continue;
                             }
                         } else { // skip trivial update
-                            Logger.dformat("Skip a trival circle edge %s", edge);
+                            Logger.GRAPH.dformat("Skip a trival circle edge %s", edge);
                             continue;
                         }
                     } else if (S < 0) {
                         break;
                     } else if (edge.source.equals(states[S])) {
                         edges.addFirst(edge);
-                        Logger.dformat("Include a valid non-trival edge %s", edge);
+                        Logger.GRAPH.dformat("Include a valid non-trival edge %s", edge);
                         break;
                     } else {
-                        Logger.dformat("Skip an invalid edge %s", edge);
+                        Logger.GRAPH.dformat("Skip an invalid edge %s", edge);
                     }
                 }
             }
@@ -980,9 +963,9 @@ public class Graph implements Serializable {
     }
 
     public void fillTransitions(List<Subsequence> selectedPaths, final State[] states) {
-        Logger.println("Fill transitions: ");
+        Logger.GRAPH.println("Fill transitions: ");
         for (int i = 0; i < states.length; i++) {
-            Logger.format("\t%3d %s", i, states[i]);
+            Logger.GRAPH.format("\t%3d %s", i, states[i]);
         }
         SubsequenceFilter filter = new SubsequenceFilter() {
             @Override
@@ -1032,9 +1015,9 @@ public class Graph implements Serializable {
         ActivityNode[] nodes = new ActivityNode[this.activities.size()];
         nodes = this.activities.values().toArray(nodes);
         Arrays.sort(nodes);
-        Logger.iprintln("Print states in each activity.");
+        Logger.GRAPH.iprintln("Print states in each activity.");
         for (int i = nodes.length - 1, k = 1; i >= 0; i--, k++) {
-            Logger.format("%3d. [%d] %s", k, nameToActions.get(nodes[i].activity).size(), nodes[i]);
+            Logger.GRAPH.format("%3d. [%d] %s", k, nameToActions.get(nodes[i].activity).size(), nodes[i]);
             State[] states = nodes[i].getStates().toArray(new State[0]);
             Arrays.sort(states, new Comparator<State>() {
 
@@ -1057,24 +1040,24 @@ public class Graph implements Serializable {
 
             });
             for (int j = states.length - 1, m = 1; j >= 0; j--, m++) {
-                Logger.format("    %3d %s", m, states[j]);
+                Logger.GRAPH.format("    %3d %s", m, states[j]);
             }
         }
-        Logger.iprintln("Print entry states");
+        Logger.GRAPH.iprintln("Print entry states");
         State[] entries = entryStates.toArray(new State[0]);
         for (int i = 0; i < entries.length; i++) {
-            Logger.iformat("%3d. %s", i, entries[i]);
+            Logger.GRAPH.iformat("%3d. %s", i, entries[i]);
         }
-        Logger.iprintln("Print naming states");
+        Logger.GRAPH.iprintln("Print naming states");
         for(Entry<Naming, Set<State>> entry : namingToStates.entrySet()) {
             Naming naming = entry.getKey();
             Set<State> states = entry.getValue();
-            Logger.iformat("- %3d %s", states.size(), naming);
+            Logger.GRAPH.iformat("- %3d %s", states.size(), naming);
             for (State s : states) {
-                Logger.iformat("    - %s", s);
+                Logger.GRAPH.iformat("    - %s", s);
             }
         }
-        // Logger.iprintln("Print action counters.");
+        // Logger.GRAPH.iprintln("Print action counters.");
         // actionCounters.print();
     }
 
@@ -1120,12 +1103,36 @@ public class Graph implements Serializable {
         return edge;
     }
 
+    /**
+     * Load a graph from a model snapshot with an embedded graph, or from a
+     * Java serialized graph or model.
+     * @param modelFile
+     * @return
+     */
     public static Graph readGraph(String modelFile) {
+        File file = new File(modelFile);
+        if (ModelSnapshotReader.isSnapshot(file)) {
+            Graph graph;
+            try (ModelSnapshotReader reader = new ModelSnapshotReader(file)) {
+                graph = reader.readGraph();
+            } catch (Exception e) {
+                throw new IllegalStateException("Fail to load graph from model snapshot " + modelFile, e);
+            }
+            if (graph == null) {
+                throw new IllegalStateException("Model snapshot " + modelFile
+                        + " has no embedded graph to start from, save it with ape.embedGraphInSnapshot=true.");
+            }
+            return graph;
+        }
         try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(modelFile))) {
-            return (Graph) ois.readObject();
+            Object object = ois.readObject();
+            if (object instanceof Model) {
+                return ((Model) object).getGraph();
+            }
+            return (Graph) object;
         } catch (Exception e) {
             e.printStackTrace();
-            Logger.println("Fail to load graph from " + modelFile);
+            Logger.GRAPH.format("Fail to load graph from %s", modelFile);
         }
         return new Graph();
     }
@@ -1140,7 +1147,7 @@ public class Graph implements Serializable {
         Arrays.sort(edges, VISIT_COUNT_COMPARATOR);
         for (int i = edges.length - 1, ii = 1; i >= 0; i--, ii++) {
             StateTransition edge = edges[i];
-            Logger.format("%3d %s", ii, formatStateTransition(edge));
+            Logger.GRAPH.format("%3d %s", ii, formatStateTransition(edge));
         }
     }
 
@@ -1184,6 +1191,8 @@ public class Graph implements Serializable {
     }
 
     void remove(State state, Collection<StateTransition> removed) {
+        removeCount++;
+        index = null;
         {
             Map<StateTransition, StateTransition> inStateTransitions = this.stateToInStateTransitions.remove(state);
             if (inStateTransitions != null && inStateTransitions.size() > 0) {
@@ -1262,6 +1271,54 @@ public class Graph implements Serializable {
         }
     }
 
+    /**
+     * Replaces the history entry of a re-added GUI tree transition in place.
+     */
+    private void patchHistory(StateTransition edge, GUITreeTransition treeTransition) {
+        if (historyInvalid) {
+            return;
+        }
+        int index = treeTransition.getHistoryIndex();
+        if (stateTransitionHistory == null || stateTransitionHistory.size() != treeTransitionHistory.size()
+                || index < 0 || index >= treeTransitionHistory.size()
+                || treeTransitionHistory.get(index) != treeTransition) {
+            historyInvalid = true;
+            return;
+        }
+        stateTransitionHistory.set(index, edge);
+        if (rebuiltPositions == null) {
+            rebuiltPositions = new BitSet(treeTransitionHistory.size());
+        }
+        rebuiltPositions.set(index);
+    }
+
+    /**
+     * Brings the history and the subsequence trie up to date after a model
+     * rebuild. Only the positions patched by the rebuild are remapped in the
+     * trie. The whole history is replayed if any position cannot be patched,
+     * e.g., the graph has been deserialized.
+     */
+    void updateHistory() {
+        BitSet positions = rebuiltPositions;
+        rebuiltPositions = null;
+        if (!historyInvalid) {
+            if (positions == null) {
+                return;
+            }
+            try {
+                int moved = subsequenceTrie.remap(positions, stateTransitionHistory);
+                Logger.GRAPH.iformat("Remapped %d history positions of %d rebuilt in the subsequence trie.", moved,
+                        positions.cardinality());
+                return;
+            } catch (IllegalStateException e) {
+                Logger.GRAPH.wformat("Fail to remap the subsequence trie: %s", e.getMessage());
+            }
+        }
+        historyInvalid = false;
+        rebuildHistory();
+        rebuildSubsequenceTrie();
+    }
+
     void rebuildHistory() {
         if (stateTransitionHistory == null) {
             stateTransitionHistory = new ArrayList<>(this.treeTransitionHistory.size() << 1);
@@ -1269,17 +1326,8 @@ public class Graph implements Serializable {
             stateTransitionHistory.clear();
         }
         for (GUITreeTransition tt : this.treeTransitionHistory) {
-            StateTransition edge = (StateTransition) tt.getCurrentStateTransition();
-            int fv = edge.getFirstVisitedTimestamp();
-            int lv = edge.getLastVisitedTimestamp();
-            if (fv == -1 || fv > tt.getTimestamp()) {
-                edge.firstVisitTimestamp = fv;
-            }
-            if (lv == -1 || lv < tt.getTimestamp()) {
-                edge.lastVisitTimestamp = lv;
-            }
-            edge.visitedCount++;
-            stateTransitionHistory.add(edge);
+            tt.setHistoryIndex(stateTransitionHistory.size());
+            stateTransitionHistory.add(tt.getCurrentStateTransition());
         }
     }
 
@@ -1341,9 +1389,9 @@ public class Graph implements Serializable {
             return false;
         }
         if (check != state) {
-            Logger.wprintln("Duplicated states with the same key");
-            Logger.wprintln("   get: " + state);
-            Logger.wprintln("expect: " + check);
+            Logger.GRAPH.wprintln("Duplicated states with the same key");
+            Logger.GRAPH.wformat("   get: %s", state);
+            Logger.GRAPH.wformat("expect: %s", check);
             throw new RuntimeException("Sanity check failed!");
         }
         return check == state;
@@ -1421,7 +1469,7 @@ public class Graph implements Serializable {
         for (GUITree tree : metTargetMethodGUITrees) {
             State state = tree.getCurrentState();
             if (state == null) {
-                System.out.println("[APE_MT_DEBUG] state is null from GUITree");
+                Logger.GRAPH.dprintln("[APE_MT] state is null from GUITree");
             } else {
                 states.add(state);
             }
@@ -0,0 +1,357 @@
+package com.android.commands.monkey.ape.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.android.commands.monkey.ape.Subsequence;
+import com.android.commands.monkey.ape.SubsequenceFilter;
+
+/**
+ * A dense int-id mirror of the adjacency of a graph for path search. States
+ * and transitions are numbered in the order they are added, and every state
+ * keeps the ids of its out- and in-transitions in a growable row, so adding a
+ * transition is amortized O(1). Searches run over int queues and bitsets, and
+ * extend paths by parent pointers instead of copies.
+ *
+ * Out-rows are kept ordered by {@link Graph#LAST_VISIT_COUNT_COMPARATOR},
+ * ties by id, and a visit moves the transition within its row, so searches
+ * try transitions in that order without sorting.
+ *
+ * Removing a state drops the whole index, which is rebuilt by the graph on
+ * the next search.
+ */
+class GraphIndex {
+
+    private static final int[] EMPTY_ROW = new int[0];
+
+    private final Map<State, Integer> stateToId = new HashMap<>();
+    private State[] states = new State[64];
+    private int[][] outRows = new int[64][];
+    private int[] outSizes = new int[64];
+    private int[][] inRows = new int[64][];
+    private int[] inSizes = new int[64];
+    private int stateCount;
+
+    private final Map<StateTransition, Integer> transitionToId = new IdentityHashMap<>();
+    private StateTransition[] transitions = new StateTransition[256];
+    private int[] orderKeys = new int[256]; // last visit timestamps as ordered
+    private int[] sources = new int[256];
+    private int[] targets = new int[256];
+    private int transitionCount;
+
+    // Scratch of the last search, taken by the next one. A filter that
+    // searches the graph again gets a fresh scratch.
+    private Scratch scratch;
+
+    static class Scratch {
+        final BitSet visited = new BitSet();
+        int[] queue = EMPTY_ROW;
+        Subsequence[] paths = new Subsequence[0];
+
+        void ensureCapacity(int stateCount) {
+            if (queue.length < stateCount) {
+                int capacity = Math.max(stateCount, queue.length << 1);
+                queue = new int[capacity];
+                paths = new Subsequence[capacity];
+            }
+        }
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    public int getTransitionCount() {
+        return transitionCount;
+    }
+
+    /**
+     * @return the id of the state, or -1 if it has no transitions
+     */
+    public int getId(State state) {
+        Integer id = stateToId.get(state);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the id of the transition, or -1 if it is not indexed
+     */
+    public int getId(StateTransition edge) {
+        Integer id = transitionToId.get(edge);
+        return id == null ? -1 : id;
+    }
+
+    public State getState(int id) {
+        return states[id];
+    }
+
+    public StateTransition getTransition(int id) {
+        return transitions[id];
+    }
+
+    public int getSource(int transition) {
+        return sources[transition];
+    }
+
+    public int getTarget(int transition) {
+        return targets[transition];
+    }
+
+    public int getOutCount(int state) {
+        return outSizes[state];
+    }
+
+    /**
+     * @return the row of out-transition ids, valid up to
+     *         {@link #getOutCount(int)}
+     */
+    public int[] getOutRow(int state) {
+        return outRows[state];
+    }
+
+    public int getInCount(int state) {
+        return inSizes[state];
+    }
+
+    public int[] getInRow(int state) {
+        return inRows[state];
+    }
+
+    private int getOrAddId(State state) {
+        Integer id = stateToId.get(state);
+        if (id != null) {
+            return id;
+        }
+        int newId = stateCount++;
+        if (newId == states.length) {
+            int capacity = newId << 1;
+            states = Arrays.copyOf(states, capacity);
+            outRows = Arrays.copyOf(outRows, capacity);
+            outSizes = Arrays.copyOf(outSizes, capacity);
+            inRows = Arrays.copyOf(inRows, capacity);
+            inSizes = Arrays.copyOf(inSizes, capacity);
+        }
+        states[newId] = state;
+        outRows[newId] = EMPTY_ROW;
+        inRows[newId] = EMPTY_ROW;
+        stateToId.put(state, newId);
+        return newId;
+    }
+
+    private static int[] append(int[] row, int size, int value) {
+        if (size == row.length) {
+            row = Arrays.copyOf(row, size == 0 ? 4 : size << 1);
+        }
+        row[size] = value;
+        return row;
+    }
+
+    public int add(StateTransition edge) {
+        int source = getOrAddId(edge.source);
+        int target = getOrAddId(edge.target);
+        int id = transitionCount++;
+        if (id == transitions.length) {
+            int capacity = id << 1;
+            transitions = Arrays.copyOf(transitions, capacity);
+            orderKeys = Arrays.copyOf(orderKeys, capacity);
+            sources = Arrays.copyOf(sources, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+        }
+        transitions[id] = edge;
+        orderKeys[id] = edge.getLastVisitedTimestamp();
+        transitionToId.put(edge, id);
+        sources[id] = source;
+        targets[id] = target;
+        int[] row = append(outRows[source], outSizes[source], id);
+        insert(row, outSizes[source]++, id);
+        outRows[source] = row;
+        inRows[target] = append(inRows[target], inSizes[target]++, id);
+        return id;
+    }
+
+    private int compareOrder(int edge1, int edge2) {
+        int key1 = orderKeys[edge1], key2 = orderKeys[edge2];
+        if (key1 != key2) {
+            return key1 < key2 ? -1 : 1;
+        }
+        return edge1 < edge2 ? -1 : (edge1 == edge2 ? 0 : 1);
+    }
+
+    /**
+     * @return the position of the transition in the ordered row, or the
+     *         insertion point of it
+     */
+    private int search(int[] row, int size, int edge) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compareOrder(row[mid], edge);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Moves the transition, appended at the end of the row of the given
+     * size, to its ordered position.
+     */
+    private void insert(int[] row, int size, int edge) {
+        int pos = search(row, size, edge);
+        System.arraycopy(row, pos, row, pos + 1, size - pos);
+        row[pos] = edge;
+    }
+
+    /**
+     * Reorders a transition in the row of its source after it is visited.
+     */
+    public void updateOrder(StateTransition edge) {
+        Integer id = transitionToId.get(edge);
+        if (id == null) {
+            return;
+        }
+        int key = edge.getLastVisitedTimestamp();
+        if (orderKeys[id] == key) {
+            return;
+        }
+        int source = sources[id];
+        int[] row = outRows[source];
+        int size = outSizes[source];
+        int pos = search(row, size, id);
+        if (pos >= size || row[pos] != id) {
+            throw new IllegalStateException("Transition is not in the row of its source.");
+        }
+        System.arraycopy(row, pos + 1, row, pos, size - pos - 1);
+        orderKeys[id] = key;
+        row[size - 1] = id;
+        insert(row, size - 1, id);
+    }
+
+    private Scratch beginSearch() {
+        Scratch s = scratch;
+        if (s == null) {
+            s = new Scratch();
+        } else {
+            scratch = null;
+        }
+        s.ensureCapacity(stateCount);
+        s.visited.clear();
+        return s;
+    }
+
+    private void endSearch(Scratch s, int count) {
+        Arrays.fill(s.paths, 0, count, null);
+        scratch = s;
+    }
+
+    public Subsequence findShortestPath(SubsequenceFilter filter, State current) {
+        int start = getId(current);
+        if (start == -1 || outSizes[start] == 0) {
+            return null;
+        }
+        return doFindShortestPath(filter, current, start);
+    }
+
+    private Subsequence doFindShortestPath(SubsequenceFilter filter, State current, int start) {
+        Scratch s = beginSearch();
+        BitSet visited = s.visited;
+        int[] queue = s.queue;
+        Subsequence[] paths = s.paths;
+        int head = 0, tail = 0;
+        try {
+            visited.set(start);
+            paths[tail] = new Subsequence(current);
+            queue[tail++] = start;
+            while (head < tail) {
+                Subsequence path = paths[head];
+                int state = queue[head++];
+                int[] row = outRows[state];
+                for (int i = 0, count = outSizes[state]; i < count; i++) {
+                    int edge = row[i];
+                    int target = targets[edge];
+                    if (visited.get(target)) {
+                        continue;
+                    }
+                    StateTransition transition = transitions[edge];
+                    if (filter.extend(path, transition)) {
+                        Subsequence newPath = new Subsequence(path, transition);
+                        visited.set(target);
+                        if (filter.include(newPath)) {
+                            return newPath;
+                        }
+                        paths[tail] = newPath;
+                        queue[tail++] = target;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            endSearch(s, tail);
+        }
+    }
+
+    /**
+     * Out-transitions of a state are tried in the order of their rows.
+     */
+    public void findShortestPaths(List<Subsequence> selectedPaths, State current, SubsequenceFilter filter,
+            int pathLength) {
+        int start = getId(current);
+        if (start == -1 || outSizes[start] == 0) {
+            return;
+        }
+        doFindShortestPaths(selectedPaths, current, start, filter, pathLength);
+    }
+
+    private void doFindShortestPaths(List<Subsequence> selectedPaths, State current, int start,
+            SubsequenceFilter filter, int pathLength) {
+        Scratch s = beginSearch();
+        BitSet visited = s.visited;
+        int[] queue = s.queue;
+        Subsequence[] paths = s.paths;
+        int head = 0, tail = 0;
+        try {
+            visited.set(start);
+            paths[tail] = new Subsequence(current);
+            queue[tail++] = start;
+            while (head < tail) {
+                Subsequence path = paths[head];
+                int state = queue[head++];
+                if (state != start && path.size() == pathLength) {
+                    path.close();
+                    continue;
+                }
+                int[] row = outRows[state];
+                for (int i = 0, count = outSizes[state]; i < count; i++) {
+                    int edge = row[i];
+                    int target = targets[edge];
+                    if (visited.get(target)) {
+                        continue;
+                    }
+                    StateTransition transition = transitions[edge];
+                    if (filter.extend(path, transition)) {
+                        Subsequence newPath = new Subsequence(path, transition);
+                        visited.set(target);
+                        if (filter.include(newPath)) {
+                            selectedPaths.add(newPath);
+                            newPath.close();
+                            continue;
+                        }
+                        paths[tail] = newPath;
+                        queue[tail++] = target;
+                    }
+                }
+            }
+        } finally {
+            endSearch(s, tail);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.android.commands.monkey.ape.model;
 
+import static com.android.commands.monkey.ape.utils.Config.actionHistorySegmentSize;
 import static com.android.commands.monkey.ape.utils.Config.activityManagerType;
 
 import java.io.File;
@@ -8,6 +9,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -30,6 +32,9 @@ import com.android.commands.monkey.ape.tree.GUITreeNode;
 import com.android.commands.monkey.ape.tree.GUITreeTransition;
 import com.android.commands.monkey.ape.utils.Logger;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.content.ComponentName;
 import android.graphics.Bitmap;
 import android.os.SystemClock;
@@ -52,15 +57,56 @@ public class Model implements Serializable {
         public final int agentTimestamp;
         public final Action modelAction;
         public final GUITreeAction guiAction;
+        // the throttle and the resolved node of a spilled model action, in JSON
+        final String resolvedJSON;
         public ActionRecord(long clockTimestamp, int agentTimestamp, Action action, GUITreeAction guiAction) {
+            this(clockTimestamp, agentTimestamp, action, guiAction, null);
+        }
+
+        ActionRecord(long clockTimestamp, int agentTimestamp, Action action, GUITreeAction guiAction,
+                String resolvedJSON) {
             this.clockTimestamp = clockTimestamp;
             this.agentTimestamp = agentTimestamp;
             this.modelAction = action;
             this.guiAction = guiAction;
+            this.resolvedJSON = resolvedJSON;
+        }
+
+        /**
+         * A spilled record has no GUI action, and its model action cannot be
+         * resolved. Use {@link #toJSONObject()} instead.
+         */
+        public boolean isSpilled() {
+            return resolvedJSON != null;
+        }
+
+        /**
+         * The JSON of the resolved action, as it is logged.
+         */
+        public JSONObject toJSONObject() throws JSONException {
+            if (resolvedJSON == null) {
+                resolveModelAction();
+                return modelAction.toJSONObject();
+            }
+            JSONObject resolved = new JSONObject(resolvedJSON);
+            JSONObject jAction = new JSONObject();
+            jAction.put("actionType", modelAction.getType());
+            jAction.put("throttle", resolved.get("throttle"));
+            if (modelAction.requireTarget()) {
+                jAction.put("target", modelAction.getTarget().toXPath());
+            }
+            Iterator<String> keys = resolved.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!key.equals("throttle")) {
+                    jAction.put(key, resolved.get(key));
+                }
+            }
+            return jAction;
         }
 
         public void resolveModelAction() {
-            if (this.modelAction.isModelAction()) {
+            if (this.modelAction.isModelAction() && !isSpilled()) {
                 ModelAction modelAction = (ModelAction) this.modelAction;
                 if (guiAction == null) {
                     throw new IllegalStateException("GUI action should not be null.");
@@ -81,14 +127,8 @@ public class Model implements Serializable {
     public static void saveActionHistory(File file, List<ActionRecord> actionHistory) {
         try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
             for (ActionRecord record : actionHistory) {
-                Action action = record.modelAction;
-                int timestamp = record.agentTimestamp;
-                long clockTime = record.clockTimestamp;
-                if (action.isModelAction()) {
-                    record.resolveModelAction();
-                }
-                ApeRRFormatter.startLogAction(pw, action, clockTime, timestamp);
-                ApeRRFormatter.endLogAction(pw, action, timestamp);
+                ApeRRFormatter.startLogAction(pw, record);
+                ApeRRFormatter.endLogAction(pw, record.modelAction, record.agentTimestamp);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -106,8 +146,8 @@ public class Model implements Serializable {
     protected NamingManager namingManager;
     // the state machine
     protected Graph graph;
-    // A list of all actions, TODO: may be the cause of OOM
-    protected List<ActionRecord> actionHistory = new ArrayList<ActionRecord>();
+    // A list of all actions, an ActionHistory unless deserialized from an old model
+    protected List<ActionRecord> actionHistory = new ActionHistory(actionHistorySegmentSize);
 
     protected int version;
 
@@ -133,6 +173,34 @@ public class Model implements Serializable {
         return this.actionHistory;
     }
 
+    private ActionHistory checkActionHistory() {
+        if (!(actionHistory instanceof ActionHistory)) {
+            ActionHistory history = new ActionHistory(actionHistorySegmentSize);
+            history.addAll(actionHistory);
+            actionHistory = history;
+        }
+        return (ActionHistory) actionHistory;
+    }
+
+    /**
+     * Old segments of the action history are spilled into the directory.
+     */
+    public void setActionHistoryDirectory(File dir) {
+        checkActionHistory().setDirectory(dir);
+    }
+
+    /**
+     * Updates the model actions of the action history after the model is
+     * rebuilt.
+     */
+    public void updateActionHistory() {
+        checkActionHistory().remap(this);
+    }
+
+    public void closeActionHistory() {
+        checkActionHistory().close();
+    }
+
     public void appendToActionHistory(long clockTimestamp, Action action, int agentTimestamp) {
         if (action.isModelAction()) {
             ModelAction modelAction = (ModelAction) action;
@@ -178,7 +246,7 @@ public class Model implements Serializable {
         {
             // Remove model
             // long b = SystemClock.elapsedRealtimeNanos();
-            for (State state : graph.getStates()) {
+            for (State state : getStatesToCheck()) {
                 for (GUITree tree : state.getGUITrees()) {
                     Naming naming = tree.getCurrentNaming();
                     Naming check = namingManager.getNaming(tree);
@@ -251,8 +319,7 @@ public class Model implements Serializable {
                 ModelAction action = rebuild(sourceTree, source, tt.getAction()).getModelAction();
                 graph.addTransition(source, action, target, tt);
             }
-            graph.rebuildHistory();
-            graph.rebuildSubsequenceTrie();
+            graph.updateHistory();
             graph.setVerbose(true);
             graph.enableGraphEvents();
             long e = SystemClock.elapsedRealtimeNanos();
@@ -266,6 +333,33 @@ public class Model implements Serializable {
         return this;
     }
 
+    /**
+     * States that may be affected by the naming updates since the last
+     * rebuild: states of the updated trees and states of the updated scopes.
+     */
+    private Collection<State> getStatesToCheck() {
+        Set<Naming> scopes = namingManager.getUpdatedScopes();
+        Collection<State> states;
+        if (scopes == null) {
+            states = graph.getStates();
+        } else {
+            Set<State> candidates = new HashSet<>();
+            for (GUITree tree : namingManager.getUpdatedTrees()) {
+                State state = tree.getCurrentState();
+                if (state != null) {
+                    candidates.add(state);
+                }
+            }
+            for (Naming scope : scopes) {
+                candidates.addAll(graph.getAllStates(scope));
+            }
+            states = candidates;
+            Logger.iformat("> Checking %d of %d states.", candidates.size(), graph.size());
+        }
+        namingManager.clearUpdates();
+        return states;
+    }
+
     public List<GUITreeTransition> getGUITreeTransitions(StateTransition st) {
         return st.getGUITreeTransitions();
     }
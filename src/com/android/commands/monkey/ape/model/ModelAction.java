@@ -184,6 +184,20 @@ public class ModelAction extends Action {
         metTarget = true;
     }
 
+    /**
+     * Puts the attributes of the resolved node into the JSON of an action.
+     */
+    static void putResolvedNode(JSONObject jAction, GUITreeNode node) throws JSONException {
+        Name full = NamerFactory.fullNamer().naming(node);
+        jAction.put("full", full.toXPath());
+        Rect bounds = node.getBoundsInScreen();
+        jAction.put("bounds", ApeRRFormatter.formatRect(bounds));
+        String inputText = node.getInputText();
+        if (inputText != null) {
+            jAction.put("inputText", inputText);
+        }
+    }
+
     public JSONObject toJSONObject() throws JSONException {
         JSONObject jAction = super.toJSONObject();
         if (requireTarget()) {
@@ -192,14 +206,7 @@ public class ModelAction extends Action {
         }
         GUITreeNode node = getResolvedNode();
         if (node != null) {
-            Name full = NamerFactory.fullNamer().naming(node);
-            jAction.put("full", full.toXPath());
-            Rect bounds = node.getBoundsInScreen();
-            jAction.put("bounds", ApeRRFormatter.formatRect(bounds));
-            String inputText = node.getInputText();
-            if (inputText != null) {
-                jAction.put("inputText", inputText);
-            }
+            putResolvedNode(jAction, node);
         }
         GUITreeAction guiAction = this.resolvedGUITreeAction;
         if (guiAction != null) {
@@ -0,0 +1,246 @@
+package com.android.commands.monkey.ape.model;
+
+/**
+ * Versioned binary snapshot of a {@link Model}. All references between records
+ * are int indices into the corresponding section, and strings are shared
+ * through the string table. The layout is
+ *
+ * <pre>
+ * header    : int MAGIC, int VERSION
+ * sections  : STRINGS, NAMES, NAMINGS, STATES, ACTIONS, TRANSITIONS,
+ *             TREE_TRANSITIONS, HISTORY, [GRAPH_OBJECT]
+ * directory : int count, (int tag, int records, long offset, long length) * count
+ * trailer   : long directoryOffset, int MAGIC
+ * </pre>
+ *
+ * A reader locates sections through the directory, so each section can be
+ * decoded on demand and unknown sections are skipped.
+ *
+ * @see ModelSnapshotWriter
+ * @see ModelSnapshotReader
+ */
+public class ModelSnapshot {
+
+    public static final int MAGIC = 0x4150454d; // APEM
+    public static final int VERSION = 1;
+
+    public static final int SECTION_STRINGS = 1;
+    public static final int SECTION_NAMES = 2;
+    public static final int SECTION_NAMINGS = 3;
+    public static final int SECTION_STATES = 4;
+    public static final int SECTION_ACTIONS = 5;
+    public static final int SECTION_TRANSITIONS = 6;
+    public static final int SECTION_TREE_TRANSITIONS = 7;
+    public static final int SECTION_HISTORY = 8;
+    /**
+     * Optional Java serialized {@link Graph}, used by warm starts only.
+     */
+    public static final int SECTION_GRAPH_OBJECT = 9;
+
+    public static final String FILE_NAME = "sataModel.snapshot";
+
+    public static class NameRecord {
+        public final String namer;
+        public final String name;
+        public final String xpath;
+
+        NameRecord(String namer, String name, String xpath) {
+            this.namer = namer;
+            this.name = name;
+            this.xpath = xpath;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static class NamingRecord {
+        public final String name;
+        public final int parent;
+
+        NamingRecord(String name, int parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static class StateRecord {
+        public final int index;
+        public final String graphId;
+        public final String activity;
+        public final int naming;
+        public final int[] widgets;
+        public final int visitedCount;
+        public final int firstVisitTimestamp;
+        public final int lastVisitTimestamp;
+        public final int treeCount;
+        /**
+         * False if the state has been removed from the graph but is still
+         * referred by the action history.
+         */
+        public final boolean inGraph;
+
+        StateRecord(int index, String graphId, String activity, int naming, int[] widgets, int visitedCount,
+                int firstVisitTimestamp, int lastVisitTimestamp, int treeCount, boolean inGraph) {
+            this.index = index;
+            this.graphId = graphId;
+            this.activity = activity;
+            this.naming = naming;
+            this.widgets = widgets;
+            this.visitedCount = visitedCount;
+            this.firstVisitTimestamp = firstVisitTimestamp;
+            this.lastVisitTimestamp = lastVisitTimestamp;
+            this.treeCount = treeCount;
+            this.inGraph = inGraph;
+        }
+
+        public String toString() {
+            return graphId + '@' + activity + "[W=" + widgets.length + "]";
+        }
+    }
+
+    public static class ActionRecord {
+        public final int index;
+        public final int state;
+        public final String type;
+        public final int target;
+        public final String graphId;
+        public final int visitedCount;
+        public final int firstVisitTimestamp;
+        public final int lastVisitTimestamp;
+        public final int priority;
+        public final int throttle;
+        public final boolean enabled;
+        public final boolean valid;
+        public final boolean metTarget;
+        public final String description;
+        public final String json;
+
+        ActionRecord(int index, int state, String type, int target, String graphId, int visitedCount,
+                int firstVisitTimestamp, int lastVisitTimestamp, int priority, int throttle, boolean enabled,
+                boolean valid, boolean metTarget, String description, String json) {
+            this.index = index;
+            this.state = state;
+            this.type = type;
+            this.target = target;
+            this.graphId = graphId;
+            this.visitedCount = visitedCount;
+            this.firstVisitTimestamp = firstVisitTimestamp;
+            this.lastVisitTimestamp = lastVisitTimestamp;
+            this.priority = priority;
+            this.throttle = throttle;
+            this.enabled = enabled;
+            this.valid = valid;
+            this.metTarget = metTarget;
+            this.description = description;
+            this.json = json;
+        }
+
+        public ActionType getType() {
+            return ActionType.valueOf(type);
+        }
+
+        public String toString() {
+            return description;
+        }
+    }
+
+    public static class TransitionRecord {
+        public final int index;
+        public final int source;
+        public final int action;
+        public final int target;
+        public final String graphId;
+        public final String visitType;
+        public final int hittingCount;
+        public final int missingCount;
+        public final double theta;
+        public final int throttle;
+        public final int visitedCount;
+        public final int firstVisitTimestamp;
+        public final int lastVisitTimestamp;
+
+        TransitionRecord(int index, int source, int action, int target, String graphId, String visitType,
+                int hittingCount, int missingCount, double theta, int throttle, int visitedCount,
+                int firstVisitTimestamp, int lastVisitTimestamp) {
+            this.index = index;
+            this.source = source;
+            this.action = action;
+            this.target = target;
+            this.graphId = graphId;
+            this.visitType = visitType;
+            this.hittingCount = hittingCount;
+            this.missingCount = missingCount;
+            this.theta = theta;
+            this.throttle = throttle;
+            this.visitedCount = visitedCount;
+            this.firstVisitTimestamp = firstVisitTimestamp;
+            this.lastVisitTimestamp = lastVisitTimestamp;
+        }
+
+        /**
+         * Same as {@link StateTransition#isStrong()}.
+         */
+        public boolean isStrong() {
+            if (missingCount == 0) {
+                return hittingCount >= 1;
+            }
+            return hittingCount - missingCount >= 2;
+        }
+
+        public String toString() {
+            return String.format("%s@[H(%d),M(%d)] %d =[%d]=> %d", graphId, hittingCount, missingCount, source, action,
+                    target);
+        }
+    }
+
+    public static class TreeTransitionRecord {
+        public final int transition;
+        public final int sourceTree;
+        public final int targetTree;
+        public final int throttle;
+        public final boolean metTargetMethod;
+
+        TreeTransitionRecord(int transition, int sourceTree, int targetTree, int throttle, boolean metTargetMethod) {
+            this.transition = transition;
+            this.sourceTree = sourceTree;
+            this.targetTree = targetTree;
+            this.throttle = throttle;
+            this.metTargetMethod = metTargetMethod;
+        }
+    }
+
+    public static class HistoryRecord {
+        public final long clockTimestamp;
+        public final int agentTimestamp;
+        public final String type;
+        public final int action;
+        public final int state;
+        public final String description;
+        public final String json;
+
+        HistoryRecord(long clockTimestamp, int agentTimestamp, String type, int action, int state,
+                String description, String json) {
+            this.clockTimestamp = clockTimestamp;
+            this.agentTimestamp = agentTimestamp;
+            this.type = type;
+            this.action = action;
+            this.state = state;
+            this.description = description;
+            this.json = json;
+        }
+
+        public ActionType getType() {
+            return ActionType.valueOf(type);
+        }
+
+        public String toString() {
+            return description;
+        }
+    }
+}
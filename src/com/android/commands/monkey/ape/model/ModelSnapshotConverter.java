@@ -0,0 +1,56 @@
+package com.android.commands.monkey.ape.model;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Collections;
+
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * Converts a Java serialized model (sataModel.obj) into a
+ * {@link ModelSnapshot}. The serialized graph is embedded into the snapshot,
+ * so the result can still be used for warm starts.
+ *
+ * <pre>
+ * java com.android.commands.monkey.ape.model.ModelSnapshotConverter sataModel.obj [sataModel.snapshot]
+ * </pre>
+ */
+public class ModelSnapshotConverter {
+
+    public static void convert(File objFile, File snapshotFile) throws IOException, ClassNotFoundException {
+        Object object;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(objFile)))) {
+            object = ois.readObject();
+        }
+        try (ModelSnapshotWriter writer = new ModelSnapshotWriter(new FileOutputStream(snapshotFile))) {
+            if (object instanceof Model) {
+                writer.write((Model) object, true);
+            } else if (object instanceof Graph) {
+                writer.write((Graph) object, Collections.<Model.ActionRecord>emptyList(), true);
+            } else {
+                throw new IOException("Unknown object " + object.getClass() + " in " + objFile);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            Logger.println("Usage: ModelSnapshotConverter <model.obj> [<output>]");
+            return;
+        }
+        File objFile = new File(args[0]);
+        File snapshotFile;
+        if (args.length > 1) {
+            snapshotFile = new File(args[1]);
+        } else {
+            snapshotFile = new File(objFile.getAbsoluteFile().getParentFile(), ModelSnapshot.FILE_NAME);
+        }
+        convert(objFile, snapshotFile);
+        Logger.format("Convert %s (%d bytes) to %s (%d bytes).", objFile, objFile.length(), snapshotFile,
+                snapshotFile.length());
+    }
+}
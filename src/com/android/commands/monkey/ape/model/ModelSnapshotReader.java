@@ -0,0 +1,279 @@
+package com.android.commands.monkey.ape.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.android.commands.monkey.ape.model.ModelSnapshot.ActionRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.HistoryRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.NameRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.NamingRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.StateRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.TransitionRecord;
+import com.android.commands.monkey.ape.model.ModelSnapshot.TreeTransitionRecord;
+
+/**
+ * Reads a {@link ModelSnapshot}. Opening a snapshot only reads the header and
+ * the section directory; a section is decoded the first time it is asked for,
+ * together with the string table if it needs one.
+ */
+public class ModelSnapshotReader implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final int version;
+    private final Map<Integer, long[]> sections = new HashMap<>(); // records, offset, length
+
+    private String[] strings;
+    private NameRecord[] names;
+    private NamingRecord[] namings;
+    private StateRecord[] states;
+    private ActionRecord[] actions;
+    private TransitionRecord[] transitions;
+    private TreeTransitionRecord[] treeTransitions;
+    private HistoryRecord[] history;
+
+    public static boolean isSnapshot(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == ModelSnapshot.MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public ModelSnapshotReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            if (this.file.readInt() != ModelSnapshot.MAGIC) {
+                throw new IOException("Not a model snapshot: " + file);
+            }
+            version = this.file.readInt();
+            if (version > ModelSnapshot.VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " of " + file);
+            }
+            long length = this.file.length();
+            this.file.seek(length - 12);
+            long directoryOffset = this.file.readLong();
+            if (this.file.readInt() != ModelSnapshot.MAGIC) {
+                throw new IOException("Truncated model snapshot: " + file);
+            }
+            this.file.seek(directoryOffset);
+            int count = this.file.readInt();
+            for (int i = 0; i < count; i++) {
+                int tag = this.file.readInt();
+                int records = this.file.readInt();
+                long offset = this.file.readLong();
+                long size = this.file.readLong();
+                sections.put(tag, new long[] { records, offset, size });
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean hasSection(int tag) {
+        return sections.containsKey(tag);
+    }
+
+    /**
+     * @return the number of records of the section without decoding it, or -1
+     *         if the section does not exist
+     */
+    public int getRecordCount(int tag) {
+        long[] section = sections.get(tag);
+        return section == null ? -1 : (int) section[0];
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private synchronized DataInputStream openSection(int tag) throws IOException {
+        long[] section = sections.get(tag);
+        if (section == null) {
+            throw new IOException("Missing section " + tag);
+        }
+        byte[] data = new byte[(int) section[2]];
+        file.seek(section[1]);
+        file.readFully(data);
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private String stringAt(int index) throws IOException {
+        return index == -1 ? null : getStrings()[index];
+    }
+
+    public synchronized String[] getStrings() throws IOException {
+        if (strings == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_STRINGS);
+            String[] result = new String[getRecordCount(ModelSnapshot.SECTION_STRINGS)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = readString(in);
+            }
+            strings = result;
+        }
+        return strings;
+    }
+
+    public synchronized NameRecord[] getNames() throws IOException {
+        if (names == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_NAMES);
+            NameRecord[] result = new NameRecord[getRecordCount(ModelSnapshot.SECTION_NAMES)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new NameRecord(stringAt(in.readInt()), stringAt(in.readInt()), stringAt(in.readInt()));
+            }
+            names = result;
+        }
+        return names;
+    }
+
+    public synchronized NamingRecord[] getNamings() throws IOException {
+        if (namings == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_NAMINGS);
+            NamingRecord[] result = new NamingRecord[getRecordCount(ModelSnapshot.SECTION_NAMINGS)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new NamingRecord(stringAt(in.readInt()), in.readInt());
+            }
+            namings = result;
+        }
+        return namings;
+    }
+
+    public synchronized StateRecord[] getStates() throws IOException {
+        if (states == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_STATES);
+            StateRecord[] result = new StateRecord[getRecordCount(ModelSnapshot.SECTION_STATES)];
+            for (int i = 0; i < result.length; i++) {
+                String graphId = stringAt(in.readInt());
+                String activity = stringAt(in.readInt());
+                int naming = in.readInt();
+                int[] widgets = new int[in.readInt()];
+                for (int j = 0; j < widgets.length; j++) {
+                    widgets[j] = in.readInt();
+                }
+                result[i] = new StateRecord(i, graphId, activity, naming, widgets, in.readInt(), in.readInt(),
+                        in.readInt(), in.readInt(), in.readBoolean());
+            }
+            states = result;
+        }
+        return states;
+    }
+
+    public synchronized ActionRecord[] getActions() throws IOException {
+        if (actions == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_ACTIONS);
+            ActionRecord[] result = new ActionRecord[getRecordCount(ModelSnapshot.SECTION_ACTIONS)];
+            for (int i = 0; i < result.length; i++) {
+                int state = in.readInt();
+                String type = stringAt(in.readInt());
+                int target = in.readInt();
+                String graphId = stringAt(in.readInt());
+                int visitedCount = in.readInt();
+                int firstVisit = in.readInt();
+                int lastVisit = in.readInt();
+                int priority = in.readInt();
+                int throttle = in.readInt();
+                boolean enabled = in.readBoolean();
+                boolean valid = in.readBoolean();
+                boolean metTarget = in.readBoolean();
+                String description = readString(in);
+                String json = readString(in);
+                result[i] = new ActionRecord(i, state, type, target, graphId, visitedCount, firstVisit, lastVisit,
+                        priority, throttle, enabled, valid, metTarget, description, json);
+            }
+            actions = result;
+        }
+        return actions;
+    }
+
+    public synchronized TransitionRecord[] getTransitions() throws IOException {
+        if (transitions == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_TRANSITIONS);
+            TransitionRecord[] result = new TransitionRecord[getRecordCount(ModelSnapshot.SECTION_TRANSITIONS)];
+            for (int i = 0; i < result.length; i++) {
+                int source = in.readInt();
+                int action = in.readInt();
+                int target = in.readInt();
+                String graphId = stringAt(in.readInt());
+                String visitType = stringAt(in.readInt());
+                int hittingCount = in.readInt();
+                int missingCount = in.readInt();
+                double theta = in.readDouble();
+                int throttle = in.readInt();
+                result[i] = new TransitionRecord(i, source, action, target, graphId, visitType, hittingCount,
+                        missingCount, theta, throttle, in.readInt(), in.readInt(), in.readInt());
+            }
+            transitions = result;
+        }
+        return transitions;
+    }
+
+    public synchronized TreeTransitionRecord[] getTreeTransitions() throws IOException {
+        if (treeTransitions == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_TREE_TRANSITIONS);
+            TreeTransitionRecord[] result = new TreeTransitionRecord[getRecordCount(
+                    ModelSnapshot.SECTION_TREE_TRANSITIONS)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new TreeTransitionRecord(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        in.readBoolean());
+            }
+            treeTransitions = result;
+        }
+        return treeTransitions;
+    }
+
+    public synchronized HistoryRecord[] getHistory() throws IOException {
+        if (history == null) {
+            DataInputStream in = openSection(ModelSnapshot.SECTION_HISTORY);
+            HistoryRecord[] result = new HistoryRecord[getRecordCount(ModelSnapshot.SECTION_HISTORY)];
+            for (int i = 0; i < result.length; i++) {
+                long clockTimestamp = in.readLong();
+                int agentTimestamp = in.readInt();
+                String type = stringAt(in.readInt());
+                int action = in.readInt();
+                int state = in.readInt();
+                String description = readString(in);
+                String json = readString(in);
+                result[i] = new HistoryRecord(clockTimestamp, agentTimestamp, type, action, state, description, json);
+            }
+            history = result;
+        }
+        return history;
+    }
+
+    /**
+     * @return the embedded graph, or null if the snapshot does not have one.
+     */
+    public Graph readGraph() throws IOException, ClassNotFoundException {
+        if (!hasSection(ModelSnapshot.SECTION_GRAPH_OBJECT)) {
+            return null;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(openSection(ModelSnapshot.SECTION_GRAPH_OBJECT))) {
+            return (Graph) ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.android.commands.monkey.ape.model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+
+import com.android.commands.monkey.ape.model.Model.ActionRecord;
+import com.android.commands.monkey.ape.naming.Name;
+import com.android.commands.monkey.ape.naming.Naming;
+import com.android.commands.monkey.ape.tree.GUITreeAction;
+import com.android.commands.monkey.ape.tree.GUITreeTransition;
+
+/**
+ * Streams a {@link Model} into the {@link ModelSnapshot} format. Elements are
+ * numbered in a first pass, then each section is written straight to the
+ * stream; only the index maps are kept in memory.
+ */
+public class ModelSnapshotWriter implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    static class UnclosableOutputStream extends FilterOutputStream {
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        public void close() throws IOException {
+            flush(); // keep the snapshot stream open
+        }
+    }
+
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private final List<long[]> directory = new ArrayList<>(); // tag, records, offset, length
+    private long sectionOffset = -1;
+    private int sectionTag;
+
+    private final Map<String, Integer> stringIndex = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Map<Name, Integer> nameIndex = new IdentityHashMap<>();
+    private final List<Name> names = new ArrayList<>();
+    private final Map<Naming, Integer> namingIndex = new IdentityHashMap<>();
+    private final List<Naming> namings = new ArrayList<>();
+    private final Map<State, Integer> stateIndex = new IdentityHashMap<>();
+    private final List<State> states = new ArrayList<>();
+    private final Map<ModelAction, Integer> actionIndex = new IdentityHashMap<>();
+    private final List<ModelAction> actions = new ArrayList<>();
+    private final Map<StateTransition, Integer> transitionIndex = new IdentityHashMap<>();
+    private final List<StateTransition> transitions = new ArrayList<>();
+
+    public ModelSnapshotWriter(OutputStream os) throws IOException {
+        this.counter = new CountingOutputStream(new BufferedOutputStream(os, 65536));
+        this.out = new DataOutputStream(counter);
+        out.writeInt(ModelSnapshot.MAGIC);
+        out.writeInt(ModelSnapshot.VERSION);
+    }
+
+    public void write(Model model, boolean embedGraph) throws IOException {
+        write(model.getGraph(), model.getActionHistory(), embedGraph);
+    }
+
+    public void write(Graph graph, List<ActionRecord> history, boolean embedGraph) throws IOException {
+        index(graph, history);
+        writeStrings();
+        writeNames();
+        writeNamings();
+        writeStates(graph);
+        writeActions();
+        writeTransitions();
+        writeTreeTransitions(graph.getTreeHistory());
+        writeHistory(history);
+        if (embedGraph) {
+            beginSection(ModelSnapshot.SECTION_GRAPH_OBJECT);
+            ObjectOutputStream oos = new ObjectOutputStream(new UnclosableOutputStream(out));
+            oos.writeObject(graph);
+            oos.close();
+            endSection(1);
+        }
+    }
+
+    /**
+     * Write the section directory and close the stream.
+     */
+    public void close() throws IOException {
+        if (sectionOffset != -1) {
+            throw new IllegalStateException("Section " + sectionTag + " is not finished.");
+        }
+        long directoryOffset = counter.count;
+        out.writeInt(directory.size());
+        for (long[] entry : directory) {
+            out.writeInt((int) entry[0]);
+            out.writeInt((int) entry[1]);
+            out.writeLong(entry[2]);
+            out.writeLong(entry[3]);
+        }
+        out.writeLong(directoryOffset);
+        out.writeInt(ModelSnapshot.MAGIC);
+        out.close();
+    }
+
+    private void index(Graph graph, List<ActionRecord> history) {
+        for (ActionType type : ActionType.values()) {
+            internString(type.toString());
+        }
+        for (StateTransitionVisitType type : StateTransitionVisitType.values()) {
+            internString(type.toString());
+        }
+        for (State state : graph.getStates()) {
+            indexState(state);
+        }
+        for (ActionRecord record : history) {
+            if (record.modelAction.isModelAction()) {
+                indexState(((ModelAction) record.modelAction).getState());
+            }
+        }
+        for (StateTransition edge : graph.getStateTransitions()) {
+            indexState(edge.getSource());
+            indexState(edge.getTarget());
+            transitionIndex.put(edge, transitions.size());
+            transitions.add(edge);
+            internString(edge.getGraphId());
+        }
+        // Check every reference before any section is written.
+        for (State state : states) {
+            for (Name widget : state.getWidgets()) {
+                checkIndexed(nameIndex, widget, "Widget", state);
+            }
+        }
+        for (ModelAction action : actions) {
+            checkIndexed(stateIndex, action.getState(), "State of action", action);
+        }
+        for (StateTransition edge : transitions) {
+            checkIndexed(actionIndex, edge.getAction(), "Action of transition", edge);
+        }
+    }
+
+    private static <T> void checkIndexed(Map<T, Integer> index, T key, String what, Object owner) {
+        if (key == null || !index.containsKey(key)) {
+            throw new IllegalStateException(what + " " + owner + " is not in the model: " + key);
+        }
+    }
+
+    private void indexState(State state) {
+        if (state == null || stateIndex.containsKey(state)) {
+            return;
+        }
+        stateIndex.put(state, states.size());
+        states.add(state);
+        internString(state.getGraphId());
+        internString(state.getActivity());
+        indexNaming(state.getCurrentNaming());
+        for (Name widget : state.getWidgets()) {
+            indexName(widget);
+        }
+        for (ModelAction action : state.getActions()) {
+            actionIndex.put(action, actions.size());
+            actions.add(action);
+            internString(action.getGraphId());
+            indexName(action.getTarget());
+        }
+    }
+
+    private int indexNaming(Naming naming) {
+        if (naming == null) {
+            return -1;
+        }
+        Integer index = namingIndex.get(naming);
+        if (index != null) {
+            return index;
+        }
+        indexNaming(naming.getParent()); // parents first
+        index = namings.size();
+        namingIndex.put(naming, index);
+        namings.add(naming);
+        internString(naming.toString());
+        return index;
+    }
+
+    private int indexName(Name name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer index = nameIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+        index = names.size();
+        nameIndex.put(name, index);
+        names.add(name);
+        internString(name.getNamer().toString());
+        internString(name.toString());
+        internString(name.toXPath());
+        return index;
+    }
+
+    private int internString(String s) {
+        if (s == null) {
+            return -1;
+        }
+        Integer index = stringIndex.get(s);
+        if (index == null) {
+            index = strings.size();
+            stringIndex.put(s, index);
+            strings.add(s);
+        }
+        return index;
+    }
+
+    private int stringRef(String s) {
+        if (s == null) {
+            return -1;
+        }
+        Integer index = stringIndex.get(s);
+        if (index == null) {
+            throw new IllegalStateException("String is not indexed: " + s);
+        }
+        return index;
+    }
+
+    private static <T> int ref(Map<T, Integer> index, T key) {
+        if (key == null) {
+            return -1;
+        }
+        Integer value = index.get(key);
+        return value == null ? -1 : value;
+    }
+
+    private void beginSection(int tag) throws IOException {
+        if (sectionOffset != -1) {
+            throw new IllegalStateException("Section " + sectionTag + " is not finished.");
+        }
+        sectionTag = tag;
+        sectionOffset = counter.count;
+    }
+
+    private void endSection(int records) throws IOException {
+        out.flush();
+        directory.add(new long[] { sectionTag, records, sectionOffset, counter.count - sectionOffset });
+        sectionOffset = -1;
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVisits(GraphElement element) throws IOException {
+        out.writeInt(element.getVisitedCount());
+        out.writeInt(element.getFirstVisitedTimestamp());
+        out.writeInt(element.getLastVisitedTimestamp());
+    }
+
+    private void writeStrings() throws IOException {
+        beginSection(ModelSnapshot.SECTION_STRINGS);
+        for (String s : strings) {
+            writeString(s);
+        }
+        endSection(strings.size());
+    }
+
+    private void writeNames() throws IOException {
+        beginSection(ModelSnapshot.SECTION_NAMES);
+        for (Name name : names) {
+            out.writeInt(stringRef(name.getNamer().toString()));
+            out.writeInt(stringRef(name.toString()));
+            out.writeInt(stringRef(name.toXPath()));
+        }
+        endSection(names.size());
+    }
+
+    private void writeNamings() throws IOException {
+        beginSection(ModelSnapshot.SECTION_NAMINGS);
+        for (Naming naming : namings) {
+            out.writeInt(stringRef(naming.toString()));
+            out.writeInt(ref(namingIndex, naming.getParent()));
+        }
+        endSection(namings.size());
+    }
+
+    private void writeStates(Graph graph) throws IOException {
+        beginSection(ModelSnapshot.SECTION_STATES);
+        for (State state : states) {
+            out.writeInt(stringRef(state.getGraphId()));
+            out.writeInt(stringRef(state.getActivity()));
+            out.writeInt(ref(namingIndex, state.getCurrentNaming()));
+            Name[] widgets = state.getWidgets();
+            out.writeInt(widgets.length);
+            for (Name widget : widgets) {
+                out.writeInt(ref(nameIndex, widget));
+            }
+            writeVisits(state);
+            out.writeInt(state.getGUITrees().size());
+            out.writeBoolean(graph.contains(state));
+        }
+        endSection(states.size());
+    }
+
+    private void writeActions() throws IOException {
+        beginSection(ModelSnapshot.SECTION_ACTIONS);
+        for (ModelAction action : actions) {
+            out.writeInt(ref(stateIndex, action.getState()));
+            out.writeInt(stringRef(action.getType().toString()));
+            out.writeInt(ref(nameIndex, action.getTarget()));
+            out.writeInt(stringRef(action.getGraphId()));
+            writeVisits(action);
+            out.writeInt(action.getPriority());
+            out.writeInt(action.getThrottle());
+            out.writeBoolean(action.isEnabled());
+            out.writeBoolean(action.isValid());
+            out.writeBoolean(action.getMetTarget());
+            writeString(action.toString());
+            writeString(toJSONString(action));
+        }
+        endSection(actions.size());
+    }
+
+    private void writeTransitions() throws IOException {
+        beginSection(ModelSnapshot.SECTION_TRANSITIONS);
+        for (StateTransition edge : transitions) {
+            out.writeInt(ref(stateIndex, edge.getSource()));
+            out.writeInt(ref(actionIndex, edge.getAction()));
+            out.writeInt(ref(stateIndex, edge.getTarget()));
+            out.writeInt(stringRef(edge.getGraphId()));
+            out.writeInt(edge.getType() == null ? -1 : stringRef(edge.getType().toString()));
+            out.writeInt(edge.getHittingCount());
+            out.writeInt(edge.getMissingCount());
+            out.writeDouble(edge.getTheta());
+            out.writeInt(edge.getThrottle());
+            writeVisits(edge);
+        }
+        endSection(transitions.size());
+    }
+
+    private void writeTreeTransitions(Collection<GUITreeTransition> treeTransitions) throws IOException {
+        beginSection(ModelSnapshot.SECTION_TREE_TRANSITIONS);
+        for (GUITreeTransition tt : treeTransitions) {
+            out.writeInt(ref(transitionIndex, tt.getCurrentStateTransition()));
+            out.writeInt(tt.getSource().getTimestamp());
+            out.writeInt(tt.getTarget().getTimestamp());
+            GUITreeAction action = tt.getAction();
+            out.writeInt(action == null ? 0 : action.getThrotlle());
+            out.writeBoolean(tt.hasMetTargetMethod());
+        }
+        endSection(treeTransitions.size());
+    }
+
+    private void writeHistory(List<ActionRecord> history) throws IOException {
+        beginSection(ModelSnapshot.SECTION_HISTORY);
+        for (ActionRecord record : history) {
+            Action action = record.modelAction;
+            String json = toJSONString(record); // resolves the action
+            int state = -1;
+            if (action.isModelAction()) {
+                state = ref(stateIndex, ((ModelAction) action).getState());
+            }
+            out.writeLong(record.clockTimestamp);
+            out.writeInt(record.agentTimestamp);
+            out.writeInt(stringRef(action.getType().toString()));
+            out.writeInt(action.isModelAction() ? ref(actionIndex, (ModelAction) action) : -1);
+            out.writeInt(state);
+            writeString(action.toString());
+            writeString(json);
+        }
+        endSection(history.size());
+    }
+
+    private static String toJSONString(Action action) {
+        try {
+            return action.toJSONObject().toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static String toJSONString(ActionRecord record) {
+        try {
+            return record.toJSONObject().toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+package com.android.commands.monkey.ape.model;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.android.commands.monkey.ape.ActionFilter;
+import com.android.commands.monkey.ape.BaseActionFilter;
+import com.android.commands.monkey.ape.utils.Config;
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * Shortest-path trees toward recently requested targets of
+ * {@link Graph#moveToState}, as {@link DistanceField}s to a single state. A
+ * tree is repaired where a transition of it is weakened, and rebuilt when
+ * the graph drops its index, so moving to the same target again follows one
+ * next hop per step.
+ */
+class PathCache {
+
+    static final ActionFilter MOVE_ACTIONS = ActionFilter.ENABLED_VALID;
+
+    static final ActionFilter MOVE_FORWARD_ACTIONS = new BaseActionFilter() {
+
+        @Override
+        public boolean include(ModelAction action) {
+            return !action.isBack() && ActionFilter.ENABLED_VALID.include(action);
+        }
+    };
+
+    static class Key {
+        final State target;
+        final boolean includeBack;
+
+        Key(State target, boolean includeBack) {
+            this.target = target;
+            this.includeBack = includeBack;
+        }
+
+        @Override
+        public int hashCode() {
+            return target.hashCode() * 31 + (includeBack ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return includeBack == other.includeBack && target.equals(other.target);
+        }
+    }
+
+    private final Graph graph;
+    private final Map<Key, DistanceField> fields;
+
+    private int hitCount;
+    private int missCount;
+    // of evicted fields
+    private int evictedRebuildCount;
+    private long evictedRebuildTime;
+
+    PathCache(Graph graph) {
+        this.graph = graph;
+        this.fields = new LinkedHashMap<Key, DistanceField>(Config.pathCacheSize * 2, 0.75F, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, DistanceField> eldest) {
+                if (size() > Config.pathCacheSize) {
+                    evictedRebuildCount += eldest.getValue().getRebuildCount();
+                    evictedRebuildTime += eldest.getValue().getRebuildTime();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    DistanceField get(State target, boolean includeBack) {
+        Key key = new Key(target, includeBack);
+        DistanceField field = fields.get(key);
+        if (field != null) {
+            hitCount++;
+            return field;
+        }
+        missCount++;
+        field = new DistanceField(graph, target, includeBack ? MOVE_ACTIONS : MOVE_FORWARD_ACTIONS);
+        fields.put(key, field);
+        return field;
+    }
+
+    Collection<DistanceField> getFields() {
+        return fields.values();
+    }
+
+    void printStatistics() {
+        int rebuildCount = evictedRebuildCount;
+        long rebuildTime = evictedRebuildTime;
+        int repairCount = 0;
+        for (DistanceField field : fields.values()) {
+            rebuildCount += field.getRebuildCount();
+            rebuildTime += field.getRebuildTime();
+            repairCount += field.getRepairCount();
+        }
+        int total = hitCount + missCount;
+        Logger.iformat("Path cache: size=%d, hit=%d, miss=%d, ratio=%.3f, rebuilds=%d (%d ms), repairs=%d",
+                fields.size(), hitCount, missCount, total == 0 ? 0D : ((double) hitCount) / total, rebuildCount,
+                TimeUnit.NANOSECONDS.toMillis(rebuildTime), repairCount);
+    }
+}
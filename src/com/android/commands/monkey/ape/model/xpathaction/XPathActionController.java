@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Random;
 
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 
 import org.w3c.dom.Document;
@@ -21,6 +22,7 @@ import com.android.commands.monkey.ape.tree.GUITree;
 import com.android.commands.monkey.ape.tree.GUITreeBuilder;
 import com.android.commands.monkey.ape.tree.GUITreeNode;
 import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.XPathBuilder;
 
 /**
  * This is an experimental feature.
@@ -75,7 +77,8 @@ public class XPathActionController {
         }
         try {
             Logger.wprintln(current.getExprStr());
-            NodeList nodes = (NodeList) current.getExpr().evaluate(document, XPathConstants.NODESET);
+            XPathExpression expr = XPathBuilder.getExpression(current.getExprStr());
+            NodeList nodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
             if (nodes.getLength() == 0) {
                 Logger.println("No matching nodes");
                 return null;
@@ -56,7 +56,7 @@ public class XPathActionReader {
     private XPathAction build(JSONObject json) {
         try {
             String exprStr = json.getString("xpath");
-            XPathExpression expr = XPathBuilder.compile(exprStr);
+            XPathExpression expr = XPathBuilder.getExpression(exprStr);
             XPathAction xpathlet = new XPathAction(exprStr, expr);
             if (json.has("action")) {
                 ActionType actionTypes = parseActionType(json.getString("action"));
@@ -47,7 +47,7 @@ public class XPathletReader {
     private XPathlet build(JSONObject json) {
         try {
             String exprStr = json.getString("xpath");
-            XPathExpression expr = XPathBuilder.compile(exprStr);
+            XPathExpression expr = XPathBuilder.getExpression(exprStr);
             XPathlet xpathlet = new XPathlet(exprStr, expr);
             if (json.has("actions")) {
                 ActionType[] actionTypes = parseActionTypes(json.getJSONArray("actions"));
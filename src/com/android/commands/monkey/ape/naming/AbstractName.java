@@ -37,6 +37,24 @@ public abstract class AbstractName implements Name, Serializable {
         return this.order;
     }
 
+    /**
+     * Hash of the components of this name. Together with
+     * {@link #sameComponents(AbstractName)}, it keys {@link NameManager}.
+     * Subclasses hash strings and the orders of interned names rather than
+     * building the string of the name.
+     */
+    protected int componentHashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * @param other
+     *            a name of the same class and namer
+     */
+    protected boolean sameComponents(AbstractName other) {
+        return toString().equals(other.toString());
+    }
+
     public String toXPath() {
         if (cachedXpathString == null) {
             StringBuilder sb = new StringBuilder();
@@ -1,5 +1,7 @@
 package com.android.commands.monkey.ape.naming;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.EnumSet;
 
@@ -10,16 +12,27 @@ public abstract class AbstractNamer implements Namer, Serializable {
      */
     private static final long serialVersionUID = 1L;
     protected EnumSet<NamerType> namerType;
+    private transient int typeMask;
 
     AbstractNamer(EnumSet<NamerType> namerType) {
         this.namerType = namerType;
+        this.typeMask = NamerType.toMask(namerType);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.typeMask = NamerType.toMask(namerType);
     }
 
     public EnumSet<NamerType> getNamerTypes() {
         return namerType;
     }
 
+    public int getTypeMask() {
+        return typeMask;
+    }
+
     public boolean refinesTo(Namer namer) {
-        return this.namerType.containsAll(namer.getNamerTypes());
+        return NamerLattice.refinesTo(typeMask, namer.getTypeMask());
     }
 }
@@ -27,6 +27,10 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
     protected final NamingFactory namingFactory;
     protected Map<GUITree, Naming> treeToNaming = new HashMap<>();
     protected int version;
+
+    private transient Set<GUITree> updatedTrees;
+    private transient Set<Naming> updatedScopes;
+    private transient boolean allUpdated;
     
     private static boolean debug = false;
 
@@ -48,6 +52,49 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
 
     public void release(GUITree removed) {
         this.treeToNaming.remove(removed);
+        if (updatedTrees != null) {
+            updatedTrees.remove(removed);
+        }
+    }
+
+    public Set<GUITree> getUpdatedTrees() {
+        if (updatedTrees == null) {
+            updatedTrees = new HashSet<>();
+        }
+        return updatedTrees;
+    }
+
+    public Set<Naming> getUpdatedScopes() {
+        if (allUpdated) {
+            return null;
+        }
+        if (updatedScopes == null) {
+            updatedScopes = new HashSet<>();
+        }
+        return updatedScopes;
+    }
+
+    public void clearUpdates() {
+        updatedTrees = null;
+        updatedScopes = null;
+        allUpdated = false;
+    }
+
+    /**
+     * States of the given naming and its descendants may have been changed.
+     */
+    protected void markUpdated(Naming scope) {
+        if (!allUpdated) {
+            getUpdatedScopes().add(scope);
+        }
+    }
+
+    /**
+     * Any state may have been changed.
+     */
+    protected void markAllUpdated() {
+        allUpdated = true;
+        updatedScopes = null;
     }
 
     public final Model stateAbstraction(Model model, Naming naming, State target, Naming parentNaming, Set<State> states) {
@@ -82,6 +129,8 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
         try {
             AbstractNamingManager that = (AbstractNamingManager) super.clone();
             that.treeToNaming = new HashMap<>(this.treeToNaming);
+            that.updatedTrees = this.updatedTrees == null ? null : new HashSet<>(this.updatedTrees);
+            that.updatedScopes = this.updatedScopes == null ? null : new HashSet<>(this.updatedScopes);
             return that;
         } catch (CloneNotSupportedException e) {
             e.printStackTrace();
@@ -98,7 +147,7 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
     public final Naming getNaming(GUITree tree) {
         Naming naming = treeToNaming.get(tree);
         if (naming == null) {
-            naming = this.getNaming(tree, tree.getActivityName(), tree.getDocument());
+            naming = this.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
             if (naming == null) {
                 throw new NullPointerException("Cannot get naming for raw GUI tree.");
             }
@@ -111,15 +160,16 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
     public final void updateNaming(GUITree tree, Naming newOne) {
         this.version++;
         Naming existing = this.treeToNaming.put(tree, newOne);
+        getUpdatedTrees().add(tree);
         if (debug) {
             if (existing != null && existing != tree.getCurrentNaming()) {
                 Logger.wformat("Existing: %s, current: %s, new: %s", existing, tree.getCurrentNaming(), newOne);
                 throw new IllegalStateException("Inconsistent naming update.");
             }
         }
-        updateNaming(tree, tree.getActivityName(), tree.getDocument(), tree.getCurrentNaming(), newOne);
+        updateNaming(tree, tree.getActivityName(), tree.getLoadedDocument(), tree.getCurrentNaming(), newOne);
         if (debug) {
-            if (newOne != this.getNaming(tree, tree.getActivityName(), tree.getDocument())) {
+            if (newOne != this.getNaming(tree, tree.getActivityName(), tree.getLoadedDocument())) {
                 throw new IllegalStateException("Inconsistent naming update.");
             }
         }
@@ -145,7 +195,7 @@ public abstract class AbstractNamingManager implements NamingManager, Cloneable
             count++;
             Naming cached = this.treeToNaming.get(tree);
             Naming current = tree.getCurrentNaming();
-            Naming check = getNaming(tree, tree.getActivityName(), tree.getDocument());
+            Naming check = getNaming(tree, tree.getActivityName(), tree.getLoadedDocument());
             if (cached == null) {
                 this.treeToNaming.put(tree, check);
             } else if (cached != check) {
@@ -86,6 +86,17 @@ public class ActionPatchNamer extends AbstractNamer implements Serializable {
             return baseName.toString() + ActionPatchNamer.patches[patch];
         }
 
+        @Override
+        protected int componentHashCode() {
+            return (NameManager.order(baseName) * 31 + patch) * 31 + scrollType.ordinal();
+        }
+
+        @Override
+        protected boolean sameComponents(AbstractName other) {
+            ActionPatchName that = (ActionPatchName) other;
+            return baseName == that.baseName && patch == that.patch && scrollType == that.scrollType;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -50,7 +50,9 @@ public class ActivityNamingManager extends AbstractNamingManager {
         }
         // Naming existing = activityToNamingManager.get(activityName);
         // if (checkReplace(existing, oldOne, newOne)) {
-        activityToNamingManager.put(activityName, newOne);
+        if (activityToNamingManager.put(activityName, newOne) != newOne) {
+            markAllUpdated(); // every tree of the activity shares the naming
+        }
         // }
     }
 
@@ -1,13 +1,19 @@
 package com.android.commands.monkey.ape.naming;
 
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import com.android.commands.monkey.ape.tree.GUITreeNode;
 
 public class AncestorNamer extends AbstractNamer {
 
+    /**
+     * The local names of a node and its ancestors, as the name of the parent
+     * followed by the local name of the node. The name of the parent is
+     * interned, so a name is derived from the name of its parent at once.
+     */
     class AncestorName extends AbstractName {
 
         /**
@@ -15,11 +21,13 @@ public class AncestorNamer extends AbstractNamer {
          */
         private static final long serialVersionUID = 1L;
         int hashCode;
-        private Name[] names;
+        private final AncestorName parentName; // null for the root
+        private final Name localName;
 
-        public AncestorName (Name... names) {
+        public AncestorName (AncestorName parentName, Name localName) {
             super();
-            this.names = names;
+            this.parentName = parentName;
+            this.localName = localName;
         }
 
         @Override
@@ -27,12 +35,25 @@ public class AncestorNamer extends AbstractNamer {
             return AncestorNamer.this;
         }
 
+        @Override
+        protected int componentHashCode() {
+            int result = parentName == null ? -1 : NameManager.order(parentName);
+            return 31 * result + NameManager.order(localName);
+        }
+
+        @Override
+        protected boolean sameComponents(AbstractName other) {
+            AncestorName that = (AncestorName) other;
+            return parentName == that.parentName && localName == that.localName;
+        }
+
         @Override
         public int hashCode() {
             if (hashCode == 0) {
                 final int prime = 31;
                 int result = 1;
-                result = prime * result + Arrays.hashCode(names);
+                result = prime * result + ((parentName == null) ? 0 : parentName.hashCode());
+                result = prime * result + localName.hashCode();
                 hashCode = result;
             }
             return hashCode;
@@ -47,31 +68,40 @@ public class AncestorNamer extends AbstractNamer {
             if (getClass() != obj.getClass())
                 return false;
             AncestorName other = (AncestorName) obj;
-            if (!Arrays.equals(names, other.names))
+            if (parentName == null) {
+                if (other.parentName != null)
+                    return false;
+            } else if (!parentName.equals(other.parentName))
                 return false;
-            return true;
+            return localName.equals(other.localName);
         }
 
         public String toString() {
             StringBuilder sb = new StringBuilder();
-            for (Name name : names) {
-                sb.append(NamerFactory.NODE_SEP);
-                sb.append(name);
-            }
+            toString(sb);
             return sb.toString();
         }
 
+        private void toString(StringBuilder sb) {
+            if (parentName != null) {
+                parentName.toString(sb);
+            }
+            sb.append(NamerFactory.NODE_SEP);
+            sb.append(localName);
+        }
+
         @Override
         public Name getLocalName() {
-            return names[names.length - 1].getLocalName();
+            return localName.getLocalName();
         }
 
         @Override
         public void toXPath(StringBuilder sb) {
-            for (Name localName : names) {
-                sb.append("/*");
-                localName.appendXPathLocalProperties(sb);
+            if (parentName != null) {
+                parentName.toXPath(sb);
             }
+            sb.append("/*");
+            localName.appendXPathLocalProperties(sb);
         }
 
         @Override
@@ -86,42 +116,116 @@ public class AncestorNamer extends AbstractNamer {
      */
     private static final long serialVersionUID = 1L;
 
+    private static int slotCount;
+
+    // Names of ancestors by the namers of the running naming, per thread as
+    // temp names of nodes are.
+    private static final ThreadLocal<Map<AncestorNamer, Map<GUITreeNode, AncestorName>>> tempParentNames = new ThreadLocal<Map<AncestorNamer, Map<GUITreeNode, AncestorName>>>() {
+        protected Map<AncestorNamer, Map<GUITreeNode, AncestorName>> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+
     Namer namer;
+    private transient int slot; // of this run, as restored namers share none
+    private transient Namer localNamer;
 
     public AncestorNamer(Namer namer) {
         super(NamerType.add(namer.getNamerTypes(), NamerType.ANCESTOR));
         this.namer = namer;
+        this.slot = nextSlot();
+    }
+
+    private static synchronized int nextSlot() {
+        return slotCount++;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.slot = nextSlot();
+    }
+
+    private Namer getLocalNamer() {
+        Namer local = localNamer;
+        if (local == null) {
+            localNamer = local = NamerFactory.getLocalNamer(namer);
+        }
+        return local;
     }
 
     @Override
     public Name naming(GUITreeNode node) {
+        Namer localNamer = getLocalNamer();
         GUITreeNode parentNode = node.getParent();
-        Namer localNamer = NamerFactory.getLocalNamer(namer);
-        if (parentNode != null) {
-            LinkedList<Name> names = new LinkedList<>();
-            boolean useParent = namer.getNamerTypes().contains(NamerType.PARENT);
-            names.add(localNamer.naming(node));
-            if (useParent) {
-                while (parentNode != null) {
-                    Namer parentNamer = NamerFactory.getLocalNamer(getNodeNamer(parentNode));
-                    names.add(parentNamer.naming(parentNode));
-                    parentNode = parentNode.getParent();
-                }
+        if (parentNode == null) {
+            return getRootName(node, localNamer);
+        }
+        AncestorName parentName;
+        if (namer.getNamerTypes().contains(NamerType.PARENT)) {
+            parentName = getTempName(parentNode);
+        } else {
+            parentName = getName(parentNode, localNamer);
+        }
+        return NameManager.getCachedName(new AncestorName(parentName, localNamer.naming(node)));
+    }
+
+    private AncestorName getRootName(GUITreeNode node, Namer localNamer) {
+        return (AncestorName) NameManager.getCachedName(new AncestorName(null, localNamer.naming(node)));
+    }
+
+    /**
+     * Without parent namers, names depend on the tree only, and are memoized
+     * in the nodes. The name of a node is derived from the memoized name of
+     * its parent, so a tree is named top-down once by a namer.
+     */
+    private AncestorName getName(GUITreeNode node, Namer localNamer) {
+        AncestorName name = (AncestorName) node.getMemoizedName(slot);
+        if (name == null) {
+            GUITreeNode parentNode = node.getParent();
+            if (parentNode == null) {
+                name = getRootName(node, localNamer);
             } else {
-                while (parentNode != null) {
-                    names.add(localNamer.naming(parentNode));
-                    parentNode = parentNode.getParent();
-                }
+                AncestorName parentName = getName(parentNode, localNamer);
+                name = (AncestorName) NameManager.getCachedName(new AncestorName(parentName, localNamer.naming(node)));
             }
-            Iterator<Name> it = names.descendingIterator();
-            Name [] array = new Name[names.size()];
-            int i = 0;
-            while (it.hasNext()) {
-                array[i++] = it.next();
+            node.setMemoizedName(slot, name);
+        }
+        return name;
+    }
+
+    /**
+     * With parent namers, an ancestor is named by the local namer of its
+     * temp name, which is chosen by the running naming. Such names are
+     * memoized until the temp names are cleared.
+     */
+    private AncestorName getTempName(GUITreeNode node) {
+        Map<AncestorNamer, Map<GUITreeNode, AncestorName>> namerToNames = tempParentNames.get();
+        Map<GUITreeNode, AncestorName> names = namerToNames.get(this);
+        if (names == null) {
+            names = new IdentityHashMap<>();
+            namerToNames.put(this, names);
+        }
+        AncestorName name = names.get(node);
+        if (name == null) {
+            Namer nodeNamer = NamerFactory.getLocalNamer(getNodeNamer(node));
+            GUITreeNode parentNode = node.getParent();
+            if (parentNode == null) {
+                name = getRootName(node, nodeNamer);
+            } else {
+                AncestorName parentName = getTempName(parentNode);
+                name = (AncestorName) NameManager.getCachedName(new AncestorName(parentName, nodeNamer.naming(node)));
             }
-            return NameManager.getCachedName(new AncestorName(array));
+            names.put(node, name);
         }
-        return NameManager.getCachedName(new AncestorName(localNamer.naming(node)));
+        return name;
+    }
+
+    /**
+     * Clears the names memoized by {@link #getTempName(GUITreeNode)} of the
+     * current thread, along with the temp names of nodes.
+     */
+    public static void clearTempNames() {
+        tempParentNames.get().clear();
     }
 
     private Namer getNodeNamer(GUITreeNode node) {
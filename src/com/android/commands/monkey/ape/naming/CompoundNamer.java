@@ -33,6 +33,20 @@ public class CompoundNamer extends AbstractNamer {
             return sb.toString();
         }
 
+        @Override
+        protected int componentHashCode() {
+            int result = 1;
+            for (Name name : names) {
+                result = 31 * result + NameManager.order(name);
+            }
+            return result;
+        }
+
+        @Override
+        protected boolean sameComponents(AbstractName other) {
+            return NameManager.sameNames(names, ((CompoundName) other).names);
+        }
+
         @Override
         public int hashCode() {
             if (hashCode == 0) {
@@ -28,6 +28,16 @@ public class IndexNamer extends AbstractNamer implements SingletonNamer {
             return "index=" + index + ";";
         }
 
+        @Override
+        protected int componentHashCode() {
+            return index;
+        }
+
+        @Override
+        protected boolean sameComponents(AbstractName other) {
+            return index == ((IndexName) other).index;
+        }
+
         @Override
         public Name getLocalName() {
             return this;
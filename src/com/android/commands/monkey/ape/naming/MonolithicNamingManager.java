@@ -34,6 +34,7 @@ public class MonolithicNamingManager extends AbstractNamingManager {
     public void updateNaming(GUITree tree, ComponentName activityName, Document dom, Naming oldOne, Naming newOne) {
         if (checkReplace(current, oldOne, newOne)) {
             current = newOne;
+            markAllUpdated(); // every tree shares the naming
         }
     }
 
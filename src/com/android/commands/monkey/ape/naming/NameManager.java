@@ -1,26 +1,114 @@
 package com.android.commands.monkey.ape.naming;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+/**
+ * Interns names by structure: the namer and the components of a name, which
+ * are strings or names interned before. Names are kept in an open addressing
+ * table with their hashes, so looking up a name builds no string and
+ * allocates nothing.
+ */
+public class NameManager {
 
-import com.android.commands.monkey.ape.utils.Utils;
+    private static final int INITIAL_CAPACITY = 1 << 14;
 
-public class NameManager {
+    private static AbstractName[] table = new AbstractName[INITIAL_CAPACITY];
+    private static int[] hashes = new int[INITIAL_CAPACITY];
+    private static int size;
+
+    public static synchronized Name getCachedName(Name name) {
+        AbstractName candidate = (AbstractName) name;
+        if (candidate.getOrder() >= 0) {
+            return candidate; // interned already
+        }
+        Namer namer = candidate.getNamer();
+        int hash = mix(namer.hashCode() * 31 + candidate.componentHashCode());
+        int mask = table.length - 1;
+        int i = hash & mask;
+        AbstractName existing;
+        while ((existing = table[i]) != null) {
+            if (hashes[i] == hash && existing.getNamer() == namer && existing.getClass() == candidate.getClass()
+                    && existing.sameComponents(candidate)) {
+                return existing;
+            }
+            i = (i + 1) & mask;
+        }
+        candidate.setOrder(size);
+        table[i] = candidate;
+        hashes[i] = hash;
+        if (++size * 4 > table.length * 3) {
+            resize();
+        }
+        return candidate;
+    }
+
+    public static synchronized int size() {
+        return size;
+    }
+
+    private static void resize() {
+        AbstractName[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new AbstractName[oldTable.length << 1];
+        hashes = new int[table.length];
+        int mask = table.length - 1;
+        for (int j = 0; j < oldTable.length; j++) {
+            if (oldTable[j] == null) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = oldTable[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the order of an interned name, used as the hash of a component
+     */
+    static int order(Name name) {
+        int order = ((AbstractName) name).getOrder();
+        if (order < 0) {
+            throw new IllegalStateException("Component name is not interned: " + name);
+        }
+        return order;
+    }
 
-    private static Map<Namer, Map<String, Name>> names = new HashMap<>();
-    private static List<Name> nameList = new ArrayList<>(10000); // let gc happy?
-    public static Name getCachedName(Name name) {
-        Namer namer = name.getNamer();
-        String key = name.toString();
-        Name existing = Utils.getFromMapMap(names, namer, key);
-        if (existing != null) {
-            return existing;
-        }
-        Utils.addToMapMap(names, namer, key, name);
-        ((AbstractName)name).setOrder(nameList.size());
-        nameList.add(name);
-        return name;
+    /**
+     * Compares arrays of interned names by identity.
+     */
+    static boolean sameNames(Name[] a, Name[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int hashString(String s) {
+        return s == null ? 0 : s.hashCode();
+    }
+
+    static boolean sameString(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Null and empty strings are the same, as in the string of a name.
+     */
+    static boolean sameOptionalString(String a, String b) {
+        if (a == null || a.isEmpty()) {
+            return b == null || b.isEmpty();
+        }
+        return a.equals(b);
     }
 }
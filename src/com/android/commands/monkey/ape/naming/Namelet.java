@@ -8,6 +8,7 @@ import javax.xml.xpath.XPathExpressionException;
 
 import org.w3c.dom.NodeList;
 
+import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.XPathBuilder;
 
 public class Namelet implements Serializable {
@@ -25,6 +26,8 @@ public class Namelet implements Serializable {
     private final Namer namer;
     private int depth;
     private Namelet parent;
+    private transient NodeSelector selector;
+    private transient boolean selectorCompiled;
 
     public Namelet(Type type, String exprStr, Namer namer) {
         this.type = type;
@@ -125,6 +128,20 @@ public class Namelet implements Serializable {
         return null;
     }
 
+    /**
+     * @return the DOM-free selector, or null if the expression needs XPath on the DOM.
+     */
+    public synchronized NodeSelector getSelector() {
+        if (!selectorCompiled) {
+            selector = NodeSelector.compile(exprStr);
+            selectorCompiled = true;
+            if (selector == null) {
+                Logger.iformat("Namelet %s falls back to XPath on DOM.", exprStr);
+            }
+        }
+        return selector;
+    }
+
     public Namer getNamer() {
         return namer;
     }
@@ -11,6 +11,10 @@ import com.android.commands.monkey.ape.tree.GUITreeNode;
  */
 public interface Namer {
     EnumSet<NamerType> getNamerTypes();
+    /**
+     * @return the mask of {@link #getNamerTypes()}
+     */
+    int getTypeMask();
     Name naming(GUITreeNode node);
     boolean refinesTo(Namer namer);
 }
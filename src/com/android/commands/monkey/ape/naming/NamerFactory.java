@@ -221,21 +221,10 @@ public class NamerFactory {
     }
 
     public static Namer getLocalNamer(Namer namer) {
-        EnumSet<NamerType> newTypes = NamerType.noneOf();
-        for (NamerType type : namer.getNamerTypes()) {
-            if (type.isLocal()) {
-                newTypes.add(type);
-            }
-        }
-        return CURRENT.getNamer(newTypes);
+        return CURRENT.getNamer(namer.getTypeMask() & NamerType.localMask());
     }
 
     public static boolean isLocalNamer(Namer namer) {
-        for (NamerType type : namer.getNamerTypes()) {
-            if (!type.isLocal()) {
-                return false;
-            }
-        }
-        return true;
+        return (namer.getTypeMask() & ~NamerType.localMask()) == 0;
     }
 }
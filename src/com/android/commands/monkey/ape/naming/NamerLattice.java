@@ -5,108 +5,144 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+/**
+ * The lattice of namers by their types. A combination of types is an int
+ * mask of {@link NamerType#mask()}, so a namer refines another if its mask
+ * contains the other. Namers and the lists of namers related to each namer
+ * are precomputed by mask, so queries neither allocate nor hash.
+ */
 public class NamerLattice {
 
-    private Map<EnumSet<NamerType>, Namer> typeToNamer = new HashMap<EnumSet<NamerType>, Namer>();
-    private Map<EnumSet<NamerType>, Collection<Namer>> typeToUpper = new HashMap<EnumSet<NamerType>, Collection<Namer>>();
-    private Map<EnumSet<NamerType>, Collection<Namer>> typeToLower = new HashMap<EnumSet<NamerType>, Collection<Namer>>();
+    private final Namer[] namers; // by mask, null for masks of no namer
+    private final List<Namer> all;
+    private final List<List<Namer>> upper;
+    private final List<List<Namer>> lower;
+    private final List<List<Namer>> notAbove;
+    private final List<List<Namer>> notBelow;
+    private final List<List<Namer>> sortedAbove;
 
-    private Map<EnumSet<NamerType>, Collection<Namer>> typeToNotAbove = new HashMap<EnumSet<NamerType>, Collection<Namer>>();
-    private Map<EnumSet<NamerType>, Collection<Namer>> typeToNotBelow = new HashMap<EnumSet<NamerType>, Collection<Namer>>();
-
-    private Namer bottomNamer;
-    private Namer topNamer;
+    private final Namer bottomNamer;
+    private final Namer topNamer;
 
     NamerLattice(List<Namer> namers) {
+        int allMask = NamerType.toMask(NamerType.allOf());
+        this.namers = new Namer[allMask + 1];
+        List<Namer> all = new ArrayList<Namer>(namers.size());
         for (Namer namer : namers) {
-            if (typeToNamer.put(namer.getNamerTypes(), namer) != null) {
+            int mask = namer.getTypeMask();
+            if (mask > allMask) {
+                throw new IllegalArgumentException("Unused namer type: " + namer.getNamerTypes());
+            }
+            if (this.namers[mask] != null) {
                 throw new IllegalArgumentException("Duplicated namer: " + namer.getNamerTypes());
             }
+            this.namers[mask] = namer;
+        }
+        for (Namer namer : this.namers) {
+            if (namer != null) {
+                all.add(namer);
+            }
         }
-        bottomNamer = typeToNamer.get(NamerType.noneOf());
-        topNamer = typeToNamer.get(NamerType.allOf());
+        this.all = Collections.unmodifiableList(all);
+        bottomNamer = this.namers[0];
+        topNamer = this.namers[allMask];
         if (bottomNamer == null || topNamer == null) {
             throw new IllegalArgumentException("Incomplete lattice");
         }
-        for (Namer namer : namers) {
-            EnumSet<NamerType> compl = NamerType.complementOf(namer.getNamerTypes());
-            if (!typeToNamer.containsKey(compl)) {
+        for (Namer namer : all) {
+            if (this.namers[allMask & ~namer.getTypeMask()] == null) {
                 throw new IllegalArgumentException("Incomplete lattice");
             }
         }
-        for (EnumSet<NamerType> type : typeToNamer.keySet()) {
+        upper = newLists(allMask + 1);
+        lower = newLists(allMask + 1);
+        notAbove = newLists(allMask + 1);
+        notBelow = newLists(allMask + 1);
+        sortedAbove = newLists(allMask + 1);
+        for (Namer namer : all) {
+            int mask = namer.getTypeMask();
             List<Namer> upper = new ArrayList<Namer>();
             List<Namer> lower = new ArrayList<Namer>();
             List<Namer> notAbove = new ArrayList<Namer>();
             List<Namer> notBelow = new ArrayList<Namer>();
-            for (Namer namer : all()) {
-                EnumSet<NamerType> otherType = namer.getNamerTypes();
-                if (otherType.equals(type)) {
+            for (Namer other : all) {
+                int otherMask = other.getTypeMask();
+                if (otherMask == mask) {
                     continue; // skip self
                 }
-                if (otherType.containsAll(type)) {
-                    upper.add(namer);
-                    notBelow.add(namer);
-                } else if (type.containsAll(otherType)) {
-                    lower.add(namer);
-                    notAbove.add(namer);
+                if (refinesTo(otherMask, mask)) {
+                    upper.add(other);
+                    notBelow.add(other);
+                } else if (refinesTo(mask, otherMask)) {
+                    lower.add(other);
+                    notAbove.add(other);
                 } else {
-                    notBelow.add(namer);
-                    notAbove.add(namer);
+                    notBelow.add(other);
+                    notAbove.add(other);
                 }
             }
-            typeToUpper.put(type, upper);
-            typeToLower.put(type, lower);
-            typeToNotAbove.put(type, notAbove);
-            typeToNotBelow.put(type, notBelow);
+            List<Namer> sorted = new ArrayList<Namer>(upper);
+            Collections.sort(sorted, comparator);
+            this.upper.set(mask, Collections.unmodifiableList(upper));
+            this.lower.set(mask, Collections.unmodifiableList(lower));
+            this.notAbove.set(mask, Collections.unmodifiableList(notAbove));
+            this.notBelow.set(mask, Collections.unmodifiableList(notBelow));
+            this.sortedAbove.set(mask, Collections.unmodifiableList(sorted));
         }
     }
 
+    private static List<List<Namer>> newLists(int size) {
+        return new ArrayList<List<Namer>>(Collections.<List<Namer>> nCopies(size, null));
+    }
+
+    /**
+     * @return whether a namer of the first mask refines a namer of the second
+     */
+    public static boolean refinesTo(int mask, int other) {
+        return (mask & other) == other;
+    }
+
     Namer join(Namer namer1, Namer namer2) {
-        EnumSet<NamerType> type = EnumSet.copyOf(namer1.getNamerTypes());
-        type.addAll(namer2.getNamerTypes());
-        return getNamer(type);
+        return getNamer(namer1.getTypeMask() | namer2.getTypeMask());
     }
 
     Namer meet(Namer namer1, Namer namer2) {
-        EnumSet<NamerType> type1 = namer1.getNamerTypes();
-        EnumSet<NamerType> type2 = namer2.getNamerTypes();
-        EnumSet<NamerType> type = EnumSet.copyOf(type1);
-        for (NamerType t : type1) {
-            if (!type2.contains(t)) {
-                type.remove(t);
-            }
-        }
-        return getNamer(type);
+        return getNamer(namer1.getTypeMask() & namer2.getTypeMask());
     }
 
+    /**
+     * Fewer types first, then types of smaller ordinals, then by mask.
+     */
     static Comparator<Namer> comparator = new Comparator<Namer>() {
 
         @Override
         public int compare(Namer o1, Namer o2) {
-            EnumSet<NamerType> t1 = o1.getNamerTypes();
-            EnumSet<NamerType> t2 = o2.getNamerTypes();
-            int ret = t1.size() - t2.size();
+            int m1 = o1.getTypeMask();
+            int m2 = o2.getTypeMask();
+            int ret = Integer.bitCount(m1) - Integer.bitCount(m2);
             if (ret != 0) {
                 return ret;
             }
-            int c1 = 0;
-            int c2 = 0;
-            for (NamerType n : t1) {
-                c1 += n.ordinal();
-            }
-            for (NamerType n : t2) {
-                c2 += n.ordinal();
+            ret = ordinalSum(m1) - ordinalSum(m2);
+            if (ret != 0) {
+                return ret;
             }
-            return c1 - c2;
+            return m1 - m2;
         }
 
     };
 
+    private static int ordinalSum(int mask) {
+        int sum = 0;
+        while (mask != 0) {
+            sum += Integer.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+        }
+        return sum;
+    }
+
     Collection<Namer> sort(Collection<Namer> namers) {
         List<Namer> sorted = new ArrayList<Namer>(namers);
         Collections.sort(sorted, comparator);
@@ -114,28 +150,38 @@ public class NamerLattice {
     }
 
     Collection<Namer> getNotAbove(Namer namer) {
-        return typeToNotAbove.get(namer.getNamerTypes());
+        return notAbove.get(namer.getTypeMask());
     }
 
     Collection<Namer> getNotBelow(Namer namer) {
-        return typeToNotBelow.get(namer.getNamerTypes());
+        return notBelow.get(namer.getTypeMask());
     }
 
     Collection<Namer> getLower(Namer namer) {
-        return typeToLower.get(namer.getNamerTypes());
+        return lower.get(namer.getTypeMask());
     }
 
     Collection<Namer> getUpper(Namer namer) {
-        return typeToUpper.get(namer.getNamerTypes());
+        return upper.get(namer.getTypeMask());
+    }
+
+    /**
+     * @return the namer of the mask, or null if there is none
+     */
+    Namer getNamer(int mask) {
+        return mask >= 0 && mask < namers.length ? namers[mask] : null;
     }
 
     Namer getNamer(EnumSet<NamerType> types) {
-        return typeToNamer.get(types);
+        return getNamer(NamerType.toMask(types));
     }
 
     Namer getNamer(NamerType first, NamerType... others) {
-        EnumSet<NamerType> t = EnumSet.of(first, others);
-        return typeToNamer.get(t);
+        int mask = first.mask();
+        for (NamerType other : others) {
+            mask |= other.mask();
+        }
+        return getNamer(mask);
     }
 
     Namer getBottomNamer() {
@@ -147,13 +193,14 @@ public class NamerLattice {
     }
 
     Collection<Namer> all() {
-        return typeToNamer.values();
+        return all;
     }
 
+    /**
+     * @return the namers strictly above the namer, sorted by
+     *         {@link #comparator}. The list is shared and unmodifiable.
+     */
     public List<Namer> getSortedAbove(Namer namer) {
-        Collection<Namer> namers = getUpper(namer);
-        List<Namer> sorted = new ArrayList<Namer>(namers);
-        Collections.sort(sorted, comparator);
-        return sorted;
+        return sortedAbove.get(namer.getTypeMask());
     }
 }
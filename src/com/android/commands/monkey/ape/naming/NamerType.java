@@ -9,7 +9,15 @@ public enum NamerType {
     TYPE, INDEX, PARENT, TEXT, ANCESTOR;
 
     public static final NamerType[] used;
+    private static final int localMask;
     static {
+        int mask = 0;
+        for (NamerType type : values()) {
+            if (type.isLocal()) {
+                mask |= type.mask();
+            }
+        }
+        localMask = mask;
         if (Config.useAncestorNamer) {
             used = new NamerType[] { TYPE, INDEX, PARENT, TEXT, ANCESTOR };
         } else {
@@ -42,4 +50,26 @@ public enum NamerType {
     public boolean isLocal() {
         return this != PARENT && this != ANCESTOR;
     }
+
+    /**
+     * @return the bit of this type in a mask of types
+     */
+    public int mask() {
+        return 1 << ordinal();
+    }
+
+    public static int toMask(EnumSet<NamerType> types) {
+        int mask = 0;
+        for (NamerType type : types) {
+            mask |= type.mask();
+        }
+        return mask;
+    }
+
+    /**
+     * @return the mask of the local types
+     */
+    public static int localMask() {
+        return localMask;
+    }
 }
@@ -2,9 +2,11 @@ package com.android.commands.monkey.ape.naming;
 
 import static com.android.commands.monkey.ape.utils.Config.ignoreEmpty;
 import static com.android.commands.monkey.ape.utils.Config.ignoreOutOfBounds;
+import static com.android.commands.monkey.ape.utils.Config.useNodeSelector;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -12,7 +14,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -328,20 +329,6 @@ public class Naming implements Serializable {
         return new Naming(this, newNamelets);
     }
 
-    private void clearNames(Document xmlTree) {
-        LinkedList<GUITreeNode> queue = new LinkedList<>();
-        GUITreeNode root = GUITreeBuilder.getGUITreeNode(xmlTree.getDocumentElement());
-        queue.add(root);
-        while (!queue.isEmpty()) {
-            GUITreeNode current = queue.removeFirst();
-            current.setTempXPathName(null);
-            Iterator<GUITreeNode> children = current.getChildren();
-            while (children.hasNext()) {
-                queue.addLast(children.next());
-            }
-        }
-    }
-
     protected void saveXmlOnError(Document tree) {
         Logger.wprintln("Saving xml to /data/ape/badtree.xml");
         try {
@@ -374,57 +361,197 @@ public class Naming implements Serializable {
         return naming(tree, false).getName(node);
     }
 
-    private Namelet select(List<Namelet> namelets) {
-        Namelet namelet = null;
-        if (namelets == null || namelets.size() == 0) {
+    /**
+     * The namelets of a naming ranked by dominance, rank 0 being the most
+     * specific one by {@link #comparator}. A namelet is selected for an
+     * element if it is the most specific one of the namelets matching the
+     * element whose ancestors match it as well. With matching namelets as a
+     * set of ranks, selection tries set bits from the lowest one, and checks
+     * ancestors by bits, with no sorting and no lists.
+     */
+    static class Dominance {
+        final Namelet[] namelets; // by rank
+        final int[] ranks; // by index in the naming
+        // Of each rank, the rank of each ancestor, or -1 if it is not in the
+        // naming, and the number of namelets ranked before the ancestor.
+        final int[][] ancestorRanks;
+        final int[][] ancestorBefore;
+
+        Dominance(Namelet[] namelets) {
+            final Namelet[] byIndex = namelets;
+            Integer[] order = new Integer[namelets.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            // Descending, and later in the naming first for ties, as a
+            // stable ascending sort scanned backwards.
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    int ret = comparator.compare(byIndex[o2], byIndex[o1]);
+                    return ret != 0 ? ret : o2 - o1;
+                }
+            });
+            this.namelets = new Namelet[namelets.length];
+            this.ranks = new int[namelets.length];
+            for (int rank = 0; rank < order.length; rank++) {
+                this.namelets[rank] = namelets[order[rank]];
+                this.ranks[order[rank]] = rank;
+            }
+            this.ancestorRanks = new int[namelets.length][];
+            this.ancestorBefore = new int[namelets.length][];
+            for (int rank = 0; rank < namelets.length; rank++) {
+                int depth = 0;
+                for (Namelet n = this.namelets[rank].getParent(); n != null; n = n.getParent()) {
+                    depth++;
+                }
+                int[] ancestors = new int[depth];
+                int[] before = new int[depth];
+                int j = 0;
+                for (Namelet n = this.namelets[rank].getParent(); n != null; n = n.getParent(), j++) {
+                    ancestors[j] = rankOf(n);
+                    before[j] = countBefore(n);
+                }
+                ancestorRanks[rank] = ancestors;
+                ancestorBefore[rank] = before;
+            }
+        }
+
+        private int rankOf(Namelet namelet) {
+            int equal = -1;
+            for (int rank = 0; rank < namelets.length; rank++) {
+                if (namelets[rank] == namelet) {
+                    return rank;
+                }
+                if (equal == -1 && comparator.compare(namelets[rank], namelet) == 0) {
+                    equal = rank;
+                }
+            }
+            return equal;
+        }
+
+        private int countBefore(Namelet namelet) {
+            int count = 0;
+            for (Namelet n : namelets) {
+                if (comparator.compare(n, namelet) > 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * An ancestor fails an element if it does not match the element and
+         * is less specific than all namelets matching the element.
+         */
+        boolean isDominant(int rank, BitSet matched, int lastMatched) {
+            int[] ancestors = ancestorRanks[rank];
+            int[] before = ancestorBefore[rank];
+            for (int j = 0; j < ancestors.length; j++) {
+                int ancestor = ancestors[j];
+                if ((ancestor == -1 || !matched.get(ancestor)) && lastMatched < before[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Compiled on the first naming, since parents of namelets are set after
+    // the naming is created.
+    private transient Dominance dominance;
+
+    private Dominance getDominance() {
+        Dominance d = dominance;
+        if (d == null) {
+            dominance = d = new Dominance(namelets);
+        }
+        return d;
+    }
+
+    private Namelet select(BitSet matched, Dominance d) {
+        int first = matched.nextSetBit(0);
+        if (first == -1) {
             throw new IllegalArgumentException("Empty list");
         }
-        if (namelets.size() == 1) {
-            namelet = namelets.get(0);
+        if (matched.nextSetBit(first + 1) == -1) {
+            Namelet namelet = d.namelets[first];
             if (!namelet.getType().equals(Namelet.Type.BASE)) {
                 throw new IllegalArgumentException("Missing base namelet.");
             }
             return namelet;
         }
-
-        Collections.sort(namelets, comparator);
-        for (int i = namelets.size() - 1; i >= 0; i--) {
-            Namelet n = namelets.get(i).getParent();
-            while (n != null) {
-                if (Collections.binarySearch(namelets, n, comparator) == -1) {
-                    break;
-                }
-                n = n.getParent();
-            }
-            if (n == null) { // all are included
-                return namelets.get(i);
+        int last = matched.length() - 1;
+        for (int rank = first; rank != -1; rank = matched.nextSetBit(rank + 1)) {
+            if (d.isDominant(rank, matched, last)) {
+                return d.namelets[rank];
             }
         }
-        for (Namelet n : namelets) {
-            Logger.iprintln(n);
+        for (int rank = first; rank != -1; rank = matched.nextSetBit(rank + 1)) {
+            Logger.iprintln(d.namelets[rank]);
         }
         return null;
     }
 
-    public Map<Element, List<Namelet>> select(Document tree) {
-        Map<Element, List<Namelet>> elementToNamelets = new HashMap<>();
-        for (Namelet namelet : namelets) {
-            NodeList nodes = namelet.filter(tree);
+    /**
+     * @return the ranks of the namelets matching each element
+     */
+    public Map<Element, BitSet> select(Document tree) {
+        Dominance d = getDominance();
+        Map<Element, BitSet> elementToNamelets = new HashMap<>();
+        for (int i = 0; i < namelets.length; i++) {
+            NodeList nodes = namelets[i].filter(tree);
             int length = nodes.getLength();
-            for (int i = 0; i < length; i++) {
-                Element item = (Element) nodes.item(i);
-                Utils.addToMapList(elementToNamelets, item, namelet);
+            for (int j = 0; j < length; j++) {
+                Element item = (Element) nodes.item(j);
+                BitSet matched = elementToNamelets.get(item);
+                if (matched == null) {
+                    matched = new BitSet(namelets.length);
+                    elementToNamelets.put(item, matched);
+                }
+                matched.set(d.ranks[i]);
             }
         }
         return elementToNamelets;
     }
 
-    private transient Map<GUITree, NamingResult> treeToNamingResult = new HashMap<>();
+    /**
+     * @return the ranks of the namelets matching each node
+     */
+    public Map<GUITreeNode, BitSet> select(GUITreeNode root) {
+        Dominance d = getDominance();
+        Map<GUITreeNode, BitSet> nodeToNamelets = new HashMap<>();
+        for (int i = 0; i < namelets.length; i++) {
+            for (GUITreeNode node : namelets[i].getSelector().select(root)) {
+                BitSet matched = nodeToNamelets.get(node);
+                if (matched == null) {
+                    matched = new BitSet(namelets.length);
+                    nodeToNamelets.put(node, matched);
+                }
+                matched.set(d.ranks[i]);
+            }
+        }
+        return nodeToNamelets;
+    }
+
+    /**
+     * @return true if every namelet can be evaluated without the DOM.
+     */
+    public boolean isNodeSelectable() {
+        if (!useNodeSelector) {
+            return false;
+        }
+        for (Namelet namelet : namelets) {
+            if (namelet.getSelector() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     public NamingResult naming(GUITree tree, boolean updateNodeName) {
         NamingResult results;
 
-        results = treeToNamingResult.get(tree);
+        results = NamingCache.getNamingResult(this, tree);
         if (results != null) {
             if (updateNodeName) {
                 results.updateNames();
@@ -433,9 +560,15 @@ public class Naming implements Serializable {
         }
         long begin = SystemClock.elapsedRealtimeNanos();
         try {
-            Document document = tree.getDocument();
-            results = namingInternal(document, updateNodeName);
-            treeToNamingResult.put(tree, results);
+            if (isNodeSelectable()) {
+                results = namingInternal(tree, updateNodeName);
+            } else {
+                synchronized (tree) { // the DOM is not thread-safe, and is built and released under the tree
+                    results = namingInternal(tree.getDocument(), updateNodeName);
+                }
+            }
+            tree.markNamesMemoized();
+            NamingCache.putNamingResult(this, tree, results);
             return results;
         } catch (RuntimeException e) {
             e.printStackTrace();
@@ -447,20 +580,27 @@ public class Naming implements Serializable {
         }
     }
 
+    private static void clearTempNames() {
+        GUITreeNode.clearTempXPathNames();
+        AncestorNamer.clearTempNames();
+    }
+
     protected NamingResult namingInternal(Document tree, boolean updateNodeName) {
+        clearTempNames(); // left by a failed naming
         Map<Name, Map<GUITreeNode, Namelet>> nameToNodes = new HashMap<>();
-        Map<Element, List<Namelet>> elementToNamelets = select(tree);
+        Dominance dominance = getDominance();
+        Map<Element, BitSet> elementToNamelets = select(tree);
         LinkedList<Element> queue = new LinkedList<>();
         Element root = tree.getDocumentElement();
         queue.add(root);
         while (!queue.isEmpty()) {
             Element current = queue.removeFirst();
-            List<Namelet> namelets = elementToNamelets.get(current);
-            if (namelets == null || namelets.isEmpty()) {
+            BitSet matched = elementToNamelets.get(current);
+            if (matched == null || matched.isEmpty()) {
                 saveXmlOnError(tree, current);
                 throw new IllegalStateException("A node has no namelets.");
             }
-            Namelet namelet = select(namelets);
+            Namelet namelet = select(matched, dominance);
             if (namelet == null) {
                 saveXmlOnError(tree, current);
                 throw new IllegalStateException("A node has no namelet.");
@@ -491,7 +631,49 @@ public class Naming implements Serializable {
                 }
             }
         }
-        clearNames((Document) tree);
+        clearTempNames();
+        return new NamingResult(nameToNodes);
+    }
+
+    protected NamingResult namingInternal(GUITree tree, boolean updateNodeName) {
+        clearTempNames(); // left by a failed naming
+        Map<Name, Map<GUITreeNode, Namelet>> nameToNodes = new HashMap<>();
+        GUITreeNode root = tree.getRootNode();
+        Dominance dominance = getDominance();
+        Map<GUITreeNode, BitSet> nodeToNamelets = select(root);
+        LinkedList<GUITreeNode> queue = new LinkedList<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            GUITreeNode treeNode = queue.removeFirst();
+            BitSet matched = nodeToNamelets.get(treeNode);
+            if (matched == null || matched.isEmpty()) {
+                saveXmlOnError(tree.getDocument(), treeNode.getDomNode());
+                throw new IllegalStateException("A node has no namelets.");
+            }
+            Namelet namelet = select(matched, dominance);
+            if (namelet == null) {
+                saveXmlOnError(tree.getDocument(), treeNode.getDomNode());
+                throw new IllegalStateException("A node has no namelet.");
+            }
+            Namer namer = namelet.getNamer();
+            if (namer == null) {
+                throw new IllegalStateException("A node has no namer.");
+            }
+            Name name = namer.naming(treeNode);
+            {
+                Utils.addToMapMap(nameToNodes, name, treeNode, namelet);
+                treeNode.setTempXPathName(name);
+                if (updateNodeName) {
+                    treeNode.setXPathName(name);
+                    treeNode.setCurrentNamelet(namelet);
+                }
+            }
+            Iterator<GUITreeNode> children = treeNode.getChildren();
+            while (children.hasNext()) {
+                queue.addLast(children.next());
+            }
+        }
+        clearTempNames();
         return new NamingResult(nameToNodes);
     }
 
@@ -529,8 +711,4 @@ public class Naming implements Serializable {
         return fineness;
     }
 
-    public void release(GUITree removed) {
-        this.treeToNamingResult.remove(removed);
-    }
-
 }
@@ -0,0 +1,250 @@
+package com.android.commands.monkey.ape.naming;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.android.commands.monkey.ape.model.StateKey;
+import com.android.commands.monkey.ape.naming.Naming.NamingResult;
+import com.android.commands.monkey.ape.tree.GUITree;
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+import com.android.commands.monkey.ape.utils.Config;
+import com.android.commands.monkey.ape.utils.Logger;
+
+/**
+ * Caches what namings compute for GUI trees: naming results, state keys, and
+ * names of nodes. Entries of all namings share one budget of
+ * ape.namingCacheBudget bytes, by estimate, and the least recently used
+ * entries are evicted first, whatever their naming is. Entries of the last
+ * ape.namingCachePinnedTrees built trees are pinned, since the agent and the
+ * refinement keep asking for them.
+ */
+public class NamingCache {
+
+    private static final int SEGMENT_COUNT = 16;
+    private static final long SEGMENT_BUDGET = Math.max(1L, Config.namingCacheBudget / SEGMENT_COUNT);
+    private static final int PINNED_TREES = Math.max(1, Config.namingCachePinnedTrees);
+
+    // Rough sizes of a key with its map entry, and of the arrays of values.
+    private static final int ENTRY_SIZE = 96;
+    private static final int REFERENCE_SIZE = 8;
+    private static final int ARRAY_SIZE = 16;
+
+    private static final int RESULT = 0;
+    private static final int STATE_KEY = 1;
+    private static final int NODE_NAME = 2;
+
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+    private static final AtomicLong evictionCount = new AtomicLong();
+
+    private static final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private static final ArrayDeque<GUITree> recentTrees = new ArrayDeque<>(PINNED_TREES);
+    // Replaced rather than updated, so evictions read it without a lock.
+    private static volatile Set<GUITree> pinnedTrees = Collections.emptySet();
+
+    static class Key {
+        final int kind;
+        final Naming naming;
+        final GUITree tree;
+        final GUITreeNode node;
+        final int hash;
+
+        Key(int kind, Naming naming, GUITree tree, GUITreeNode node) {
+            this.kind = kind;
+            this.naming = naming;
+            this.tree = tree;
+            this.node = node;
+            int h = kind;
+            h = 31 * h + System.identityHashCode(naming);
+            h = 31 * h + System.identityHashCode(tree);
+            h = 31 * h + System.identityHashCode(node);
+            this.hash = h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return kind == that.kind && naming == that.naming && tree == that.tree && node == that.node;
+        }
+    }
+
+    static class Segment extends LinkedHashMap<Key, Object> {
+        private static final long serialVersionUID = 1L;
+
+        long size; // estimated bytes
+
+        Segment() {
+            super(16, 0.75f, true);
+        }
+
+        void add(Key key, Object value) {
+            Object old = put(key, value);
+            if (old != null) {
+                size -= estimateSize(old);
+            }
+            size += estimateSize(value);
+            if (size <= SEGMENT_BUDGET) {
+                return;
+            }
+            Set<GUITree> pinned = pinnedTrees;
+            Iterator<Map.Entry<Key, Object>> it = entrySet().iterator();
+            while (size > SEGMENT_BUDGET && it.hasNext()) {
+                Map.Entry<Key, Object> eldest = it.next();
+                if (eldest.getKey() == key || pinned.contains(eldest.getKey().tree)) {
+                    continue;
+                }
+                size -= estimateSize(eldest.getValue());
+                it.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        void removeTree(GUITree tree) {
+            Iterator<Map.Entry<Key, Object>> it = entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Object> entry = it.next();
+                if (entry.getKey().tree == tree) {
+                    size -= estimateSize(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    static {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static long estimateSize(Object value) {
+        if (value instanceof NamingResult) {
+            NamingResult result = (NamingResult) value;
+            // names, nodes, and namelets, with arrays of nodes and namelets
+            // for names of many nodes
+            return ENTRY_SIZE + 3L * (ARRAY_SIZE + REFERENCE_SIZE * result.getNameSize())
+                    + 2L * REFERENCE_SIZE * result.getNodeSize();
+        }
+        if (value instanceof StateKey) {
+            return ENTRY_SIZE + ARRAY_SIZE + REFERENCE_SIZE * ((StateKey) value).getWidgets().length;
+        }
+        return ENTRY_SIZE; // names are interned by NameManager
+    }
+
+    private static Segment segmentOf(Key key) {
+        return segments[(key.hash & 0x7FFFFFFF) % SEGMENT_COUNT];
+    }
+
+    private static Object get(int kind, Naming naming, GUITree tree, GUITreeNode node) {
+        Key key = new Key(kind, naming, tree, node);
+        Segment segment = segmentOf(key);
+        Object value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    private static void put(int kind, Naming naming, GUITree tree, GUITreeNode node, Object value) {
+        Key key = new Key(kind, naming, tree, node);
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            segment.add(key, value);
+        }
+    }
+
+    public static NamingResult getNamingResult(Naming naming, GUITree tree) {
+        return (NamingResult) get(RESULT, naming, tree, null);
+    }
+
+    public static void putNamingResult(Naming naming, GUITree tree, NamingResult result) {
+        put(RESULT, naming, tree, null, result);
+    }
+
+    public static StateKey getStateKey(Naming naming, GUITree tree) {
+        return (StateKey) get(STATE_KEY, naming, tree, null);
+    }
+
+    public static void putStateKey(Naming naming, GUITree tree, StateKey stateKey) {
+        put(STATE_KEY, naming, tree, null, stateKey);
+    }
+
+    public static Name getNodeName(Naming naming, GUITree tree, GUITreeNode node) {
+        return (Name) get(NODE_NAME, naming, tree, node);
+    }
+
+    public static void putNodeName(Naming naming, GUITree tree, GUITreeNode node, Name name) {
+        put(NODE_NAME, naming, tree, node, name);
+    }
+
+    /**
+     * Pins the entries of a new tree, and unpins the entries of the oldest
+     * pinned tree if there are too many.
+     */
+    public static void pin(GUITree tree) {
+        synchronized (recentTrees) {
+            if (recentTrees.size() >= PINNED_TREES) {
+                recentTrees.removeFirst();
+            }
+            recentTrees.addLast(tree);
+            updatePinnedTrees();
+        }
+    }
+
+    /**
+     * Drops all entries of a removed tree.
+     */
+    public static void release(GUITree tree) {
+        synchronized (recentTrees) {
+            if (recentTrees.remove(tree)) {
+                updatePinnedTrees();
+            }
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.removeTree(tree);
+            }
+        }
+    }
+
+    private static void updatePinnedTrees() {
+        Set<GUITree> pinned = Collections.newSetFromMap(new IdentityHashMap<GUITree, Boolean>());
+        pinned.addAll(recentTrees);
+        pinnedTrees = pinned;
+    }
+
+    public static void printStatistics() {
+        int size = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+                bytes += segment.size;
+            }
+        }
+        long hit = hitCount.get();
+        long miss = missCount.get();
+        long total = hit + miss;
+        Logger.iformat("Naming cache: size=%d, bytes=%d of %d, hit=%d, miss=%d, ratio=%.3f, evictions=%d", size,
+                bytes, SEGMENT_BUDGET * SEGMENT_COUNT, hit, miss, total == 0 ? 0D : ((double) hit) / total,
+                evictionCount.get());
+    }
+}
@@ -9,7 +9,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -19,6 +18,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
 
 import com.android.commands.monkey.ape.model.Model;
@@ -112,9 +114,9 @@ public class NamingFactory implements Serializable {
 
     public Model resolveNonDeterminism(Model model, StateTransition nst) {
         ModelAction action = nst.getAction();
-        Logger.println("=== Try to resolve the non-determinism!!");
+        Logger.NAMING.println("=== Try to resolve the non-determinism!!");
         if (action.isBack()) {
-            Logger.format("No refinement on BACK actions: ", nst);
+            Logger.NAMING.format("No refinement on BACK actions: ", nst);
             return model;
         }
         List<GUITreeTransition> edgeGUITransitions = model.getGUITreeTransitions(nst);
@@ -125,9 +127,9 @@ public class NamingFactory implements Serializable {
                     if (e == nst) {
                         continue;
                     }
-                    Logger.iprintln("Find the non-deterministic edge");
-                    Logger.iprintln("st1: " + e);
-                    Logger.iprintln("st2: " + nst);
+                    Logger.NAMING.iprintln("Find the non-deterministic edge");
+                    Logger.NAMING.iformat("st1: %s", e);
+                    Logger.NAMING.iformat("st2: %s", nst);
 
                     GUITreeWidgetDiffer differ = new GUITreeWidgetDiffer();
                     differ.diff(e.getTarget(), nst.getTarget());
@@ -135,18 +137,18 @@ public class NamingFactory implements Serializable {
                     List<RefinementResult> results = refine(model, e, nst, model.getGUITreeTransitions(e), edgeGUITransitions);
                     RefinementResult ret = filterRefinementResult(model, results);
                     if (ret != null) {
-                        Logger.iprintln("Find a new naming that can resolve the non-deterministic transition.");
+                        Logger.NAMING.iprintln("Find a new naming that can resolve the non-deterministic transition.");
                         return rebuild(model, ret);
                     } else {
-                        Logger.iprintln("Cannot find a new naming that can resolve the non-deterministic transition.");
+                        Logger.NAMING.iprintln("Cannot find a new naming that can resolve the non-deterministic transition.");
                     }
                 }
                 if (outStateTransitions.size() >= 3) {
-                    Logger.iformat("Add non-deterministic transtions caused by action %s to refinement blacklist.", nst.getAction());
+                    Logger.NAMING.iformat("Add non-deterministic transtions caused by action %s to refinement blacklist.", nst.getAction());
                     NDActionBlacklist.add(nst.getAction());
                 }
             } else {
-                Logger.iformat("Reject refining non-deterministic transtions caused by action %s.", nst.getAction());
+                Logger.NAMING.iformat("Reject refining non-deterministic transtions caused by action %s.", nst.getAction());
             }
         }
         return model;
@@ -164,19 +166,19 @@ public class NamingFactory implements Serializable {
     void refine(List<RefinementResult> results, NamingManager nm, Set<GUITree> affected, Naming currentNaming, StateTransition st1, StateTransition st2,
             List<GUITreeTransition> tts1, List<GUITreeTransition> tts2) {
         if (actionRefinementFirst && results.isEmpty()) {
-            Logger.iprintln("Try action refinement, where source states are not necessarily to be the same.");
+            Logger.NAMING.iprintln("Try action refinement, where source states are not necessarily to be the same.");
             actionRefinement(results, nm, affected, currentNaming, st1, st2, tts1, tts2);
-            Logger.iprintln("Action refinement has " + results.size() + " results.");
+            Logger.NAMING.iprintln("Action refinement has " + results.size() + " results.");
         }
         if (results.isEmpty()) {
-            Logger.iprintln("Try state refinement.");
+            Logger.NAMING.iprintln("Try state refinement.");
             stateRefinement(results, nm, affected, currentNaming, st1, st2, tts1, tts2);
-            Logger.iprintln("State refinement has " + results.size() + " results.");
+            Logger.NAMING.iprintln("State refinement has " + results.size() + " results.");
         }
         if (!actionRefinementFirst && results.isEmpty()) {
-            Logger.iprintln("Try action refinement, where source states are not necessarily to be the same.");
+            Logger.NAMING.iprintln("Try action refinement, where source states are not necessarily to be the same.");
             actionRefinement(results, nm, affected, currentNaming, st1, st2, tts1, tts2);
-            Logger.iprintln("Action refinement has " + results.size() + " results.");
+            Logger.NAMING.iprintln("Action refinement has " + results.size() + " results.");
         }
     }
 
@@ -208,7 +210,7 @@ public class NamingFactory implements Serializable {
             throw e;
         } finally {
             long end = SystemClock.elapsedRealtimeNanos();
-            Logger.iformat("Refinement takes %s ms.", TimeUnit.NANOSECONDS.toMillis(end - begin));
+            Logger.NAMING.iformat("Refinement takes %s ms.", TimeUnit.NANOSECONDS.toMillis(end - begin));
         }
     }
 
@@ -219,14 +221,14 @@ public class NamingFactory implements Serializable {
         return results;
     }
 
-    private void stateRefinement(List<RefinementResult> results, NamingManager nm, Set<GUITree> affected, Naming currentNaming, StateTransition st1,
-            StateTransition st2, List<GUITreeTransition> tts1, List<GUITreeTransition> tts2) {
+    private void stateRefinement(List<RefinementResult> results, NamingManager nm, Set<GUITree> affected, final Naming currentNaming, StateTransition st1,
+            StateTransition st2, final List<GUITreeTransition> tts1, final List<GUITreeTransition> tts2) {
         GUITreeTransition tt1 = tts1.get(tts1.size() - 1);
         GUITreeTransition tt2 = tts2.get(tts2.size() - 1);
         if (isTopNamingEquivalent(tt1.getSource(), tt2.getSource())) {
-            Logger.iprintln("Two GUI trees are top naming equivalent..");
+            Logger.NAMING.iprintln("Two GUI trees are top naming equivalent..");
             if (isIsomorphic(tt1.getSource(), tt2.getSource())) {
-                Logger.iprintln("Two GUI trees are top naming and isomorphic..");
+                Logger.NAMING.iprintln("Two GUI trees are top naming and isomorphic..");
             }
             return;
         }
@@ -242,69 +244,182 @@ public class NamingFactory implements Serializable {
             }
         }
         {
-            Namelet last = currentNaming.getLastNamelet();
+            final Namelet last = currentNaming.getLastNamelet();
             Namer lastNamer = last.getNamer();
             if (currentNaming.isReplaceable(last)) {
                 Namelet parent = last.getParent();
                 Namer parentNamer = parent.getNamer();
                 List<Namer> refinedNamers = NamerFactory.getSortedAbove(parentNamer);
-                List<Namer> upperBounds = new ArrayList<>();
-                outer: for (Namer refined : refinedNamers) {
-                    if (!upperBounds.isEmpty()) {
-                        for (Namer upper : upperBounds) {
-                            if (refined.refinesTo(upper)) {
-                                continue outer; // no retry 
-                            }
-                        }
-                    }
-                    if (lastNamer.refinesTo(refined)) {
-                        continue; // avoid replace with the same namelet.
+                Candidate selected = selectCandidate(nm, affected, refinedNamers, lastNamer, new Refiner() {
+                    Namelet createNamelet(Namer refined) {
+                        return new Namelet(last.getExprString(), refined);
                     }
-                    Namelet newNamelet = new Namelet(last.getExprString(), refined);
-                    Naming newNaming = currentNaming.replaceLast(last, newNamelet);
-                    if (!checkStateRefinement(newNaming, refined, tts1, tts2, upperBounds)) {
-                        continue;
+
+                    Naming createNaming(Namelet newNamelet) {
+                        return currentNaming.replaceLast(last, newNamelet);
                     }
-                    if (!checkPredicate(nm, affected, newNaming)) {
-                        continue;
+
+                    Check check(Naming newNaming, ForkJoinTask<?> task) {
+                        return checkStateRefinement(newNaming, tts1, tts2, task);
                     }
-                    results.add(new RefinementResult(true, currentNaming, newNaming, last, newNamelet, st1, st2, tts1, tts2));
-                    break;
+                });
+                if (selected != null) {
+                    results.add(new RefinementResult(true, currentNaming, selected.naming, last, selected.namelet, st1, st2, tts1, tts2));
                 }
             }
         }
 
         for (Name name : candidates) {
-            String xpathStr = NamerFactory.nameToXPathString(name);
-            Namelet currentNamelet = checkNamelet(currentNaming, name, tts1, tts2);
+            final String xpathStr = NamerFactory.nameToXPathString(name);
+            final Namelet currentNamelet = checkNamelet(currentNaming, name, tts1, tts2);
             if (currentNamelet == null) {
                 continue;
             }
             Namer currentNamer = name.getNamer();
             List<Namer> refinedNamers = NamerFactory.getSortedAbove(currentNamer);
-            List<Namer> upperBounds = new ArrayList<>();
-            Set<Namer> visited = new HashSet<Namer>();
-            visited.add(currentNamer);
-            LinkedList<Namer> queue = new LinkedList<Namer>();
-            collectSortedAbove(currentNamer, queue, visited);
-            outer: for (Namer refined : refinedNamers) {
-                if (!upperBounds.isEmpty()) {
-                    for (Namer upper : upperBounds) {
-                        if (refined.refinesTo(upper)) {
-                            continue outer; // no retry 
-                        }
+            Candidate selected = selectCandidate(nm, affected, refinedNamers, null, new Refiner() {
+                Namelet createNamelet(Namer refined) {
+                    return new Namelet(xpathStr, refined);
+                }
+
+                Naming createNaming(Namelet newNamelet) {
+                    return currentNaming.extend(currentNamelet, newNamelet);
+                }
+
+                Check check(Naming newNaming, ForkJoinTask<?> task) {
+                    return checkStateRefinement(newNaming, tts1, tts2, task);
+                }
+            });
+            if (selected != null) {
+                results.add(new RefinementResult(false, currentNaming, selected.naming, currentNamelet, selected.namelet, st1, st2, tts1, tts2));
+            }
+        }
+    }
+
+    /**
+     * The result of checking a candidate naming. A naming that exceeds the
+     * threshold of states or is accepted bounds the namers above its namer.
+     */
+    enum Check {
+        REJECTED, EXCEEDED, ACCEPTED,
+    }
+
+    /**
+     * Creates and checks the candidate namings of one refinement.
+     */
+    abstract class Refiner {
+        abstract Namelet createNamelet(Namer refined);
+
+        abstract Naming createNaming(Namelet newNamelet);
+
+        /**
+         * Called on a worker of the refinement pool. The check should give up
+         * once the task is cancelled.
+         */
+        abstract Check check(Naming newNaming, ForkJoinTask<?> task);
+    }
+
+    static class Candidate extends RecursiveTask<Check> {
+
+        private static final long serialVersionUID = 1L;
+
+        final Refiner refiner;
+        final Namer namer;
+        final Namelet namelet;
+        final Naming naming;
+
+        Candidate(Refiner refiner, Namer namer) {
+            this.refiner = refiner;
+            this.namer = namer;
+            this.namelet = refiner.createNamelet(namer);
+            this.naming = refiner.createNaming(namelet);
+        }
+
+        @Override
+        protected Check compute() {
+            return refiner.check(naming, this);
+        }
+    }
+
+    private static ForkJoinPool refinementPool;
+
+    private static synchronized ForkJoinPool getRefinementPool() {
+        if (Config.refinementParallelism <= 1) {
+            return null;
+        }
+        if (refinementPool == null) {
+            refinementPool = new ForkJoinPool(Config.refinementParallelism);
+        }
+        return refinementPool;
+    }
+
+    private static boolean isBounded(Namer refined, List<Namer> upperBounds) {
+        for (Namer upper : upperBounds) {
+            if (refined.refinesTo(upper)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Selects the first candidate in the sorted order that passes the check
+     * and the predicates, skipping namers that refine to a bound, i.e., the
+     * namer of a candidate exceeding the threshold or accepted before.
+     *
+     * Candidates ahead of the current one are checked speculatively on the
+     * refinement pool, while results are consumed in the sorted order, so the
+     * selection is the same as checking them one by one. Namings are created
+     * and predicates are evaluated on the calling thread, since they update
+     * the naming tree and the factory. Once a candidate is selected, the
+     * remaining ones are cancelled.
+     *
+     * @param skipped
+     *            namers it refines to are skipped, or null
+     */
+    private Candidate selectCandidate(NamingManager nm, Set<GUITree> affected, List<Namer> refinedNamers,
+            Namer skipped, Refiner refiner) {
+        ForkJoinPool pool = getRefinementPool();
+        int window = pool == null ? 1 : Config.refinementParallelism << 1;
+        List<Namer> upperBounds = new ArrayList<>();
+        LinkedList<Candidate> pending = new LinkedList<>();
+        int next = 0;
+        try {
+            while (true) {
+                while (pending.size() < window && next < refinedNamers.size()) {
+                    Namer refined = refinedNamers.get(next++);
+                    if (isBounded(refined, upperBounds)) {
+                        continue; // no retry
                     }
+                    if (skipped != null && skipped.refinesTo(refined)) {
+                        continue; // avoid replace with the same namelet.
+                    }
+                    Candidate candidate = new Candidate(refiner, refined);
+                    if (pool != null) {
+                        pool.execute(candidate);
+                    }
+                    pending.addLast(candidate);
+                }
+                if (pending.isEmpty()) {
+                    return null;
                 }
-                Namelet newNamelet = new Namelet(xpathStr, refined);
-                Naming newNaming = currentNaming.extend(currentNamelet, newNamelet);
-                if (!checkStateRefinement(newNaming, refined, tts1, tts2, upperBounds)) {
+                Candidate candidate = pending.removeFirst();
+                if (isBounded(candidate.namer, upperBounds)) {
+                    candidate.cancel(false); // bounded after it was submitted
                     continue;
                 }
-                if (!checkPredicate(nm, affected, newNaming)) {
+                Check check = pool == null ? candidate.invoke() : candidate.join();
+                if (check == Check.REJECTED) {
                     continue;
                 }
-                results.add(new RefinementResult(false, currentNaming, newNaming, currentNamelet, newNamelet, st1, st2, tts1, tts2));
-                break;
+                upperBounds.add(candidate.namer);
+                if (check == Check.ACCEPTED && checkPredicate(nm, affected, candidate.naming)) {
+                    return candidate;
+                }
+            }
+        } finally {
+            for (Candidate candidate : pending) {
+                candidate.cancel(false);
             }
         }
     }
@@ -347,14 +462,14 @@ public class NamingFactory implements Serializable {
     private boolean checkPredicate(NamingManager nm, Set<GUITree> affected, Naming naming) {
         for (GUITree tree : affected) {
             if (Utils.containsMapSet(guiTreeNamingBlaclist, tree, naming)) {
-                Logger.iformat("Naming %s has been blacklisted for GUI Tree #%d", naming, tree.getTimestamp());
+                Logger.NAMING.iformat("Naming %s has been blacklisted for GUI Tree #%d", naming, tree.getTimestamp());
                 return false;
             }
         }
         for (Predicate p : predicates) {
             boolean ret = p.eval(nm, affected, naming);
             if (ret == false) {
-                Logger.iformat("Naming %s violates constraints %s. ", naming, p);
+                Logger.NAMING.iformat("Naming %s violates constraints %s. ", naming, p);
                 return false;
             }
         }
@@ -365,7 +480,7 @@ public class NamingFactory implements Serializable {
         List<Predicate> toBeRemoved = new ArrayList<Predicate>();
         for (Predicate p : predicates) {
             if (p.eval(nm, affected, naming) == false) {
-                Logger.iprintln("Remove violated constraint: " + p);
+                Logger.NAMING.iformat("Remove violated constraint: %s", p);
                 toBeRemoved.add(p);
             }
         }
@@ -395,24 +510,24 @@ public class NamingFactory implements Serializable {
 
     private void sortRefinementResults(List<RefinementResult> candidates) {
         Collections.sort(candidates, comparator);
-        Logger.iformat("Find %d new naming", candidates.size());
+        Logger.NAMING.iformat("Find %d new naming", candidates.size());
         for (int i = 0; i < candidates.size(); i++) {
             RefinementResult rr = candidates.get(i);
             Naming oldOne = rr.originalNaming;
             Naming newOne = rr.updatedNaming;
-            Logger.format("[%d] Updating naming: from %s to %s, [%d] <-> [%d].", i, oldOne, newOne, rr.states1.size(),
+            Logger.NAMING.format("[%d] Updating naming: from %s to %s, [%d] <-> [%d].", i, oldOne, newOne, rr.states1.size(),
                     rr.states2.size());
-            Logger.println("==================== Old =========================");
+            Logger.NAMING.println("==================== Old =========================");
             oldOne.dump();
-            Logger.println("--------------------------------------------------");
+            Logger.NAMING.println("--------------------------------------------------");
             newOne.dump();
-            Logger.println("==================== New =========================");
+            Logger.NAMING.println("==================== New =========================");
         }
     }
 
     private RefinementResult filterRefinementResult(Model model, List<RefinementResult> candidates) {
         if (candidates.isEmpty()) {
-            Logger.iprintln("No state refinement candidates to filter.");
+            Logger.NAMING.iprintln("No state refinement candidates to filter.");
             return null;
         }
         sortRefinementResults(candidates);
@@ -438,15 +553,15 @@ public class NamingFactory implements Serializable {
             for (Entry<GUITree, Naming> entry : updated.entrySet()) {
                 GUITree tree = entry.getKey();
                 Naming naming = entry.getValue();
-                Logger.iformat("Update GUITree at %d, state is %s, current naming is %s, updated naming is %s.",
+                Logger.NAMING.iformat("Update GUITree at %d, state is %s, current naming is %s, updated naming is %s.",
                         tree.getTimestamp(), tree.getCurrentState(), tree.getCurrentNaming(), naming);
             }
         }
         logRefinement(rr);
     }
 
-    private boolean checkStateRefinement(Naming newNaming, Namer newNamer, List<GUITreeTransition> tts1,
-            List<GUITreeTransition> tts2, List<Namer> upperBounds) {
+    private Check checkStateRefinement(Naming newNaming, List<GUITreeTransition> tts1,
+            List<GUITreeTransition> tts2, ForkJoinTask<?> task) {
         {
             GUITreeTransition tt1 = tts1.get(tts1.size() - 1);
             GUITreeTransition tt2 = tts2.get(tts2.size() - 1);
@@ -455,7 +570,7 @@ public class NamingFactory implements Serializable {
             StateKey newSourceState1 = GUITreeBuilder.getStateKey(newNaming, sourceTree1);
             StateKey newSourceState2 = GUITreeBuilder.getStateKey(newNaming, sourceTree2);
             if (newSourceState1.equals(newSourceState2)) {
-                return false;
+                return Check.REJECTED;
             }
         }
         {
@@ -466,73 +581,68 @@ public class NamingFactory implements Serializable {
             Map<StateKey, List<GUITreeTransition>> stateToTrees2 = new HashMap<>();
 
             for (GUITreeTransition tt1 : tts1) {
+                if (task.isCancelled()) {
+                    return Check.REJECTED;
+                }
                 StateKey stateKey = GUITreeBuilder.getStateKey(newNaming, tt1.getSource());
                 states1.add(stateKey);
                 Utils.addToMapList(stateToTrees1, stateKey, tt1);
                 if (states1.size() > threshold) {
-                    upperBounds.add(newNamer);
-                    return false;
+                    return Check.EXCEEDED;
                 }
             }
             for (GUITreeTransition tt2 : tts2) {
+                if (task.isCancelled()) {
+                    return Check.REJECTED;
+                }
                 // intersection
                 StateKey stateKey = GUITreeBuilder.getStateKey(newNaming, tt2.getSource());
                 if (states1.contains(stateKey)) {
-                    return false;
+                    return Check.REJECTED;
                 }
                 states2.add(stateKey);
                 Utils.addToMapList(stateToTrees2, stateKey, tt2);
                 if (states1.size() + states2.size() > threshold) {
-                    upperBounds.add(newNamer);
-                    return false;
-                }
-            }
-        }
-        upperBounds.add(newNamer);
-        return true;
-    }
-
-    private void collectSortedAbove(Namer cn, LinkedList<Namer> queue, Set<Namer> visited) {
-        EnumSet<NamerType> newTypes = EnumSet.copyOf(cn.getNamerTypes());
-        for (NamerType type : NamerType.used) {
-            if (newTypes.add(type)) {
-                Namer n = NamerFactory.getNamer(newTypes);
-                if (!visited.contains(n)) {
-                    visited.add(n);
-                    queue.add(n);
+                    return Check.EXCEEDED;
                 }
-                newTypes.remove(type);
             }
         }
+        return Check.ACCEPTED;
     }
 
     private void reportConflictNamelet(Namelet namelet1, Namelet namelet2) {
-        Logger.wprintln("=== Conflict namelets..");
-        Logger.wprintln("=== Namelet1: " + namelet1);
-        Logger.wprintln("=== Namelet2: " + namelet2);
+        Logger.NAMING.wprintln("=== Conflict namelets..");
+        Logger.NAMING.wformat("=== Namelet1: %s", namelet1);
+        Logger.NAMING.wformat("=== Namelet2: %s", namelet2);
     }
 
     private void reportConflictNamer(Namer namer1, Namer namer2) {
-        Logger.wprintln("=== Conflict namer..");
-        Logger.wprintln("=== Namer1: " + namer1);
-        Logger.wprintln("=== Namer2: " + namer2);
+        Logger.NAMING.wprintln("=== Conflict namer..");
+        Logger.NAMING.wformat("=== Namer1: %s", namer1);
+        Logger.NAMING.wformat("=== Namer2: %s", namer2);
     }
 
-    protected boolean checkActionRefinement(Naming newNaming, Namer newNamer,
-            List<GUITreeTransition> tts1, List<GUITreeTransition> tts2, List<Namer> upperBounds) {
+    protected Check checkActionRefinement(Naming newNaming, List<GUITreeTransition> tts1,
+            List<GUITreeTransition> tts2, ForkJoinTask<?> task) {
         Set<Name> names = new HashSet<>();
         for (GUITreeTransition tt1 : tts1) {
+            if (task.isCancelled()) {
+                return Check.REJECTED;
+            }
             GUITree sourceTree1 = tt1.getSource();
             GUITreeNode node1 = tt1.getAction().getGUITreeNode();
             Name name1 = GUITreeBuilder.getNodeName(newNaming, sourceTree1, node1);
             names.add(name1);
         }
         for (GUITreeTransition tt2 : tts2) {
+            if (task.isCancelled()) {
+                return Check.REJECTED;
+            }
             GUITree sourceTree2 = tt2.getSource();
             GUITreeNode node2 = tt2.getAction().getGUITreeNode();
             Name name2 = GUITreeBuilder.getNodeName(newNaming, sourceTree2, node2);
             if (names.add(name2) == false) {
-                return false;
+                return Check.REJECTED;
             }
         }
         {
@@ -543,8 +653,7 @@ public class NamingFactory implements Serializable {
                 StateKey stateKey = GUITreeBuilder.getStateKey(newNaming, tt1.getSource());
                 states.add(stateKey);
                 if (states.size() > threshold) {
-                    upperBounds.add(newNamer);
-                    return false;
+                    return Check.EXCEEDED;
                 }
             }
             for (GUITreeTransition tt2 : tts2) {
@@ -552,14 +661,12 @@ public class NamingFactory implements Serializable {
                 StateKey stateKey = GUITreeBuilder.getStateKey(newNaming, tt2.getSource());
                 states.add(stateKey);
                 if (states.size() > threshold) {
-                    upperBounds.add(newNamer);
-                    return false;
+                    return Check.EXCEEDED;
                 }
             }
 
         }
-        upperBounds.add(newNamer);
-        return true;
+        return Check.ACCEPTED;
     }
 
     private boolean isSharedAction(Name widget, List<GUITreeTransition> tts1, List<GUITreeTransition> tts2) {
@@ -586,72 +693,62 @@ public class NamingFactory implements Serializable {
         return isShared;
     }
 
-    private void actionRefinement(List<RefinementResult> results, NamingManager nm, Set<GUITree> affected, Naming currentNaming, StateTransition st1,
-            StateTransition st2, List<GUITreeTransition> tts1, List<GUITreeTransition> tts2) {
+    private void actionRefinement(List<RefinementResult> results, NamingManager nm, Set<GUITree> affected, final Naming currentNaming, StateTransition st1,
+            StateTransition st2, final List<GUITreeTransition> tts1, final List<GUITreeTransition> tts2) {
         Name widget = st1.getAction().getTarget();
         if (widget == null) {
             return; // no action refinement on actions without a target
         }
         if (!isSharedAction(widget, tts1, tts2)) {
-            Logger.iprintln("Action is not shared. No action refinement.");
+            Logger.NAMING.iprintln("Action is not shared. No action refinement.");
             return;
         }
-        Namelet currentNamelet = checkNamelet(currentNaming, widget, tts1, tts2);
+        final Namelet currentNamelet = checkNamelet(currentNaming, widget, tts1, tts2);
         if (currentNamelet == null) {
             return;
         }
         Namer currentNamer = widget.getNamer();
+        Refiner replaceLast = new Refiner() {
+            Namelet createNamelet(Namer refined) {
+                return new Namelet(currentNamelet.getExprString(), refined);
+            }
+
+            Naming createNaming(Namelet newNamelet) {
+                return currentNaming.replaceLast(currentNamelet, newNamelet);
+            }
+
+            Check check(Naming newNaming, ForkJoinTask<?> task) {
+                return checkActionRefinement(newNaming, tts1, tts2, task);
+            }
+        };
         {
             if (currentNaming.isReplaceable(currentNamelet)) {
                 Namelet parent = currentNamelet.getParent();
                 Namer parentNamer = parent.getNamer();
                 List<Namer> refinedNamers = NamerFactory.getSortedAbove(parentNamer);
-                List<Namer> upperBounds = new ArrayList<>();
-                outer: for (Namer refined : refinedNamers) {
-                    if (!upperBounds.isEmpty()) {
-                        for (Namer upper : upperBounds) {
-                            if (refined.refinesTo(upper)) {
-                                continue outer; // no retry 
-                            }
-                        }
-                    }
-                    if (currentNamer.refinesTo(refined)) {
-                        continue; // avoid replace with the same namelet.
-                    }
-                    Namelet newNamelet = new Namelet(currentNamelet.getExprString(), refined);
-                    Naming newNaming = currentNaming.replaceLast(currentNamelet, newNamelet);
-                    if (checkActionRefinement(newNaming, refined, tts1, tts2, upperBounds) == false) {
-                        continue outer;
-                    }
-                    if (!checkPredicate(nm, affected, newNaming)) {
-                        continue;
-                    }
-                    results.add(new RefinementResult(true, currentNaming, newNaming, currentNamelet, newNamelet, st1, st2, tts1, tts2));
-                    break;
+                Candidate selected = selectCandidate(nm, affected, refinedNamers, currentNamer, replaceLast);
+                if (selected != null) {
+                    results.add(new RefinementResult(true, currentNaming, selected.naming, currentNamelet, selected.namelet, st1, st2, tts1, tts2));
                 }
             }
         }
+        final String xpathStr = NamerFactory.nameToXPathString(widget);
         List<Namer> refinedNamers = NamerFactory.getSortedAbove(currentNamer);
-        List<Namer> upperBounds = new ArrayList<>();
-        outer: for (Namer refined : refinedNamers) {
-            if (!upperBounds.isEmpty()) {
-                for (Namer upper : upperBounds) {
-                    if (refined.refinesTo(upper)) {
-                        continue outer; // no retry 
-                    }
-                }
+        Candidate selected = selectCandidate(nm, affected, refinedNamers, null, new Refiner() {
+            Namelet createNamelet(Namer refined) {
+                return new Namelet(xpathStr, refined);
             }
-            String xpathStr = NamerFactory.nameToXPathString(widget);
-            Namelet newNamelet = new Namelet(xpathStr, refined);
-            Naming newNaming = currentNaming.extend(currentNamelet, newNamelet);
-            if (checkActionRefinement(newNaming, refined, tts1, tts2, upperBounds) == false) {
-                continue;
+
+            Naming createNaming(Namelet newNamelet) {
+                return currentNaming.extend(currentNamelet, newNamelet);
             }
-            if (!checkPredicate(nm, affected, newNaming)) {
-                continue;
+
+            Check check(Naming newNaming, ForkJoinTask<?> task) {
+                return checkActionRefinement(newNaming, tts1, tts2, task);
             }
-            results.add(new RefinementResult(true, currentNaming, newNaming, currentNamelet, newNamelet, st1, st2, tts1, tts2));
-            break;
+        });
+        if (selected != null) {
+            results.add(new RefinementResult(true, currentNaming, selected.naming, currentNamelet, selected.namelet, st1, st2, tts1, tts2));
         }
     }
 
@@ -684,9 +781,9 @@ public class NamingFactory implements Serializable {
                 if (namelet == null) {
                     namelet = node.getCurrentNamelet();
                 } else if (namelet != node.getCurrentNamelet()) {
-                    Logger.println("Conflict namelet for %s:");
-                    Logger.println("   get: " + node.getCurrentNamelet());
-                    Logger.println("expect: " + namelet);
+                    Logger.NAMING.println("Conflict namelet for %s:");
+                    Logger.NAMING.format("   get: %s", node.getCurrentNamelet());
+                    Logger.NAMING.format("expect: %s", namelet);
                     return null;
                 }
             }
@@ -940,17 +1037,17 @@ public class NamingFactory implements Serializable {
                 targets.add(GUITreeBuilder.getStateKey(targetNaming, tree));
             }
         }
-        Logger.iformat("batchAbstract: refined targets: %d, affected states: %d, threshold: %d, affected threshold.",
+        Logger.NAMING.iformat("batchAbstract: refined targets: %d, affected states: %d, threshold: %d, affected threshold.",
                 targets.size(), affectedStates.size(), threshold, affectedThreshold);
         if (affectedStates.size() <= affectedThreshold && targets.size() <= threshold) {
-            Logger.iformat("batchAbstract: refined targets: %d <= threshold: %d ", targets.size(), threshold);
-            Logger.iformat("batchAbstract: affected states: %d <= threshold: %d ", affectedStates.size(), affectedThreshold);
+            Logger.NAMING.iformat("batchAbstract: refined targets: %d <= threshold: %d ", targets.size(), threshold);
+            Logger.NAMING.iformat("batchAbstract: affected states: %d <= threshold: %d ", affectedStates.size(), affectedThreshold);
             return model;
         }
-        Logger.iformat("Revert a naming from %s to %s, affect %d states and %d trees", targetNaming, targetParentNaming,
+        Logger.NAMING.iformat("Revert a naming from %s to %s, affect %d states and %d trees", targetNaming, targetParentNaming,
                 affectedStates.size(), affected.size());
         for (StateKey key : targets) {
-            Logger.iformat("- %s", key);
+            Logger.NAMING.iformat("- %s", key);
         }
         Predicate p = createAssertStatesFewerThan(targetParentNaming, model, affected, threshold);
         NamingManager nm = model.getNamingManager();
@@ -963,7 +1060,7 @@ public class NamingFactory implements Serializable {
 
     private void blacklistRefinement(Set<GUITree> affected, Naming targetParentNaming, Naming targetNaming) {
         for (GUITree tree : affected) {
-            Logger.iformat("Blacklist naming %s GUI Tree #%d", targetNaming, tree.getTimestamp());
+            Logger.NAMING.iformat("Blacklist naming %s GUI Tree #%d", targetNaming, tree.getTimestamp());
             Utils.addToMapSet(guiTreeNamingBlaclist, tree, targetNaming);
         }
     }
@@ -979,9 +1076,9 @@ public class NamingFactory implements Serializable {
         }
         StateKey originState = GUITreeBuilder.getStateKey(targetParentNaming, tree);
         Set<State> filteredTargets = new HashSet<>();
-        // Logger.iformat("Original state %s", originState);
+        // Logger.NAMING.iformat("Original state %s", originState);
         for (State state : targetStates) {
-            // Logger.iformat("Checking state %s", state);
+            // Logger.NAMING.iformat("Checking state %s", state);
             if (state.getGUITrees().isEmpty()) {
                 continue;
             }
@@ -1020,9 +1117,9 @@ public class NamingFactory implements Serializable {
 
         if (newNames.size() == 1) {
             // Still singleton
-            Logger.iformat("New names: %d, try another namer.", newNames.size());
+            Logger.NAMING.iformat("New names: %d, try another namer.", newNames.size());
             for (Name n: newNames) {
-                Logger.iformat("- %s", n);
+                Logger.NAMING.iformat("- %s", n);
             }
             return null;
         }
@@ -1033,7 +1130,7 @@ public class NamingFactory implements Serializable {
         for (GUITree t : trees) {
             StateKey newState = GUITreeBuilder.getStateKey(newNaming, t);
             if (newState.getWidgets().length > maxInitialNamesPerStateThreshold) {
-                Logger.iformat("New state has too many names: states (%d) > threshold (%d).",
+                Logger.NAMING.iformat("New state has too many names: states (%d) > threshold (%d).",
                         newState.getWidgets().length, maxInitialNamesPerStateThreshold);
                 // stop searching finer namers;
                 upperBounds.add(newNamer);
@@ -1041,7 +1138,7 @@ public class NamingFactory implements Serializable {
             }
             newStates.add(newState);
             if (newStates.size() > threshold) {
-                Logger.iformat("New states are too fine: states(%d) > threshold (%d), trees(%d).",
+                Logger.NAMING.iformat("New states are too fine: states(%d) > threshold (%d), trees(%d).",
                         newStates.size(), threshold, trees.size());
                 // stop searching finer namers;
                 upperBounds.add(newNamer);
@@ -1052,14 +1149,14 @@ public class NamingFactory implements Serializable {
         // Condition 3: no violation of refinement constraints.
         Set<GUITree> affected = new HashSet<GUITree>(trees);
         if (!checkPredicate(model.getNamingManager(), affected, newNaming)) {
-            Logger.wprintln("New naming violates the refinement constaints");
+            Logger.NAMING.wprintln("New naming violates the refinement constaints");
             return null;
         }
 
-        Logger.iformat("Refine actions: nodes(%d), new names (%d), new states (%d), trees(%d), state threshold (%d)",
+        Logger.NAMING.iformat("Refine actions: nodes(%d), new names (%d), new states (%d), trees(%d), state threshold (%d)",
                 nodes.length, newNames.size(), newStates.size(), trees.size(), threshold);
         for (Name n : newNames) {
-            Logger.iformat("- %s", n);
+            Logger.NAMING.iformat("- %s", n);
         }
 
         // stop searching finer namers;
@@ -1075,7 +1172,7 @@ public class NamingFactory implements Serializable {
             return model;
         }
         if (actionRefinementBlacklist.contains(action)) {
-            Logger.iformat("actionRefinement: Reject an action [%s] in blacklist.", action);
+            Logger.NAMING.iformat("actionRefinement: Reject an action [%s] in blacklist.", action);
             return model;
         }
         GUITreeNode[] nodes = action.getResolvedNodes();
@@ -1084,7 +1181,7 @@ public class NamingFactory implements Serializable {
         }
         final State state = action.getState();
         if (state.getWidgets().length >= maxInitialNamesPerStateThreshold) {
-            Logger.iformat("Already too many names %d.", state.getWidgets().length);
+            Logger.NAMING.iformat("Already too many names %d.", state.getWidgets().length);
             return model;
         }
         final GUITree tree = state.getLatestGUITree();
@@ -1095,7 +1192,7 @@ public class NamingFactory implements Serializable {
         if (node == null) {
             throw new IllegalStateException("Action on new/target states must be resolved.");
         }
-        Logger.iformat("actionRefinement: Refine name %s that has been resolved to %d nodes", name, nodes.length);
+        Logger.NAMING.iformat("actionRefinement: Refine name %s that has been resolved to %d nodes", name, nodes.length);
         //
         Namelet namelet = node.getCurrentNamelet();
         Namer namer = namelet.getNamer();
@@ -1141,7 +1238,7 @@ public class NamingFactory implements Serializable {
                 }
             }
         }
-        Logger.iformat("actionRefinement: Add an action [%s] into blacklist.", action);
+        Logger.NAMING.iformat("actionRefinement: Add an action [%s] into blacklist.", action);
         actionRefinementBlacklist.add(action);
         return model;
     }
@@ -101,4 +101,20 @@ public interface NamingManager extends Serializable {
 
     void release(GUITree removed);
 
+    /**
+     * GUI trees whose naming has been updated since the last
+     * {@link #clearUpdates()}. Their states need to be rebuilt.
+     * @return
+     */
+    Set<GUITree> getUpdatedTrees();
+
+    /**
+     * Namings whose states may have been changed as a side effect of the
+     * updates, e.g., the refinements dropped by an abstraction.
+     * @return null if any state may have been changed
+     */
+    Set<Naming> getUpdatedScopes();
+
+    void clearUpdates();
+
 }
@@ -0,0 +1,470 @@
+package com.android.commands.monkey.ape.naming;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+
+/**
+ * Evaluates the XPath subset generated by {@link NamingFactory} and
+ * {@link Name#toXPath()} directly over {@link GUITreeNode}, so naming does not
+ * need the DOM. Supported expressions are absolute location paths
+ *
+ * <pre>
+ * ('/' | '//') ('*' | 'node') ('[' predicate ']')* ...
+ * </pre>
+ *
+ * where a predicate is a list of {@code @attr = literal} or
+ * {@code @attr != literal} comparisons joined by {@code and}/{@code or}, and a
+ * literal is a quoted string or a number. Anything else is rejected by
+ * {@link #compile(String)} and the caller must fall back to XPath on the DOM.
+ *
+ * @author txgu
+ *
+ */
+public class NodeSelector {
+
+    enum Attribute {
+        INDEX("index") {
+            String value(GUITreeNode node) {
+                return String.valueOf(node.getIndex());
+            }
+
+            double number(GUITreeNode node) {
+                return node.getIndex();
+            }
+        },
+        TEXT("text") {
+            String value(GUITreeNode node) {
+                return node.getText();
+            }
+        },
+        RESOURCE_ID("resource-id") {
+            String value(GUITreeNode node) {
+                return node.getResourceID();
+            }
+        },
+        CLASS("class") {
+            String value(GUITreeNode node) {
+                return node.getClassName();
+            }
+        },
+        CONTENT_DESC("content-desc") {
+            String value(GUITreeNode node) {
+                return node.getContentDesc();
+            }
+        },
+        PACKAGE("package") {
+            String value(GUITreeNode node) {
+                return node.getPackageName();
+            }
+        },
+        CHECKABLE("checkable") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isCheckable());
+            }
+        },
+        CHECKED("checked") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isChecked());
+            }
+        },
+        CLICKABLE("clickable") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isClickable());
+            }
+        },
+        ENABLED("enabled") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isEnabled());
+            }
+        },
+        FOCUSABLE("focusable") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isFocusable());
+            }
+        },
+        FOCUSED("focused") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isFocused());
+            }
+        },
+        SCROLLABLE("scrollable") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isScrollable());
+            }
+        },
+        LONG_CLICKABLE("long-clickable") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isLongClickable());
+            }
+        },
+        PASSWORD("password") {
+            String value(GUITreeNode node) {
+                return Boolean.toString(node.isPassword());
+            }
+        },
+        SCROLL_TYPE("scroll-type") {
+            String value(GUITreeNode node) {
+                return node.getScrollType();
+            }
+        };
+
+        private static final Map<String, Attribute> byName = new HashMap<>();
+
+        static {
+            for (Attribute attr : values()) {
+                byName.put(attr.attrName, attr);
+            }
+        }
+
+        final String attrName;
+
+        Attribute(String attrName) {
+            this.attrName = attrName;
+        }
+
+        abstract String value(GUITreeNode node);
+
+        /**
+         * XPath number() of the attribute value.
+         */
+        double number(GUITreeNode node) {
+            String value = value(node);
+            if (value == null) {
+                return Double.NaN;
+            }
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        static Attribute get(String name) {
+            return byName.get(name);
+        }
+    }
+
+    static abstract class Predicate {
+        abstract boolean test(GUITreeNode node);
+    }
+
+    static class Comparison extends Predicate {
+        final Attribute attr;
+        final boolean negate;
+        final String string;
+        final double number;
+        final boolean numeric;
+
+        Comparison(Attribute attr, boolean negate, String string) {
+            this.attr = attr;
+            this.negate = negate;
+            this.string = string;
+            this.number = Double.NaN;
+            this.numeric = false;
+        }
+
+        Comparison(Attribute attr, boolean negate, double number) {
+            this.attr = attr;
+            this.negate = negate;
+            this.string = null;
+            this.number = number;
+            this.numeric = true;
+        }
+
+        boolean test(GUITreeNode node) {
+            boolean equal;
+            if (numeric) {
+                equal = attr.number(node) == number;
+            } else {
+                String value = attr.value(node);
+                equal = string.equals(value == null ? "" : value);
+            }
+            return negate ? !equal : equal;
+        }
+    }
+
+    static class Junction extends Predicate {
+        final Predicate[] operands;
+        final boolean conjunction;
+
+        Junction(Predicate[] operands, boolean conjunction) {
+            this.operands = operands;
+            this.conjunction = conjunction;
+        }
+
+        boolean test(GUITreeNode node) {
+            for (Predicate p : operands) {
+                if (p.test(node) != conjunction) {
+                    return !conjunction;
+                }
+            }
+            return conjunction;
+        }
+    }
+
+    private final String exprStr;
+    private final boolean[] descendant;
+    private final Predicate[][] predicates;
+
+    private NodeSelector(String exprStr, boolean[] descendant, Predicate[][] predicates) {
+        this.exprStr = exprStr;
+        this.descendant = descendant;
+        this.predicates = predicates;
+    }
+
+    /**
+     * @param exprStr
+     * @return the selector, or null if the expression is outside the supported subset.
+     */
+    public static NodeSelector compile(String exprStr) {
+        return new Parser(exprStr).parse();
+    }
+
+    public String getExprString() {
+        return exprStr;
+    }
+
+    /**
+     * Select all nodes in the tree rooted at {@code root} that the expression
+     * selects on the corresponding document. Nodes are not necessarily in
+     * document order.
+     *
+     * @param root
+     * @return
+     */
+    public List<GUITreeNode> select(GUITreeNode root) {
+        List<GUITreeNode> current = null; // the document node
+        for (int i = 0; i < descendant.length; i++) {
+            Predicate[] preds = predicates[i];
+            List<GUITreeNode> next = new ArrayList<>();
+            if (current == null) {
+                if (descendant[i]) {
+                    collect(root, preds, next, null);
+                } else if (test(root, preds)) {
+                    next.add(root);
+                }
+            } else {
+                Set<GUITreeNode> visited = null;
+                if (descendant[i] && current.size() > 1) {
+                    visited = Collections.newSetFromMap(new IdentityHashMap<GUITreeNode, Boolean>());
+                }
+                for (GUITreeNode node : current) {
+                    Iterator<GUITreeNode> children = node.getChildren();
+                    while (children.hasNext()) {
+                        GUITreeNode child = children.next();
+                        if (descendant[i]) {
+                            collect(child, preds, next, visited);
+                        } else if (test(child, preds)) {
+                            next.add(child);
+                        }
+                    }
+                }
+            }
+            if (next.isEmpty()) {
+                return next;
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    private static void collect(GUITreeNode node, Predicate[] preds, List<GUITreeNode> result,
+            Set<GUITreeNode> visited) {
+        if (visited != null && !visited.add(node)) {
+            return; // already collected through a nested context node
+        }
+        if (test(node, preds)) {
+            result.add(node);
+        }
+        Iterator<GUITreeNode> children = node.getChildren();
+        while (children.hasNext()) {
+            collect(children.next(), preds, result, visited);
+        }
+    }
+
+    private static boolean test(GUITreeNode node, Predicate[] preds) {
+        for (Predicate p : preds) {
+            if (!p.test(node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString() {
+        return "NodeSelector[" + exprStr + "]";
+    }
+
+    static class Parser {
+        final String input;
+        int pos;
+
+        Parser(String input) {
+            this.input = input;
+        }
+
+        NodeSelector parse() {
+            List<Boolean> axes = new ArrayList<>();
+            List<Predicate[]> steps = new ArrayList<>();
+            skipSpaces();
+            while (pos < input.length()) {
+                if (!consume('/')) {
+                    return null;
+                }
+                axes.add(consume('/'));
+                skipSpaces();
+                if (!consume('*') && !consumeWord("node")) {
+                    return null;
+                }
+                List<Predicate> preds = new ArrayList<>();
+                skipSpaces();
+                while (consume('[')) {
+                    Predicate p = parseOr();
+                    if (p == null) {
+                        return null;
+                    }
+                    skipSpaces();
+                    if (!consume(']')) {
+                        return null;
+                    }
+                    preds.add(p);
+                    skipSpaces();
+                }
+                steps.add(preds.toArray(new Predicate[preds.size()]));
+            }
+            if (steps.isEmpty()) {
+                return null;
+            }
+            boolean[] descendant = new boolean[axes.size()];
+            for (int i = 0; i < descendant.length; i++) {
+                descendant[i] = axes.get(i);
+            }
+            return new NodeSelector(input, descendant, steps.toArray(new Predicate[steps.size()][]));
+        }
+
+        Predicate parseOr() {
+            List<Predicate> operands = new ArrayList<>();
+            do {
+                Predicate p = parseAnd();
+                if (p == null) {
+                    return null;
+                }
+                operands.add(p);
+                skipSpaces();
+            } while (consumeWord("or"));
+            if (operands.size() == 1) {
+                return operands.get(0);
+            }
+            return new Junction(operands.toArray(new Predicate[operands.size()]), false);
+        }
+
+        Predicate parseAnd() {
+            List<Predicate> operands = new ArrayList<>();
+            do {
+                Predicate p = parseComparison();
+                if (p == null) {
+                    return null;
+                }
+                operands.add(p);
+                skipSpaces();
+            } while (consumeWord("and"));
+            if (operands.size() == 1) {
+                return operands.get(0);
+            }
+            return new Junction(operands.toArray(new Predicate[operands.size()]), true);
+        }
+
+        Predicate parseComparison() {
+            skipSpaces();
+            if (!consume('@')) {
+                return null;
+            }
+            int begin = pos;
+            while (pos < input.length()) {
+                char c = input.charAt(pos);
+                if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            Attribute attr = Attribute.get(input.substring(begin, pos));
+            if (attr == null) {
+                return null;
+            }
+            skipSpaces();
+            boolean negate = consume('!');
+            if (!consume('=')) {
+                return null;
+            }
+            skipSpaces();
+            if (pos >= input.length()) {
+                return null;
+            }
+            char c = input.charAt(pos);
+            if (c == '\'' || c == '"') {
+                int end = input.indexOf(c, pos + 1);
+                if (end == -1) {
+                    return null;
+                }
+                String literal = input.substring(pos + 1, end);
+                pos = end + 1;
+                return new Comparison(attr, negate, literal);
+            }
+            begin = pos;
+            if (c == '-') {
+                pos++;
+            }
+            while (pos < input.length()) {
+                c = input.charAt(pos);
+                if ((c >= '0' && c <= '9') || c == '.') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            try {
+                return new Comparison(attr, negate, Double.parseDouble(input.substring(begin, pos)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        boolean consume(char c) {
+            if (pos < input.length() && input.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        boolean consumeWord(String word) {
+            if (!input.startsWith(word, pos)) {
+                return false;
+            }
+            int end = pos + word.length();
+            if (end < input.length()) {
+                char c = input.charAt(end);
+                if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                    return false;
+                }
+            }
+            pos = end;
+            return true;
+        }
+
+        void skipSpaces() {
+            while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
@@ -18,6 +18,17 @@ public class ParentNamer extends AbstractNamer {
             this.localName = localName;
         }
 
+        @Override
+        protected int componentHashCode() {
+            return NameManager.order(parentName) * 31 + NameManager.order(localName);
+        }
+
+        @Override
+        protected boolean sameComponents(AbstractName other) {
+            ParentName that = (ParentName) other;
+            return parentName == that.parentName && localName == that.localName;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -1,6 +1,12 @@
 package com.android.commands.monkey.ape.naming;
 
+import static com.android.commands.monkey.ape.utils.Config.checkNamingIndex;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -9,6 +15,8 @@ import org.w3c.dom.Document;
 import com.android.commands.monkey.ape.model.StateKey;
 import com.android.commands.monkey.ape.tree.GUITree;
 import com.android.commands.monkey.ape.tree.GUITreeBuilder;
+import com.android.commands.monkey.ape.tree.GUITreeNode;
+import com.android.commands.monkey.ape.utils.Config;
 import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.Utils;
 
@@ -26,6 +34,106 @@ public class StateNamingManager extends AbstractNamingManager implements Cloneab
     private static final boolean debug = true;
     private Map<Naming, Map<StateKey, Naming>> namingToEdge = new HashMap<>();
 
+    /**
+     * Trees with the same signature resolve to the same naming, so a tree
+     * seen before resolves without any state key.
+     */
+    private static final int SIGNATURE_CACHE_SIZE = Config.getInteger("ape.namingSignatureCacheSize", 1024);
+
+    private transient Map<Naming, Map<String, Integer>> namingToActivities;
+    private transient Map<TreeSignature, Naming> signatureToNaming = newSignatureCache();
+    private transient long signatureHitCount;
+    private transient long signatureMissCount;
+    private transient long keyCount;
+
+    /**
+     * Activity and a hash of everything namers, namelets, and the filters of
+     * {@link Naming} read from the nodes of a tree, which covers every
+     * attribute of the nodes in the document for selectors and xpathlets.
+     * Trees of the same signature have the same state key under every
+     * naming.
+     */
+    static class TreeSignature {
+        final String activity;
+        final int nodeCount;
+        final long hash;
+
+        TreeSignature(GUITree tree) {
+            this.activity = tree.getActivityName().getClassName();
+            long[] state = new long[] { 1125899906842597L, 0 };
+            hash(tree.getRootNode(), state);
+            this.hash = state[0];
+            this.nodeCount = (int) state[1];
+        }
+
+        private static void hash(GUITreeNode node, long[] state) {
+            state[1]++;
+            long h = state[0];
+            h = mix(h, hash(node.getPackageName()));
+            h = mix(h, hash(node.getClassName()));
+            h = mix(h, hash(node.getResourceID()));
+            h = mix(h, hash(node.getText()));
+            h = mix(h, hash(node.getContentDesc()));
+            h = mix(h, hash(node.getScrollType()));
+            h = mix(h, node.getIndex());
+            int flags = (node.isEnabled() ? 1 : 0) | (node.isClickable() ? 2 : 0) | (node.isCheckable() ? 4 : 0)
+                    | (node.isLongClickable() ? 8 : 0) | (node.isScrollable() ? 16 : 0) | (node.isEmpty() ? 32 : 0)
+                    | (node.isOutOfRoot() ? 64 : 0) | (node.isChecked() ? 128 : 0) | (node.isFocusable() ? 256 : 0)
+                    | (node.isFocused() ? 512 : 0) | (node.isPassword() ? 1024 : 0);
+            h = mix(h, flags);
+            h = mix(h, node.getChildCount());
+            state[0] = h;
+            Iterator<GUITreeNode> children = node.getChildren();
+            while (children.hasNext()) {
+                hash(children.next(), state);
+            }
+        }
+
+        private static long hash(String s) {
+            if (s == null) {
+                return -1L;
+            }
+            long h = 0;
+            for (int i = 0; i < s.length(); i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return mix(h, s.length());
+        }
+
+        private static long mix(long h, long value) {
+            h = (h ^ value) * 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 29);
+        }
+
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TreeSignature)) {
+                return false;
+            }
+            TreeSignature that = (TreeSignature) obj;
+            return hash == that.hash && nodeCount == that.nodeCount && activity.equals(that.activity);
+        }
+    }
+
+    private static Map<TreeSignature, Naming> newSignatureCache() {
+        return new LinkedHashMap<TreeSignature, Naming>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TreeSignature, Naming> eldest) {
+                return size() > SIGNATURE_CACHE_SIZE;
+            }
+        };
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        signatureToNaming = newSignatureCache();
+    }
+
     public StateNamingManager(NamingFactory nf) {
         super(nf);
     }
@@ -39,9 +147,56 @@ public class StateNamingManager extends AbstractNamingManager implements Cloneab
     }
 
     public Naming getNaming(GUITree tree, ComponentName activityName, Document document, boolean verbose) {
+        if (verbose) {
+            return walk(tree, verbose);
+        }
+        String activity = tree.getActivityName().getClassName();
+        Map<String, Integer> activities = getIndex().get(getBaseNaming());
+        if (activities == null || !activities.containsKey(activity)) {
+            return getBaseNaming(); // no refinement for trees of the activity
+        }
+        TreeSignature signature = new TreeSignature(tree);
+        Naming naming;
+        synchronized (signatureToNaming) {
+            naming = signatureToNaming.get(signature);
+        }
+        if (naming != null) {
+            signatureHitCount++;
+        } else {
+            signatureMissCount++;
+            naming = walk(tree, false);
+            synchronized (signatureToNaming) {
+                signatureToNaming.put(signature, naming);
+            }
+        }
+        if (checkNamingIndex) {
+            Naming check = walk(tree, false);
+            if (check != naming) {
+                walk(tree, true);
+                throw new IllegalStateException("Indexed naming " + naming + " differs from " + check);
+            }
+        }
+        return naming;
+    }
+
+    /**
+     * Walks the refinements from the base naming. A state key is computed
+     * only at namings refined for states of the activity of the tree.
+     */
+    private Naming walk(GUITree tree, boolean verbose) {
+        String activity = tree.getActivityName().getClassName();
+        Map<Naming, Map<String, Integer>> index = getIndex();
         Naming source = getBaseNaming();
         while (true) {
+            Map<String, Integer> activities = index.get(source);
+            if (activities == null || !activities.containsKey(activity)) {
+                if (verbose) {
+                    Logger.iformat("getNaming: Source: %s, no refinement for %s", source, activity);
+                }
+                return source;
+            }
             StateKey state = getStateKey(source, tree);
+            keyCount++;
             Naming target = Utils.getFromMapMap(namingToEdge, source, state);
             if (verbose) {
                 Logger.iformat("getNaming: Source: %s, Target: %s, State: %s", source, target, state);
@@ -53,9 +208,41 @@ public class StateNamingManager extends AbstractNamingManager implements Cloneab
         }
     }
 
+    /**
+     * The number of refinements of each naming by activity, rebuilt after
+     * refinements change.
+     */
+    private Map<Naming, Map<String, Integer>> getIndex() {
+        Map<Naming, Map<String, Integer>> index = namingToActivities;
+        if (index == null) {
+            index = new HashMap<>();
+            for (Entry<Naming, Map<StateKey, Naming>> entry : namingToEdge.entrySet()) {
+                Map<String, Integer> activities = new HashMap<>();
+                for (StateKey state : entry.getValue().keySet()) {
+                    Integer count = activities.get(state.getActivity());
+                    activities.put(state.getActivity(), count == null ? 1 : count + 1);
+                }
+                if (!activities.isEmpty()) {
+                    index.put(entry.getKey(), activities);
+                }
+            }
+            namingToActivities = index;
+        }
+        return index;
+    }
+
+    private void invalidateIndex() {
+        namingToActivities = null;
+        synchronized (signatureToNaming) {
+            signatureToNaming.clear();
+        }
+    }
+
     public StateNamingManager clone() {
         StateNamingManager that = (StateNamingManager) super.clone();
         that.namingToEdge = new HashMap<>(this.namingToEdge);
+        that.namingToActivities = null;
+        that.signatureToNaming = newSignatureCache();
         return that;
     }
 
@@ -81,6 +268,7 @@ public class StateNamingManager extends AbstractNamingManager implements Cloneab
         if (oldOne.isAncestor(newOne)) { // state refinement
             StateKey state = getStateKey(oldOne, tree);
             Naming check = Utils.addToMapMap(namingToEdge, oldOne, state, newOne);
+            invalidateIndex();
             if (verbose) {
                 Logger.iformat("updateNaming: Source: %s, Target: %s, State: %s", oldOne, newOne, state);
             }
@@ -111,7 +299,11 @@ public class StateNamingManager extends AbstractNamingManager implements Cloneab
                     if (verbose) {
                         Logger.iformat("updateNaming: Parent: %s, State: %s, Leaf: %s", parent, state, oldOne);
                     }
-                    edges.remove(state); // a previous refinement
+                    Naming refined = edges.remove(state); // a previous refinement
+                    if (refined != null) {
+                        invalidateIndex();
+                        markUpdated(refined);
+                    }
                 }
                 if (parent == newOne) {
                     break;
@@ -146,6 +338,8 @@ public class StateNamingManager extends AbstractNamingManager implements Cloneab
 
     @Override
     public void dump() {
+        Logger.format("Naming index: signature hit=%d, miss=%d, state keys=%d", signatureHitCount,
+                signatureMissCount, keyCount);
         for (Entry<Naming, Map<StateKey, Naming>> entry : this.namingToEdge.entrySet()) {
             Logger.format("%s: %d", entry.getKey(), entry.getValue().size());
             for (Entry<StateKey, Naming> e2 : entry.getValue().entrySet()) {
@@ -24,6 +24,18 @@ public class TextNamer extends AbstractNamer implements SingletonNamer {
             this.contentDesc = contentDesc;
         }
 
+        @Override
+        protected int componentHashCode() {
+            return NameManager.hashString(text) * 31 + NameManager.hashString(contentDesc);
+        }
+
+        @Override
+        protected boolean sameComponents(AbstractName other) {
+            TextName that = (TextName) other;
+            return NameManager.sameString(text, that.text)
+                    && NameManager.sameOptionalString(contentDesc, that.contentDesc);
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
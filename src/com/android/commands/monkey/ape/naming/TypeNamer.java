@@ -43,6 +43,18 @@ public class TypeNamer extends AbstractNamer implements SingletonNamer {
         }
 
 
+        @Override
+        protected int componentHashCode() {
+            return NameManager.hashString(klass) * 31 + NameManager.hashString(resourceId);
+        }
+
+        @Override
+        protected boolean sameComponents(AbstractName other) {
+            TypeName that = (TypeName) other;
+            return NameManager.sameString(klass, that.klass)
+                    && NameManager.sameOptionalString(resourceId, that.resourceId);
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -32,14 +32,25 @@ public class GUITree implements Serializable {
     private static List<GUITree> loadedGUITrees = new ArrayList<GUITree>();
 
     public static void releaseLoadedData() {
-        for (GUITree tree : loadedGUITrees) {
+        List<GUITree> trees;
+        synchronized (loadedGUITrees) { // trees are released without holding it
+            trees = new ArrayList<GUITree>(loadedGUITrees);
+            loadedGUITrees.clear();
+        }
+        for (GUITree tree : trees) {
             tree.releaseData();
         }
-        loadedGUITrees.clear();
     }
 
+    // Called under the lock of the tree.
     private static void registerLoadedData(GUITree tree) {
-        loadedGUITrees.add(tree);
+        if (tree.dataLoaded) {
+            return;
+        }
+        tree.dataLoaded = true;
+        synchronized (loadedGUITrees) {
+            loadedGUITrees.add(tree);
+        }
     }
 
     private int timestamp;
@@ -55,6 +66,7 @@ public class GUITree implements Serializable {
     private Object[] currentNodes; // An element of this array may be a node or an array of nodes
 
     private transient Document document;
+    private transient boolean dataLoaded; // registered to be released
 
     private boolean hasMetTargetMethod;
 
@@ -176,7 +188,11 @@ public class GUITree implements Serializable {
         return nodes.length;
     }
 
-    public Document getDocument() {
+    /**
+     * Builds the document at most once, as refinement checks may ask for it
+     * from several threads.
+     */
+    public synchronized Document getDocument() {
         if (document == null) {
             Logger.iformat("Rebuild document for tree #%d", this.getTimestamp());
             document = GUITreeBuilder.buildDocumentFromGUITree(this);
@@ -185,7 +201,22 @@ public class GUITree implements Serializable {
         return document;
     }
 
-    public void setDocument(Document document) {
+    /**
+     * @return the document if it has been built, without building it.
+     */
+    public synchronized Document getLoadedDocument() {
+        return document;
+    }
+
+    /**
+     * Registers the tree to release the names memoized in its nodes by
+     * naming it, along with its document.
+     */
+    public synchronized void markNamesMemoized() {
+        registerLoadedData(this);
+    }
+
+    public synchronized void setDocument(Document document) {
         this.document = document;
         if (document != null) {
             registerLoadedData(this);
@@ -308,17 +339,21 @@ public class GUITree implements Serializable {
     /**
      * Release the XML document to save memory since we can recreate it when necessary.
      */
-    public void releaseData() {
+    public synchronized void releaseData() {
         Logger.dprintln("Release document for tree #" + getTimestamp());
         releaseNodeData(this.rootNode);
         this.document = null;
+        this.dataLoaded = false;
     }
 
     private static void releaseNodeData(GUITreeNode node) {
-        Element e = node.getDomNode();
-        e.setUserData(GUITreeBuilder.GUI_TREE_NODE_PROP_NAME, null, null);
-        node.setDomNode(null);
+        if (node.hasDomNode()) {
+            Element e = node.getDomNode();
+            e.setUserData(GUITreeBuilder.GUI_TREE_NODE_PROP_NAME, null, null);
+            node.setDomNode(null);
+        }
         node.setNodeInfo(null);
+        node.clearMemoizedNames();
         Iterator<GUITreeNode> iterator = node.getChildren();
         while (iterator.hasNext()) {
             releaseNodeData(iterator.next());
@@ -7,15 +7,15 @@ import static com.android.commands.monkey.ape.utils.Config.excludeEmptyChild;
 import static com.android.commands.monkey.ape.utils.Config.excludeInvisibleNode;
 import static com.android.commands.monkey.ape.utils.Config.ignoreWebViewThreshold;
 import static com.android.commands.monkey.ape.utils.Config.patchGUITree;
+import static com.android.commands.monkey.ape.utils.Config.perceptualImageHash;
+import static com.android.commands.monkey.ape.utils.Config.useNodeSelector;
 
 import java.io.File;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -40,11 +40,13 @@ import com.android.commands.monkey.ape.model.xpathaction.XPathletReader;
 import com.android.commands.monkey.ape.naming.Name;
 import com.android.commands.monkey.ape.naming.Naming;
 import com.android.commands.monkey.ape.naming.Naming.NamingResult;
+import com.android.commands.monkey.ape.naming.NamingCache;
 import com.android.commands.monkey.ape.naming.NamingManager;
 import com.android.commands.monkey.ape.utils.Logger;
 import com.android.commands.monkey.ape.utils.StringCache;
 import com.android.commands.monkey.ape.utils.Utils;
 import com.android.commands.monkey.ape.utils.StringEscapeUtils;
+import com.android.commands.monkey.ape.utils.XPathBuilder;
 
 import android.content.ComponentName;
 import android.graphics.Bitmap;
@@ -92,8 +94,8 @@ public class GUITreeBuilder {
 
     private static void applyXPathlets(Document document) {
         for (XPathlet xpathlet : xPathlets) {
-            XPathExpression expr = xpathlet.getExpr();
             try {
+                XPathExpression expr = XPathBuilder.getExpression(xpathlet.getExprStr());
                 NodeList e = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
                 Logger.iformat("Select %d nodes by %s", e.getLength(), xpathlet.getExprStr());
                 for (int i = 0; i < e.getLength(); i++) {
@@ -155,7 +157,7 @@ public class GUITreeBuilder {
      */
     public GUITreeBuilder(NamingManager nm, GUITree tree) {
         this(nm, tree.getActivityName());
-        this.document = tree.getDocument();
+        this.document = tree.getLoadedDocument();
         this.tree = tree;
         rebuildGUITree();
     }
@@ -164,6 +166,7 @@ public class GUITreeBuilder {
         GUITreeNode rootNode = buildNodeAndXmlFromNodeInfo(rootInfo, bitmap);
         tree = new GUITree(rootNode, activity);
         tree.setDocument(document);
+        NamingCache.pin(tree);
         Naming current = nm.getNaming(tree);
         NamingResult results = current.naming(tree, true);
         tree.setCurrentNaming(current, results.getNames(), results.getNodes());
@@ -186,6 +189,7 @@ public class GUITreeBuilder {
         GUITreeNode rootNode = buildNodeFromXml(document);
         tree = new GUITree(rootNode, activity);
         tree.setDocument(document);
+        NamingCache.pin(tree);
         Naming current = nm.getNaming(tree);
         NamingResult results = current.naming(tree, true);
         tree.setCurrentNaming(current, results.getNames(), results.getNodes());
@@ -202,7 +206,9 @@ public class GUITreeBuilder {
     }
 
     protected GUITreeNode buildNodeAndXmlFromNodeInfo(AccessibilityNodeInfo info, Bitmap image) {
-        document = createDocument();
+        if (!useNodeSelector || !xPathlets.isEmpty()) {
+            document = createDocument();
+        } // Otherwise, the document is built on demand by GUITree.getDocument().
         GUITreeNode root = buildNodeAndXmlFromNodeInfo(null, document, info, 0);
         if (document != null) {
             document.appendChild(root.getDomNode());
@@ -213,7 +219,7 @@ public class GUITreeBuilder {
         }
         if (computeImageText) {
             if (image != null) {
-                computeImageText(root, image);
+                computeImageText(root, getImagePixels(image));
                 image.recycle();
             }
         }
@@ -223,15 +229,33 @@ public class GUITreeBuilder {
         return root;
     }
 
+    private static final ImageHasher imageHasher = perceptualImageHash ? new ImageHasher.Perceptual()
+            : new ImageHasher.Exact();
+
+    // Reused by captures, which are built one by one.
+    private static int[] pixelBuffer;
+
+    /**
+     * Converts the screenshot once into pixels shared by all nodes.
+     */
+    static ImagePixels getImagePixels(Bitmap image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int size = width * height;
+        if (pixelBuffer == null || pixelBuffer.length < size) {
+            pixelBuffer = new int[size];
+        }
+        image.getPixels(pixelBuffer, 0, width, 0, 0, width, height);
+        ImagePixels.quantizeRGB565(pixelBuffer, size);
+        return new ImagePixels(pixelBuffer, width, height, imageHasher);
+    }
+
     /**
      * An ImageButton may not have a text attribute. We compute a hash value from its bytes as its text.
      * @param node
      * @param image
      */
-    void computeImageText(GUITreeNode node, final Bitmap image) {
-        if (image == null) {
-            return;
-        }
+    void computeImageText(GUITreeNode node, ImagePixels image) {
         if (node.getChildCount() > 0) {
             Iterator<GUITreeNode> it = node.getChildren();
             while (it.hasNext()) {
@@ -369,7 +393,7 @@ public class GUITreeBuilder {
             if (node.isClickable() || node.isCheckable() || node.isLongClickable() || node.isScrollable()) {
                 throw new IllegalStateException("Should be cleared!");
             }
-            if (node.getDomNode() == null) {
+            if (document != null && node.getDomNode() == null) {
                 throw new RuntimeException();
             }
         }
@@ -458,18 +482,30 @@ public class GUITreeBuilder {
         return false;
     }
 
+    /**
+     * Accepts both the documents saved by ourselves (step-N.xml), whose
+     * document element is the root node, and uiautomator dumps, whose root
+     * node is wrapped by a hierarchy element.
+     */
     protected GUITreeNode buildNodeFromXml(Document document) {
-        GUITreeNode root = buildNodeFromXml(null, 0, getFirstChildElement(document.getDocumentElement()));
+        Element rootElement = document.getDocumentElement();
+        if (!GUI_TREE_NODE_TAG_NAME.equals(rootElement.getTagName())) {
+            rootElement = getFirstChildElement(rootElement);
+        }
+        GUITreeNode root = buildNodeFromXml(null, 0, rootElement);
         return root;
     }
 
     private GUITreeNode buildNodeFromXml(GUITreeNode parent, int index, Element e) {
         GUITreeNode n = new GUITreeNode(parent);
+        n.setDomNode(e);
         n.setIndex(Integer.valueOf(e.getAttribute("index")));
         n.setResourceID(e.getAttribute("resource-id"));
         n.setClassName(e.getAttribute("class"));
         n.setPackageName(e.getAttribute("package"));
         n.setText(e.getAttribute("text"));
+        n.setContentDesc(e.getAttribute("content-desc"));
+        n.setIsPassword(Boolean.valueOf(e.getAttribute("password")));
 
         n.setClickable(Boolean.valueOf(e.getAttribute("clickable")));
         n.setLongClickable(Boolean.valueOf(e.getAttribute("long-clickable")));
@@ -533,25 +569,29 @@ public class GUITreeBuilder {
         return document.createElement(GUI_TREE_NODE_TAG_NAME);
     }
 
-    static void fillElement(Element element, GUITreeNode node) {
-        element.setAttribute("index", StringCache.cacheString(String.valueOf(node.getIndex())));
-        element.setAttribute("text", node.getText());
-        element.setAttribute("resource-id", node.getResourceID());
-        element.setAttribute("class", node.getClassName());
-        element.setAttribute("content-desc", node.getContentDesc());
-        element.setAttribute("package", node.getPackageName());
-        element.setAttribute("checkable", Boolean.toString(node.isCheckable()));
-        element.setAttribute("checked", Boolean.toString(node.isChecked()));
-        element.setAttribute("clickable", Boolean.toString(node.isClickable()));
-        element.setAttribute("enabled", Boolean.toString(node.isEnabled()));
-        element.setAttribute("focusable", Boolean.toString(node.isFocusable()));
-        element.setAttribute("focused", Boolean.toString(node.isFocused()));
-        element.setAttribute("scrollable", Boolean.toString(node.isScrollable()));
-        element.setAttribute("long-clickable", Boolean.toString(node.isLongClickable()));
-        element.setAttribute("password", Boolean.toString(node.isPassword()));
-
-        element.setAttribute("scroll-type", node.getScrollType());
+    /**
+     * Attributes of the element of a node, in the order of
+     * {@link #getAttributeValues(GUITreeNode)}.
+     */
+    static final String[] NODE_ATTRIBUTE_NAMES = { "index", "text", "resource-id", "class", "content-desc", "package",
+            "checkable", "checked", "clickable", "enabled", "focusable", "focused", "scrollable", "long-clickable",
+            "password", "scroll-type" };
 
+    static String[] getAttributeValues(GUITreeNode node) {
+        return new String[] { StringCache.cacheString(String.valueOf(node.getIndex())), node.getText(),
+                node.getResourceID(), node.getClassName(), node.getContentDesc(), node.getPackageName(),
+                Boolean.toString(node.isCheckable()), Boolean.toString(node.isChecked()),
+                Boolean.toString(node.isClickable()), Boolean.toString(node.isEnabled()),
+                Boolean.toString(node.isFocusable()), Boolean.toString(node.isFocused()),
+                Boolean.toString(node.isScrollable()), Boolean.toString(node.isLongClickable()),
+                Boolean.toString(node.isPassword()), node.getScrollType() };
+    }
+
+    static void fillElement(Element element, GUITreeNode node) {
+        String[] values = getAttributeValues(node);
+        for (int i = 0; i < NODE_ATTRIBUTE_NAMES.length; i++) {
+            element.setAttribute(NODE_ATTRIBUTE_NAMES[i], values[i]);
+        }
         node.setDomNode(element);
     }
 
@@ -610,9 +650,6 @@ public class GUITreeBuilder {
         return this.document;
     }
 
-    final static Map<Naming, Map<GUITree, StateKey>> namingToGUITreeCache = new HashMap<>();
-    final static Map<Naming, Map<GUITree, Object[]>> namingToGUITreeNodesCache = new HashMap<>();
-
     public static StateKey getStateKey(Naming naming, GUITree tree) {
         if (tree.getCurrentNaming() == naming) {
             State current = tree.getCurrentState();
@@ -620,7 +657,7 @@ public class GUITreeBuilder {
                 return current.getStateKey();
             }
         }
-        StateKey result = Utils.getFromMapMap(namingToGUITreeCache, naming, tree);
+        StateKey result = NamingCache.getStateKey(naming, tree);
         if (result == null) {
             ComponentName activity = tree.getActivityName();
             if (tree.getCurrentNaming() == naming) {
@@ -628,32 +665,24 @@ public class GUITreeBuilder {
             } else {
                 result = State.buildStateKey(naming, activity, naming.getNames(tree));
             }
-            Utils.addToMapMap(namingToGUITreeCache, naming, tree, result);
+            NamingCache.putStateKey(naming, tree, result);
         }
         return result;
     }
 
-    static Map<Naming, Map<GUITreeNode, Name>> namingToGUITreeNodeCache = new HashMap<>();
-
     public static Name getNodeName(Naming naming, GUITree tree, GUITreeNode node) {
         if (tree.getCurrentNaming() == naming) {
             return node.getXPathName();
         }
-        Name result = Utils.getFromMapMap(namingToGUITreeNodeCache, naming, node);
+        Name result = NamingCache.getNodeName(naming, tree, node);
         if (result == null) {
             result = naming.getName(tree, node);
-            Utils.addToMapMap(namingToGUITreeNodeCache, naming, node, result);
+            NamingCache.putNodeName(naming, tree, node, result);
         }
         return result;
     }
 
     public static void release(GUITree removed) {
-        Naming naming = removed.getCurrentNaming();
-        if (naming == null) {
-            return;
-        }
-        Utils.removeFromMapMap(namingToGUITreeCache, naming, removed);
-        Utils.removeFromMapMap(namingToGUITreeNodesCache, naming, removed);
-        naming.release(removed);
+        NamingCache.release(removed);
     }
 }
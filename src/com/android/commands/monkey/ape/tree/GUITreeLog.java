@@ -0,0 +1,80 @@
+package com.android.commands.monkey.ape.tree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Append-only binary log of the GUI trees of all steps, which replaces a
+ * step-N.xml file per step. The log is a sequence of entries, one per step,
+ * and an index file of fixed size records locates the entry of a step.
+ *
+ * <pre>
+ * log   : int MAGIC, int VERSION, entry*
+ * entry : byte flags, varint step, varint stringCount, string * stringCount, node
+ * string: varint length, UTF-8 bytes
+ * node  : varint (id &lt;&lt; 1)                     a subtree defined before
+ *       | varint (tag &lt;&lt; 1 | 1), varint attributeCount, (varint name, varint value) * attributeCount,
+ *         varint childCount, node * childCount  a new subtree
+ * index : (int step, long entryOffset, long checkpointOffset)*
+ * </pre>
+ *
+ * Strings are numbered in the order they are written, and subtrees in the
+ * order their nodes end. Identical subtrees, by tag, attributes, and children,
+ * get the same number, so a subtree unchanged since the previous trees is
+ * written as a reference and an entry is a delta to the trees before.
+ *
+ * An entry flagged as {@link #FLAG_CHECKPOINT} clears both tables before it
+ * is decoded. So a tree is decoded from its checkpoint on, and the tables of
+ * the writer are bounded.
+ *
+ * @see GUITreeLogWriter
+ * @see GUITreeLogReader
+ */
+public class GUITreeLog {
+
+    public static final int MAGIC = 0x41504554; // APET
+    public static final int VERSION = 1;
+
+    public static final int FLAG_CHECKPOINT = 1;
+
+    public static final int INDEX_RECORD_SIZE = 4 + 8 + 8;
+
+    public static final String FILE_NAME = "gui-trees.log";
+    public static final String INDEX_FILE_NAME = "gui-trees.idx";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+}
@@ -0,0 +1,199 @@
+package com.android.commands.monkey.ape.tree;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.android.commands.monkey.ape.utils.Logger;
+import com.android.commands.monkey.ape.utils.Utils;
+
+/**
+ * Reads GUI trees back from a {@link GUITreeLog}. A tree is decoded from the
+ * checkpoint before it, and decoding goes on from the last decoded entry when
+ * trees are read in order.
+ *
+ * <pre>
+ * java com.android.commands.monkey.ape.tree.GUITreeLogReader &lt;dir&gt; [-o &lt;output dir&gt;] [step ...]
+ * </pre>
+ *
+ * writes step-N.xml of the given steps, or of all steps, as saveGUI used to.
+ */
+public class GUITreeLogReader implements Closeable {
+
+    private final RandomAccessFile log;
+    private final int[] steps;
+    private final long[] offsets;
+    private final long[] checkpoints;
+    private final Map<Integer, Integer> stepToEntry = new HashMap<>();
+
+    private final List<String> strings = new ArrayList<>();
+    private final List<Element> subtrees = new ArrayList<>();
+    private Document templates;
+    private int decoded = -1; // the last decoded entry
+
+    public GUITreeLogReader(File dir) throws IOException {
+        File indexFile = new File(dir, GUITreeLog.INDEX_FILE_NAME);
+        int count = (int) (indexFile.length() / GUITreeLog.INDEX_RECORD_SIZE); // drop a cut record
+        steps = new int[count];
+        offsets = new long[count];
+        checkpoints = new long[count];
+        try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+            for (int i = 0; i < count; i++) {
+                steps[i] = index.readInt();
+                offsets[i] = index.readLong();
+                checkpoints[i] = index.readLong();
+                stepToEntry.put(steps[i], i);
+            }
+        }
+        log = new RandomAccessFile(new File(dir, GUITreeLog.FILE_NAME), "r");
+        if (log.readInt() != GUITreeLog.MAGIC) {
+            log.close();
+            throw new IOException("Not a GUI tree log in " + dir);
+        }
+        int version = log.readInt();
+        if (version != GUITreeLog.VERSION) {
+            log.close();
+            throw new IOException("Unsupported GUI tree log version " + version);
+        }
+    }
+
+    public int[] getSteps() {
+        return steps.clone();
+    }
+
+    /**
+     * @return the tree of the step, or null if the step is not logged
+     */
+    public Document read(int step) throws IOException {
+        Integer entry = stepToEntry.get(step);
+        if (entry == null) {
+            return null;
+        }
+        int first = entry;
+        while (first > 0 && offsets[first] != checkpoints[entry]) {
+            first--;
+        }
+        if (decoded < first || decoded >= entry || checkpoints[decoded] != checkpoints[entry]) {
+            decoded = first - 1;
+        }
+        Element root = null;
+        while (decoded < entry) {
+            decoded++;
+            root = decode(decoded);
+        }
+        Document document = newDocument();
+        document.appendChild(document.importNode(root, true));
+        return document;
+    }
+
+    private Element decode(int entry) throws IOException {
+        long end = entry + 1 < offsets.length ? offsets[entry + 1] : log.length();
+        byte[] bytes = new byte[(int) (end - offsets[entry])];
+        log.seek(offsets[entry]);
+        log.readFully(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int flags = in.readUnsignedByte();
+        if ((flags & GUITreeLog.FLAG_CHECKPOINT) != 0) {
+            strings.clear();
+            subtrees.clear();
+            templates = newDocument();
+        }
+        int step = GUITreeLog.readVarInt(in);
+        if (step != steps[entry]) {
+            throw new IOException(String.format("Entry %d is of step %d rather than %d.", entry, step, steps[entry]));
+        }
+        int stringCount = GUITreeLog.readVarInt(in);
+        for (int i = 0; i < stringCount; i++) {
+            strings.add(GUITreeLog.readString(in));
+        }
+        return decodeNode(in);
+    }
+
+    private Element decodeNode(DataInputStream in) throws IOException {
+        int head = GUITreeLog.readVarInt(in);
+        if ((head & 1) == 0) {
+            return subtrees.get(head >>> 1);
+        }
+        Element element = templates.createElement(strings.get(head >>> 1));
+        int attributeCount = GUITreeLog.readVarInt(in);
+        for (int i = 0; i < attributeCount; i++) {
+            String name = strings.get(GUITreeLog.readVarInt(in));
+            element.setAttribute(name, strings.get(GUITreeLog.readVarInt(in)));
+        }
+        int childCount = GUITreeLog.readVarInt(in);
+        for (int i = 0; i < childCount; i++) {
+            Element child = decodeNode(in);
+            if (child.getParentNode() != null) {
+                child = (Element) child.cloneNode(true); // a shared subtree
+            }
+            element.appendChild(child);
+        }
+        subtrees.add(element);
+        return element;
+    }
+
+    private static Document newDocument() throws IOException {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        log.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = null;
+        File outputDir = null;
+        List<Integer> selected = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                outputDir = new File(args[++i]);
+            } else if (dir == null) {
+                dir = new File(args[i]);
+            } else {
+                selected.add(Integer.valueOf(args[i]));
+            }
+        }
+        if (dir == null) {
+            Logger.println("Usage: GUITreeLogReader <dir> [-o <output dir>] [step ...]");
+            return;
+        }
+        if (outputDir == null) {
+            outputDir = dir;
+        }
+        outputDir.mkdirs();
+        try (GUITreeLogReader reader = new GUITreeLogReader(dir)) {
+            if (selected.isEmpty()) {
+                for (int step : reader.getSteps()) {
+                    selected.add(step);
+                }
+            }
+            for (int step : selected) {
+                Document document = reader.read(step);
+                if (document == null) {
+                    Logger.wformat("Step %d is not in the log.", step);
+                    continue;
+                }
+                File xmlFile = new File(outputDir, String.format("step-%d.xml", step));
+                Utils.saveXml(xmlFile.getAbsolutePath(), document);
+            }
+            Logger.format("Extract %d trees from %s.", selected.size(), dir);
+        }
+    }
+}
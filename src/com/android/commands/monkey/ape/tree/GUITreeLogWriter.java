@@ -0,0 +1,210 @@
+package com.android.commands.monkey.ape.tree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends GUI trees to a {@link GUITreeLog}. Each entry is written to the log
+ * and the index by a single write, so a log cut by a crash is readable up to
+ * the last indexed entry.
+ *
+ * Trees are written from their nodes, with the attributes their documents
+ * would have, so logging a tree does not build its document.
+ */
+public class GUITreeLogWriter implements Closeable {
+
+    /**
+     * Tag, attributes, and subtree numbers of children of a subtree.
+     */
+    static class SubtreeKey {
+        final int[] values;
+        final int hash;
+
+        SubtreeKey(int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof SubtreeKey && Arrays.equals(values, ((SubtreeKey) obj).values);
+        }
+    }
+
+    private final FileOutputStream log;
+    private final FileOutputStream index;
+    private final int checkpointInterval;
+    private long offset;
+    private long checkpointOffset;
+    private int entriesSinceCheckpoint;
+
+    private final Map<String, Integer> stringIndex = new HashMap<>();
+    private final Map<SubtreeKey, Integer> subtreeIndex = new HashMap<>();
+
+    // of the entry being written
+    private final List<String> newStrings = new ArrayList<>();
+    private final Map<GUITreeNode, Integer> subtrees = new IdentityHashMap<>();
+    private final Map<GUITreeNode, Boolean> defined = new IdentityHashMap<>();
+    private final Map<GUITreeNode, String[]> attributes = new IdentityHashMap<>();
+
+    /**
+     * Creates the log and the index in the directory, replacing existing ones.
+     *
+     * @param checkpointInterval
+     *            the number of entries between two checkpoints
+     */
+    public GUITreeLogWriter(File dir, int checkpointInterval) throws IOException {
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+        this.log = new FileOutputStream(new File(dir, GUITreeLog.FILE_NAME));
+        this.index = new FileOutputStream(new File(dir, GUITreeLog.INDEX_FILE_NAME));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(GUITreeLog.MAGIC);
+        out.writeInt(GUITreeLog.VERSION);
+        log.write(bytes.toByteArray());
+        offset = bytes.size();
+    }
+
+    public void append(int step, GUITree tree) throws IOException {
+        GUITreeNode root = tree.getRootNode();
+        if (root == null) {
+            return;
+        }
+        boolean checkpoint = entriesSinceCheckpoint == 0;
+        if (checkpoint) {
+            stringIndex.clear();
+            subtreeIndex.clear();
+            checkpointOffset = offset;
+        }
+        try {
+            appendEntry(step, root, checkpoint);
+        } catch (IOException | RuntimeException e) {
+            // Tables may have numbered what is not in the log.
+            entriesSinceCheckpoint = 0;
+            offset = log.getChannel().size();
+            throw e;
+        }
+        if (++entriesSinceCheckpoint >= checkpointInterval) {
+            entriesSinceCheckpoint = 0;
+        }
+    }
+
+    private void appendEntry(int step, GUITreeNode root, boolean checkpoint) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            number(root);
+            out.writeByte(checkpoint ? GUITreeLog.FLAG_CHECKPOINT : 0);
+            GUITreeLog.writeVarInt(out, step);
+            GUITreeLog.writeVarInt(out, newStrings.size());
+            for (String s : newStrings) {
+                GUITreeLog.writeString(out, s);
+            }
+            writeNode(out, root);
+        } finally {
+            newStrings.clear();
+            subtrees.clear();
+            defined.clear();
+            attributes.clear();
+        }
+        out.close();
+        log.write(bytes.toByteArray());
+        long entryOffset = offset;
+        offset += bytes.size();
+
+        bytes.reset();
+        out = new DataOutputStream(bytes);
+        out.writeInt(step);
+        out.writeLong(entryOffset);
+        out.writeLong(checkpointOffset);
+        out.close();
+        index.write(bytes.toByteArray());
+    }
+
+    /**
+     * Numbers subtrees in the order their nodes end. The first occurrence of
+     * a subtree in this entry is the one to be defined.
+     */
+    private int number(GUITreeNode node) {
+        String[] values = GUITreeBuilder.getAttributeValues(node);
+        attributes.put(node, values);
+        int attributeCount = values.length;
+        int childCount = node.getChildCount();
+        int[] key = new int[3 + attributeCount * 2 + childCount];
+        int i = 0;
+        key[i++] = internString(GUITreeBuilder.GUI_TREE_NODE_TAG_NAME);
+        key[i++] = attributeCount;
+        for (int j = 0; j < attributeCount; j++) {
+            if (values[j] == null) {
+                values[j] = "";
+            }
+            key[i++] = internString(GUITreeBuilder.NODE_ATTRIBUTE_NAMES[j]);
+            key[i++] = internString(values[j]);
+        }
+        key[i++] = childCount;
+        Iterator<GUITreeNode> children = node.getChildren();
+        while (children.hasNext()) {
+            key[i++] = number(children.next());
+        }
+        SubtreeKey subtreeKey = new SubtreeKey(key);
+        Integer id = subtreeIndex.get(subtreeKey);
+        if (id == null) {
+            id = subtreeIndex.size();
+            subtreeIndex.put(subtreeKey, id);
+            defined.put(node, Boolean.TRUE);
+        }
+        subtrees.put(node, id);
+        return id;
+    }
+
+    private void writeNode(DataOutputStream out, GUITreeNode node) throws IOException {
+        if (!defined.containsKey(node)) {
+            GUITreeLog.writeVarInt(out, subtrees.get(node) << 1);
+            return;
+        }
+        GUITreeLog.writeVarInt(out, stringIndex.get(GUITreeBuilder.GUI_TREE_NODE_TAG_NAME) << 1 | 1);
+        String[] values = attributes.get(node);
+        GUITreeLog.writeVarInt(out, values.length);
+        for (int j = 0; j < values.length; j++) {
+            GUITreeLog.writeVarInt(out, stringIndex.get(GUITreeBuilder.NODE_ATTRIBUTE_NAMES[j]));
+            GUITreeLog.writeVarInt(out, stringIndex.get(values[j]));
+        }
+        GUITreeLog.writeVarInt(out, node.getChildCount());
+        Iterator<GUITreeNode> children = node.getChildren();
+        while (children.hasNext()) {
+            writeNode(out, children.next());
+        }
+    }
+
+    private int internString(String s) {
+        Integer id = stringIndex.get(s);
+        if (id == null) {
+            id = stringIndex.size();
+            stringIndex.put(s, id);
+            newStrings.add(s);
+        }
+        return id;
+    }
+
+    public void close() throws IOException {
+        try {
+            log.close();
+        } finally {
+            index.close();
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.android.commands.monkey.ape.tree;
 
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -13,8 +15,6 @@ import com.android.commands.monkey.ape.naming.NameManager;
 import com.android.commands.monkey.ape.naming.Namelet;
 import com.android.commands.monkey.ape.utils.StringCache;
 
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Rect;
 import android.view.accessibility.AccessibilityNodeInfo;
 
@@ -52,6 +52,7 @@ public class GUITreeNode implements Serializable {
     private int screenBottom;
 
     private Name xpathName;
+    private transient Name[] memoizedNames; // by slot, see getMemoizedName
     private transient Namelet currentNamelet;
     private transient Element domNode;
     private transient AccessibilityNodeInfo nodeInfo;
@@ -70,7 +71,6 @@ public class GUITreeNode implements Serializable {
 
     private String indexPath;
 
-    private Name tempXPathName;
 
     public GUITreeNode(GUITreeNode parent) {
         this.parent = parent;
@@ -379,12 +379,57 @@ public class GUITreeNode implements Serializable {
         }
     }
 
+    // Names of the running naming, which are per thread, since candidate
+    // namings of a refinement are evaluated concurrently on the same trees.
+    private static final ThreadLocal<Map<GUITreeNode, Name>> tempXPathNames = new ThreadLocal<Map<GUITreeNode, Name>>() {
+        protected Map<GUITreeNode, Name> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+
     public void setTempXPathName(Name name) {
-        this.tempXPathName = name;
+        if (name == null) {
+            tempXPathNames.get().remove(this);
+        } else {
+            tempXPathNames.get().put(this, name);
+        }
     }
 
     public Name getTempXPathName() {
-        return this.tempXPathName;
+        return tempXPathNames.get().get(this);
+    }
+
+    /**
+     * Clears the temp names set by the current thread.
+     */
+    public static void clearTempXPathNames() {
+        tempXPathNames.get().clear();
+    }
+
+    /**
+     * Names that depend on the tree only are memoized in the nodes, in the
+     * slot of their namer. Racing writers store the same interned name, so
+     * losing a write only costs a recomputation.
+     */
+    public Name getMemoizedName(int slot) {
+        Name[] names = memoizedNames;
+        return names == null || slot >= names.length ? null : names[slot];
+    }
+
+    public void clearMemoizedNames() {
+        memoizedNames = null;
+    }
+
+    public void setMemoizedName(int slot, Name name) {
+        Name[] names = memoizedNames;
+        if (names == null || slot >= names.length) {
+            Name[] grown = new Name[Math.max(slot + 1, names == null ? 4 : names.length << 1)];
+            if (names != null) {
+                System.arraycopy(names, 0, grown, 0, names.length);
+            }
+            memoizedNames = names = grown;
+        }
+        names[slot] = name;
     }
 
     public void setXPathName(Name name) {
@@ -500,6 +545,10 @@ public class GUITreeNode implements Serializable {
         return "all";
     }
 
+    public boolean hasDomNode() {
+        return domNode != null;
+    }
+
     public Element getDomNode() {
         if (domNode == null) {
             throw new IllegalStateException("Fetch document for the GUI tree first.");
@@ -571,7 +620,7 @@ public class GUITreeNode implements Serializable {
         }
     }
 
-    public void computeAndSetImageText(Bitmap image) {
+    public void computeAndSetImageText(ImagePixels image) {
         if (isEmpty()) {
             return;
         }
@@ -588,8 +637,6 @@ public class GUITreeNode implements Serializable {
         int height = this.screenBottom - this.screenTop;
         int x = this.screenLeft;
         int y = this.screenTop;
-        int imageWidth = image.getWidth();
-        int[] pixels = new int[height * imageWidth];
         if (x < 0 || y < 0) {
             return;
         }
@@ -602,21 +649,7 @@ public class GUITreeNode implements Serializable {
         if (y + height -1 > image.getHeight()) {
             return;
         }
-        image = image.copy(Config.RGB_565, true);
-        if (image == null) {
-            return;
-        }
-        image.getPixels(pixels, 0, imageWidth, x, y, width - 1, height - 1);
-        int hash = 0;
-        int begin = 0;
-        for (int row = 0; row < height; row ++) {
-            for (int i = begin; i < begin + width; i++) {
-                hash = hash * 31 + pixels[i];
-            }
-            begin = begin + imageWidth;
-        }
-        image.recycle();
-        setText(String.format("#%x", hash));
+        setText(image.getImageText(x, y, width, height));
     }
 
     public void setNodeInfo(AccessibilityNodeInfo info) {
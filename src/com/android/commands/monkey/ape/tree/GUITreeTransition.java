@@ -20,6 +20,7 @@ public class GUITreeTransition implements Serializable {
     private boolean hasMetTargetMethod;
 
     private int throttle;
+    private int historyIndex = -1; // position in the transition history of the graph
 
     public GUITreeTransition(GUITree source, GUITreeAction action, GUITree target) {
         this.source = source;
@@ -52,6 +53,14 @@ public class GUITreeTransition implements Serializable {
         return this.stateTransition;
     }
 
+    public int getHistoryIndex() {
+        return historyIndex;
+    }
+
+    public void setHistoryIndex(int historyIndex) {
+        this.historyIndex = historyIndex;
+    }
+
     public boolean hasMetTargetMethod() {
         return hasMetTargetMethod;
     }
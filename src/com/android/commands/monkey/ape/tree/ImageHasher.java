@@ -0,0 +1,98 @@
+package com.android.commands.monkey.ape.tree;
+
+/**
+ * Hashes a region of a screenshot, whose pixels are packed row by row into an
+ * int array of ARGB colors. It has no dependency on the framework, so it runs
+ * on the desktop JVM as well.
+ */
+public interface ImageHasher {
+
+    /**
+     * @param pixels
+     *            ARGB colors of the screenshot, row by row
+     * @param stride
+     *            the number of pixels of a row, i.e., the width of the
+     *            screenshot
+     * @return a hash of the pixels in [left, left + width) x [top, top +
+     *         height), as an unsigned value. The last column and the last
+     *         row may be one pixel out of the screenshot and are not read.
+     */
+    long hash(int[] pixels, int stride, int left, int top, int width, int height);
+
+    /**
+     * The hash of image texts since the beginning, i.e., 31 * h + color over
+     * the region without its last column and last row. The last column and
+     * the last row are hashed as zeros, so names of image buttons do not
+     * change.
+     */
+    public static class Exact implements ImageHasher {
+
+        @Override
+        public long hash(int[] pixels, int stride, int left, int top, int width, int height) {
+            int hash = 0;
+            int begin = top * stride + left;
+            for (int row = 0; row < height - 1; row++) {
+                for (int i = begin; i < begin + width - 1; i++) {
+                    hash = hash * 31 + pixels[i];
+                }
+                hash = hash * 31; // the last column
+                begin += stride;
+            }
+            for (int i = 0; i < width; i++) {
+                hash = hash * 31; // the last row
+            }
+            return hash & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * An average hash. The region is downsampled to 8x8 cells of the mean
+     * luminance, and each bit tells whether a cell is brighter than the mean
+     * of all cells. Slight changes of an image, e.g., by scaling or anti
+     * aliasing, mostly keep the hash.
+     */
+    public static class Perceptual implements ImageHasher {
+
+        private static final int SIZE = 8;
+
+        @Override
+        public long hash(int[] pixels, int stride, int left, int top, int width, int height) {
+            long[] sums = new long[SIZE * SIZE];
+            int[] counts = new int[SIZE * SIZE];
+            int rows = height - 1;
+            int cols = width - 1;
+            for (int row = 0; row < rows; row++) {
+                int cellRow = row * SIZE / rows * SIZE;
+                int begin = (top + row) * stride + left;
+                for (int col = 0; col < cols; col++) {
+                    int cell = cellRow + col * SIZE / cols;
+                    sums[cell] += luminance(pixels[begin + col]);
+                    counts[cell]++;
+                }
+            }
+            long total = 0;
+            for (int i = 0; i < sums.length; i++) {
+                if (counts[i] != 0) {
+                    sums[i] /= counts[i];
+                }
+                total += sums[i];
+            }
+            long mean = total / sums.length;
+            long hash = 0;
+            for (int i = 0; i < sums.length; i++) {
+                hash <<= 1;
+                if (sums[i] > mean) {
+                    hash |= 1;
+                }
+            }
+            return hash;
+        }
+
+        private static int luminance(int color) {
+            int r = (color >> 16) & 0xFF;
+            int g = (color >> 8) & 0xFF;
+            int b = color & 0xFF;
+            return (r * 299 + g * 587 + b * 114) / 1000;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.android.commands.monkey.ape.tree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The pixels of a screenshot, converted once per capture and shared by all
+ * nodes of the GUI tree. Texts of the same bounds are hashed once.
+ */
+public class ImagePixels {
+
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+    private final ImageHasher hasher;
+    private final Map<Long, String> boundsToText = new HashMap<>();
+
+    /**
+     * @param pixels
+     *            ARGB colors row by row, at least width * height of them
+     */
+    public ImagePixels(int[] pixels, int width, int height, ImageHasher hasher) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException(
+                    String.format("%d pixels are fewer than %dx%d.", pixels.length, width, height));
+        }
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.hasher = hasher;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the hash of the region as a text, e.g., #1f3a
+     */
+    public String getImageText(int left, int top, int width, int height) {
+        Long key = ((long) (left & 0xFFFF) << 48) | ((long) (top & 0xFFFF) << 32)
+                | ((long) (width & 0xFFFF) << 16) | (height & 0xFFFF);
+        String text = boundsToText.get(key);
+        if (text == null) {
+            text = String.format("#%x", hasher.hash(pixels, this.width, left, top, width, height));
+            boundsToText.put(key, text);
+        }
+        return text;
+    }
+
+    /**
+     * Quantizes ARGB colors to RGB 565 in place, and expands them back as the
+     * framework does, so hashes are the same as of a bitmap copied to RGB 565.
+     */
+    public static void quantizeRGB565(int[] pixels, int length) {
+        for (int i = 0; i < length; i++) {
+            int color = pixels[i];
+            int r = (color >> 19) & 0x1F;
+            int g = (color >> 10) & 0x3F;
+            int b = (color >> 3) & 0x1F;
+            pixels[i] = 0xFF000000 | (((r << 3) | (r >> 2)) << 16) | (((g << 2) | (g >> 4)) << 8)
+                    | ((b << 3) | (b >> 2));
+        }
+    }
+}
@@ -24,6 +24,12 @@ public class Config {
     public static final boolean takeScreenshotForNewState = Config.getBoolean("ape.takeScreenshotForNewState", false);
     public static final boolean takeScreenshotForEveryStep = Config.getBoolean("ape.takeScreenshotForEveryStep", true);
     public static final boolean saveGUITreeToXmlEveryStep = Config.getBoolean("ape.saveGUITreeToXmlEveryStep", true);
+    /**
+     * Append trees of every step to gui-trees.log rather than step-N.xml
+     * files. GUITreeLogReader extracts step-N.xml files from it.
+     */
+    public static final boolean saveGUITreeToLog = Config.getBoolean("ape.saveGUITreeToLog", true);
+    public static final int guiTreeLogCheckpointInterval = Config.getInteger("ape.guiTreeLogCheckpointInterval", 256);
 
     public static final int throttleForUnvisitedAction = Config.getInteger("ape.throttleForUnvisitedAction", 200);
     public static final int throttleForActivityTransition = Config.getInteger("ape.throttleForActivityTransition", 500);
@@ -32,12 +38,43 @@ public class Config {
     public static final int graphStableRestartThreshold = Config.getInteger("ape.graphStableRestartThreshold", 100);
     public static final int activityStableRestartThreshold = Config.getInteger("ape.activityStableRestartThreshold", Integer.MAX_VALUE);
     public static final int stateStableRestartThreshold = Config.getInteger("ape.stateStableRestartThreshold", 50);
+    // Steps without new states after which a state that reaches no unvisited action restarts, off by default
+    public static final int trapRestartThreshold = Config.getInteger("ape.trapRestartThreshold", Integer.MAX_VALUE);
     public static final int maxExtraPriorityAliasedActions = Config.getInteger("ape.maxExtraPriorityAliasedActions", 5);
 
     public static final boolean saveDotGraph = Config.getBoolean("ape.saveDotGraph", false);
-    public static final boolean saveObjModel = Config.getBoolean("ape.saveObjModel", true);
+    public static final boolean saveObjModel = Config.getBoolean("ape.saveObjModel", false);
+    public static final boolean saveModelSnapshot = Config.getBoolean("ape.saveModelSnapshot", true);
+    public static final boolean embedGraphInSnapshot = Config.getBoolean("ape.embedGraphInSnapshot", true);
     public static final boolean saveVisGraph = Config.getBoolean("ape.saveVisGraph", true);
 
+    /**
+     * One of debug, info, warn, and off. A category overrides it by
+     * ape.logLevel.&lt;category&gt;, e.g., ape.logLevel.graph=warn.
+     */
+    public static final String logLevel = Config.get("ape.logLevel", "info");
+    /**
+     * Log to this file instead of the console, except warnings.
+     */
+    public static final String logFile = Config.get("ape.logFile", "");
+    public static final long logFileSize = Config.getLong("ape.logFileSize", 8L * 1024 * 1024);
+    public static final int logFileCount = Config.getInteger("ape.logFileCount", 4);
+    /**
+     * Log lines are written by a background thread. Lines printed directly to
+     * System.out, e.g., by the monkey, may appear slightly earlier than
+     * asynchronous lines logged before them; ape.asyncLog=false writes every
+     * line on the caller thread in order.
+     */
+    public static final boolean asyncLog = Config.getBoolean("ape.asyncLog", true);
+    public static final int logBufferSize = Config.getInteger("ape.logBufferSize", 8192);
+
+    /**
+     * The action history keeps the latest one or two segments in memory, and
+     * spills older segments into the output directory.
+     */
+    public static final int actionHistorySegmentSize = Config.getInteger("ape.actionHistorySegmentSize", 1024);
+    public static final boolean spillActionHistory = Config.getBoolean("ape.spillActionHistory", true);
+
     public static final boolean enableXPathAction = Config.getBoolean("ape.enableXPathAction", false);
     public static final boolean evolveModel = Config.getBoolean("ape.evolveModel", true);
     public static final boolean saveStates = Config.getBoolean("ape.saveStates", true);
@@ -53,6 +90,28 @@ public class Config {
     public static final int actionRefinmentThreshold = Config.getInteger("ape.actionRefinmentThreshold", 3);
     public static final int maxInitialNamesPerStateThreshold = Config.getInteger("ape.maxInitialNamesPerStateThreshold", 20);
     public static final boolean actionRefinementFirst = Config.getBoolean("ape.actionRefinementFirst", true);
+    /**
+     * Candidates of a refinement are checked on a pool of this many threads.
+     * One or less checks them one by one on the calling thread.
+     */
+    public static final int refinementParallelism = Config.getInteger("ape.refinementParallelism",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /**
+     * Estimated bytes of naming results, state keys, and node names cached
+     * for all namings. Entries of the last ape.namingCachePinnedTrees built
+     * trees are never evicted.
+     */
+    public static final long namingCacheBudget = Config.getLong("ape.namingCacheBudget", 32L * 1024 * 1024);
+    public static final int namingCachePinnedTrees = Config.getInteger("ape.namingCachePinnedTrees", 8);
+    /**
+     * Shortest-path trees kept for the most recent targets of moveToState.
+     */
+    public static final int pathCacheSize = Config.getInteger("ape.pathCacheSize", 16);
+    /**
+     * Check every naming resolved by the index of StateNamingManager against
+     * a walk through all refinements.
+     */
+    public static final boolean checkNamingIndex = Config.getBoolean("ape.checkNamingIndex", false);
 
     public static final boolean alwaysIgnoreWebView = Config.getBoolean("ape.alwaysIgnoreWebView", false); // false;
     public static final boolean alwaysIgnoreWebViewAction = Config.getBoolean("ape.alwaysIgnoreWebViewAction", false); // false;
@@ -62,6 +121,11 @@ public class Config {
 
     public static final boolean patchGUITree = Config.getBoolean("ape.patchGUITree", true);
     public static final boolean computeImageText = Config.getBoolean("ape.computeImageText", true);
+    /**
+     * Hash image buttons by an average hash of 8x8 cells, which tolerates
+     * slight changes of images, rather than by their exact pixels.
+     */
+    public static final boolean perceptualImageHash = Config.getBoolean("ape.perceptualImageHash", false);
 
     public static final double defaultEpsilon = Config.getDouble("ape.defaultEpsilon", 0.05D); // 0.05D;
 
@@ -71,8 +135,16 @@ public class Config {
     public static final boolean useActionDiffer = Config.getBoolean("ape.useActionDiffer", true);
     public static final boolean doBackToTrivialActivity = Config.getBoolean("ape.doBackToTrivialActivity", false);
 
+    /**
+     * The capacity of the queue of screenshots to be encoded by
+     * ape.imageWriterCount writers. A screenshot beyond it is handled by
+     * ape.imageQueuePolicy, one of skip, downscale, and block (for at most
+     * ape.imageQueueBlockMillis).
+     */
     public static final int flushImagesThreshold = Config.getInteger("ape.flushImagesThreshold", 10);
     public static final int imageWriterCount = Config.getInteger("ape.imageWriterCount", 3);
+    public static final String imageQueuePolicy = Config.get("ape.imageQueuePolicy", "skip");
+    public static final long imageQueueBlockMillis = Config.getLong("ape.imageQueueBlockMillis", 20L);
     public static final long defaultGUIThrottle = Config.getLong("ape.defaultGUIThrottle", 200L);
     public static final long swipeDuration = Config.getLong("ape.swipeDuration", 200);
     public static final double fuzzingRate = Config.getDouble("ape.fuzzingRate", 0.02D);
@@ -84,6 +156,7 @@ public class Config {
     public static final boolean ignoreOutOfBounds = Config.getBoolean("ape.ignoreOutOfBounds", true);
 
     public static final boolean useAncestorNamer = Config.getBoolean("ape.useAncestorNamer", true);
+    public static final boolean useNodeSelector = Config.getBoolean("ape.useNodeSelector", true);
 
     public static final int truncateTextLength = Config.getInteger("ape.truncateTextLength", 8);
     public static final int maxStringPieceLength = Config.getInteger("ape.maxStringPieceLength", 32);
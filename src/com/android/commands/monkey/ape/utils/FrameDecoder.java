@@ -0,0 +1,98 @@
+package com.android.commands.monkey.ape.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered little-endian decoder for fixed-size frames. Bytes are pulled from
+ * the underlying stream in bulk, so decoding a field does not cost a read call.
+ */
+public class FrameDecoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    public FrameDecoder(InputStream in) {
+        this(in, 8192);
+    }
+
+    public FrameDecoder(InputStream in, int bufferSize) {
+        if (bufferSize < 8) {
+            throw new IllegalArgumentException("Buffer is too small: " + bufferSize);
+        }
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Make sure at least n bytes are buffered, blocking if necessary.
+     */
+    private void require(int n) throws IOException {
+        if (limit - position >= n) {
+            return;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < n) {
+            int count = in.read(buffer, limit, buffer.length - limit);
+            if (count == -1) {
+                throw new EOFException("Expect " + n + " bytes but get " + limit);
+            }
+            limit += count;
+        }
+    }
+
+    public int readInt32() throws IOException {
+        require(4);
+        byte[] b = buffer;
+        int p = position;
+        position = p + 4;
+        return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16) | ((b[p + 3] & 0xFF) << 24);
+    }
+
+    public long readLong() throws IOException {
+        int low = readInt32();
+        int high = readInt32();
+        return (low & 0xFFFFFFFFL) | (((long) high) << 32);
+    }
+
+    public String readString(int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        if (length <= buffer.length) {
+            require(length);
+            String ret = new String(buffer, position, length, UTF8);
+            position += length;
+            return ret;
+        }
+        byte[] bytes = new byte[length];
+        int copied = limit - position;
+        System.arraycopy(buffer, position, bytes, 0, copied);
+        position = limit = 0;
+        while (copied < length) {
+            int count = in.read(bytes, copied, length - copied);
+            if (count == -1) {
+                throw new EOFException("Expect " + length + " bytes but get " + copied);
+            }
+            copied += count;
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @return the number of bytes that can be decoded without blocking.
+     */
+    public int buffered() {
+        return limit - position;
+    }
+}
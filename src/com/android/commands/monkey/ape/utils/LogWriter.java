@@ -0,0 +1,261 @@
+package com.android.commands.monkey.ape.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes formatted log lines to the console and to a rotating file. In the
+ * asynchronous mode, lines are put into a bounded ring buffer and a daemon
+ * thread drains the ring. When the ring is full, lines below
+ * {@link Logger.Level#WARN} are dropped and counted, while warnings wait for
+ * free slots, so they are never lost.
+ *
+ * The log file is rotated when it exceeds the size limit in characters:
+ * file.(n-2) is renamed to file.(n-1), ..., and file is renamed to file.1.
+ */
+public class LogWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final long fileSizeLimit;
+    private final int fileCount;
+    private final Logger.Level consoleLevel;
+
+    private final String[] lines;
+    private final Logger.Level[] levels;
+    private long head; // next to write
+    private long tail; // next to drain
+    private long dropped;
+    private boolean closed; // no more lines go into the ring
+    private boolean stopped; // the drainer has drained the ring and exited
+
+    private Writer fileWriter;
+    private long fileSize;
+
+    private final Thread drainer;
+
+    /**
+     * @param file
+     *            the log file, or null to log to the console only
+     * @param bufferSize
+     *            the capacity of the ring, or 0 to write synchronously
+     */
+    public LogWriter(File file, long fileSizeLimit, int fileCount, int bufferSize) {
+        this.file = file;
+        this.fileSizeLimit = fileSizeLimit;
+        this.fileCount = Math.max(1, fileCount);
+        // With a log file, only warnings go to the console.
+        this.consoleLevel = file == null ? Logger.Level.DEBUG : Logger.Level.WARN;
+        if (bufferSize > 0) {
+            lines = new String[bufferSize];
+            levels = new Logger.Level[bufferSize];
+            drainer = new Thread("APE-Logger") {
+                public void run() {
+                    drain();
+                }
+            };
+            drainer.setDaemon(true);
+            drainer.start();
+        } else {
+            lines = null;
+            levels = null;
+            drainer = null;
+        }
+    }
+
+    public boolean isAsync() {
+        return drainer != null;
+    }
+
+    public void write(Logger.Level level, String line) {
+        if (drainer == null) {
+            synchronized (this) {
+                output(level, line);
+                flushOutput();
+            }
+            return;
+        }
+        synchronized (this) {
+            while (!closed && head - tail == lines.length) {
+                if (level.compareTo(Logger.Level.WARN) < 0) {
+                    dropped++;
+                    return;
+                }
+                waitQuietly();
+            }
+            if (closed) {
+                // After the lines in the ring, and not alongside the drainer.
+                while (!stopped) {
+                    waitQuietly();
+                }
+                output(level, line);
+                flushOutput();
+                return;
+            }
+            int index = (int) (head % lines.length);
+            lines[index] = line;
+            levels[index] = level;
+            head++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all lines written before are drained.
+     */
+    public void flush() {
+        if (drainer == null || Thread.currentThread() == drainer) {
+            return;
+        }
+        synchronized (this) {
+            long target = head;
+            while (tail < target && !stopped) {
+                waitQuietly();
+            }
+        }
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Drains the ring and stops the drainer. Lines written afterwards are
+     * written synchronously.
+     */
+    public void close() {
+        if (drainer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() != drainer) {
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized (this) {
+            if (dropped > 0) {
+                output(Logger.Level.WARN, String.format("%s*** WARNING *** %d log lines were dropped.\n", Logger.TAG,
+                        dropped));
+            }
+            flushOutput();
+        }
+    }
+
+    private void drain() {
+        String[] batch = new String[lines.length];
+        Logger.Level[] batchLevels = new Logger.Level[lines.length];
+        while (true) {
+            int count;
+            synchronized (this) {
+                while (head == tail && !closed) {
+                    waitQuietly();
+                }
+                if (head == tail) { // closed and drained
+                    stopped = true;
+                    notifyAll();
+                    return;
+                }
+                count = (int) (head - tail);
+                for (int i = 0; i < count; i++) {
+                    int index = (int) ((tail + i) % lines.length);
+                    batch[i] = lines[index];
+                    batchLevels[i] = levels[index];
+                    lines[index] = null;
+                }
+            }
+            // Output outside the lock so that callers are not blocked by I/O.
+            for (int i = 0; i < count; i++) {
+                output(batchLevels[i], batch[i]);
+                batch[i] = null;
+            }
+            flushOutput();
+            synchronized (this) {
+                tail += count;
+                notifyAll();
+            }
+        }
+    }
+
+    private void waitQuietly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while logging", e);
+        }
+    }
+
+    /**
+     * Only called by one thread at a time: the drainer, or a caller holding
+     * the lock when there is no drainer or the drainer has stopped.
+     */
+    private void output(Logger.Level level, String line) {
+        if (level.compareTo(consoleLevel) >= 0) {
+            System.out.print(line);
+        }
+        if (file == null) {
+            return;
+        }
+        try {
+            if (fileWriter == null) {
+                openFile();
+            }
+            fileWriter.write(line);
+            fileSize += line.length();
+            if (fileSize >= fileSizeLimit) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.out.format("%s*** WARNING *** Fail to write log file %s: %s\n", Logger.TAG, file, e);
+        }
+    }
+
+    private void flushOutput() {
+        System.out.flush();
+        if (fileWriter != null) {
+            try {
+                fileWriter.flush();
+            } catch (IOException e) {
+                System.out.format("%s*** WARNING *** Fail to flush log file %s: %s\n", Logger.TAG, file, e);
+            }
+        }
+    }
+
+    private void openFile() throws IOException {
+        fileSize = file.length();
+        fileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+    }
+
+    private void rotate() throws IOException {
+        fileWriter.close();
+        fileWriter = null;
+        for (int i = fileCount - 1; i > 0; i--) {
+            File from = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+            File to = new File(file.getPath() + "." + i);
+            if (from.exists()) {
+                to.delete();
+                from.renameTo(to);
+            }
+        }
+        if (fileCount == 1) {
+            file.delete();
+        }
+        openFile();
+    }
+}
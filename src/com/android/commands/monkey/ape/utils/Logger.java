@@ -1,47 +1,194 @@
 package com.android.commands.monkey.ape.utils;
 
+import java.io.File;
+
 import org.w3c.dom.Document;
 
+/**
+ * Leveled logger. Every message belongs to a {@link Category}, whose level is
+ * set by ape.logLevel.&lt;category&gt; and defaults to ape.logLevel. A message
+ * below the level of its category is neither formatted nor written, so
+ * callers should pass format arguments rather than concatenated strings.
+ * Enabled messages are formatted by the caller and written by a
+ * {@link LogWriter}.
+ */
 public class Logger {
 
-    private static final boolean debug = false;
-
     public static final String TAG = "[APE] ";
 
+    public enum Level {
+        DEBUG, INFO, WARN, OFF;
+
+        static Level parse(String name, Level defaultLevel) {
+            try {
+                return Level.valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return defaultLevel;
+            }
+        }
+    }
+
+    private static final Level defaultLevel = Level.parse(Config.logLevel, Level.INFO);
+
+    private static final LogWriter writer = new LogWriter(Config.logFile.isEmpty() ? null : new File(Config.logFile),
+            Config.logFileSize, Config.logFileCount, Config.asyncLog ? Config.logBufferSize : 0);
+
+    static {
+        if (writer.isAsync()) {
+            Runtime.getRuntime().addShutdownHook(new Thread("APE-Logger-Shutdown") {
+                public void run() {
+                    writer.close();
+                }
+            });
+        }
+    }
+
+    public static final class Category {
+
+        private final String name;
+        private final Level level;
+
+        private Category(String name) {
+            this.name = name;
+            this.level = Level.parse(Config.get("ape.logLevel." + name, defaultLevel.name()), defaultLevel);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public boolean isEnabled(Level level) {
+            return level.compareTo(this.level) >= 0;
+        }
+
+        public boolean isDebugEnabled() {
+            return isEnabled(Level.DEBUG);
+        }
+
+        public boolean isInfoEnabled() {
+            return isEnabled(Level.INFO);
+        }
+
+        private void write(Level level, String prefix, Object message) {
+            if (isEnabled(level)) {
+                writer.write(level, TAG + prefix + message + "\n");
+            }
+        }
+
+        private void write(Level level, String prefix, String format, Object... args) {
+            if (isEnabled(level)) {
+                writer.write(level, TAG + prefix + String.format(format, args) + "\n");
+            }
+        }
+
+        public void println(Object message) {
+            write(Level.INFO, "", message);
+        }
+
+        public void format(String format, Object... args) {
+            write(Level.INFO, "", format, args);
+        }
+
+        public void dformat(String format, Object... args) {
+            write(Level.DEBUG, "*** DEBUG *** ", format, args);
+        }
+
+        public void wformat(String format, Object... args) {
+            write(Level.WARN, "*** WARNING *** ", format, args);
+        }
+
+        public void iformat(String format, Object... args) {
+            write(Level.INFO, "*** INFO *** ", format, args);
+        }
+
+        public void wprintln(Object message) {
+            write(Level.WARN, "*** WARNING *** ", message);
+        }
+
+        public void dprintln(Object message) {
+            write(Level.DEBUG, "*** DEBUG *** ", message);
+        }
+
+        public void iprintln(Object message) {
+            write(Level.INFO, "*** INFO *** ", message);
+        }
+
+        public String toString() {
+            return name + "=" + level;
+        }
+    }
+
+    public static Category category(String name) {
+        return new Category(name);
+    }
+
+    public static final Category DEFAULT = category("default");
+    /**
+     * Tracing of the state transition graph.
+     */
+    public static final Category GRAPH = category("graph");
+    /**
+     * Refinement and abstraction of namings.
+     */
+    public static final Category NAMING = category("naming");
+    /**
+     * Action selection of agents.
+     */
+    public static final Category AGENT = category("agent");
+    /**
+     * Subsequence tries of the replay.
+     */
+    public static final Category TRIE = category("trie");
+
     public static void println(Object message) {
-        System.out.format("[APE] %s\n", message);
+        DEFAULT.println(message);
     }
 
     public static void format(String format, Object... args) {
-        System.out.format("[APE] " + format + "\n", args);
+        DEFAULT.format(format, args);
     }
 
     public static void dformat(String format, Object... args) {
-        if (debug)
-            System.out.format("[APE] *** DEBUG *** " + format + "\n", args);
+        DEFAULT.dformat(format, args);
     }
 
     public static void wformat(String format, Object... args) {
-        System.out.format("[APE] *** WARNING *** " + format + "\n", args);
+        DEFAULT.wformat(format, args);
     }
 
     public static void iformat(String format, Object... args) {
-        System.out.format("[APE] *** INFO *** " + format + "\n", args);
+        DEFAULT.iformat(format, args);
     }
 
     public static void wprintln(Object message) {
-        System.out.format("[APE] *** WARNING *** %s\n", message);
+        DEFAULT.wprintln(message);
     }
 
     public static void dprintln(Object message) {
-        if (debug) System.out.format("[APE] *** DEBUG *** %s\n", message);
+        DEFAULT.dprintln(message);
     }
 
     public static void iprintln(Object message) {
-        System.out.format("[APE] *** INFO *** %s\n", message);
+        DEFAULT.iprintln(message);
+    }
+
+    /**
+     * Waits until all messages logged before are written.
+     */
+    public static void flush() {
+        writer.flush();
+    }
+
+    public static long getDroppedCount() {
+        return writer.getDroppedCount();
     }
 
     public static void printXml(Document document) {
+        flush();
         try {
             Utils.printXml(System.out, document);
             System.out.println();
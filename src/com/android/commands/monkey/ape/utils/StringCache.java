@@ -4,24 +4,72 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.android.commands.monkey.ape.utils.Config.truncateTextLength;
 
+/**
+ * Interns strings of GUI trees. Predefined strings of /data/ape/ape.strings
+ * are pinned. Other strings are kept in segments of LRU maps, whose total
+ * size is bounded by ape.stringCacheSize, so dynamic texts such as
+ * timestamps and feeds do not pile up. Texts are also sampled into a bounded
+ * reservoir for text inputs.
+ */
 public class StringCache {
 
+    private static final int SEGMENT_COUNT = 16;
+    private static final int SEGMENT_SIZE = Math.max(1, Config.getInteger("ape.stringCacheSize", 65536) / SEGMENT_COUNT);
+    private static final int SAMPLE_SIZE = Config.getInteger("ape.stringSampleSize", 1024);
 
-    public static Map<String, String> stringDict = new HashMap<String, String>();
-    static final List<String> strings; // = new ArrayList<String>();
-    static final List<String> stringList = new ArrayList<>();
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+    private static final AtomicLong evictionCount = new AtomicLong();
+
+    static final List<String> strings;
+    private static final Map<String, String> pinned = new ConcurrentHashMap<>();
+    private static final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    // Reservoir sampling over distinct texts.
+    private static final List<String> samples = new ArrayList<>();
+    private static long sampledCount;
+
+    static class Segment extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        Segment() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if (size() > SEGMENT_SIZE) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    static {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
 
     public static String cacheString(String string) {
         return cacheString(string, false);
     }
 
+    /**
+     * @param addToList
+     *            whether a new string is offered to the samples for text
+     *            inputs
+     */
     public static String cacheString(String string, boolean addToList) {
         if (string == null) {
             throw new NullPointerException("Cannot cache null string.");
@@ -29,15 +77,39 @@ public class StringCache {
         if (string.length() == 0) {
             return "";
         }
-        String existing = stringDict.get(string);
-        if (existing == null) {
-            stringDict.put(string, string);
-            existing = string;
-            if (addToList) {
-                stringList.add(string);
+        String existing = pinned.get(string);
+        if (existing != null) {
+            hitCount.incrementAndGet();
+            return existing;
+        }
+        Segment segment = segments[(string.hashCode() & 0x7FFFFFFF) % SEGMENT_COUNT];
+        synchronized (segment) {
+            existing = segment.get(string);
+            if (existing != null) {
+                hitCount.incrementAndGet();
+                return existing;
+            }
+            segment.put(string, string);
+        }
+        missCount.incrementAndGet();
+        if (addToList) {
+            sample(string);
+        }
+        return string;
+    }
+
+    private static void sample(String string) {
+        synchronized (samples) {
+            sampledCount++;
+            if (samples.size() < SAMPLE_SIZE) {
+                samples.add(string);
+                return;
+            }
+            long i = (long) (ThreadLocalRandom.current().nextDouble() * sampledCount);
+            if (i < SAMPLE_SIZE) {
+                samples.set((int) i, string);
             }
         }
-        return existing;
     }
 
     public static String cacheStringEmptyOnNull(Object o) {
@@ -60,6 +132,7 @@ public class StringCache {
                 String line = null;
                 while ((line = br.readLine()) != null) {
                     strings.add(line);
+                    pinned.put(line, line);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -68,6 +141,41 @@ public class StringCache {
         }
     }
 
+    public static int size() {
+        int size = pinned.size();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    public static long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public static void printStatistics() {
+        long hit = hitCount.get();
+        long miss = missCount.get();
+        long total = hit + miss;
+        int sampleSize;
+        synchronized (samples) {
+            sampleSize = samples.size();
+        }
+        Logger.iformat("String cache: size=%d (%d pinned), hit=%d, miss=%d, ratio=%.3f, evictions=%d, samples=%d",
+                size(), pinned.size(), hit, miss, total == 0 ? 0D : ((double) hit) / total, evictionCount.get(),
+                sampleSize);
+    }
+
     public static String removeQuotes(CharSequence input) {
         if (input == null) {
             return "";
@@ -101,14 +209,16 @@ public class StringCache {
         if (!strings.isEmpty()) {
             return nextPredefinedString();
         }
-        if (stringList.isEmpty()) {
-            return "";
-        }
-        if (RandomHelper.nextBoolean()) {
-            return RandomHelper.nextString();
+        String string;
+        synchronized (samples) {
+            if (samples.isEmpty()) {
+                return "";
+            }
+            if (RandomHelper.nextBoolean()) {
+                return RandomHelper.nextString();
+            }
+            string = samples.get(ThreadLocalRandom.current().nextInt(samples.size()));
         }
-        int i = ThreadLocalRandom.current().nextInt(stringList.size());
-        String string = stringList.get(i);
         int length = RandomHelper.nextInt(Config.maxStringPieceLength) + 1;
         if (string.length() <= length) {
             return string;
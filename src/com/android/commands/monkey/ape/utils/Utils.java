@@ -169,11 +169,17 @@ public class Utils {
         Logger.iprintln("---------------------------------");
     }
 
+    // A factory is costly to look up, and not thread-safe.
+    private static final ThreadLocal<TransformerFactory> transformerFactory = new ThreadLocal<TransformerFactory>() {
+        protected TransformerFactory initialValue() {
+            return TransformerFactory.newInstance();
+        }
+    };
+
     public static void saveXml(String fileName, Document document) throws Exception {
         try (FileOutputStream fos = new FileOutputStream(fileName)) {
             DOMSource source = new DOMSource(document);
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
+            Transformer transformer = transformerFactory.get().newTransformer();
             StreamResult result = new StreamResult(fos);
             transformer.transform(source, result);
         }
@@ -181,8 +187,7 @@ public class Utils {
 
     public static void printXml(OutputStream stream, Document document) throws Exception {
         DOMSource source = new DOMSource(document);
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
+        Transformer transformer = transformerFactory.get().newTransformer();
         StreamResult result = new StreamResult(stream);
         transformer.transform(source, result);
     }
@@ -1,35 +1,97 @@
 package com.android.commands.monkey.ape.utils;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+/**
+ * Compiles XPath expressions and caches them by expression string.
+ * Neither {@link XPath} nor {@link XPathExpression} is thread-safe, so each
+ * thread owns its own compiler and its own bounded LRU of compiled
+ * expressions. Hit and miss counters are shared by all threads.
+ */
 public class XPathBuilder {
 
-    static XPathFactory factory;
-    static XPath xpath;
-    static Map<String, XPathExpression> cached = new HashMap<>();
+    public static final int CACHE_SIZE = Config.getInteger("ape.xpathCacheSize", 512);
 
-    static {
-        factory = XPathFactory.newInstance();
-        xpath = factory.newXPath();
-    }
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+
+    private static final ThreadLocal<XPath> xpath = new ThreadLocal<XPath>() {
+        @Override
+        protected XPath initialValue() {
+            return XPathFactory.newInstance().newXPath();
+        }
+    };
 
-    private XPathBuilder() {}
+    private static final ThreadLocal<Map<String, XPathExpression>> cached = new ThreadLocal<Map<String, XPathExpression>>() {
+        @Override
+        protected Map<String, XPathExpression> initialValue() {
+            return new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+        }
+    };
 
+    private XPathBuilder() {
+
+    }
+
+    /**
+     * Always compile a fresh expression, bypassing the cache.
+     */
     public static XPathExpression compile(String exprStr) throws XPathExpressionException {
-        return xpath.compile(exprStr);
+        return xpath.get().compile(exprStr);
     }
 
     public static XPathExpression compileAbortOnError(String exprStr) {
         try {
-            return compile(exprStr);
+            return getExpression(exprStr);
         } catch (XPathExpressionException e) {
             throw new RuntimeException("Cannot compile xpath " + exprStr, e);
         }
     }
+
+    /**
+     * Return the compiled expression owned by the current thread, compiling it
+     * on a miss.
+     */
+    public static XPathExpression getExpression(String exprStr) throws XPathExpressionException {
+        Map<String, XPathExpression> exprs = cached.get();
+        XPathExpression expr = exprs.get(exprStr);
+        if (expr != null) {
+            hitCount.incrementAndGet();
+            return expr;
+        }
+        missCount.incrementAndGet();
+        expr = compile(exprStr);
+        exprs.put(exprStr, expr);
+        return expr;
+    }
+
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    public static void printStatistics() {
+        long hit = hitCount.get();
+        long miss = missCount.get();
+        long total = hit + miss;
+        Logger.iformat("XPath cache: hit=%d, miss=%d, ratio=%.3f, capacity=%d per thread", hit, miss,
+                total == 0 ? 0D : ((double) hit) / total, CACHE_SIZE);
+    }
 }